@@ -28,6 +28,8 @@ import org.openjdk.jmh.annotations.State;
 
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// run with "-prof gc" to report gc.alloc.rate.norm per transaction, and compare against
+// "-prof gc -jvmArgsAppend -Dglowroot.transaction.recycling=true"
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
 @State(Scope.Thread)
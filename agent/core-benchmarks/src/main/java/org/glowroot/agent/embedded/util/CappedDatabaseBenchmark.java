@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.collector.Collector.TraceVisitor;
+import org.glowroot.agent.impl.TraceCreator;
+import org.glowroot.agent.impl.Transaction;
+import org.glowroot.agent.impl.TransactionWorkload;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// cost of writing the (compressed) trace entries and header of a stored trace to the capped
+// database, the database is small enough that it wraps around many times during a run, and of
+// reading the entries back
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CappedDatabaseBenchmark {
+
+    private static final int TRACES = 200;
+
+    @Param({"false", "true"})
+    private boolean memoryMapped;
+
+    @Param({"lzf", "deflate", "deflate-dictionary"})
+    private String codec;
+
+    private File file;
+    private File dictionariesFile;
+    private CappedDatabase cappedDatabase;
+
+    private List<Trace.Header> headers;
+    private List<List<Trace.Entry>> entries;
+    private long[] cappedIds;
+
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        TransactionWorkload workload = new TransactionWorkload(0, 500);
+        headers = Lists.newArrayList();
+        entries = Lists.newArrayList();
+        for (Transaction transaction : workload.generate(TRACES)) {
+            EntryCollectingVisitor traceVisitor = new EntryCollectingVisitor();
+            TraceCreator.createTraceReaderForCompleted(transaction, true).accept(traceVisitor);
+            headers.add(TraceCreator.createCompletedTraceHeader(transaction));
+            entries.add(traceVisitor.entries);
+        }
+        workload.close();
+        file = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        dictionariesFile = new File(file.getPath() + ".dictionaries");
+        cappedDatabase = new CappedDatabase(file, 10 * 1024, Ticker.systemTicker(), memoryMapped,
+                CappedDatabaseCodec.forName(codec),
+                new CappedDatabaseDictionaries(dictionariesFile));
+        cappedIds = new long[TRACES];
+        for (int i = 0; i < TRACES; i++) {
+            cappedIds[i] = cappedDatabase.writeMessages(entries.get(i), "trace entries");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cappedDatabase.close();
+        file.delete();
+        dictionariesFile.delete();
+    }
+
+    @Benchmark
+    public long writeEntries() throws IOException {
+        return cappedDatabase.writeMessages(entries.get(index++ % TRACES), "trace entries");
+    }
+
+    @Benchmark
+    public long writeHeader() throws IOException {
+        return cappedDatabase.writeMessage(headers.get(index++ % TRACES), "trace headers");
+    }
+
+    @Benchmark
+    public List<Trace.Entry> readEntries() throws IOException {
+        return cappedDatabase.readMessages(cappedIds[index++ % TRACES], Trace.Entry.parser());
+    }
+
+    private static class EntryCollectingVisitor implements TraceVisitor {
+
+        private final List<Trace.Entry> entries = Lists.newArrayList();
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            entries.add(entry);
+        }
+
+        @Override
+        public void visitQueries(List<Aggregate.Query> queries) {}
+
+        @Override
+        public void visitSharedQueryTexts(List<String> sharedQueryTexts) {}
+
+        @Override
+        public void visitMainThreadProfile(Profile profile) {}
+
+        @Override
+        public void visitAuxThreadProfile(Profile profile) {}
+
+        @Override
+        public void visitHeader(Trace.Header header) {}
+    }
+}
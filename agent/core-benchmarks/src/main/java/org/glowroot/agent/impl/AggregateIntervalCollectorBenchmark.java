@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.common.model.LazyHistogram.HistogramPool;
+import org.glowroot.common.util.Clock;
+
+// cost of merging completed transactions into an interval (timers, histograms, queries, service
+// calls and thread stats), and of building the aggregate protobuf messages when the interval is
+// flushed, the scores are per transaction
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class AggregateIntervalCollectorBenchmark {
+
+    private static final int TRANSACTIONS_PER_INVOCATION = 1000;
+
+    // the number of distinct sql strings across the workload
+    @Param({"100", "5000"})
+    private int distinctQueryTexts;
+
+    private TransactionWorkload workload;
+    private List<Transaction> transactions;
+    private HistogramPool histogramPool;
+    private BenchmarkCollector collector;
+    private Clock clock;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        workload = new TransactionWorkload(0, distinctQueryTexts);
+        transactions = workload.generate(10000);
+        histogramPool = new HistogramPool(false);
+        collector = new BenchmarkCollector();
+        clock = Clock.systemClock();
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSACTIONS_PER_INVOCATION)
+    public AggregateIntervalCollector add() {
+        AggregateIntervalCollector intervalCollector = createIntervalCollector();
+        addTransactions(intervalCollector);
+        return intervalCollector;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSACTIONS_PER_INVOCATION)
+    public AggregateIntervalCollector addAndFlush() throws Exception {
+        AggregateIntervalCollector intervalCollector = createIntervalCollector();
+        addTransactions(intervalCollector);
+        intervalCollector.flush(collector);
+        return intervalCollector;
+    }
+
+    private AggregateIntervalCollector createIntervalCollector() {
+        return new AggregateIntervalCollector(clock.currentTimeMillis(), 60000, 500, 500, 500, 1,
+                histogramPool, clock);
+    }
+
+    private void addTransactions(AggregateIntervalCollector intervalCollector) {
+        for (int i = 0; i < TRANSACTIONS_PER_INVOCATION; i++) {
+            intervalCollector.add(transactions.get(index++ % transactions.size()));
+        }
+    }
+}
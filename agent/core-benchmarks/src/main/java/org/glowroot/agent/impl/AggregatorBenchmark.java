@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.common.util.Clock;
+
+// end to end aggregation throughput, from the request thread handing off a completed transaction
+// until the aggregate processing thread has merged it into the active interval
+//
+// each invocation hands off a batch of transactions and then waits for the queue to drain, so the
+// score is the average time per transaction
+//
+// the aggregator removes each transaction from the active transactions and recycles it, so a
+// transaction cannot be handed off twice, instead a fresh batch is generated (untimed) before each
+// invocation
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class AggregatorBenchmark {
+
+    private static final int TRANSACTIONS_PER_INVOCATION = 1000;
+
+    @Param({"1", "4"})
+    private int stripeCount;
+
+    private TransactionWorkload workload;
+    private List<Transaction> transactions;
+    private Aggregator aggregator;
+
+    @Setup
+    public void setup() {
+        workload = new TransactionWorkload(0, 500);
+        aggregator = new Aggregator(new BenchmarkCollector(), workload.getConfigService(),
+                60000, stripeCount, Clock.systemClock());
+    }
+
+    @Setup(Level.Invocation)
+    public void generateTransactions() {
+        transactions = workload.generate(TRANSACTIONS_PER_INVOCATION);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        aggregator.close();
+        workload.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSACTIONS_PER_INVOCATION)
+    public void add() {
+        for (Transaction transaction : transactions) {
+            aggregator.add(transaction);
+        }
+        while (aggregator.getPendingTransactionCount() > 0) {
+            Thread.yield();
+        }
+    }
+}
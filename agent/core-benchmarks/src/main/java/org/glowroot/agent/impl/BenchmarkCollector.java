@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.File;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// visits everything it is given (so that the cost of building the protobuf messages is included)
+// and then discards it
+class BenchmarkCollector implements Collector {
+
+    private volatile long aggregateCount;
+
+    @Override
+    public void init(File confDir, @Nullable File sharedConfDir, Environment environment,
+            AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
+
+    @Override
+    public void collectAggregates(AggregateReader aggregateReader) throws Exception {
+        aggregateReader.accept(new AggregateVisitor() {
+            @Override
+            public void visitOverallAggregate(String transactionType,
+                    List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                aggregateCount++;
+            }
+            @Override
+            public void visitTransactionAggregate(String transactionType, String transactionName,
+                    List<String> sharedQueryTexts, Aggregate transactionAggregate) {
+                aggregateCount++;
+            }
+        });
+        aggregateReader.release();
+    }
+
+    @Override
+    public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
+
+    @Override
+    public void collectTrace(TraceReader traceReader) throws Exception {
+        traceReader.accept(new CountingTraceVisitor());
+    }
+
+    @Override
+    public void log(LogEvent logEvent) {}
+
+    long getAggregateCount() {
+        return aggregateCount;
+    }
+
+    static class CountingTraceVisitor implements TraceVisitor {
+
+        private int count;
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            count++;
+        }
+
+        @Override
+        public void visitQueries(List<Aggregate.Query> queries) {
+            count += queries.size();
+        }
+
+        @Override
+        public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
+            count += sharedQueryTexts.size();
+        }
+
+        @Override
+        public void visitMainThreadProfile(Profile profile) {
+            count++;
+        }
+
+        @Override
+        public void visitAuxThreadProfile(Profile profile) {
+            count++;
+        }
+
+        @Override
+        public void visitHeader(Trace.Header header) {
+            count++;
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// run with "-prof gc" to compare gc.alloc.rate.norm per transaction with and without recycling
+//
+// each invocation runs one fresh transaction to completion and then recycles it, the same as the
+// aggregator does once it is done with a transaction (the aggregator itself is left out, so that
+// only the allocations that recycling can avoid are measured)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class RecyclingPoolBenchmark {
+
+    private TransactionWorkload workload;
+
+    @Setup
+    public void setup() {
+        workload = new TransactionWorkload(0, 500);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.transaction.recycling=false")
+    public Transaction withoutRecycling() {
+        return runTransaction();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.transaction.recycling=true")
+    public Transaction withRecycling() {
+        return runTransaction();
+    }
+
+    private Transaction runTransaction() {
+        Transaction transaction = workload.generate();
+        transaction.removeFromActiveTransactions();
+        transaction.recycle();
+        return transaction;
+    }
+}
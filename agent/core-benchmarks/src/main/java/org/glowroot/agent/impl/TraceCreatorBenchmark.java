@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.impl.BenchmarkCollector.CountingTraceVisitor;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// cost of building the protobuf messages for a stored (slow) trace, the header alone is what is
+// built for partial trace updates, the full trace also includes entries, queries and profiles
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TraceCreatorBenchmark {
+
+    private TransactionWorkload workload;
+    private List<Transaction> transactions;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        workload = new TransactionWorkload(0, 500);
+        transactions = workload.generate(1000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public Trace.Header header() throws Exception {
+        return TraceCreator.createCompletedTraceHeader(nextTransaction());
+    }
+
+    @Benchmark
+    public int fullTrace() throws Exception {
+        CountingTraceVisitor traceVisitor = new CountingTraceVisitor();
+        TraceCreator.createTraceReaderForCompleted(nextTransaction(), true).accept(traceVisitor);
+        return traceVisitor.getCount();
+    }
+
+    private Transaction nextTransaction() {
+        return transactions.get(index++ % transactions.size());
+    }
+}
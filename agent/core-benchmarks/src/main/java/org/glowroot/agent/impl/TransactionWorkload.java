@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.model.QueryTexts;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.util.ThreadAllocatedBytes;
+import org.glowroot.common.util.Clock;
+
+// generates completed transactions by driving the real TransactionService (the same path that
+// instrumented plugins take), with a mix of transaction types and names, jdbc queries, service
+// calls and nested entries that resembles a typical web application
+//
+// the generator is seeded so that every benchmark run sees the same workload
+public class TransactionWorkload {
+
+    private static final int TRANSACTION_NAMES = 40;
+    private static final int MAX_QUERIES_PER_TRANSACTION = 30;
+    private static final int MAX_SERVICE_CALLS_PER_TRANSACTION = 3;
+    private static final double ERROR_RATE = 0.02;
+
+    private final Random random;
+    private final List<String> queryTexts;
+
+    private final File confDir;
+    private final TransactionRegistry transactionRegistry = new TransactionRegistry();
+    private final TransactionService transactionService;
+    private final ConfigService configService;
+
+    private final TimerName httpTimerName;
+    private final TimerName jdbcTimerName;
+    private final TimerName httpClientTimerName;
+    private final TimerName renderTimerName;
+
+    public TransactionWorkload(long seed, int distinctQueryTexts) {
+        random = new Random(seed);
+        queryTexts = QueryTexts.generate(random, distinctQueryTexts);
+        confDir = Files.createTempDir();
+        configService = ConfigService.create(confDir, ImmutableList.<PluginDescriptor>of());
+        TimerNameCache timerNameCache = new TimerNameCache();
+        transactionService = TransactionService.create(transactionRegistry, configService,
+                timerNameCache, new UserProfileScheduler(configService, random),
+                new SimulatedTicker(new Random(seed)), Clock.systemClock());
+        transactionService.setThreadAllocatedBytes(ThreadAllocatedBytes.create().getService());
+        httpTimerName = timerNameCache.getTimerName("http request");
+        jdbcTimerName = timerNameCache.getTimerName("jdbc execute");
+        httpClientTimerName = timerNameCache.getTimerName("http client request");
+        renderTimerName = timerNameCache.getTimerName("jsp render");
+    }
+
+    public ConfigService getConfigService() {
+        return configService;
+    }
+
+    public List<String> getQueryTexts() {
+        return queryTexts;
+    }
+
+    public List<Transaction> generate(int count) {
+        List<Transaction> transactions = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            transactions.add(generate());
+        }
+        return transactions;
+    }
+
+    public Transaction generate() {
+        boolean web = random.nextInt(10) != 0;
+        String transactionType = web ? "Web" : "Background";
+        // skewed towards the first few names, since a handful of endpoints usually dominate
+        double d = random.nextDouble();
+        int nameIndex = (int) (TRANSACTION_NAMES * d * d);
+        String transactionName = web ? "/api/resource" + nameIndex : "Job" + nameIndex;
+        ThreadContextThreadLocal.Holder threadContextHolder =
+                transactionRegistry.getCurrentThreadContextHolder();
+        TraceEntryImpl rootEntry = transactionService.startTransaction(transactionType,
+                transactionName, MessageSupplier.create(transactionName), httpTimerName,
+                threadContextHolder);
+        ThreadContextImpl threadContext = (ThreadContextImpl) threadContextHolder.get();
+        Transaction transaction = threadContext.getTransaction();
+        int queryCount = random.nextInt(MAX_QUERIES_PER_TRANSACTION + 1);
+        for (int i = 0; i < queryCount; i++) {
+            QueryEntry queryEntry = threadContext.startQueryEntry("SQL",
+                    QueryTexts.pick(random, queryTexts),
+                    QueryMessageSupplier.create("jdbc query: "), jdbcTimerName);
+            queryEntry.rowNavigationAttempted();
+            int rowCount = random.nextInt(20);
+            for (int j = 0; j < rowCount; j++) {
+                queryEntry.incrementCurrRow();
+            }
+            queryEntry.end();
+        }
+        int serviceCallCount = random.nextInt(MAX_SERVICE_CALLS_PER_TRANSACTION + 1);
+        for (int i = 0; i < serviceCallCount; i++) {
+            String serviceCallText = "GET http://service" + random.nextInt(5) + "/api/data";
+            threadContext.startServiceCallEntry("HTTP", serviceCallText,
+                    MessageSupplier.create("http client request: {}", serviceCallText),
+                    httpClientTimerName).end();
+        }
+        if (web) {
+            TraceEntry renderEntry = threadContext.startTraceEntry(
+                    MessageSupplier.create("jsp render: /WEB-INF/views/index.jsp"),
+                    renderTimerName);
+            // a query issued while rendering, so the timer tree has some nesting
+            threadContext.startQueryEntry("SQL", QueryTexts.pick(random, queryTexts),
+                    QueryMessageSupplier.create("jdbc query: "), jdbcTimerName).end();
+            renderEntry.end();
+        }
+        if (random.nextDouble() < ERROR_RATE) {
+            rootEntry.endWithError("simulated failure");
+        } else {
+            rootEntry.end();
+        }
+        return transaction;
+    }
+
+    public void close() {
+        for (File file : confDir.listFiles()) {
+            file.delete();
+        }
+        confDir.delete();
+    }
+
+    // advances by a random (exponentially distributed) amount on every read, so that timers,
+    // histograms and percentiles see realistic durations without the benchmark having to sleep
+    private static class SimulatedTicker extends Ticker {
+
+        private static final double MEAN_NANOS_PER_READ = 50000;
+
+        private final Random random;
+
+        private long nanos;
+
+        private SimulatedTicker(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public synchronized long read() {
+            nanos += (long) (-MEAN_NANOS_PER_READ * Math.log(1 - random.nextDouble()));
+            return nanos;
+        }
+    }
+}
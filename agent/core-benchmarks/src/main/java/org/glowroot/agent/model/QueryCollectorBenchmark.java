@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// cost of merging queries into an aggregate as the number of distinct sql strings grows past the
+// query limit (500 by default, see AdvancedConfig.maxQueryAggregates), the scores are per merge
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class QueryCollectorBenchmark {
+
+    private static final int MERGES_PER_INVOCATION = 10000;
+
+    private static final int LIMIT = 500;
+    private static final int HARD_LIMIT_MULTIPLIER_WHILE_BUILDING = 10;
+
+    @Param({"100", "1000", "10000"})
+    private int distinctQueryTexts;
+
+    private String[] queryTexts;
+    private long[] durationNanos;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        List<String> distinct = QueryTexts.generate(random, distinctQueryTexts);
+        queryTexts = new String[MERGES_PER_INVOCATION];
+        durationNanos = new long[MERGES_PER_INVOCATION];
+        for (int i = 0; i < MERGES_PER_INVOCATION; i++) {
+            queryTexts[i] = QueryTexts.pick(random, distinct);
+            durationNanos[i] = (long) (-200000 * Math.log(1 - random.nextDouble()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MERGES_PER_INVOCATION)
+    public QueryCollector merge() {
+        return mergeAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MERGES_PER_INVOCATION)
+    public List<Aggregate.Query> mergeAndBuildProto() {
+        return mergeAll().toAggregateProto(new MapSharedQueryTextCollection(), false);
+    }
+
+    private QueryCollector mergeAll() {
+        QueryCollector queryCollector =
+                new QueryCollector(LIMIT, HARD_LIMIT_MULTIPLIER_WHILE_BUILDING);
+        for (int i = 0; i < MERGES_PER_INVOCATION; i++) {
+            queryCollector.mergeQuery("SQL", queryTexts[i], durationNanos[i], 1, true, i % 20,
+                    false);
+        }
+        return queryCollector;
+    }
+
+    private static class MapSharedQueryTextCollection implements SharedQueryTextCollection {
+
+        private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+
+        @Override
+        public int getSharedQueryTextIndex(String queryText) {
+            Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(queryText);
+            if (sharedQueryTextIndex == null) {
+                sharedQueryTextIndex = sharedQueryTextIndexes.size();
+                sharedQueryTextIndexes.put(queryText, sharedQueryTextIndex);
+            }
+            return sharedQueryTextIndex;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+// generates distinct sql strings shaped like what orm and hand written jdbc code produce (selects
+// with joins and in-lists, inserts, updates, deletes), a portion of them are longer than 120
+// characters so that the shared query text (sha1) path is also exercised
+public class QueryTexts {
+
+    private static final String[] TABLES = {"orders", "order_items", "customers", "products",
+            "inventory", "invoices", "payments", "shipments", "addresses", "accounts"};
+
+    private static final String[] COLUMNS = {"id", "status", "created_at", "updated_at",
+            "customer_id", "product_id", "quantity", "amount", "currency", "version", "name",
+            "description"};
+
+    private QueryTexts() {}
+
+    public static List<String> generate(Random random, int count) {
+        Set<String> queryTexts = Sets.newLinkedHashSet();
+        while (queryTexts.size() < count) {
+            // the numeric suffix models the many near duplicate queries produced by sharded or
+            // partitioned tables, and by generated aliases
+            String table = TABLES[random.nextInt(TABLES.length)] + "_" + random.nextInt(100);
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    queryTexts.add(select(random, table));
+                    break;
+                case 2:
+                    queryTexts.add(selectJoin(random, table,
+                            TABLES[random.nextInt(TABLES.length)]));
+                    break;
+                case 3:
+                    queryTexts.add(insert(random, table));
+                    break;
+                case 4:
+                    queryTexts.add("update " + table + " set " + column(random) + " = ?, "
+                            + column(random) + " = ? where id = ? and version = ?");
+                    break;
+                default:
+                    queryTexts.add("delete from " + table + " where " + column(random) + " = ?");
+                    break;
+            }
+        }
+        return Lists.newArrayList(queryTexts);
+    }
+
+    // skewed towards the beginning of the list, since a handful of queries usually dominate
+    public static String pick(Random random, List<String> queryTexts) {
+        double d = random.nextDouble();
+        return queryTexts.get((int) (queryTexts.size() * d * d * d));
+    }
+
+    private static String select(Random random, String table) {
+        StringBuilder sb = new StringBuilder("select ");
+        int columnCount = 1 + random.nextInt(8);
+        for (int i = 0; i < columnCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("t0.").append(column(random));
+        }
+        sb.append(" from ").append(table).append(" t0 where t0.").append(column(random))
+                .append(" = ?");
+        int inListSize = random.nextInt(6);
+        if (inListSize > 0) {
+            sb.append(" and t0.").append(column(random)).append(" in (");
+            for (int i = 0; i < inListSize; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append('?');
+            }
+            sb.append(')');
+        }
+        if (random.nextBoolean()) {
+            sb.append(" order by t0.").append(column(random));
+        }
+        return sb.toString();
+    }
+
+    private static String selectJoin(Random random, String table, String joinTable) {
+        return "select t0.id, t0." + column(random) + ", t1.id, t1." + column(random) + " from "
+                + table + " t0 inner join " + joinTable + " t1 on t1." + column(random)
+                + " = t0.id where t0." + column(random) + " = ? and t1." + column(random)
+                + " > ? order by t0." + column(random) + " desc";
+    }
+
+    private static String insert(Random random, String table) {
+        int columnCount = 2 + random.nextInt(6);
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columnCount; i++) {
+            if (i > 0) {
+                columns.append(", ");
+                values.append(", ");
+            }
+            columns.append(column(random));
+            values.append('?');
+        }
+        return "insert into " + table + " (" + columns + ") values (" + values + ")";
+    }
+
+    private static String column(Random random) {
+        return COLUMNS[random.nextInt(COLUMNS.length)];
+    }
+}
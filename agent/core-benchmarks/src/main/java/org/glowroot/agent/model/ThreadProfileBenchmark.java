@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.common.model.MutableProfile;
+
+// run with "-prof gc" to report gc.alloc.rate.norm per sample
+//
+// each invocation needs a fresh thread profile, these are created up front for the whole batch in
+// the per-iteration setup (instead of per-invocation setup, which adds timing overhead to every
+// invocation and is not accounted for in the score)
+//
+// the score is the time for the whole batch (single shot time ignores operations per invocation),
+// while gc.alloc.rate.norm is divided by operations per invocation, so it is per sample (this
+// includes the thread profiles created in the per-iteration setup, amortized over their samples)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 10, batchSize = ThreadProfileBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = ThreadProfileBenchmark.BATCH_SIZE)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ThreadProfileBenchmark {
+
+    static final int BATCH_SIZE = 1000;
+
+    private static final int SAMPLES_PER_INVOCATION = 100;
+
+    // number of distinct stack traces that are cycled through (stack traces captured at different
+    // depths of the same call chain, similar to sampling a single busy thread)
+    private static final int DISTINCT_STACK_TRACES = 8;
+
+    @Param({"50", "200"})
+    private int stackDepth;
+
+    private ThreadInfo[] threadInfos;
+
+    private ThreadProfile[] threadProfiles;
+    private int threadProfileIndex;
+
+    @Setup
+    public void setup() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadInfos = new ThreadInfo[DISTINCT_STACK_TRACES];
+        for (int i = 0; i < DISTINCT_STACK_TRACES; i++) {
+            threadInfos[i] = captureAtDepth(threadBean, stackDepth + i);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        threadProfiles = new ThreadProfile[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            threadProfiles[i] = new ThreadProfile(Integer.MAX_VALUE);
+        }
+        threadProfileIndex = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE * SAMPLES_PER_INVOCATION)
+    public ThreadProfile addStackTrace() {
+        ThreadProfile threadProfile = threadProfiles[threadProfileIndex++];
+        for (int i = 0; i < SAMPLES_PER_INVOCATION; i++) {
+            threadProfile.addStackTrace(threadInfos[i % DISTINCT_STACK_TRACES]);
+        }
+        return threadProfile;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE * SAMPLES_PER_INVOCATION)
+    public MutableProfile addStackTraceAndMerge() {
+        ThreadProfile threadProfile = threadProfiles[threadProfileIndex++];
+        for (int i = 0; i < SAMPLES_PER_INVOCATION; i++) {
+            threadProfile.addStackTrace(threadInfos[i % DISTINCT_STACK_TRACES]);
+        }
+        MutableProfile profile = new MutableProfile();
+        threadProfile.mergeInto(profile);
+        return profile;
+    }
+
+    private static ThreadInfo captureAtDepth(ThreadMXBean threadBean, final int depth)
+            throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recurse(depth, latch, done);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        latch.await();
+        ThreadInfo threadInfo = threadBean.getThreadInfo(thread.getId(), Integer.MAX_VALUE);
+        done.countDown();
+        thread.join();
+        return threadInfo;
+    }
+
+    private static void recurse(int depth, CountDownLatch latch, CountDownLatch done) {
+        if (depth == 0) {
+            latch.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        recurse(depth - 1, latch, done);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.util.ThreadAllocatedBytes;
+
+// captureBlockedWaitedTime=true is the cost of capturing thread stats when blocked and waited
+// time are captured (which was the only option previously), captureBlockedWaitedTime=false is the
+// cost for transaction types listed in -Dglowroot.threadStats.skipBlockedWaitedTime
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsComponentBenchmark {
+
+    @Param({"true", "false"})
+    private boolean captureBlockedWaitedTime;
+
+    private ThreadAllocatedBytes threadAllocatedBytes;
+
+    private long threadId;
+
+    @Setup
+    public void setup() {
+        threadAllocatedBytes = ThreadAllocatedBytes.create().getService();
+        threadId = Thread.currentThread().getId();
+    }
+
+    @Benchmark
+    public ThreadStats startAndComplete() {
+        ThreadStatsComponent threadStatsComponent =
+                new ThreadStatsComponent(threadAllocatedBytes, captureBlockedWaitedTime);
+        threadStatsComponent.onComplete();
+        return threadStatsComponent.getThreadStats();
+    }
+
+    @Benchmark
+    public long threadAllocatedBytesByThreadId() {
+        return threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+    }
+
+    @Benchmark
+    public long currentThreadAllocatedBytes() {
+        return threadAllocatedBytes.getCurrentThreadAllocatedBytesSafely();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// cost of merging stack trace samples into a profile (what happens for each profiling sample),
+// and of merging profiles together (what happens when aggregating transactions and when reading
+// profiles across intervals)
+//
+// the generated stack traces share a common framework prefix (container, filters, dispatcher)
+// and then branch out into application and library frames, similar to a real web application
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MutableProfileBenchmark {
+
+    private static final int STACK_TRACES = 1000;
+    private static final int PROFILES = 20;
+
+    private static final String[] PACKAGES = {"org.apache.catalina.core",
+            "org.springframework.web.servlet", "org.hibernate.internal", "com.example.app.web",
+            "com.example.app.service", "com.example.app.repository", "com.mysql.cj.jdbc",
+            "java.util", "java.net"};
+
+    @Param({"40", "120"})
+    private int stackDepth;
+
+    private StackTraceElement[][] stackTraces;
+    private Thread.State[] threadStates;
+    private List<MutableProfile> profiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        int prefixDepth = stackDepth / 2;
+        StackTraceElement[] prefix = new StackTraceElement[prefixDepth];
+        for (int i = 0; i < prefixDepth; i++) {
+            prefix[i] = frame(random);
+        }
+        stackTraces = new StackTraceElement[STACK_TRACES][];
+        threadStates = new Thread.State[STACK_TRACES];
+        // branches are drawn from a limited set of frames so that samples overlap, as repeated
+        // samples of the same code paths do
+        StackTraceElement[] branchFrames = new StackTraceElement[200];
+        for (int i = 0; i < branchFrames.length; i++) {
+            branchFrames[i] = frame(random);
+        }
+        for (int i = 0; i < STACK_TRACES; i++) {
+            int depth = prefixDepth + 1 + random.nextInt(stackDepth - prefixDepth);
+            StackTraceElement[] stackTrace = new StackTraceElement[depth];
+            // index 0 is the top of the stack, the shared prefix is at the bottom, and above it
+            // each frame has one of only three possible callees
+            int frameIndex = 0;
+            for (int j = depth - prefixDepth - 1; j >= 0; j--) {
+                frameIndex = (frameIndex * 3 + 1 + random.nextInt(3)) % branchFrames.length;
+                stackTrace[j] = branchFrames[frameIndex];
+            }
+            System.arraycopy(prefix, 0, stackTrace, depth - prefixDepth, prefixDepth);
+            stackTraces[i] = stackTrace;
+            threadStates[i] = random.nextInt(4) == 0 ? Thread.State.WAITING
+                    : Thread.State.RUNNABLE;
+        }
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < PROFILES; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < 50; j++) {
+                int k = random.nextInt(STACK_TRACES);
+                profile.merge(stackTraces[k], threadStates[k]);
+            }
+            profiles.add(profile);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STACK_TRACES)
+    public MutableProfile mergeStackTraces() {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < STACK_TRACES; i++) {
+            profile.merge(stackTraces[i], threadStates[i]);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProfiles() {
+        MutableProfile profile = new MutableProfile();
+        for (MutableProfile other : profiles) {
+            profile.merge(other);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public Profile mergeProfilesAndBuildProto() {
+        return mergeProfiles().toProto();
+    }
+
+    private static StackTraceElement frame(Random random) {
+        String packageName = PACKAGES[random.nextInt(PACKAGES.length)];
+        String className = "Class" + random.nextInt(50);
+        return new StackTraceElement(packageName + "." + className, "method" + random.nextInt(20),
+                className + ".java", 1 + random.nextInt(500));
+    }
+}
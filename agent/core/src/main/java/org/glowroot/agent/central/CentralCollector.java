@@ -25,6 +25,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
@@ -263,9 +265,11 @@ public class CentralCollector implements Collector {
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
+            // no more retries after a successful response
+            aggregateReader.release();
         }
 
-        private class AggregateVisitorImpl implements AggregateVisitor {
+        private class AggregateVisitorImpl implements SerializedAggregateVisitor {
 
             private final StreamObserver<AggregateStreamMessage> requestObserver;
 
@@ -276,13 +280,7 @@ public class CentralCollector implements Collector {
             @Override
             public void visitOverallAggregate(String transactionType,
                     List<String> sharedQueryTexts, Aggregate overallAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
-                            .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s);
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(aggregateSharedQueryText)
-                            .build());
-                }
+                visitSharedQueryTexts(sharedQueryTexts);
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
                         .setOverallAggregate(OverallAggregate.newBuilder()
                                 .setTransactionType(transactionType)
@@ -294,12 +292,7 @@ public class CentralCollector implements Collector {
             public void visitTransactionAggregate(String transactionType,
                     String transactionName, List<String> sharedQueryTexts,
                     Aggregate transactionAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(sharedQueryTextLimiter
-                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
-                            .build());
-                }
+                visitSharedQueryTexts(sharedQueryTexts);
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
                         .setTransactionAggregate(TransactionAggregate.newBuilder()
                                 .setTransactionType(transactionType)
@@ -307,9 +300,57 @@ public class CentralCollector implements Collector {
                                 .setAggregate(transactionAggregate))
                         .build());
             }
+
+            @Override
+            public void visitSerializedOverallAggregate(String transactionType,
+                    List<String> sharedQueryTexts, ByteString overallAggregate) {
+                visitSharedQueryTexts(sharedQueryTexts);
+                requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                        .setOverallAggregate(OverallAggregate.newBuilder()
+                                .setTransactionType(transactionType)
+                                .setUnknownFields(toUnknownFields(
+                                        OverallAggregate.AGGREGATE_FIELD_NUMBER, overallAggregate)))
+                        .build());
+            }
+
+            @Override
+            public void visitSerializedTransactionAggregate(String transactionType,
+                    String transactionName, List<String> sharedQueryTexts,
+                    ByteString transactionAggregate) {
+                visitSharedQueryTexts(sharedQueryTexts);
+                requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                        .setTransactionAggregate(TransactionAggregate.newBuilder()
+                                .setTransactionType(transactionType)
+                                .setTransactionName(transactionName)
+                                .setUnknownFields(toUnknownFields(
+                                        TransactionAggregate.AGGREGATE_FIELD_NUMBER,
+                                        transactionAggregate)))
+                        .build());
+            }
+
+            private void visitSharedQueryTexts(List<String> sharedQueryTexts) {
+                for (String sharedQueryText : sharedQueryTexts) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setSharedQueryText(sharedQueryTextLimiter
+                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
+                            .build());
+                }
+            }
         }
     }
 
+    // the serialized aggregate is sent as an unknown field, which is the same on the wire as
+    // setting the aggregate field, but without having to parse it back into an Aggregate message
+    // first
+    @VisibleForTesting
+    static UnknownFieldSet toUnknownFields(int fieldNumber, ByteString serializedMessage) {
+        return UnknownFieldSet.newBuilder()
+                .addField(fieldNumber, UnknownFieldSet.Field.newBuilder()
+                        .addLengthDelimited(serializedMessage)
+                        .build())
+                .build();
+    }
+
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
 
         private final TraceReader traceReader;
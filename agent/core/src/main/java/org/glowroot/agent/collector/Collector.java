@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.List;
 
+import com.google.protobuf.ByteString;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -50,6 +51,10 @@ public interface Collector {
     public interface AggregateReader {
         long captureTime();
         void accept(AggregateVisitor aggregateVisitor) throws Exception;
+        // called once the collector is done reading (including any retries), which allows the
+        // aggregate reader's resources to be recycled, collectors that cannot tell when they are
+        // done can skip calling this (the resources are then left for garbage collection)
+        void release();
     }
 
     public interface TraceReader {
@@ -67,6 +72,16 @@ public interface Collector {
                 List<String> sharedQueryTexts, Aggregate transactionAggregate) throws Exception;
     }
 
+    // optionally implemented by aggregate visitors that can consume serialized aggregates (the same
+    // bytes as Aggregate.toByteString()), which are written directly from the aggregate collectors
+    // without building the Aggregate message tree
+    public interface SerializedAggregateVisitor extends AggregateVisitor {
+        void visitSerializedOverallAggregate(String transactionType,
+                List<String> sharedQueryTexts, ByteString overallAggregate) throws Exception;
+        void visitSerializedTransactionAggregate(String transactionType, String transactionName,
+                List<String> sharedQueryTexts, ByteString transactionAggregate) throws Exception;
+    }
+
     public interface TraceVisitor extends EntryVisitor {
         void visitQueries(List<Aggregate.Query> queries);
         void visitSharedQueryTexts(List<String> sharedQueryTexts) throws SQLException;
@@ -15,15 +15,20 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.IOException;
 import java.util.List;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.impl.Transaction.RootTimerCollector;
 import org.glowroot.agent.impl.Transaction.ThreadStatsCollector;
+import org.glowroot.agent.impl.UnsampledTransactionCollector.UnsampledAggregate;
 import org.glowroot.agent.model.CommonTimerImpl;
 import org.glowroot.agent.model.MutableAggregateTimer;
 import org.glowroot.agent.model.QueryCollector;
@@ -38,6 +43,7 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.HistogramPool;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
@@ -49,6 +55,7 @@ import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -71,21 +78,32 @@ class AggregateCollector {
     private final ThreadStatsCollectorImpl auxThreadStats = new ThreadStatsCollectorImpl();
     // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
     // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+    private final LazyHistogram durationNanosHistogram;
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
     private @MonotonicNonNull MutableProfile mainThreadProfile;
     private @MonotonicNonNull MutableProfile auxThreadProfile;
 
+    // transactions that were not sampled (see TransactionSampler) only contribute to the totals
+    // and to the duration histogram, the remaining (per transaction) breakdowns are scaled up from
+    // the sampled transactions when reading the aggregate, profiles are not scaled since they are
+    // not broken down per transaction
+    private long unsampledTransactionCount;
+    private double unsampledTotalDurationNanos;
+    private @Nullable String unsampledRootTimerName;
+
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
+    private final HistogramPool histogramPool;
 
     AggregateCollector(@Nullable String transactionName, int maxQueryAggregates,
-            int maxServiceCallAggregates) {
+            int maxServiceCallAggregates, HistogramPool histogramPool) {
         this.transactionName = transactionName;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
+        this.histogramPool = histogramPool;
+        durationNanosHistogram = new LazyHistogram(histogramPool);
     }
 
     void add(Transaction transaction) {
@@ -103,6 +121,20 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    void addUnsampled(UnsampledAggregate unsampledAggregate) {
+        double totalDurationNanos = unsampledAggregate.getTotalDurationNanos();
+        long transactionCount = unsampledAggregate.getTransactionCount();
+        this.totalDurationNanos += totalDurationNanos;
+        this.transactionCount += transactionCount;
+        errorCount += unsampledAggregate.getErrorCount();
+        durationNanosHistogram.merge(unsampledAggregate.getDurationNanosHistogram());
+        unsampledTotalDurationNanos += totalDurationNanos;
+        unsampledTransactionCount += transactionCount;
+        if (unsampledRootTimerName == null) {
+            unsampledRootTimerName = unsampledAggregate.getRootTimerName();
+        }
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -150,28 +182,72 @@ class AggregateCollector {
         return serviceCalls;
     }
 
+    // returns the histogram backing arrays to the pool, this collector must not be used afterwards
+    void release() {
+        durationNanosHistogram.release();
+    }
+
+    // used to combine collectors from different aggregate stripes, this collector is not modified
+    void mergeInto(AggregateCollector collector) {
+        collector.totalDurationNanos += totalDurationNanos;
+        collector.transactionCount += transactionCount;
+        collector.errorCount += errorCount;
+        collector.asyncTransactions |= asyncTransactions;
+        collector.unsampledTransactionCount += unsampledTransactionCount;
+        collector.unsampledTotalDurationNanos += unsampledTotalDurationNanos;
+        if (collector.unsampledRootTimerName == null) {
+            collector.unsampledRootTimerName = unsampledRootTimerName;
+        }
+        mainThreadRootTimers.mergeInto(collector.mainThreadRootTimers);
+        auxThreadRootTimers.mergeInto(collector.auxThreadRootTimers);
+        asyncTimers.mergeInto(collector.asyncTimers);
+        mainThreadStats.mergeInto(collector.mainThreadStats);
+        auxThreadStats.mergeInto(collector.auxThreadStats);
+        collector.durationNanosHistogram.merge(durationNanosHistogram);
+        if (queries != null) {
+            queries.mergeQueriesInto(collector.getQueryCollector());
+        }
+        if (serviceCalls != null) {
+            serviceCalls.mergeServiceCallsInto(collector.getServiceCallCollector());
+        }
+        if (mainThreadProfile != null) {
+            if (collector.mainThreadProfile == null) {
+                collector.mainThreadProfile = new MutableProfile();
+            }
+            collector.mainThreadProfile.merge(mainThreadProfile);
+        }
+        if (auxThreadProfile != null) {
+            if (collector.auxThreadProfile == null) {
+                collector.auxThreadProfile = new MutableProfile();
+            }
+            collector.auxThreadProfile.merge(auxThreadProfile);
+        }
+    }
+
     Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
             ScratchBuffer scratchBuffer) {
+        double scale = getSampledScale();
         Aggregate.Builder builder = Aggregate.newBuilder()
                 .setTotalDurationNanos(totalDurationNanos)
                 .setTransactionCount(transactionCount)
                 .setErrorCount(errorCount)
                 .setAsyncTransactions(asyncTransactions)
-                .addAllMainThreadRootTimer(mainThreadRootTimers.toProto())
-                .addAllAuxThreadRootTimer(auxThreadRootTimers.toProto())
-                .addAllAsyncTimer(asyncTimers.toProto())
+                .addAllMainThreadRootTimer(getMainThreadRootTimersProto(scale))
+                .addAllAuxThreadRootTimer(scaleTimers(auxThreadRootTimers.toProto(), scale))
+                .addAllAsyncTimer(scaleTimers(asyncTimers.toProto(), scale))
                 .setDurationNanosHistogram(durationNanosHistogram.toProto(scratchBuffer));
         if (!mainThreadStats.isNA()) {
-            builder.setMainThreadStats(mainThreadStats.toProto());
+            builder.setMainThreadStats(mainThreadStats.toScaledProto(scale));
         }
         if (!auxThreadStats.isNA()) {
-            builder.setAuxThreadStats(auxThreadStats.toProto());
+            builder.setAuxThreadStats(auxThreadStats.toScaledProto(scale));
         }
         if (queries != null) {
-            builder.addAllQuery(queries.toAggregateProto(sharedQueryTextCollection, false));
+            builder.addAllQuery(scaleQueries(
+                    queries.toAggregateProto(sharedQueryTextCollection, false), scale));
         }
         if (serviceCalls != null) {
-            builder.addAllServiceCall(serviceCalls.toAggregateProto());
+            builder.addAllServiceCall(scaleServiceCalls(serviceCalls.toAggregateProto(), scale));
         }
         if (mainThreadProfile != null) {
             builder.setMainThreadProfile(mainThreadProfile.toProto());
@@ -182,6 +258,57 @@ class AggregateCollector {
         return builder.build();
     }
 
+    // returns the same bytes as build().toByteString(), but without building the Aggregate message
+    // tree, in particular the (potentially many) query, service call and profile node messages
+    ByteString buildSerialized(SharedQueryTextCollection sharedQueryTextCollection,
+            ScratchBuffer scratchBuffer) throws IOException {
+        ByteString.Output out = ByteString.newOutput();
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        double scale = getSampledScale();
+        if (totalDurationNanos != 0) {
+            output.writeDouble(1, totalDurationNanos);
+        }
+        if (transactionCount != 0) {
+            output.writeInt64(2, transactionCount);
+        }
+        if (errorCount != 0) {
+            output.writeInt64(3, errorCount);
+        }
+        if (asyncTransactions) {
+            output.writeBool(4, true);
+        }
+        if (unsampledTransactionCount == transactionCount && unsampledRootTimerName != null) {
+            for (Aggregate.Timer timer : getMainThreadRootTimersProto(scale)) {
+                output.writeMessage(5, timer);
+            }
+        } else {
+            mainThreadRootTimers.writeTo(output, 5, scale);
+        }
+        auxThreadRootTimers.writeTo(output, 6, scale);
+        asyncTimers.writeTo(output, 7, scale);
+        if (!mainThreadStats.isNA()) {
+            output.writeMessage(8, mainThreadStats.toScaledProto(scale));
+        }
+        if (!auxThreadStats.isNA()) {
+            output.writeMessage(9, auxThreadStats.toScaledProto(scale));
+        }
+        output.writeMessage(10, durationNanosHistogram.toProto(scratchBuffer));
+        if (mainThreadProfile != null) {
+            mainThreadProfile.writeTo(output, 13);
+        }
+        if (auxThreadProfile != null) {
+            auxThreadProfile.writeTo(output, 14);
+        }
+        if (queries != null) {
+            queries.writeAggregateProto(output, 15, sharedQueryTextCollection, scale);
+        }
+        if (serviceCalls != null) {
+            serviceCalls.writeAggregateProto(output, 16, scale);
+        }
+        output.flush();
+        return out.toByteString();
+    }
+
     void mergeOverallSummaryInto(OverallSummaryCollector collector) {
         collector.mergeSummary(totalDurationNanos, transactionCount, 0);
     }
@@ -203,30 +330,36 @@ class AggregateCollector {
     }
 
     OverviewAggregate getOverviewAggregate(long captureTime) {
+        double scale = getSampledScale();
         ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
                 .captureTime(captureTime)
                 .totalDurationNanos(totalDurationNanos)
                 .transactionCount(transactionCount)
                 .asyncTransactions(asyncTransactions)
-                .mainThreadRootTimers(mainThreadRootTimers.toProto())
-                .auxThreadRootTimers(auxThreadRootTimers.toProto())
-                .asyncTimers(asyncTimers.toProto());
+                .mainThreadRootTimers(getMainThreadRootTimersProto(scale))
+                .auxThreadRootTimers(scaleTimers(auxThreadRootTimers.toProto(), scale))
+                .asyncTimers(scaleTimers(asyncTimers.toProto(), scale));
         if (!mainThreadStats.isNA()) {
-            builder.mainThreadStats(mainThreadStats.toProto());
+            builder.mainThreadStats(mainThreadStats.toScaledProto(scale));
         }
         if (!auxThreadStats.isNA()) {
-            builder.auxThreadStats(auxThreadStats.toProto());
+            builder.auxThreadStats(auxThreadStats.toScaledProto(scale));
         }
         return builder.build();
     }
 
     PercentileAggregate getPercentileAggregate(long captureTime) {
-        return ImmutablePercentileAggregate.builder()
-                .captureTime(captureTime)
-                .totalDurationNanos(totalDurationNanos)
-                .transactionCount(transactionCount)
-                .durationNanosHistogram(durationNanosHistogram.toProto(new ScratchBuffer()))
-                .build();
+        ScratchBuffer scratchBuffer = histogramPool.getScratchBuffer();
+        try {
+            return ImmutablePercentileAggregate.builder()
+                    .captureTime(captureTime)
+                    .totalDurationNanos(totalDurationNanos)
+                    .transactionCount(transactionCount)
+                    .durationNanosHistogram(durationNanosHistogram.toProto(scratchBuffer))
+                    .build();
+        } finally {
+            histogramPool.releaseScratchBuffer(scratchBuffer);
+        }
     }
 
     ThroughputAggregate getThroughputAggregate(long captureTime) {
@@ -259,14 +392,94 @@ class AggregateCollector {
 
     void mergeMainThreadProfilesInto(ProfileCollector collector) {
         if (mainThreadProfile != null) {
-            collector.mergeProfile(mainThreadProfile.toProto());
+            collector.mergeProfile(mainThreadProfile);
         }
     }
 
     void mergeAuxThreadProfilesInto(ProfileCollector collector) {
         if (auxThreadProfile != null) {
-            collector.mergeProfile(auxThreadProfile.toProto());
+            collector.mergeProfile(auxThreadProfile);
+        }
+    }
+
+    // factor by which the breakdowns of the sampled transactions are scaled to represent all of
+    // the transactions
+    private double getSampledScale() {
+        long sampledTransactionCount = transactionCount - unsampledTransactionCount;
+        if (unsampledTransactionCount == 0 || sampledTransactionCount == 0) {
+            return 1;
+        }
+        return transactionCount / (double) sampledTransactionCount;
+    }
+
+    private List<Aggregate.Timer> getMainThreadRootTimersProto(double scale) {
+        if (unsampledTransactionCount == transactionCount && unsampledRootTimerName != null) {
+            // no sampled transactions to take the breakdown from, so at least keep the root timer
+            // consistent with the total duration
+            return ImmutableList.of(Aggregate.Timer.newBuilder()
+                    .setName(unsampledRootTimerName)
+                    .setTotalNanos(unsampledTotalDurationNanos)
+                    .setCount(unsampledTransactionCount)
+                    .build());
+        }
+        return scaleTimers(mainThreadRootTimers.toProto(), scale);
+    }
+
+    private static List<Aggregate.Timer> scaleTimers(List<Aggregate.Timer> timers, double scale) {
+        if (scale == 1) {
+            return timers;
+        }
+        List<Aggregate.Timer> scaledTimers = Lists.newArrayListWithCapacity(timers.size());
+        for (Aggregate.Timer timer : timers) {
+            scaledTimers.add(scaleTimer(timer, scale));
+        }
+        return scaledTimers;
+    }
+
+    private static Aggregate.Timer scaleTimer(Aggregate.Timer timer, double scale) {
+        Aggregate.Timer.Builder builder = timer.toBuilder()
+                .setTotalNanos(timer.getTotalNanos() * scale)
+                .setCount(Math.round(timer.getCount() * scale))
+                .clearChildTimer();
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(scaleTimer(childTimer, scale));
+        }
+        return builder.build();
+    }
+
+    private static List<Aggregate.Query> scaleQueries(List<Aggregate.Query> queries,
+            double scale) {
+        if (scale == 1) {
+            return queries;
+        }
+        List<Aggregate.Query> scaledQueries = Lists.newArrayListWithCapacity(queries.size());
+        for (Aggregate.Query query : queries) {
+            Aggregate.Query.Builder builder = query.toBuilder()
+                    .setTotalDurationNanos(query.getTotalDurationNanos() * scale)
+                    .setExecutionCount(Math.round(query.getExecutionCount() * scale));
+            if (query.hasTotalRows()) {
+                builder.setTotalRows(OptionalInt64.newBuilder()
+                        .setValue(Math.round(query.getTotalRows().getValue() * scale)));
+            }
+            scaledQueries.add(builder.build());
+        }
+        return scaledQueries;
+    }
+
+    private static List<Aggregate.ServiceCall> scaleServiceCalls(
+            List<Aggregate.ServiceCall> serviceCalls, double scale) {
+        if (scale == 1) {
+            return serviceCalls;
+        }
+        List<Aggregate.ServiceCall> scaledServiceCalls =
+                Lists.newArrayListWithCapacity(serviceCalls.size());
+        for (Aggregate.ServiceCall serviceCall : serviceCalls) {
+            scaledServiceCalls.add(serviceCall.toBuilder()
+                    .setTotalDurationNanos(serviceCall.getTotalDurationNanos() * scale)
+                    .setExecutionCount(Math.round(serviceCall.getExecutionCount() * scale))
+                    .build());
         }
+        return scaledServiceCalls;
     }
 
     private static class RootTimerCollectorImpl implements RootTimerCollector {
@@ -278,6 +491,12 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void mergeInto(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
+                MutableAggregateTimer.mergeTimer(rootMutableTimer, collector.rootMutableTimers);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -286,6 +505,13 @@ class AggregateCollector {
             return rootTimers;
         }
 
+        private void writeTo(CodedOutputStream output, int fieldNumber, double scale)
+                throws IOException {
+            for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
+                rootMutableTimer.writeTo(output, fieldNumber, scale);
+            }
+        }
+
         private static void mergeRootTimer(CommonTimerImpl toBeMergedRootTimer,
                 List<MutableAggregateTimer> rootTimers) {
             for (MutableAggregateTimer rootTimer : rootTimers) {
@@ -324,6 +550,20 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void mergeInto(ThreadStatsCollectorImpl collector) {
+            if (empty) {
+                return;
+            }
+            collector.totalCpuNanos = NotAvailableAware.add(collector.totalCpuNanos, totalCpuNanos);
+            collector.totalBlockedMillis =
+                    NotAvailableAware.add(collector.totalBlockedMillis, totalBlockedMillis);
+            collector.totalWaitedMillis =
+                    NotAvailableAware.add(collector.totalWaitedMillis, totalWaitedMillis);
+            collector.totalAllocatedBytes =
+                    NotAvailableAware.add(collector.totalAllocatedBytes, totalAllocatedBytes);
+            collector.empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
@@ -334,21 +574,22 @@ class AggregateCollector {
                     && NotAvailableAware.isNA(totalAllocatedBytes);
         }
 
-        public Aggregate.ThreadStats toProto() {
+        // scale is used to scale up thread stats from sampled transactions to all transactions
+        public Aggregate.ThreadStats toScaledProto(double scale) {
             Aggregate.ThreadStats.Builder builder = Aggregate.ThreadStats.newBuilder();
             if (!NotAvailableAware.isNA(totalCpuNanos)) {
-                builder.setTotalCpuNanos(toProto(totalCpuNanos));
+                builder.setTotalCpuNanos(toProto(totalCpuNanos * scale));
             }
             if (!NotAvailableAware.isNA(totalBlockedMillis)) {
                 builder.setTotalBlockedNanos(
-                        toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND));
+                        toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND * scale));
             }
             if (!NotAvailableAware.isNA(totalWaitedMillis)) {
                 builder.setTotalWaitedNanos(
-                        toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND));
+                        toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND * scale));
             }
             if (!NotAvailableAware.isNA(totalAllocatedBytes)) {
-                builder.setTotalAllocatedBytes(toProto(totalAllocatedBytes));
+                builder.setTotalAllocatedBytes(toProto(totalAllocatedBytes * scale));
             }
             return builder.build();
         }
@@ -17,21 +17,27 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.collector.Collector.SerializedAggregateVisitor;
+import org.glowroot.agent.impl.UnsampledTransactionCollector.UnsampledAggregate;
 import org.glowroot.agent.model.SharedQueryTextCollection;
 import org.glowroot.agent.model.ThreadProfile;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.model.LazyHistogram.HistogramPool;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
@@ -52,180 +58,282 @@ public class AggregateIntervalCollector {
     private final int maxTransactionAggregates;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
+    private final HistogramPool histogramPool;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // transactions are partitioned across stripes by transaction type and name so that stripes can
+    // be aggregated concurrently (see Aggregator), stripes are only combined when reading
+    private final Stripe[] stripes;
 
-    private final Object lock = new Object();
+    // one release from the flusher (see Aggregator) and one from the collector (see release())
+    private final AtomicInteger pendingReleases = new AtomicInteger(2);
+
+    // shared across stripes so that maxTransactionAggregates applies to the interval as a whole
+    private final ConcurrentMap<String, AtomicInteger> transactionAggregateCounts =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
-            Clock clock) {
+            int stripeCount, HistogramPool histogramPool, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
+        this.histogramPool = histogramPool;
         this.clock = clock;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
     }
 
     public long getCaptureTime() {
         return captureTime;
     }
 
+    // transactions in the same stripe must not be added concurrently by different threads in order
+    // to preserve the benefit of striping (though it would still be thread safe)
+    int getStripe(Transaction transaction) {
+        return getStripe(transaction.getTransactionType(), transaction.getTransactionName());
+    }
+
+    private int getStripe(String transactionType, String transactionName) {
+        if (stripes.length == 1) {
+            return 0;
+        }
+        int hash = 31 * transactionType.hashCode() + transactionName.hashCode();
+        return (hash & Integer.MAX_VALUE) % stripes.length;
+    }
+
     public void add(Transaction transaction) {
-        synchronized (lock) {
+        Stripe stripe = stripes[getStripe(transaction)];
+        synchronized (stripe.lock) {
             IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+                    stripe.getTypeCollector(transaction.getTransactionType());
             typeCollector.add(transaction);
         }
     }
 
+    void addUnsampled(UnsampledAggregate unsampledAggregate) {
+        String transactionType = unsampledAggregate.getTransactionType();
+        Stripe stripe =
+                stripes[getStripe(transactionType, unsampledAggregate.getTransactionName())];
+        synchronized (stripe.lock) {
+            stripe.getTypeCollector(transactionType).addUnsampled(unsampledAggregate);
+        }
+    }
+
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                IntervalTypeCollector typeCollector = stripe.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                IntervalTypeCollector typeCollector = stripe.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                IntervalTypeCollector typeCollector = stripe.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                IntervalTypeCollector typeCollector = stripe.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getOverviewAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        try {
             return aggregateCollector.getOverviewAggregate(liveCaptureTime);
+        } finally {
+            aggregateCollector.release();
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getPercentileAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        try {
             return aggregateCollector.getPercentileAggregate(liveCaptureTime);
+        } finally {
+            aggregateCollector.release();
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getThroughputAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        try {
             return aggregateCollector.getThroughputAggregate(liveCaptureTime);
+        } finally {
+            aggregateCollector.release();
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                for (IntervalTypeCollector typeCollector : stripe.typeCollectors.values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeQueriesInto(collector);
             }
-            aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeServiceCallsInto(collector);
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeMainThreadProfilesInto(collector);
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeAuxThreadProfilesInto(collector);
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
+        }
+    }
+
+    // the histograms are recycled once both the collector is done reading the flushed aggregates
+    // (see AggregateReader.release()) and the aggregator no longer exposes this interval to the UI
+    // (see Aggregator), whichever comes last
+    void release() {
+        if (pendingReleases.decrementAndGet() == 0) {
+            clear();
         }
     }
 
@@ -233,34 +341,106 @@ public class AggregateIntervalCollector {
         collector.collectAggregates(new AggregatesImpl(captureTime));
     }
 
+    // also called on intervals that are dropped (instead of flushed), since in both cases their
+    // aggregates are no longer needed, and their histograms can be recycled
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                for (IntervalTypeCollector typeCollector : stripe.typeCollectors.values()) {
+                    typeCollector.release();
+                }
+                stripe.typeCollectors.clear();
+            }
         }
+        transactionAggregateCounts.clear();
     }
 
-    @GuardedBy("lock")
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+    // only used when there are multiple stripes
+    private @Nullable AggregateCollector getMergedAggregateCollector(String transactionType,
+            @Nullable String transactionName) {
+        AggregateCollector mergedAggregateCollector = null;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                AggregateCollector aggregateCollector =
+                        stripe.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(transactionName,
+                            maxQueryAggregates, maxServiceCallAggregates, histogramPool);
+                }
+                aggregateCollector.mergeInto(mergedAggregateCollector);
+            }
         }
-        return typeCollector;
+        return mergedAggregateCollector;
     }
 
-    @GuardedBy("lock")
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
+    // only used when there are multiple stripes
+    private Map<String, IntervalTypeCollector> getMergedTypeCollectors() {
+        Map<String, IntervalTypeCollector> mergedTypeCollectors = Maps.newHashMap();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                for (Map.Entry<String, IntervalTypeCollector> entry : stripe.typeCollectors
+                        .entrySet()) {
+                    String transactionType = entry.getKey();
+                    IntervalTypeCollector mergedTypeCollector =
+                            mergedTypeCollectors.get(transactionType);
+                    if (mergedTypeCollector == null) {
+                        mergedTypeCollector = new IntervalTypeCollector(new AtomicInteger());
+                        mergedTypeCollectors.put(transactionType, mergedTypeCollector);
+                    }
+                    entry.getValue().mergeInto(mergedTypeCollector);
+                }
+            }
+        }
+        return mergedTypeCollectors;
+    }
+
+    private AtomicInteger getTransactionAggregateCount(String transactionType) {
+        AtomicInteger transactionAggregateCount = transactionAggregateCounts.get(transactionType);
+        if (transactionAggregateCount == null) {
+            transactionAggregateCount = new AtomicInteger();
+            AtomicInteger existing = transactionAggregateCounts.putIfAbsent(transactionType,
+                    transactionAggregateCount);
+            if (existing != null) {
+                transactionAggregateCount = existing;
+            }
+        }
+        return transactionAggregateCount;
+    }
+
+    private class Stripe {
+
+        @GuardedBy("lock")
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private final Object lock = new Object();
+
+        @GuardedBy("lock")
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector =
+                        new IntervalTypeCollector(getTransactionAggregateCount(transactionType));
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+
+        @GuardedBy("lock")
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
         }
     }
 
@@ -269,35 +449,60 @@ public class AggregateIntervalCollector {
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
+        private final AtomicInteger transactionAggregateCount;
 
-        private IntervalTypeCollector() {
+        private IntervalTypeCollector(AtomicInteger transactionAggregateCount) {
             overallAggregateCollector =
-                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates,
+                            histogramPool);
+            this.transactionAggregateCount = transactionAggregateCount;
         }
 
         private void add(Transaction transaction) {
             merge(transaction, overallAggregateCollector);
+            merge(transaction, getTransactionAggregateCollector(transaction.getTransactionName()));
+        }
+
+        private void addUnsampled(UnsampledAggregate unsampledAggregate) {
+            overallAggregateCollector.addUnsampled(unsampledAggregate);
+            getTransactionAggregateCollector(unsampledAggregate.getTransactionName())
+                    .addUnsampled(unsampledAggregate);
+        }
+
+        private AggregateCollector getTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector =
-                    transactionAggregateCollectors.get(transaction.getTransactionName());
+                    transactionAggregateCollectors.get(transactionName);
+            if (transactionAggregateCollector != null) {
+                return transactionAggregateCollector;
+            }
+            if (tryReserveTransactionAggregate()) {
+                return createTransactionAggregateCollector(transactionName);
+            }
+            transactionAggregateCollector =
+                    transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
             if (transactionAggregateCollector == null) {
-                if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
-                    transactionAggregateCollector =
-                            createTransactionAggregateCollector(transaction.getTransactionName());
-                } else {
-                    transactionAggregateCollector =
-                            transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
-                    if (transactionAggregateCollector == null) {
-                        transactionAggregateCollector =
-                                createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
-                    }
+                transactionAggregateCollector =
+                        createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
+            }
+            return transactionAggregateCollector;
+        }
+
+        // the count is shared with the other stripes, so check and increment must be atomic
+        private boolean tryReserveTransactionAggregate() {
+            while (true) {
+                int count = transactionAggregateCount.get();
+                if (count >= maxTransactionAggregates) {
+                    return false;
+                }
+                if (transactionAggregateCount.compareAndSet(count, count + 1)) {
+                    return true;
                 }
             }
-            merge(transaction, transactionAggregateCollector);
         }
 
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
-                    transactionName, maxQueryAggregates, maxServiceCallAggregates);
+                    transactionName, maxQueryAggregates, maxServiceCallAggregates, histogramPool);
             transactionAggregateCollectors.put(transactionName, transactionAggregateCollector);
             return transactionAggregateCollector;
         }
@@ -320,6 +525,29 @@ public class AggregateIntervalCollector {
             }
         }
 
+        private void mergeInto(IntervalTypeCollector collector) {
+            overallAggregateCollector.mergeInto(collector.overallAggregateCollector);
+            for (Map.Entry<String, AggregateCollector> entry : transactionAggregateCollectors
+                    .entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        collector.transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null) {
+                    // limit has already been applied by each stripe
+                    transactionAggregateCollector =
+                            collector.createTransactionAggregateCollector(transactionName);
+                }
+                entry.getValue().mergeInto(transactionAggregateCollector);
+            }
+        }
+
+        private void release() {
+            overallAggregateCollector.release();
+            for (AggregateCollector aggregateCollector : transactionAggregateCollectors.values()) {
+                aggregateCollector.release();
+            }
+        }
+
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
             String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -348,31 +576,96 @@ public class AggregateIntervalCollector {
             return captureTime;
         }
 
+        @Override
+        public void release() {
+            AggregateIntervalCollector.this.release();
+        }
+
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
-                SharedQueryTextCollectionImpl sharedQueryTextCollector =
-                        new SharedQueryTextCollectionImpl();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
+            if (stripes.length == 1) {
+                Stripe stripe = stripes[0];
+                synchronized (stripe.lock) {
+                    accept(stripe.typeCollectors, aggregateVisitor);
+                }
+            } else {
+                // the merged type collectors are not shared, so no need to hold any lock
+                Map<String, IntervalTypeCollector> mergedTypeCollectors =
+                        getMergedTypeCollectors();
+                try {
+                    accept(mergedTypeCollectors, aggregateVisitor);
+                } finally {
+                    for (IntervalTypeCollector mergedTypeCollector : mergedTypeCollectors
+                            .values()) {
+                        mergedTypeCollector.release();
                     }
                 }
             }
         }
+
+        private void accept(Map<String, IntervalTypeCollector> typeCollectors,
+                AggregateVisitor aggregateVisitor) throws Exception {
+            SharedQueryTextCollectionImpl sharedQueryTextCollector =
+                    new SharedQueryTextCollectionImpl();
+            ScratchBuffer scratchBuffer = histogramPool.getScratchBuffer();
+            try {
+                accept(typeCollectors, aggregateVisitor, sharedQueryTextCollector, scratchBuffer);
+            } finally {
+                histogramPool.releaseScratchBuffer(scratchBuffer);
+            }
+        }
+
+        private void accept(Map<String, IntervalTypeCollector> typeCollectors,
+                AggregateVisitor aggregateVisitor,
+                SharedQueryTextCollectionImpl sharedQueryTextCollector,
+                ScratchBuffer scratchBuffer) throws Exception {
+            if (aggregateVisitor instanceof SerializedAggregateVisitor) {
+                acceptSerialized(typeCollectors, (SerializedAggregateVisitor) aggregateVisitor,
+                        sharedQueryTextCollector, scratchBuffer);
+                return;
+            }
+            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
+                        .build(sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector
+                        .transactionAggregateCollectors.entrySet()) {
+                    Aggregate transactionAggregate =
+                            f.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                    aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
+                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                            transactionAggregate);
+                }
+            }
+        }
+
+        private void acceptSerialized(Map<String, IntervalTypeCollector> typeCollectors,
+                SerializedAggregateVisitor aggregateVisitor,
+                SharedQueryTextCollectionImpl sharedQueryTextCollector,
+                ScratchBuffer scratchBuffer) throws Exception {
+            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                ByteString overallAggregate = intervalTypeCollector.overallAggregateCollector
+                        .buildSerialized(sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitSerializedOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector
+                        .transactionAggregateCollectors.entrySet()) {
+                    ByteString transactionAggregate =
+                            f.getValue().buildSerialized(sharedQueryTextCollector, scratchBuffer);
+                    aggregateVisitor.visitSerializedTransactionAggregate(transactionType,
+                            f.getKey(),
+                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                            transactionAggregate);
+                }
+            }
+        }
     }
 
     private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
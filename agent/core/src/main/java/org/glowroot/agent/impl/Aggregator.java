@@ -18,9 +18,13 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-import javax.annotation.concurrent.GuardedBy;
-
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -29,12 +33,15 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.UnsampledTransactionCollector.UnsampledAggregate;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.model.LazyHistogram.HistogramPool;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
@@ -46,11 +53,32 @@ public class Aggregator {
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // upper bound on how long the processing thread parks while waiting for the end of the active
+    // interval, so that it still notices clock changes and close() in a timely manner
+    private static final long MAX_PARK_MILLIS = 100;
+
+    // when greater than 1, transactions are aggregated by this number of threads (each owning a
+    // stripe of the interval collector, partitioned by transaction type and name) instead of only
+    // by the processing thread, and stripes are then combined when the interval is flushed
+    private static final int AGGREGATE_STRIPES =
+            Math.max(1, Integer.getInteger("glowroot.aggregate.stripes", 1));
+
+    // when true, histograms are encoded using (pooled) direct buffers
+    private static final boolean DIRECT_SCRATCH_BUFFERS =
+            Boolean.getBoolean("glowroot.aggregate.directScratchBuffers");
+
+    private static final Runnable NOP = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
     private final ExecutorService processingExecutor;
+    // empty unless striped aggregation is enabled, one single threaded executor per stripe
+    private final List<ExecutorService> aggregatingExecutors;
     private final ExecutorService flushingExecutor;
     private final Collector collector;
     private final ConfigService configService;
@@ -58,34 +86,63 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    // the transaction queue is a lock-free multi-producer/single-consumer linked queue, request
+    // threads append by swapping the tail and then linking the previous tail to the new node, and
+    // the (single) processing thread is the only one to ever read or advance head
+    private PendingTransaction head = new PendingTransaction(null);
+    private final AtomicReference<PendingTransaction> tail =
+            new AtomicReference<PendingTransaction>(head);
+    private final AtomicInteger queueLength = new AtomicInteger();
+
+    private volatile @Nullable Thread processingThread;
+    // set by the processing thread before parking, so that producers only pay for unpark() when
+    // the processing thread is (or is about to be) parked
+    private volatile boolean processingThreadParked;
+
+    private final AtomicLong droppedTransactionCount = new AtomicLong();
+    private final AtomicLong droppedAggregateCount = new AtomicLong();
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
     private volatile boolean closed;
 
+    private final int stripeCount;
+
+    // durations of transactions that were not sampled, see TransactionSampler
+    private final UnsampledTransactionCollector unsampledTransactionCollector;
+
+    // shared across intervals so that recycled histogram arrays outlive each interval
+    private final HistogramPool histogramPool = new HistogramPool(DIRECT_SCRATCH_BUFFERS);
+
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, AGGREGATE_STRIPES, clock);
+    }
+
+    @VisibleForTesting
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            int stripeCount, Clock clock) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
+        this.stripeCount = stripeCount;
+        unsampledTransactionCollector = new UnsampledTransactionCollector(aggregateIntervalMillis);
         processingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        if (stripeCount == 1) {
+            aggregatingExecutors = ImmutableList.of();
+        } else {
+            List<ExecutorService> aggregatingExecutors = Lists.newArrayList();
+            for (int i = 0; i < stripeCount; i++) {
+                aggregatingExecutors.add(Executors.newSingleThreadExecutor(
+                        ThreadFactories.create("Glowroot-Aggregate-Processing-" + i)));
+            }
+            this.aggregatingExecutors = ImmutableList.copyOf(aggregatingExecutors);
+        }
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
         processingExecutor.execute(new TransactionProcessor());
     }
 
@@ -107,28 +164,56 @@ public class Aggregator {
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
+        if (queueLength.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+            queueLength.decrementAndGet();
+            droppedTransactionCount.incrementAndGet();
+            backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                    + " backlog of {} transactions already waiting to be aggregated",
+                    TRANSACTION_PENDING_LIMIT);
+            transaction.removeFromActiveTransactions();
+            return clock.currentTimeMillis();
+        }
         PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-            } else {
-                newTail.captureTime = captureTime;
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            }
+        PendingTransaction prevTail = tail.getAndSet(newTail);
+        // captureTime is read after claiming the position in the queue, so that if the queue was
+        // observed empty by the processing thread, any transaction entering the queue afterwards
+        // has captureTime no earlier than what the processing thread observed at that point
+        //
+        // two producers can still race between claiming their position and reading the clock, so
+        // the processing thread does not rely on strict captureTime ordering, instead it never
+        // lets the captureTime used for aggregation go backwards (see TransactionProcessor)
+        long captureTime = clock.currentTimeMillis();
+        newTail.captureTime = captureTime;
+        // volatile write publishes newTail (including its captureTime) to the processing thread
+        prevTail.next = newTail;
+        if (processingThreadParked) {
+            processingThreadParked = false;
+            LockSupport.unpark(processingThread);
         }
         return captureTime;
     }
 
+    // unsampled transactions are drained into the active interval collector by the processing
+    // thread before parking and before flushing, only up to the active interval (based on their
+    // capture time), so that they are aggregated into the interval they completed in
+    void addUnsampled(long captureTime, String transactionType, String transactionName,
+            String rootTimerName, long durationNanos, boolean error) {
+        unsampledTransactionCollector.add(captureTime, transactionType, transactionName,
+                rootTimerName, durationNanos, error);
+    }
+
+    public long getPendingTransactionCount() {
+        return queueLength.get();
+    }
+
+    public long getDroppedTransactionCount() {
+        return droppedTransactionCount.get();
+    }
+
+    public long getDroppedAggregateCount() {
+        return droppedAggregateCount.get();
+    }
+
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
         AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
@@ -148,20 +233,45 @@ public class Aggregator {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        Thread processingThread = this.processingThread;
+        if (processingThread != null) {
+            LockSupport.unpark(processingThread);
+        }
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        for (ExecutorService aggregatingExecutor : aggregatingExecutors) {
+            aggregatingExecutor.shutdown();
+            if (!aggregatingExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         flushingExecutor.shutdown();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
     }
 
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(), stripeCount,
+                histogramPool, clock);
+    }
+
     private class TransactionProcessor implements Runnable {
 
+        // captureTime used for aggregation never goes backwards, which gives the same guarantee as
+        // strict queue ordering (once captureTime indicates time to flush, no transaction will be
+        // aggregated into an interval prior to that), at the cost of (rarely) aggregating a
+        // transaction that lost a sub-millisecond race into the next interval
+        private long lastCaptureTime;
+
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
             while (!closed) {
                 try {
                     processOne();
@@ -172,14 +282,14 @@ public class Aggregator {
             }
         }
 
-        private void processOne() throws InterruptedException {
+        private void processOne() {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+                if (tail.get() != head) {
+                    // a producer has claimed its position in the queue but has not linked it yet
+                    Thread.yield();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    waitForTransactionOrEndOfInterval();
                 }
                 return;
             }
@@ -189,55 +299,77 @@ public class Aggregator {
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
+            // remove head, the old head is left behind for garbage collection and the new head
+            // becomes the stub node (its transaction is cleared so it is not retained)
+            head = pendingTransaction;
+            pendingTransaction.transaction = null;
+
+            long captureTime = Math.max(pendingTransaction.captureTime, lastCaptureTime);
+            lastCaptureTime = captureTime;
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
                 flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+                activeIntervalCollector = createIntervalCollector(captureTime);
+            }
+            if (aggregatingExecutors.isEmpty()) {
+                queueLength.decrementAndGet();
+                activeIntervalCollector.add(transaction);
+                transaction.recycle();
+            } else {
+                // transaction still counts against TRANSACTION_PENDING_LIMIT until it has been
+                // aggregated by the stripe's executor
+                AggregateIntervalCollector intervalCollector = activeIntervalCollector;
+                aggregatingExecutors.get(intervalCollector.getStripe(transaction))
+                        .execute(new StripeAggregation(intervalCollector, transaction));
             }
-            activeIntervalCollector.add(transaction);
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
+        private void waitForTransactionOrEndOfInterval() {
+            long currentTime = clock.currentTimeMillis();
+            long remainingMillis = activeIntervalCollector.getCaptureTime() - currentTime;
+            if (remainingMillis < 0) {
+                // queue was observed empty above before reading currentTime, so transactions that
+                // enter the queue from here on will have captureTime no earlier than currentTime
+                // (and if they lose that race, lastCaptureTime takes care of it)
+                lastCaptureTime = Math.max(currentTime, lastCaptureTime);
                 flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+                activeIntervalCollector = createIntervalCollector(lastCaptureTime);
+                return;
+            }
+            drainUnsampledTransactions();
+            processingThreadParked = true;
+            // re-check after publishing processingThreadParked, since a producer may have linked a
+            // transaction before observing the flag
+            if (head.next == null && tail.get() == head && !closed) {
+                // +1 since end of interval is reached once currentTime > interval captureTime
+                LockSupport.parkNanos(this,
+                        MILLISECONDS.toNanos(Math.min(remainingMillis + 1, MAX_PARK_MILLIS)));
+            }
+            processingThreadParked = false;
+        }
+
+        private void drainUnsampledTransactions() {
+            for (UnsampledAggregate unsampledAggregate : unsampledTransactionCollector
+                    .drain(activeIntervalCollector.getCaptureTime())) {
+                activeIntervalCollector.addUnsampled(unsampledAggregate);
             }
         }
 
         private void flushActiveIntervalCollector() {
+            drainUnsampledTransactions();
             if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
+                droppedAggregateCount.incrementAndGet();
                 logger.warn("not storing an aggregate because of an excessive backlog of {}"
                         + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+                try {
+                    // same as when flushing, transactions that were handed off to the stripes may
+                    // still be adding to (and borrowing histograms for) this interval
+                    waitForStripeAggregations();
+                    activeIntervalCollector.clear();
+                } catch (Exception e) {
+                    // the histograms are left to garbage collection instead of being recycled
+                    // while they may still be in use
+                    logger.error(e.getMessage(), e);
+                }
                 return;
             }
             final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
@@ -247,21 +379,62 @@ public class Aggregator {
                 @Override
                 public void run() {
                     try {
+                        waitForStripeAggregations();
                         intervalCollector.flush(collector);
                     } catch (Throwable t) {
                         logger.error(t.getMessage(), t);
                     } finally {
                         pendingIntervalCollectors.remove(intervalCollector);
+                        intervalCollector.release();
                     }
                 }
             });
         }
     }
 
+    // stripe executors are FIFO, so once this returns, all transactions that were handed off to
+    // them prior to this call have been aggregated
+    private void waitForStripeAggregations() throws Exception {
+        List<Future<?>> futures = Lists.newArrayList();
+        for (ExecutorService aggregatingExecutor : aggregatingExecutors) {
+            futures.add(aggregatingExecutor.submit(NOP));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private class StripeAggregation implements Runnable {
+
+        private final AggregateIntervalCollector intervalCollector;
+        private final Transaction transaction;
+
+        private StripeAggregation(AggregateIntervalCollector intervalCollector,
+                Transaction transaction) {
+            this.intervalCollector = intervalCollector;
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void run() {
+            try {
+                intervalCollector.add(transaction);
+                transaction.recycle();
+            } catch (Throwable t) {
+                // log and continue processing
+                logger.error(t.getMessage(), t);
+            } finally {
+                queueLength.decrementAndGet();
+            }
+        }
+    }
+
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for head (cleared once node becomes head, after being consumed)
+        private @Nullable Transaction transaction;
+        // captureTime is published to the processing thread by the volatile write to next
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
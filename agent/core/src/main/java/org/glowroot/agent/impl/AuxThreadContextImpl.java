@@ -20,6 +20,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.bytecode.api.ThreadContextPlus;
 import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.agent.plugin.api.AuxThreadContext;
 import org.glowroot.agent.plugin.api.ThreadContext.ServletRequestInfo;
@@ -88,15 +89,16 @@ class AuxThreadContextImpl implements AuxThreadContext {
     private TraceEntry start(boolean completeAsyncTransaction) {
         ThreadContextThreadLocal.Holder threadContextHolder =
                 transactionRegistry.getCurrentThreadContextHolder();
-        ThreadContextImpl context = (ThreadContextImpl) threadContextHolder.get();
-        if (context != null) {
+        ThreadContextPlus currentContext = threadContextHolder.get();
+        if (currentContext != null) {
             if (completeAsyncTransaction) {
-                context.setTransactionAsyncComplete();
+                currentContext.setTransactionAsyncComplete();
             }
             return NopTransactionService.TRACE_ENTRY;
         }
-        context = transactionService.startAuxThreadContextInternal(transaction, parentTraceEntry,
-                parentThreadContextPriorEntry, servletRequestInfo, threadContextHolder);
+        ThreadContextImpl context = transactionService.startAuxThreadContextInternal(transaction,
+                parentTraceEntry, parentThreadContextPriorEntry, servletRequestInfo,
+                threadContextHolder);
         if (context == null) {
             // transaction is already complete or auxiliary thread context limit exceeded
             return NopTransactionService.TRACE_ENTRY;
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Arrays;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.model.TimerNameImpl;
@@ -49,6 +51,14 @@ class NestedTimerMap {
         return null;
     }
 
+    // retains the current capacity, this is used when the owning timer is recycled
+    void clear() {
+        if (size != 0) {
+            Arrays.fill(table, null);
+            size = 0;
+        }
+    }
+
     // IMPORTANT put assumes get was already called and key is not present in this map
     void put(TimerNameImpl key, TimerImpl value) {
         if (size++ > threshold) {
@@ -78,8 +78,14 @@ class OptionalThreadContextImpl implements ThreadContextPlus {
             return NopTransactionService.TRACE_ENTRY;
         }
         if (threadContext == null) {
-            TraceEntry traceEntry = transactionService.startTransaction(transactionType,
-                    transactionName, messageSupplier, timerName, threadContextHolder);
+            TraceEntry traceEntry;
+            if (transactionService.isSampled(transactionType)) {
+                traceEntry = transactionService.startTransaction(transactionType,
+                        transactionName, messageSupplier, timerName, threadContextHolder);
+            } else {
+                traceEntry = transactionService.startUnsampledTransaction(transactionType,
+                        transactionName, timerName, threadContextHolder);
+            }
             threadContext = checkNotNull(threadContextHolder.get());
             return traceEntry;
         } else {
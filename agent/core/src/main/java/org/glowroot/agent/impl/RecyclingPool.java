@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.ThreadStatsComponent;
+
+// per-thread pool of the timers and thread stats component of transactions that were started on
+// the thread, objects are only taken by the owning thread, and are returned by the aggregation
+// thread (once it is done with the transaction, see Transaction.recycle()) through a lock-free
+// stack, so returning objects neither blocks nor allocates
+//
+// trace entries are not recycled since plugins can retain them (e.g. query entries retained by
+// result sets) and use them after the transaction has completed
+class RecyclingPool {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.transaction.recycling");
+
+    private static final int MAX_RETURNED_TIMERS = 256;
+    private static final int MAX_THREAD_STATS_COMPONENTS = 4;
+
+    private static final ThreadLocal<RecyclingPool> pools = new ThreadLocal<RecyclingPool>() {
+        @Override
+        protected RecyclingPool initialValue() {
+            return new RecyclingPool();
+        }
+    };
+
+    // only accessed by the owning thread
+    private @Nullable TimerImpl localTimers;
+
+    // timers returned since the owning thread last ran out of local timers, these are linked
+    // through TimerImpl.recycleNext
+    private final AtomicReference</*@Nullable*/ TimerImpl> returnedTimers =
+            new AtomicReference</*@Nullable*/ TimerImpl>();
+    private final AtomicInteger returnedTimerCount = new AtomicInteger();
+
+    private final AtomicReferenceArray</*@Nullable*/ ThreadStatsComponent> threadStatsComponents =
+            new AtomicReferenceArray</*@Nullable*/ ThreadStatsComponent>(
+                    MAX_THREAD_STATS_COMPONENTS);
+
+    static @Nullable RecyclingPool getForCurrentThread() {
+        return ENABLED ? pools.get() : null;
+    }
+
+    // only called by the owning thread
+    @Nullable
+    TimerImpl takeTimer() {
+        TimerImpl timer = localTimers;
+        if (timer == null) {
+            if (returnedTimers.get() == null) {
+                return null;
+            }
+            timer = returnedTimers.getAndSet(null);
+            returnedTimerCount.set(0);
+            if (timer == null) {
+                return null;
+            }
+        }
+        localTimers = timer.recycleNext;
+        timer.recycleNext = null;
+        return timer;
+    }
+
+    // only called by the owning thread
+    @Nullable
+    ThreadStatsComponent takeThreadStatsComponent() {
+        for (int i = 0; i < MAX_THREAD_STATS_COMPONENTS; i++) {
+            if (threadStatsComponents.get(i) != null) {
+                ThreadStatsComponent threadStatsComponent =
+                        threadStatsComponents.getAndSet(i, null);
+                if (threadStatsComponent != null) {
+                    return threadStatsComponent;
+                }
+            }
+        }
+        return null;
+    }
+
+    // the timer tree must no longer be in use, returns false if the timers were not recycled
+    boolean recycleTimers(TimerImpl rootTimer) {
+        int count = 0;
+        TimerImpl timer = rootTimer;
+        while (timer != null) {
+            if (timer.isActive()) {
+                // this can happen if a plugin did not end a trace entry or timer, in which case
+                // the plugin could still end it later
+                return false;
+            }
+            count++;
+            timer = timer.getNextInTree(rootTimer);
+        }
+        if (returnedTimerCount.get() + count > MAX_RETURNED_TIMERS) {
+            return false;
+        }
+        // link the timers together (tree links are still needed while traversing, so they are
+        // only cleared afterwards)
+        TimerImpl tail = rootTimer;
+        timer = rootTimer.getNextInTree(rootTimer);
+        while (timer != null) {
+            tail.recycleNext = timer;
+            tail = timer;
+            timer = timer.getNextInTree(rootTimer);
+        }
+        for (timer = rootTimer; timer != null; timer = timer.recycleNext) {
+            timer.clear();
+        }
+        returnedTimerCount.addAndGet(count);
+        while (true) {
+            TimerImpl head = returnedTimers.get();
+            tail.recycleNext = head;
+            if (returnedTimers.compareAndSet(head, rootTimer)) {
+                return true;
+            }
+        }
+    }
+
+    // the thread stats component must no longer be in use
+    void recycleThreadStatsComponent(ThreadStatsComponent threadStatsComponent) {
+        for (int i = 0; i < MAX_THREAD_STATS_COMPONENTS; i++) {
+            if (threadStatsComponents.get(i) == null
+                    && threadStatsComponents.compareAndSet(i, null, threadStatsComponent)) {
+                return;
+            }
+        }
+    }
+}
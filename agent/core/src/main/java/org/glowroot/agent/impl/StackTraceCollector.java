@@ -17,9 +17,11 @@ package org.glowroot.agent.impl;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.List;
 import java.util.Random;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -36,6 +38,15 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // when set, this is the maximum percentage of one core that stack trace capture is allowed to
+    // consume, and when capturing all active threads would exceed this budget, only an evenly
+    // spaced subset of the active threads is captured (each captured stack trace then stands in for
+    // the ones that were skipped, see captureStackTraces(List, int))
+    private static final double MAX_CPU_PERCENT = getMaxCpuPercent();
+
+    // weight given to the most recent measurement when updating the capture cost estimate
+    private static final double CAPTURE_COST_SMOOTHING = 0.2;
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -78,6 +89,11 @@ public class StackTraceCollector {
     }
 
     static void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+        captureStackTraces(threadContexts, 1);
+    }
+
+    // weight is the inverse of the rate at which the thread contexts were sampled
+    static void captureStackTraces(List<ThreadContextImpl> threadContexts, int weight) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
@@ -94,7 +110,7 @@ public class StackTraceCollector {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
             if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo);
+                threadContext.captureStackTrace(threadInfo, weight);
             }
         }
     }
@@ -104,6 +120,11 @@ public class StackTraceCollector {
         private volatile int currIntervalMillis;
         private volatile boolean closed;
 
+        // estimated cost (in nanoseconds) of capturing the stack trace of a single thread, this is
+        // only accessed by the processing thread
+        private double captureCostNanosPerThread = -1;
+        private int currSamplingStep = 1;
+
         @Override
         public void run() {
             // delay for first
@@ -157,7 +178,87 @@ public class StackTraceCollector {
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
-            captureStackTraces(activeThreadContexts);
+            if (MAX_CPU_PERCENT <= 0) {
+                captureStackTraces(activeThreadContexts);
+                return;
+            }
+            captureStackTracesUnderBudget(activeThreadContexts);
+        }
+
+        private void captureStackTracesUnderBudget(List<ThreadContextImpl> activeThreadContexts) {
+            int samplingStep = getSamplingStep(activeThreadContexts.size(),
+                    captureCostNanosPerThread, currIntervalMillis, MAX_CPU_PERCENT);
+            if (samplingStep != currSamplingStep) {
+                logger.debug("capturing stack traces of 1 out of every {} active threads",
+                        samplingStep);
+                currSamplingStep = samplingStep;
+            }
+            List<ThreadContextImpl> sampledThreadContexts;
+            if (samplingStep == 1) {
+                sampledThreadContexts = activeThreadContexts;
+            } else {
+                // systematic sampling with random start, since the active thread contexts are
+                // grouped by transaction this spreads the samples evenly across transactions, and
+                // gives every thread the same 1 / samplingStep chance of being captured
+                sampledThreadContexts = Lists.newArrayListWithCapacity(
+                        activeThreadContexts.size() / samplingStep + 1);
+                for (int i = random.nextInt(samplingStep); i < activeThreadContexts.size();
+                        i += samplingStep) {
+                    sampledThreadContexts.add(activeThreadContexts.get(i));
+                }
+            }
+            if (sampledThreadContexts.isEmpty()) {
+                return;
+            }
+            long startNanos = getCurrentThreadCostNanos();
+            captureStackTraces(sampledThreadContexts, samplingStep);
+            long costNanosPerThread =
+                    (getCurrentThreadCostNanos() - startNanos) / sampledThreadContexts.size();
+            if (captureCostNanosPerThread == -1) {
+                captureCostNanosPerThread = costNanosPerThread;
+            } else {
+                captureCostNanosPerThread = CAPTURE_COST_SMOOTHING * costNanosPerThread
+                        + (1 - CAPTURE_COST_SMOOTHING) * captureCostNanosPerThread;
+            }
+        }
+    }
+
+    // returns n, where the stack trace of only 1 out of every n active threads should be captured
+    @VisibleForTesting
+    static int getSamplingStep(int activeThreadCount, double captureCostNanosPerThread,
+            int intervalMillis, double maxCpuPercent) {
+        if (captureCostNanosPerThread <= 0) {
+            // no estimate yet
+            return 1;
+        }
+        double budgetNanos = intervalMillis * 1000000.0 * maxCpuPercent / 100;
+        int maxThreads = (int) Math.max(1, budgetNanos / captureCostNanosPerThread);
+        if (activeThreadCount <= maxThreads) {
+            return 1;
+        }
+        // ceiling division
+        return (activeThreadCount + maxThreads - 1) / maxThreads;
+    }
+
+    private static long getCurrentThreadCostNanos() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled()) {
+            return threadBean.getCurrentThreadCpuTime();
+        } else {
+            return System.nanoTime();
+        }
+    }
+
+    private static double getMaxCpuPercent() {
+        String value = System.getProperty("glowroot.profiling.maxCpuPercent");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid glowroot.profiling.maxCpuPercent: {}", value);
+            return 0;
         }
     }
 }
@@ -85,6 +85,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // it is used to help place aux thread context in the correct place inside parent
     private final @Nullable TraceEntryImpl parentThreadContextPriorEntry;
 
+    // this is null for auxiliary threads and when transaction object recycling is disabled
+    private final @Nullable RecyclingPool recyclingPool;
+
     private final TimerImpl rootTimer;
     // only accessed by the thread context's thread
     private @Nullable TimerImpl currentTimer;
@@ -93,6 +96,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private int currentSuppressionKeyId;
 
     private final @Nullable ThreadStatsComponent threadStatsComponent;
+    private final boolean captureBlockedWaitedTime;
 
     // root entry for this trace
     private final TraceEntryComponent traceEntryComponent;
@@ -141,28 +145,33 @@ public class ThreadContextImpl implements ThreadContextPlus {
     ThreadContextImpl(Transaction transaction, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, MessageSupplier messageSupplier,
             TimerName rootTimerName, long startTick, boolean captureThreadStats,
-            int maxQueryAggregates, int maxServiceCallAggregates,
+            boolean captureBlockedWaitedTime, int maxQueryAggregates, int maxServiceCallAggregates,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             boolean limitExceededAuxThreadContext, Ticker ticker,
             ThreadContextThreadLocal.Holder threadContextHolder,
             @Nullable ServletRequestInfo servletRequestInfo) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
+        recyclingPool = parentTraceEntry == null ? RecyclingPool.getForCurrentThread() : null;
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
         threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        threadStatsComponent = captureThreadStats ? createThreadStatsComponent(recyclingPool,
+                threadAllocatedBytes, captureBlockedWaitedTime) : null;
+        this.captureBlockedWaitedTime = captureBlockedWaitedTime;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
         this.ticker = ticker;
         this.threadContextHolder = threadContextHolder;
         this.servletRequestInfo = servletRequestInfo;
-        this.outerTransactionThreadContext = (ThreadContextImpl) threadContextHolder.get();
+        ThreadContextPlus outerThreadContext = threadContextHolder.get();
+        // the thread context holder can also hold an UnsampledThreadContext
+        this.outerTransactionThreadContext = outerThreadContext instanceof ThreadContextImpl
+                ? (ThreadContextImpl) outerThreadContext : null;
     }
 
     public Transaction getTransaction() {
@@ -186,6 +195,22 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return rootTimer;
     }
 
+    @Nullable
+    RecyclingPool getRecyclingPool() {
+        return recyclingPool;
+    }
+
+    // must only be called once the transaction has completed and nothing else references it
+    void recycle() {
+        if (recyclingPool == null) {
+            return;
+        }
+        recyclingPool.recycleTimers(rootTimer);
+        if (threadStatsComponent != null) {
+            recyclingPool.recycleThreadStatsComponent(threadStatsComponent);
+        }
+    }
+
     ThreadStats getThreadStats() {
         if (threadStatsComponent == null) {
             return ThreadStats.NA;
@@ -270,6 +295,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadStatsComponent != null;
     }
 
+    boolean getCaptureBlockedWaitedTime() {
+        return captureBlockedWaitedTime;
+    }
+
     private boolean isCompleted(long captureTick) {
         if (!traceEntryComponent.isCompleted()) {
             return false;
@@ -421,8 +450,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo);
+    void captureStackTrace(ThreadInfo threadInfo, int weight) {
+        transaction.captureStackTrace(isAuxiliary(), threadInfo, weight);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
@@ -1061,6 +1090,20 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return currentTimer.startNestedTimer(timerName, startTick);
     }
 
+    private static ThreadStatsComponent createThreadStatsComponent(
+            @Nullable RecyclingPool recyclingPool,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean captureBlockedWaitedTime) {
+        if (recyclingPool != null) {
+            ThreadStatsComponent threadStatsComponent = recyclingPool.takeThreadStatsComponent();
+            if (threadStatsComponent != null) {
+                threadStatsComponent.reinitialize(threadAllocatedBytes, captureBlockedWaitedTime);
+                return threadStatsComponent;
+            }
+        }
+        return new ThreadStatsComponent(threadAllocatedBytes, captureBlockedWaitedTime);
+    }
+
     private @Nullable Object getParentThreadContextDisplay() {
         if (parentTraceEntry == null) {
             return null;
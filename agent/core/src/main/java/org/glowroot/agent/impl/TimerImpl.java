@@ -21,7 +21,6 @@ import java.util.List;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +36,8 @@ import org.glowroot.agent.util.Tickers;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 // instances are updated by a single thread, but can be read by other threads
 // memory visibility is therefore an issue for the reading threads
 //
@@ -54,6 +55,9 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 // in-flight (e.g. partial traces and active traces displayed in the UI) may not be visible
 //
 // all timing data is in nanoseconds
+//
+// instances are re-used when transaction object recycling is enabled (see RecyclingPool), in which
+// case the fields below are reinitialized when the instance is re-used
 @Styles.Private
 public class TimerImpl implements Timer, CommonTimerImpl {
 
@@ -61,9 +65,10 @@ public class TimerImpl implements Timer, CommonTimerImpl {
 
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TimerImpl parent;
-    private final TimerNameImpl timerName;
+    // only null while the instance is waiting to be re-used
+    private @Nullable ThreadContextImpl threadContext;
+    private @Nullable TimerImpl parent;
+    private TimerNameImpl timerName;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalNanos;
@@ -76,15 +81,37 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     // synchronized access during timer capture which is important
     //
     // lazy initialize to save memory in common case where this is a leaf timer
-    private @MonotonicNonNull NestedTimerMap nestedTimers;
+    //
+    // this is retained (cleared) when the instance is recycled
+    private @Nullable NestedTimerMap nestedTimers;
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
-    private @MonotonicNonNull TimerImpl headChild;
-    private final @Nullable TimerImpl nextSibling;
+    private @Nullable TimerImpl headChild;
+    private @Nullable TimerImpl nextSibling;
+
+    // only used while the instance is waiting to be re-used, see RecyclingPool
+    @Nullable
+    TimerImpl recycleNext;
 
     static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+        return create(threadContext, null, null, timerName);
+    }
+
+    private static TimerImpl create(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+        RecyclingPool recyclingPool = threadContext.getRecyclingPool();
+        if (recyclingPool != null) {
+            TimerImpl timer = recyclingPool.takeTimer();
+            if (timer != null) {
+                timer.threadContext = threadContext;
+                timer.parent = parent;
+                timer.nextSibling = nextSibling;
+                timer.timerName = timerName;
+                return timer;
+            }
+        }
+        return new TimerImpl(threadContext, parent, nextSibling, timerName);
     }
 
     private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
@@ -95,6 +122,41 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         this.threadContext = threadContext;
     }
 
+    boolean isActive() {
+        return selfNestingLevel != 0;
+    }
+
+    // pre-order traversal of the timer tree under root, returns null at the end of the traversal
+    @Nullable
+    TimerImpl getNextInTree(TimerImpl root) {
+        if (headChild != null) {
+            return headChild;
+        }
+        TimerImpl curr = this;
+        while (curr != root) {
+            if (curr.nextSibling != null) {
+                return curr.nextSibling;
+            }
+            curr = checkNotNull(curr.parent);
+        }
+        return null;
+    }
+
+    // clears all state (other than recycleNext) prior to the instance being re-used
+    void clear() {
+        threadContext = null;
+        parent = null;
+        nextSibling = null;
+        headChild = null;
+        totalNanos = 0;
+        count = 0;
+        startTick = 0;
+        selfNestingLevel = 0;
+        if (nestedTimers != null) {
+            nestedTimers.clear();
+        }
+    }
+
     // safe to be called from another thread when transaction is still active transaction
     @JsonIgnore
     Trace.Timer toProto() {
@@ -252,7 +314,7 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     }
 
     TimerImpl extend(long startTick) {
-        TimerImpl currentTimer = threadContext.getCurrentTimer();
+        TimerImpl currentTimer = checkNotNull(threadContext).getCurrentTimer();
         if (currentTimer == null) {
             logger.warn("extend() transaction currentTimer is null");
             return this;
@@ -280,13 +342,13 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     void start(long startTick) {
         this.startTick = startTick;
         selfNestingLevel++;
-        threadContext.setCurrentTimer(this);
+        checkNotNull(threadContext).setCurrentTimer(this);
     }
 
     private void endInternal(long endTick) {
         totalNanos += endTick - startTick;
         count++;
-        threadContext.setCurrentTimer(parent);
+        checkNotNull(threadContext).setCurrentTimer(parent);
     }
 
     private TimerImpl startNestedTimerInternal(TimerName timerName, long nestedTimerStartTick) {
@@ -299,7 +361,7 @@ public class TimerImpl implements Timer, CommonTimerImpl {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
+        nestedTimer = create(checkNotNull(threadContext), this, headChild, timerNameImpl);
         nestedTimer.start(nestedTimerStartTick);
         nestedTimers.put(timerNameImpl, nestedTimer);
         headChild = nestedTimer;
@@ -264,23 +264,36 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             if (isAsync()) {
                 extendAsync();
             } else {
-                extendSync(ticker.read());
+                extendSync(ticker.read(), !RecyclingPool.ENABLED || isTransactionThread());
             }
         }
         return this;
     }
 
-    private void extendSync(long currTick) {
+    private void extendSync(long currTick, boolean extendTimer) {
         // syncTimer is only null for trace entries added using addEntryEntry(), and these trace
         // entries are not returned from plugin api so no way for extend() to be called when
         // syncTimer is null
         checkNotNull(syncTimer);
         long priorDurationNanos = endTick - revisedStartTick;
         revisedStartTick = currTick - priorDurationNanos;
-        extendedTimer = syncTimer.extend(currTick);
+        if (extendTimer) {
+            extendedTimer = syncTimer.extend(currTick);
+        } else {
+            // set to null since its value is checked in stopSync()
+            extendedTimer = null;
+        }
         extendQueryData(currTick);
     }
 
+    // the timers can only be recycled (see RecyclingPool) after the transaction has completed,
+    // which happens on the transaction thread, so while the transaction is still active on the
+    // current thread its timers cannot be recycled concurrently (e.g. a result set that is read
+    // after the transaction completed, possibly while a new transaction re-uses the timers)
+    private boolean isTransactionThread() {
+        return BytecodeServiceHolder.get().getCurrentThreadContextHolder().get() == threadContext;
+    }
+
     @RequiresNonNull("asyncTimer")
     private void extendAsync() {
         ThreadContextThreadLocal.Holder holder =
@@ -288,7 +301,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         ThreadContextPlus currThreadContext = holder.get();
         long currTick = ticker.read();
         if (currThreadContext == threadContext) {
-            extendSync(currTick);
+            extendSync(currTick, true);
         } else {
             // set to null since its value is checked in stopAsync()
             extendedTimer = null;
@@ -311,8 +324,9 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     private void stopSync(long endTick) {
         this.endTick = endTick;
-        // the timer interface for this class is only expose through return value of extend()
-        checkNotNull(extendedTimer).end(endTick);
+        if (extendedTimer != null) {
+            extendedTimer.end(endTick);
+        }
         endQueryData(endTick);
         // it is not helpful to capture stack trace at end of async trace entry since it is
         // ended by a different thread (and by not capturing, it reduces thread safety needs)
@@ -467,6 +481,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // syncTimer is only null for trace entries added using addEntryEntry(), and these trace
         // entries are not returned from plugin api so no way for extendSyncTimer() to be called
         checkNotNull(syncTimer);
+        // the transaction is active on the current thread (checked above), so the timer cannot be
+        // recycled concurrently (see isTransactionThread())
         return syncTimer.extend();
     }
 
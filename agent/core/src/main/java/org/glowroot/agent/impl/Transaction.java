@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -104,6 +105,13 @@ public class Transaction {
 
     private static final Random random = new Random();
 
+    private static final int RECYCLABLE = 0;
+    private static final int PINNED = 1;
+    private static final int RECYCLED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Transaction> recycleStateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "recycleState");
+
     private volatile @Nullable String traceId;
 
     private final long startTime;
@@ -154,6 +162,9 @@ public class Transaction {
 
     private volatile boolean partiallyStored;
 
+    // see pin() and recycle()
+    private volatile int recycleState;
+
     private long captureTime;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
@@ -212,8 +223,9 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntries, int maxQueryAggregates, int maxServiceCallAggregates,
-            int maxProfileSamples, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean captureBlockedWaitedTime, int maxTraceEntries, int maxQueryAggregates,
+            int maxServiceCallAggregates, int maxProfileSamples,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionService transactionService,
             ConfigService configService, UserProfileScheduler userProfileScheduler,
@@ -233,9 +245,9 @@ public class Transaction {
         this.transactionService = transactionService;
         this.configService = configService;
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, null,
-                messageSupplier, timerName, startTick, captureThreadStats, maxQueryAggregates,
-                maxServiceCallAggregates, threadAllocatedBytes, false, ticker, threadContextHolder,
-                null);
+                messageSupplier, timerName, startTick, captureThreadStats,
+                captureBlockedWaitedTime, maxQueryAggregates, maxServiceCallAggregates,
+                threadAllocatedBytes, false, ticker, threadContextHolder, null);
     }
 
     long getStartTime() {
@@ -670,6 +682,31 @@ public class Transaction {
         partiallyStored = true;
     }
 
+    // prevents the transaction's timers and thread stats from being recycled, this must be called
+    // by anything that may read the transaction after it has been passed to the aggregator,
+    // returns false if it is too late since the transaction has already been recycled
+    public boolean pin() {
+        if (recycleStateUpdater.compareAndSet(this, RECYCLABLE, PINNED)) {
+            return true;
+        }
+        return recycleState == PINNED;
+    }
+
+    // called by the aggregator once it is done with the transaction
+    void recycle() {
+        if (!RecyclingPool.ENABLED || async || partiallyStored) {
+            return;
+        }
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null) {
+                return;
+            }
+        }
+        if (recycleStateUpdater.compareAndSet(this, RECYCLABLE, RECYCLED)) {
+            mainThreadContext.recycle();
+        }
+    }
+
     void setTransactionEntry(SelfRemovableEntry transactionEntry) {
         this.transactionEntry = transactionEntry;
     }
@@ -703,15 +740,17 @@ public class Transaction {
                 auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
                         parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
-                        maxQueryAggregates, maxServiceCallAggregates, threadAllocatedBytes, false,
-                        ticker, threadContextHolder, servletRequestInfo);
+                        mainThreadContext.getCaptureBlockedWaitedTime(), maxQueryAggregates,
+                        maxServiceCallAggregates, threadAllocatedBytes, false, ticker,
+                        threadContextHolder, servletRequestInfo);
                 auxThreadContexts.add(auxThreadContext);
             } else {
                 auxThreadContext = new ThreadContextImpl(this, mainThreadContext.getRootEntry(),
                         mainThreadContext.getTailEntry(), AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
-                        maxQueryAggregates, maxServiceCallAggregates, threadAllocatedBytes, true,
-                        ticker, threadContextHolder, servletRequestInfo);
+                        mainThreadContext.getCaptureBlockedWaitedTime(), maxQueryAggregates,
+                        maxServiceCallAggregates, threadAllocatedBytes, true, ticker,
+                        threadContextHolder, servletRequestInfo);
                 if (unmergedLimitExceededAuxThreadContexts == null) {
                     unmergedLimitExceededAuxThreadContexts = Sets.newHashSet();
                 }
@@ -769,7 +808,7 @@ public class Transaction {
         return queryCount > maxQueryAggregates;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo) {
+    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int weight) {
         if (completed) {
             return;
         }
@@ -788,7 +827,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new ThreadProfile(maxProfileSamples);
-            profile.addStackTrace(threadInfo);
+            profile.addStackTrace(threadInfo, weight);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -796,7 +835,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo);
+        profile.addStackTrace(threadInfo, weight);
     }
 
     void end(long endTick, boolean completeAsyncTransaction) {
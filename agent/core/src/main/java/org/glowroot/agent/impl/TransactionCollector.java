@@ -127,9 +127,15 @@ public class TransactionCollector {
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
-        long captureTime = aggregator.add(transaction);
         final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        boolean storeTrace = slow || shouldStoreError(transaction);
+        if (storeTrace) {
+            // must be pinned before handing off to the aggregator, which otherwise may recycle the
+            // transaction's timers as soon as it is done aggregating them
+            transaction.pin();
+        }
+        long captureTime = aggregator.add(transaction);
+        if (!storeTrace) {
             return;
         }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
@@ -162,9 +168,19 @@ public class TransactionCollector {
         });
     }
 
+    void onCompletedUnsampledTransaction(String transactionType, String transactionName,
+            String rootTimerName, long durationNanos, boolean error) {
+        // capture time is stamped at completion, same as for sampled transactions
+        aggregator.addUnsampled(clock.currentTimeMillis(), transactionType, transactionName,
+                rootTimerName, durationNanos, error);
+    }
+
     // no need to throttle partial trace storage since throttling is handled upstream by using a
     // single thread executor in PartialTraceStorageWatcher
     public void storePartialTrace(Transaction transaction) {
+        if (!transaction.pin()) {
+            return;
+        }
         try {
             TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
                     clock.currentTimeMillis(), ticker.read());
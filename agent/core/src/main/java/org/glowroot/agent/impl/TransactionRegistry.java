@@ -17,6 +17,7 @@ package org.glowroot.agent.impl;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.agent.bytecode.api.ThreadContextPlus;
 import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
@@ -33,11 +34,12 @@ public class TransactionRegistry {
 
     @Nullable
     Transaction getCurrentTransaction() {
-        ThreadContextImpl threadContext = (ThreadContextImpl) currentThreadContext.get();
-        if (threadContext == null) {
+        ThreadContextPlus threadContext = currentThreadContext.get();
+        // the thread context holder can also hold an UnsampledThreadContext
+        if (!(threadContext instanceof ThreadContextImpl)) {
             return null;
         }
-        return threadContext.getTransaction();
+        return ((ThreadContextImpl) threadContext).getTransaction();
     }
 
     public ThreadContextThreadLocal.Holder getCurrentThreadContextHolder() {
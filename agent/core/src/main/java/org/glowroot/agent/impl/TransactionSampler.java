@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// decides which transactions get full instrumentation (a Transaction with its entries, timers and
+// thread stats), the remaining transactions only have their duration recorded, see
+// UnsampledTransactionCollector
+//
+// a transaction is sampled if it passes both the (random) sampling fraction and the rate limit for
+// its transaction type
+class TransactionSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionSampler.class);
+
+    private static final double FRACTION = getFraction();
+
+    // per transaction type, 0 means no rate limit
+    private static final int MAX_PER_SECOND =
+            Integer.getInteger("glowroot.transaction.sampling.maxPerSecond", 0);
+
+    private static final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final double fraction;
+    private final int maxPerSecond;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<String, RateLimiter> rateLimiters = Maps.newConcurrentMap();
+
+    static @Nullable TransactionSampler create(Ticker ticker) {
+        if (FRACTION >= 1 && MAX_PER_SECOND <= 0) {
+            return null;
+        }
+        return new TransactionSampler(FRACTION, MAX_PER_SECOND, ticker);
+    }
+
+    @VisibleForTesting
+    TransactionSampler(double fraction, int maxPerSecond, Ticker ticker) {
+        this.fraction = fraction;
+        this.maxPerSecond = maxPerSecond;
+        this.ticker = ticker;
+    }
+
+    boolean isSampled(String transactionType) {
+        if (fraction < 1 && randoms.get().nextDouble() >= fraction) {
+            return false;
+        }
+        if (maxPerSecond <= 0) {
+            return true;
+        }
+        RateLimiter rateLimiter = rateLimiters.get(transactionType);
+        if (rateLimiter == null) {
+            rateLimiter = new RateLimiter(maxPerSecond, ticker.read());
+            RateLimiter existing = rateLimiters.putIfAbsent(transactionType, rateLimiter);
+            if (existing != null) {
+                rateLimiter = existing;
+            }
+        }
+        return rateLimiter.tryAcquire(ticker.read());
+    }
+
+    private static double getFraction() {
+        String value = System.getProperty("glowroot.transaction.sampling.fraction");
+        if (value == null) {
+            return 1;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid glowroot.transaction.sampling.fraction: {}", value);
+            return 1;
+        }
+    }
+
+    // token bucket holding up to one second worth of tokens, implemented as a single atomic
+    // "theoretical arrival time" (the tick at which the bucket would be full again) so that the
+    // request path never blocks
+    @VisibleForTesting
+    static class RateLimiter {
+
+        private static final long BURST_NANOS = SECONDS.toNanos(1);
+
+        private final long nanosPerToken;
+        private final AtomicLong theoreticalArrivalTick;
+
+        RateLimiter(int permitsPerSecond, long currentTick) {
+            nanosPerToken = BURST_NANOS / permitsPerSecond;
+            theoreticalArrivalTick = new AtomicLong(currentTick);
+        }
+
+        boolean tryAcquire(long currentTick) {
+            while (true) {
+                long arrivalTick = theoreticalArrivalTick.get();
+                long nextArrivalTick = Math.max(arrivalTick, currentTick) + nanosPerToken;
+                if (nextArrivalTick - currentTick > BURST_NANOS) {
+                    return false;
+                }
+                if (theoreticalArrivalTick.compareAndSet(arrivalTick, nextArrivalTick)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
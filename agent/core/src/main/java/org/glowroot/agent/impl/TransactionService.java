@@ -15,7 +15,9 @@
  */
 package org.glowroot.agent.impl;
 
+import com.google.common.base.Splitter;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -23,16 +25,28 @@ import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.impl.Transaction.CompletionCallback;
+import org.glowroot.agent.model.TimerNameImpl;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext.ServletRequestInfo;
 import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.common.util.Clock;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 public class TransactionService implements ConfigListener {
 
+    // comma separated list of transaction types for which blocked and waited time are not
+    // captured as part of the thread stats, since capturing them requires
+    // ThreadMXBean.getThreadInfo() at the start and end of each transaction, which is
+    // significantly more expensive than capturing CPU time and allocated bytes
+    private static final ImmutableSet<String> SKIP_BLOCKED_WAITED_TIME_TRANSACTION_TYPES =
+            ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                    System.getProperty("glowroot.threadStats.skipBlockedWaitedTime", "")));
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final TimerNameCache timerNameCache;
@@ -43,6 +57,9 @@ public class TransactionService implements ConfigListener {
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
 
+    // null unless transaction sampling is enabled
+    private final @Nullable TransactionSampler transactionSampler;
+
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
@@ -74,6 +91,7 @@ public class TransactionService implements ConfigListener {
         this.userProfileScheduler = userProfileScheduler;
         this.clock = clock;
         this.ticker = ticker;
+        transactionSampler = TransactionSampler.create(ticker);
     }
 
     public void setTransactionCollector(TransactionCollector transactionCollector) {
@@ -92,6 +110,7 @@ public class TransactionService implements ConfigListener {
         long startTick = ticker.read();
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
+                !SKIP_BLOCKED_WAITED_TIME_TRANSACTION_TYPES.contains(transactionType),
                 maxTraceEntries, maxQueryAggregates, maxServiceCallAggregates, maxProfileSamples,
                 threadAllocatedBytes, transactionCompletionCallback, ticker, transactionRegistry,
                 this, configService, userProfileScheduler, threadContextHolder);
@@ -101,6 +120,21 @@ public class TransactionService implements ConfigListener {
         return transaction.getMainThreadContext().getRootEntry();
     }
 
+    boolean isSampled(String transactionType) {
+        return transactionSampler == null || transactionCollector == null
+                || transactionSampler.isSampled(transactionType);
+    }
+
+    // only called when isSampled() returned false
+    TraceEntry startUnsampledTransaction(String transactionType, String transactionName,
+            TimerName timerName, ThreadContextThreadLocal.Holder threadContextHolder) {
+        UnsampledThreadContext threadContext = new UnsampledThreadContext(
+                checkNotNull(transactionCollector), transactionType, transactionName,
+                ((TimerNameImpl) timerName).name(), ticker, threadContextHolder);
+        threadContextHolder.set(threadContext);
+        return threadContext.getRootEntry();
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContextInternal(Transaction transaction,
             @Nullable TraceEntryImpl parentTraceEntry,
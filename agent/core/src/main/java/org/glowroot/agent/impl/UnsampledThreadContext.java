@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.bytecode.api.ThreadContextPlus;
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.impl.NopTransactionService.NopAuxThreadContext;
+import org.glowroot.agent.impl.NopTransactionService.NopTimer;
+import org.glowroot.agent.plugin.api.AsyncQueryEntry;
+import org.glowroot.agent.plugin.api.AsyncTraceEntry;
+import org.glowroot.agent.plugin.api.AuxThreadContext;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.Timer;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
+
+// bound to the thread for the duration of a transaction that was not sampled (see
+// TransactionSampler), so that nested transaction starts do not roll the sampling dice again (and
+// count the same transaction twice), and so that the duration is recorded under the final
+// transaction type and name, everything else the plugin does during the transaction is a no-op
+class UnsampledThreadContext implements ThreadContextPlus {
+
+    private final TransactionCollector transactionCollector;
+    private final String rootTimerName;
+    private final Ticker ticker;
+    private final ThreadContextThreadLocal.Holder threadContextHolder;
+    private final long startTick;
+
+    private final UnsampledTraceEntry rootEntry;
+
+    private String transactionType;
+    private int transactionTypePriority = Integer.MIN_VALUE;
+    private String transactionName;
+    private int transactionNamePriority = Integer.MIN_VALUE;
+    private boolean error;
+
+    private @Nullable ServletRequestInfo servletRequestInfo;
+
+    private int currentNestingGroupId;
+    private int currentSuppressionKeyId;
+
+    private boolean completed;
+
+    UnsampledThreadContext(TransactionCollector transactionCollector, String transactionType,
+            String transactionName, String rootTimerName, Ticker ticker,
+            ThreadContextThreadLocal.Holder threadContextHolder) {
+        this.transactionCollector = transactionCollector;
+        this.transactionType = transactionType;
+        this.transactionName = transactionName;
+        this.rootTimerName = rootTimerName;
+        this.ticker = ticker;
+        this.threadContextHolder = threadContextHolder;
+        startTick = ticker.read();
+        rootEntry = new UnsampledTraceEntry(this);
+    }
+
+    TraceEntry getRootEntry() {
+        return rootEntry;
+    }
+
+    @Override
+    public TraceEntry startTransaction(String transactionType, String transactionName,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        return NopTransactionService.TRACE_ENTRY;
+    }
+
+    @Override
+    public TraceEntry startTraceEntry(MessageSupplier messageSupplier, TimerName timerName) {
+        return NopTransactionService.TRACE_ENTRY;
+    }
+
+    @Override
+    public AsyncTraceEntry startAsyncTraceEntry(MessageSupplier messageSupplier,
+            TimerName timerName) {
+        return NopTransactionService.ASYNC_TRACE_ENTRY;
+    }
+
+    @Override
+    public QueryEntry startQueryEntry(String queryType, String queryText,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        return NopTransactionService.QUERY_ENTRY;
+    }
+
+    @Override
+    public QueryEntry startQueryEntry(String queryType, String queryText, long queryExecutionCount,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        return NopTransactionService.QUERY_ENTRY;
+    }
+
+    @Override
+    public AsyncQueryEntry startAsyncQueryEntry(String queryType, String queryText,
+            QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
+        return NopTransactionService.ASYNC_QUERY_ENTRY;
+    }
+
+    @Override
+    public TraceEntry startServiceCallEntry(String serviceCallType, String serviceCallText,
+            MessageSupplier messageSupplier, TimerName timerName) {
+        return NopTransactionService.TRACE_ENTRY;
+    }
+
+    @Override
+    public AsyncTraceEntry startAsyncServiceCallEntry(String serviceCallType,
+            String serviceCallText, MessageSupplier messageSupplier, TimerName timerName) {
+        return NopTransactionService.ASYNC_TRACE_ENTRY;
+    }
+
+    @Override
+    public Timer startTimer(TimerName timerName) {
+        return NopTimer.INSTANCE;
+    }
+
+    @Override
+    public AuxThreadContext createAuxThreadContext() {
+        return NopAuxThreadContext.INSTANCE;
+    }
+
+    @Override
+    public void setTransactionAsync() {}
+
+    @Override
+    public void setTransactionAsyncComplete() {}
+
+    @Override
+    public void setTransactionOuter() {}
+
+    @Override
+    public void setTransactionType(@Nullable String transactionType, int priority) {
+        if (!Strings.isNullOrEmpty(transactionType) && priority > transactionTypePriority) {
+            this.transactionType = transactionType;
+            transactionTypePriority = priority;
+        }
+    }
+
+    @Override
+    public void setTransactionName(@Nullable String transactionName, int priority) {
+        if (!Strings.isNullOrEmpty(transactionName) && priority > transactionNamePriority) {
+            this.transactionName = transactionName;
+            transactionNamePriority = priority;
+        }
+    }
+
+    @Override
+    public void setTransactionUser(@Nullable String user, int priority) {}
+
+    @Override
+    public void addTransactionAttribute(String name, @Nullable String value) {}
+
+    @Override
+    public void setTransactionSlowThreshold(long threshold, TimeUnit unit, int priority) {}
+
+    @Override
+    public void setTransactionError(Throwable t) {
+        error = true;
+    }
+
+    @Override
+    public void setTransactionError(@Nullable String message) {
+        error = true;
+    }
+
+    @Override
+    public void setTransactionError(@Nullable String message, @Nullable Throwable t) {
+        error = true;
+    }
+
+    @Override
+    public void addErrorEntry(Throwable t) {}
+
+    @Override
+    public void addErrorEntry(@Nullable String message) {}
+
+    @Override
+    public void addErrorEntry(@Nullable String message, Throwable t) {}
+
+    @Override
+    public @Nullable ServletRequestInfo getServletRequestInfo() {
+        return servletRequestInfo;
+    }
+
+    @Override
+    public void setServletRequestInfo(@Nullable ServletRequestInfo servletRequestInfo) {
+        this.servletRequestInfo = servletRequestInfo;
+    }
+
+    @Override
+    @Deprecated
+    public @Nullable MessageSupplier getServletMessageSupplier() {
+        if (servletRequestInfo instanceof MessageSupplier) {
+            return (MessageSupplier) servletRequestInfo;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void setServletMessageSupplier(@Nullable MessageSupplier messageSupplier) {
+        if (messageSupplier instanceof ServletRequestInfo) {
+            servletRequestInfo = (ServletRequestInfo) messageSupplier;
+        }
+    }
+
+    @Override
+    public int getCurrentNestingGroupId() {
+        return currentNestingGroupId;
+    }
+
+    @Override
+    public void setCurrentNestingGroupId(int nestingGroupId) {
+        this.currentNestingGroupId = nestingGroupId;
+    }
+
+    @Override
+    public int getCurrentSuppressionKeyId() {
+        return currentSuppressionKeyId;
+    }
+
+    @Override
+    public void setCurrentSuppressionKeyId(int suppressionKeyId) {
+        this.currentSuppressionKeyId = suppressionKeyId;
+    }
+
+    void end(boolean error) {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        if (threadContextHolder.get() == this) {
+            threadContextHolder.set(null);
+        }
+        transactionCollector.onCompletedUnsampledTransaction(transactionType, transactionName,
+                rootTimerName, ticker.read() - startTick, error || this.error);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.impl.NopTransactionService.NopTimer;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.Timer;
+import org.glowroot.agent.plugin.api.TraceEntry;
+
+// root entry of a transaction that was not sampled, see UnsampledThreadContext
+class UnsampledTraceEntry implements TraceEntry {
+
+    private final UnsampledThreadContext threadContext;
+
+    UnsampledTraceEntry(UnsampledThreadContext threadContext) {
+        this.threadContext = threadContext;
+    }
+
+    @Override
+    public void end() {
+        threadContext.end(false);
+    }
+
+    @Override
+    public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
+        threadContext.end(false);
+    }
+
+    @Override
+    public void endWithError(Throwable t) {
+        threadContext.end(true);
+    }
+
+    @Override
+    public void endWithError(@Nullable String message) {
+        threadContext.end(true);
+    }
+
+    @Override
+    public void endWithError(@Nullable String message, Throwable t) {
+        threadContext.end(true);
+    }
+
+    @Override
+    public void endWithInfo(Throwable t) {
+        threadContext.end(false);
+    }
+
+    @Override
+    public @Nullable MessageSupplier getMessageSupplier() {
+        return null;
+    }
+
+    @Override
+    public Timer extend() {
+        return NopTimer.INSTANCE;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.CaptureTimes;
+
+// collects the durations of transactions that were not sampled (see TransactionSampler), these
+// bypass the aggregator's transaction queue and are instead periodically drained by the aggregate
+// processing thread into the active interval collector
+//
+// the durations are kept per interval (based on the capture time of each transaction), so that
+// transactions completing right at the end of an interval are not drained into the interval that
+// follows it
+class UnsampledTransactionCollector {
+
+    private final long aggregateIntervalMillis;
+
+    // interval capture time -> aggregates
+    private final ConcurrentMap<Long, IntervalAggregates> intervalAggregatesMap =
+            Maps.newConcurrentMap();
+
+    UnsampledTransactionCollector(long aggregateIntervalMillis) {
+        this.aggregateIntervalMillis = aggregateIntervalMillis;
+    }
+
+    void add(long captureTime, String transactionType, String transactionName,
+            String rootTimerName, long durationNanos, boolean error) {
+        long intervalCaptureTime = CaptureTimes.getRollup(captureTime, aggregateIntervalMillis);
+        while (true) {
+            IntervalAggregates intervalAggregates = getIntervalAggregates(intervalCaptureTime);
+            UnsampledAggregate aggregate = intervalAggregates
+                    .getAggregate(transactionType, transactionName, rootTimerName);
+            // drained flag is checked after obtaining the aggregate, so that either the aggregate
+            // is visible to drain() (which then waits for the add below), or this retries
+            if (!intervalAggregates.drained && aggregate.add(durationNanos, error)) {
+                return;
+            }
+            // interval was drained concurrently, retry against a new map
+        }
+    }
+
+    // only called by the aggregate processing thread
+    //
+    // drains aggregates for intervals up to and including the given interval capture time
+    // (aggregates for earlier intervals are only present if the transaction completed right as
+    // its interval was being flushed, in which case they are drained into the given interval)
+    List<UnsampledAggregate> drain(long maxIntervalCaptureTime) {
+        if (intervalAggregatesMap.isEmpty()) {
+            return Lists.newArrayList();
+        }
+        List<UnsampledAggregate> list = Lists.newArrayList();
+        for (Map.Entry<Long, IntervalAggregates> entry : intervalAggregatesMap.entrySet()) {
+            if (entry.getKey() > maxIntervalCaptureTime) {
+                continue;
+            }
+            IntervalAggregates intervalAggregates = entry.getValue();
+            // removing before marking as drained ensures that add() does not retry against the
+            // same map
+            intervalAggregatesMap.remove(entry.getKey(), intervalAggregates);
+            intervalAggregates.drained = true;
+            for (ConcurrentMap<String, UnsampledAggregate> aggregatesForType : intervalAggregates
+                    .aggregates.values()) {
+                for (UnsampledAggregate aggregate : aggregatesForType.values()) {
+                    // marking as drained waits for any in-flight add() to the aggregate, and
+                    // forces subsequent add() calls to retry against a new map
+                    aggregate.markDrained();
+                    list.add(aggregate);
+                }
+            }
+        }
+        return list;
+    }
+
+    private IntervalAggregates getIntervalAggregates(long intervalCaptureTime) {
+        IntervalAggregates intervalAggregates = intervalAggregatesMap.get(intervalCaptureTime);
+        if (intervalAggregates == null) {
+            intervalAggregates = new IntervalAggregates();
+            IntervalAggregates existing =
+                    intervalAggregatesMap.putIfAbsent(intervalCaptureTime, intervalAggregates);
+            if (existing != null) {
+                intervalAggregates = existing;
+            }
+        }
+        return intervalAggregates;
+    }
+
+    private static class IntervalAggregates {
+
+        // transaction type -> transaction name -> aggregate
+        private final ConcurrentMap<String, ConcurrentMap<String, UnsampledAggregate>> aggregates =
+                Maps.newConcurrentMap();
+
+        private volatile boolean drained;
+
+        private UnsampledAggregate getAggregate(String transactionType, String transactionName,
+                String rootTimerName) {
+            ConcurrentMap<String, UnsampledAggregate> aggregatesForType =
+                    aggregates.get(transactionType);
+            if (aggregatesForType == null) {
+                aggregatesForType = Maps.newConcurrentMap();
+                ConcurrentMap<String, UnsampledAggregate> existing =
+                        aggregates.putIfAbsent(transactionType, aggregatesForType);
+                if (existing != null) {
+                    aggregatesForType = existing;
+                }
+            }
+            UnsampledAggregate aggregate = aggregatesForType.get(transactionName);
+            if (aggregate == null) {
+                aggregate = new UnsampledAggregate(transactionType, transactionName, rootTimerName);
+                UnsampledAggregate existing =
+                        aggregatesForType.putIfAbsent(transactionName, aggregate);
+                if (existing != null) {
+                    aggregate = existing;
+                }
+            }
+            return aggregate;
+        }
+    }
+
+    static class UnsampledAggregate {
+
+        private final String transactionType;
+        private final String transactionName;
+        // the root timer name of the first unsampled transaction, only used if there are no
+        // sampled transactions to take the timer breakdown from
+        private final String rootTimerName;
+
+        // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
+        private double totalDurationNanos;
+        private long transactionCount;
+        private long errorCount;
+        private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+
+        private boolean drained;
+
+        private UnsampledAggregate(String transactionType, String transactionName,
+                String rootTimerName) {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.rootTimerName = rootTimerName;
+        }
+
+        String getTransactionType() {
+            return transactionType;
+        }
+
+        String getTransactionName() {
+            return transactionName;
+        }
+
+        String getRootTimerName() {
+            return rootTimerName;
+        }
+
+        // the getters below must only be called after the aggregate has been drained
+
+        synchronized double getTotalDurationNanos() {
+            return totalDurationNanos;
+        }
+
+        synchronized long getTransactionCount() {
+            return transactionCount;
+        }
+
+        synchronized long getErrorCount() {
+            return errorCount;
+        }
+
+        synchronized LazyHistogram getDurationNanosHistogram() {
+            return durationNanosHistogram;
+        }
+
+        private synchronized boolean add(long durationNanos, boolean error) {
+            if (drained) {
+                return false;
+            }
+            totalDurationNanos += durationNanos;
+            transactionCount++;
+            if (error) {
+                errorCount++;
+            }
+            durationNanosHistogram.add(durationNanos);
+            return true;
+        }
+
+        private synchronized void markDrained() {
+            drained = true;
+        }
+    }
+}
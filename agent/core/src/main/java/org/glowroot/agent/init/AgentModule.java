@@ -42,6 +42,7 @@ import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.PluginCache;
 import org.glowroot.agent.config.PluginDescriptor;
 import org.glowroot.agent.impl.Aggregator;
+import org.glowroot.agent.impl.AggregatorStats;
 import org.glowroot.agent.impl.BytecodeServiceImpl;
 import org.glowroot.agent.impl.BytecodeServiceImpl.OnEnteringMain;
 import org.glowroot.agent.impl.ConfigServiceImpl;
@@ -288,6 +289,8 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        lazyPlatformMBeanServer.lazyRegisterMBean(new AggregatorStats(aggregator),
+                "org.glowroot:type=Aggregator");
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 instrumentation, clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
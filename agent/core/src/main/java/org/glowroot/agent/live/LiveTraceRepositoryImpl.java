@@ -71,6 +71,10 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
+                if (!transaction.pin()) {
+                    // completed and recycled since it was read from the list
+                    return null;
+                }
                 return createTraceHeader(transaction);
             }
         }
@@ -138,6 +142,10 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
+                if (!transaction.pin()) {
+                    // completed and recycled since it was read from the list
+                    return null;
+                }
                 CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
                 TraceReader traceReader = createTraceReader(transaction);
                 traceReader.accept(traceVisitor);
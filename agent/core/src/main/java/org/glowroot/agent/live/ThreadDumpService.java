@@ -119,6 +119,10 @@ class ThreadDumpService {
     private List<ThreadContextImpl> getActiveThreadContexts() {
         List<ThreadContextImpl> activeThreadContexts = Lists.newArrayList();
         for (Transaction transaction : transactionRegistry.getTransactions()) {
+            if (!transaction.pin()) {
+                // completed and recycled since it was read from the registry
+                continue;
+            }
             ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
             if (mainThreadContext.isActive()) {
                 activeThreadContexts.add(mainThreadContext);
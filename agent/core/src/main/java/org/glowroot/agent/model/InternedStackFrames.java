@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+import org.glowroot.common.model.MutableProfile;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// agent-wide table of the stack frames seen by the stack trace collector, so that thread profiles
+// can retain and merge small int frame ids instead of stack trace element arrays
+class InternedStackFrames implements MutableProfile.FrameTable {
+
+    static final InternedStackFrames INSTANCE = new InternedStackFrames(65536);
+
+    // this caps the memory retained by the table, once full frames are no longer interned and
+    // thread profiles fall back to merging stack trace elements directly
+    private final int maxFrames;
+
+    private final ConcurrentMap<StackTraceElement, Integer> frameIds = Maps.newConcurrentMap();
+
+    // volatile is needed so that getFrame() sees the (copied) array that the frame was written to
+    private volatile StackTraceElement[] frames;
+    @GuardedBy("this")
+    private int frameCount;
+
+    @VisibleForTesting
+    InternedStackFrames(int maxFrames) {
+        this.maxFrames = maxFrames;
+        frames = new StackTraceElement[Math.min(maxFrames, 1024)];
+    }
+
+    // returns -1 if the table is full
+    int intern(StackTraceElement frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId != null) {
+            return frameId;
+        }
+        return internSlowPath(frame);
+    }
+
+    @Override
+    public StackTraceElement getFrame(int frameId) {
+        return checkNotNull(frames[frameId]);
+    }
+
+    private synchronized int internSlowPath(StackTraceElement frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId != null) {
+            return frameId;
+        }
+        if (frameCount == maxFrames) {
+            return -1;
+        }
+        StackTraceElement[] frames = this.frames;
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, Math.min(frames.length * 2, maxFrames));
+        }
+        frames[frameCount] = frame;
+        // the array is published before the id, so any thread that obtains the id from the map
+        // (happens-before via the concurrent map) also sees the frame
+        this.frames = frames;
+        frameIds.put(frame, frameCount);
+        return frameCount++;
+    }
+}
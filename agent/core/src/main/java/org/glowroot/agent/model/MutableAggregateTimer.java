@@ -15,10 +15,13 @@
  */
 package org.glowroot.agent.model;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import com.google.common.collect.Lists;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
@@ -59,6 +62,14 @@ public class MutableAggregateTimer {
         timer.mergeChildTimersInto2(childTimers);
     }
 
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        for (MutableAggregateTimer toBeMergedChildTimer : timer.childTimers) {
+            mergeTimer(toBeMergedChildTimer, childTimers);
+        }
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -70,4 +81,74 @@ public class MutableAggregateTimer {
         }
         return builder.build();
     }
+
+    // writes the same bytes as toProto() with the totals multiplied by scale, but without building
+    // the Aggregate.Timer tree
+    public void writeTo(CodedOutputStream output, int fieldNumber, double scale)
+            throws IOException {
+        output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        // timer trees are shallow, so re-computing the child sizes at each level is cheap
+        output.writeUInt32NoTag(getSerializedSize(scale));
+        double scaledTotalDurationNanos = totalDurationNanos * scale;
+        long scaledCount = scale(count, scale);
+        if (!name.isEmpty()) {
+            output.writeString(1, name);
+        }
+        if (extended) {
+            output.writeBool(2, true);
+        }
+        if (scaledTotalDurationNanos != 0) {
+            output.writeDouble(3, scaledTotalDurationNanos);
+        }
+        if (scaledCount != 0) {
+            output.writeInt64(4, scaledCount);
+        }
+        for (MutableAggregateTimer childTimer : childTimers) {
+            childTimer.writeTo(output, 5, scale);
+        }
+    }
+
+    private int getSerializedSize(double scale) {
+        double scaledTotalDurationNanos = totalDurationNanos * scale;
+        long scaledCount = scale(count, scale);
+        int size = 0;
+        if (!name.isEmpty()) {
+            size += CodedOutputStream.computeStringSize(1, name);
+        }
+        if (extended) {
+            size += CodedOutputStream.computeBoolSize(2, true);
+        }
+        if (scaledTotalDurationNanos != 0) {
+            size += CodedOutputStream.computeDoubleSize(3, scaledTotalDurationNanos);
+        }
+        if (scaledCount != 0) {
+            size += CodedOutputStream.computeInt64Size(4, scaledCount);
+        }
+        for (MutableAggregateTimer childTimer : childTimers) {
+            int childSize = childTimer.getSerializedSize(scale);
+            size += CodedOutputStream.computeTagSize(5)
+                    + CodedOutputStream.computeUInt32SizeNoTag(childSize) + childSize;
+        }
+        return size;
+    }
+
+    public static void mergeTimer(MutableAggregateTimer toBeMergedTimer,
+            List<MutableAggregateTimer> timers) {
+        for (MutableAggregateTimer timer : timers) {
+            if (toBeMergedTimer.name.equals(timer.name)
+                    && toBeMergedTimer.extended == timer.extended) {
+                timer.merge(toBeMergedTimer);
+                return;
+            }
+        }
+        // copy instead of adding toBeMergedTimer directly, since it may still be mutated
+        MutableAggregateTimer timer =
+                createRootTimer(toBeMergedTimer.name, toBeMergedTimer.extended);
+        timer.merge(toBeMergedTimer);
+        timers.add(timer);
+    }
+
+    private static long scale(long value, double scale) {
+        return scale == 1 ? value : Math.round(value * scale);
+    }
 }
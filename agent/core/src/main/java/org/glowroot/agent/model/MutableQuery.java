@@ -15,6 +15,11 @@
  */
 package org.glowroot.agent.model;
 
+import java.io.IOException;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
@@ -76,18 +81,8 @@ class MutableQuery {
         }
     }
 
-    void add(Aggregate.Query query) {
-        addToTotalDurationNanos(query.getTotalDurationNanos());
-        addToExecutionCount(query.getExecutionCount());
-        addToTotalRows(query.hasTotalRows(), query.getTotalRows().getValue());
-        if (query.getActive()) {
-            setActive(true);
-        }
-    }
-
-    Aggregate.Query toAggregateProto(String queryType, String queryText,
-            SharedQueryTextCollection sharedQueryTextCollection, boolean includeActive) {
-        int sharedQueryTextIndex = sharedQueryTextCollection.getSharedQueryTextIndex(queryText);
+    Aggregate.Query toAggregateProto(String queryType, int sharedQueryTextIndex,
+            boolean includeActive) {
         Aggregate.Query.Builder builder = Aggregate.Query.newBuilder()
                 .setType(queryType)
                 .setSharedQueryTextIndex(sharedQueryTextIndex)
@@ -101,4 +96,59 @@ class MutableQuery {
         }
         return builder.build();
     }
+
+    // writes the same bytes as toAggregateProto(queryType, sharedQueryTextIndex, false) with the
+    // totals multiplied by scale, but without building the Aggregate.Query message
+    void writeAggregateProto(CodedOutputStream output, int fieldNumber, String queryType,
+            int sharedQueryTextIndex, double scale) throws IOException {
+        double scaledTotalDurationNanos = totalDurationNanos * scale;
+        long scaledExecutionCount = scale(executionCount, scale);
+        long scaledTotalRows = scale(totalRows, scale);
+        int totalRowsSize = 0;
+        if (scaledTotalRows != 0) {
+            totalRowsSize = CodedOutputStream.computeInt64Size(1, scaledTotalRows);
+        }
+        int size = 0;
+        if (!queryType.isEmpty()) {
+            size += CodedOutputStream.computeStringSize(1, queryType);
+        }
+        if (sharedQueryTextIndex != 0) {
+            size += CodedOutputStream.computeInt32Size(2, sharedQueryTextIndex);
+        }
+        if (scaledTotalDurationNanos != 0) {
+            size += CodedOutputStream.computeDoubleSize(3, scaledTotalDurationNanos);
+        }
+        if (scaledExecutionCount != 0) {
+            size += CodedOutputStream.computeInt64Size(4, scaledExecutionCount);
+        }
+        if (hasTotalRows) {
+            size += CodedOutputStream.computeTagSize(5)
+                    + CodedOutputStream.computeUInt32SizeNoTag(totalRowsSize) + totalRowsSize;
+        }
+        output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(size);
+        if (!queryType.isEmpty()) {
+            output.writeString(1, queryType);
+        }
+        if (sharedQueryTextIndex != 0) {
+            output.writeInt32(2, sharedQueryTextIndex);
+        }
+        if (scaledTotalDurationNanos != 0) {
+            output.writeDouble(3, scaledTotalDurationNanos);
+        }
+        if (scaledExecutionCount != 0) {
+            output.writeInt64(4, scaledExecutionCount);
+        }
+        if (hasTotalRows) {
+            output.writeTag(5, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(totalRowsSize);
+            if (scaledTotalRows != 0) {
+                output.writeInt64(1, scaledTotalRows);
+            }
+        }
+    }
+
+    private static long scale(long value, double scale) {
+        return scale == 1 ? value : Math.round(value * scale);
+    }
 }
@@ -15,6 +15,11 @@
  */
 package org.glowroot.agent.model;
 
+import java.io.IOException;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 class MutableServiceCall {
@@ -43,11 +48,6 @@ class MutableServiceCall {
         addToExecutionCount(serviceCall.executionCount);
     }
 
-    void add(Aggregate.ServiceCall serviceCall) {
-        addToTotalDurationNanos(serviceCall.getTotalDurationNanos());
-        addToExecutionCount(serviceCall.getExecutionCount());
-    }
-
     Aggregate.ServiceCall toAggregateProto(String serviceCallType, String serviceCallText) {
         Aggregate.ServiceCall.Builder builder = Aggregate.ServiceCall.newBuilder()
                 .setType(serviceCallType)
@@ -56,4 +56,40 @@ class MutableServiceCall {
                 .setExecutionCount(executionCount);
         return builder.build();
     }
+
+    // writes the same bytes as toAggregateProto(serviceCallType, serviceCallText) with the totals
+    // multiplied by scale, but without building the Aggregate.ServiceCall message
+    void writeAggregateProto(CodedOutputStream output, int fieldNumber, String serviceCallType,
+            String serviceCallText, double scale) throws IOException {
+        double scaledTotalDurationNanos = totalDurationNanos * scale;
+        long scaledExecutionCount =
+                scale == 1 ? executionCount : Math.round(executionCount * scale);
+        int size = 0;
+        if (!serviceCallType.isEmpty()) {
+            size += CodedOutputStream.computeStringSize(1, serviceCallType);
+        }
+        if (!serviceCallText.isEmpty()) {
+            size += CodedOutputStream.computeStringSize(2, serviceCallText);
+        }
+        if (scaledTotalDurationNanos != 0) {
+            size += CodedOutputStream.computeDoubleSize(3, scaledTotalDurationNanos);
+        }
+        if (scaledExecutionCount != 0) {
+            size += CodedOutputStream.computeInt64Size(4, scaledExecutionCount);
+        }
+        output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(size);
+        if (!serviceCallType.isEmpty()) {
+            output.writeString(1, serviceCallType);
+        }
+        if (!serviceCallText.isEmpty()) {
+            output.writeString(2, serviceCallText);
+        }
+        if (scaledTotalDurationNanos != 0) {
+            output.writeDouble(3, scaledTotalDurationNanos);
+        }
+        if (scaledExecutionCount != 0) {
+            output.writeInt64(4, scaledExecutionCount);
+        }
+    }
 }
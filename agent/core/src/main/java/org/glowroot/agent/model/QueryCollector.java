@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.model;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -24,6 +25,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
+import com.google.protobuf.CodedOutputStream;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.Constants;
@@ -50,47 +52,25 @@ public class QueryCollector {
 
     public List<Aggregate.Query> toAggregateProto(
             SharedQueryTextCollection sharedQueryTextCollection, boolean includeActive) {
-        // " + queries.size()" is to cover the maximum number of limit exceeded buckets
-        List<Aggregate.Query> allQueries =
-                Lists.newArrayListWithCapacity(Math.min(queryCount, limit) + queries.size());
-        for (Map.Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            for (Map.Entry<String, MutableQuery> innerEntry : outerEntry.getValue().entrySet()) {
-                allQueries.add(innerEntry.getValue().toAggregateProto(outerEntry.getKey(),
-                        innerEntry.getKey(), sharedQueryTextCollection, includeActive));
-            }
-        }
-        if (allQueries.size() <= limit) {
-            // there could be limit exceeded buckets if hardLimitMultiplierWhileBuilding is 1
-            for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
-                allQueries.add(entry.getValue().toAggregateProto(entry.getKey(),
-                        LIMIT_EXCEEDED_BUCKET, sharedQueryTextCollection, includeActive));
-            }
-            sort(allQueries);
-            return allQueries;
-        }
-        sort(allQueries);
-        List<Aggregate.Query> exceededQueries = allQueries.subList(limit, allQueries.size());
-        allQueries = Lists.newArrayList(allQueries.subList(0, limit));
-        // do not modify original limit exceeded buckets since adding exceeded queries below
-        Map<String, MutableQuery> limitExceededBuckets = copyLimitExceededBuckets();
-        for (Aggregate.Query exceededQuery : exceededQueries) {
-            String queryType = exceededQuery.getType();
-            MutableQuery limitExceededBucket = limitExceededBuckets.get(queryType);
-            if (limitExceededBucket == null) {
-                limitExceededBucket = new MutableQuery();
-                limitExceededBuckets.put(queryType, limitExceededBucket);
-            }
-            limitExceededBucket.add(exceededQuery);
+        List<QueryEntry> entries = getSortedEntries(sharedQueryTextCollection);
+        List<Aggregate.Query> allQueries = Lists.newArrayListWithCapacity(entries.size());
+        for (QueryEntry entry : entries) {
+            allQueries.add(entry.query.toAggregateProto(entry.queryType,
+                    entry.sharedQueryTextIndex, includeActive));
         }
-        for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
-            allQueries.add(entry.getValue().toAggregateProto(entry.getKey(), LIMIT_EXCEEDED_BUCKET,
-                    sharedQueryTextCollection, includeActive));
-        }
-        // need to re-sort now including limit exceeded bucket
-        sort(allQueries);
         return allQueries;
     }
 
+    // writes the same queries as toAggregateProto(sharedQueryTextCollection, false) with the totals
+    // multiplied by scale, but without building the Aggregate.Query messages
+    public void writeAggregateProto(CodedOutputStream output, int fieldNumber,
+            SharedQueryTextCollection sharedQueryTextCollection, double scale) throws IOException {
+        for (QueryEntry entry : getSortedEntries(sharedQueryTextCollection)) {
+            entry.query.writeAggregateProto(output, fieldNumber, entry.queryType,
+                    entry.sharedQueryTextIndex, scale);
+        }
+    }
+
     public void mergeQuery(String queryType, String queryText, double totalDurationNanos,
             long executionCount, boolean hasTotalRows, long totalRows, boolean active) {
         Map<String, MutableQuery> queriesForType = queries.get(queryType);
@@ -188,6 +168,52 @@ public class QueryCollector {
         return query;
     }
 
+    private List<QueryEntry> getSortedEntries(
+            SharedQueryTextCollection sharedQueryTextCollection) {
+        // " + queries.size()" is to cover the maximum number of limit exceeded buckets
+        List<QueryEntry> allEntries =
+                Lists.newArrayListWithCapacity(Math.min(queryCount, limit) + queries.size());
+        for (Map.Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
+            for (Map.Entry<String, MutableQuery> innerEntry : outerEntry.getValue().entrySet()) {
+                allEntries.add(new QueryEntry(outerEntry.getKey(),
+                        sharedQueryTextCollection.getSharedQueryTextIndex(innerEntry.getKey()),
+                        innerEntry.getValue()));
+            }
+        }
+        if (allEntries.size() <= limit) {
+            // there could be limit exceeded buckets if hardLimitMultiplierWhileBuilding is 1
+            for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
+                allEntries.add(new QueryEntry(entry.getKey(),
+                        sharedQueryTextCollection.getSharedQueryTextIndex(LIMIT_EXCEEDED_BUCKET),
+                        entry.getValue()));
+            }
+            sort(allEntries);
+            return allEntries;
+        }
+        sort(allEntries);
+        List<QueryEntry> exceededEntries = allEntries.subList(limit, allEntries.size());
+        allEntries = Lists.newArrayList(allEntries.subList(0, limit));
+        // do not modify original limit exceeded buckets since adding exceeded queries below
+        Map<String, MutableQuery> limitExceededBuckets = copyLimitExceededBuckets();
+        for (QueryEntry exceededEntry : exceededEntries) {
+            String queryType = exceededEntry.queryType;
+            MutableQuery limitExceededBucket = limitExceededBuckets.get(queryType);
+            if (limitExceededBucket == null) {
+                limitExceededBucket = new MutableQuery();
+                limitExceededBuckets.put(queryType, limitExceededBucket);
+            }
+            limitExceededBucket.add(exceededEntry.query);
+        }
+        for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
+            allEntries.add(new QueryEntry(entry.getKey(),
+                    sharedQueryTextCollection.getSharedQueryTextIndex(LIMIT_EXCEEDED_BUCKET),
+                    entry.getValue()));
+        }
+        // need to re-sort now including limit exceeded bucket
+        sort(allEntries);
+        return allEntries;
+    }
+
     private Map<String, MutableQuery> copyLimitExceededBuckets() {
         Map<String, MutableQuery> copies = Maps.newHashMap();
         for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
@@ -200,13 +226,27 @@ public class QueryCollector {
         return copies;
     }
 
-    private static void sort(List<Aggregate.Query> queries) {
+    private static void sort(List<QueryEntry> entries) {
         // reverse sort by total
-        Collections.sort(queries, new Comparator<Aggregate.Query>() {
+        Collections.sort(entries, new Comparator<QueryEntry>() {
             @Override
-            public int compare(Aggregate.Query left, Aggregate.Query right) {
-                return Doubles.compare(right.getTotalDurationNanos(), left.getTotalDurationNanos());
+            public int compare(QueryEntry left, QueryEntry right) {
+                return Doubles.compare(right.query.getTotalDurationNanos(),
+                        left.query.getTotalDurationNanos());
             }
         });
     }
+
+    private static class QueryEntry {
+
+        private final String queryType;
+        private final int sharedQueryTextIndex;
+        private final MutableQuery query;
+
+        private QueryEntry(String queryType, int sharedQueryTextIndex, MutableQuery query) {
+            this.queryType = queryType;
+            this.sharedQueryTextIndex = sharedQueryTextIndex;
+            this.query = query;
+        }
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.model;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -23,6 +24,7 @@ import java.util.Map;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Doubles;
+import com.google.protobuf.CodedOutputStream;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
@@ -44,50 +46,26 @@ public class ServiceCallCollector {
     }
 
     public List<Aggregate.ServiceCall> toAggregateProto() {
-        // " + serviceCalls.size()" is to cover the maximum number of limit exceeded buckets
-        List<Aggregate.ServiceCall> allServiceCalls = Lists
-                .newArrayListWithCapacity(Math.min(serviceCallCount, limit) + serviceCalls.size());
-        for (Map.Entry<String, Map<String, MutableServiceCall>> outerEntry : serviceCalls
-                .entrySet()) {
-            for (Map.Entry<String, MutableServiceCall> innerEntry : outerEntry.getValue()
-                    .entrySet()) {
-                allServiceCalls.add(innerEntry.getValue().toAggregateProto(outerEntry.getKey(),
-                        innerEntry.getKey()));
-            }
-        }
-        if (allServiceCalls.size() <= limit) {
-            // there could be limit exceeded buckets if hardLimitMultiplierWhileBuilding is 1
-            for (Map.Entry<String, MutableServiceCall> entry : limitExceededBuckets.entrySet()) {
-                allServiceCalls.add(
-                        entry.getValue().toAggregateProto(entry.getKey(), LIMIT_EXCEEDED_BUCKET));
-            }
-            sort(allServiceCalls);
-            return allServiceCalls;
-        }
-        sort(allServiceCalls);
-        List<Aggregate.ServiceCall> exceededServiceCalls =
-                allServiceCalls.subList(limit, allServiceCalls.size());
-        allServiceCalls = Lists.newArrayList(allServiceCalls.subList(0, limit));
-        // do not modify original limit exceeded buckets since adding exceeded queries below
-        Map<String, MutableServiceCall> limitExceededBuckets = copyLimitExceededBuckets();
-        for (Aggregate.ServiceCall exceededServiceCall : exceededServiceCalls) {
-            String queryType = exceededServiceCall.getType();
-            MutableServiceCall limitExceededBucket = limitExceededBuckets.get(queryType);
-            if (limitExceededBucket == null) {
-                limitExceededBucket = new MutableServiceCall();
-                limitExceededBuckets.put(queryType, limitExceededBucket);
-            }
-            limitExceededBucket.add(exceededServiceCall);
+        List<ServiceCallEntry> entries = getSortedEntries();
+        List<Aggregate.ServiceCall> allServiceCalls =
+                Lists.newArrayListWithCapacity(entries.size());
+        for (ServiceCallEntry entry : entries) {
+            allServiceCalls.add(entry.serviceCall.toAggregateProto(entry.serviceCallType,
+                    entry.serviceCallText));
         }
-        for (Map.Entry<String, MutableServiceCall> entry : limitExceededBuckets.entrySet()) {
-            allServiceCalls
-                    .add(entry.getValue().toAggregateProto(entry.getKey(), LIMIT_EXCEEDED_BUCKET));
-        }
-        // need to re-sort now including limit exceeded bucket
-        sort(allServiceCalls);
         return allServiceCalls;
     }
 
+    // writes the same service calls as toAggregateProto() with the totals multiplied by scale, but
+    // without building the Aggregate.ServiceCall messages
+    public void writeAggregateProto(CodedOutputStream output, int fieldNumber, double scale)
+            throws IOException {
+        for (ServiceCallEntry entry : getSortedEntries()) {
+            entry.serviceCall.writeAggregateProto(output, fieldNumber, entry.serviceCallType,
+                    entry.serviceCallText, scale);
+        }
+    }
+
     public void mergeServiceCall(String serviceCallType, String serviceCallText,
             double totalDurationNanos, long executionCount) {
         Map<String, MutableServiceCall> serviceCallsForType = serviceCalls.get(serviceCallType);
@@ -157,6 +135,50 @@ public class ServiceCallCollector {
         return serviceCall;
     }
 
+    private List<ServiceCallEntry> getSortedEntries() {
+        // " + serviceCalls.size()" is to cover the maximum number of limit exceeded buckets
+        List<ServiceCallEntry> allEntries = Lists
+                .newArrayListWithCapacity(Math.min(serviceCallCount, limit) + serviceCalls.size());
+        for (Map.Entry<String, Map<String, MutableServiceCall>> outerEntry : serviceCalls
+                .entrySet()) {
+            for (Map.Entry<String, MutableServiceCall> innerEntry : outerEntry.getValue()
+                    .entrySet()) {
+                allEntries.add(new ServiceCallEntry(outerEntry.getKey(), innerEntry.getKey(),
+                        innerEntry.getValue()));
+            }
+        }
+        if (allEntries.size() <= limit) {
+            // there could be limit exceeded buckets if hardLimitMultiplierWhileBuilding is 1
+            for (Map.Entry<String, MutableServiceCall> entry : limitExceededBuckets.entrySet()) {
+                allEntries.add(new ServiceCallEntry(entry.getKey(), LIMIT_EXCEEDED_BUCKET,
+                        entry.getValue()));
+            }
+            sort(allEntries);
+            return allEntries;
+        }
+        sort(allEntries);
+        List<ServiceCallEntry> exceededEntries = allEntries.subList(limit, allEntries.size());
+        allEntries = Lists.newArrayList(allEntries.subList(0, limit));
+        // do not modify original limit exceeded buckets since adding exceeded queries below
+        Map<String, MutableServiceCall> limitExceededBuckets = copyLimitExceededBuckets();
+        for (ServiceCallEntry exceededEntry : exceededEntries) {
+            String serviceCallType = exceededEntry.serviceCallType;
+            MutableServiceCall limitExceededBucket = limitExceededBuckets.get(serviceCallType);
+            if (limitExceededBucket == null) {
+                limitExceededBucket = new MutableServiceCall();
+                limitExceededBuckets.put(serviceCallType, limitExceededBucket);
+            }
+            limitExceededBucket.add(exceededEntry.serviceCall);
+        }
+        for (Map.Entry<String, MutableServiceCall> entry : limitExceededBuckets.entrySet()) {
+            allEntries.add(
+                    new ServiceCallEntry(entry.getKey(), LIMIT_EXCEEDED_BUCKET, entry.getValue()));
+        }
+        // need to re-sort now including limit exceeded bucket
+        sort(allEntries);
+        return allEntries;
+    }
+
     private Map<String, MutableServiceCall> copyLimitExceededBuckets() {
         Map<String, MutableServiceCall> copies = Maps.newHashMap();
         for (Map.Entry<String, MutableServiceCall> entry : limitExceededBuckets.entrySet()) {
@@ -169,13 +191,28 @@ public class ServiceCallCollector {
         return copies;
     }
 
-    private static void sort(List<Aggregate.ServiceCall> serviceCalls) {
+    private static void sort(List<ServiceCallEntry> entries) {
         // reverse sort by total
-        Collections.sort(serviceCalls, new Comparator<Aggregate.ServiceCall>() {
+        Collections.sort(entries, new Comparator<ServiceCallEntry>() {
             @Override
-            public int compare(Aggregate.ServiceCall left, Aggregate.ServiceCall right) {
-                return Doubles.compare(right.getTotalDurationNanos(), left.getTotalDurationNanos());
+            public int compare(ServiceCallEntry left, ServiceCallEntry right) {
+                return Doubles.compare(right.serviceCall.getTotalDurationNanos(),
+                        left.serviceCall.getTotalDurationNanos());
             }
         });
     }
+
+    private static class ServiceCallEntry {
+
+        private final String serviceCallType;
+        private final String serviceCallText;
+        private final MutableServiceCall serviceCall;
+
+        private ServiceCallEntry(String serviceCallType, String serviceCallText,
+                MutableServiceCall serviceCall) {
+            this.serviceCallType = serviceCallType;
+            this.serviceCallText = serviceCallText;
+            this.serviceCall = serviceCall;
+        }
+    }
 }
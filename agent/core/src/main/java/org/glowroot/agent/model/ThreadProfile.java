@@ -17,60 +17,89 @@ package org.glowroot.agent.model;
 
 import java.lang.management.ThreadInfo;
 import java.util.Arrays;
-import java.util.List;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.common.model.MutableProfile;
 
 public class ThreadProfile {
 
+    // samples are buffered as interned frame ids and merged into the stack tree every few samples,
+    // this keeps the per-sample cost to a few int writes while bounding the buffer size (most
+    // transactions only capture a few samples and so never build the merged stack tree)
+    private static final int MAX_UNMERGED_SAMPLES = 10;
+
     private final int maxSamples;
+    private final InternedStackFrames frameTable;
     private final Object lock = new Object();
+    // frame ids of the unmerged samples, laid out back to back (leaf frame first)
+    @GuardedBy("lock")
+    private int[] unmergedFrameIds = new int[0];
+    @GuardedBy("lock")
+    private int unmergedFrameIdCount;
+    @GuardedBy("lock")
+    private final int[] unmergedSampleLengths = new int[MAX_UNMERGED_SAMPLES];
+    @GuardedBy("lock")
+    private final Thread. /*@Nullable*/ State[] unmergedThreadStates =
+            new Thread.State[MAX_UNMERGED_SAMPLES];
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private final long[] unmergedWeights = new long[MAX_UNMERGED_SAMPLES];
     @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private int unmergedSampleCount;
     @GuardedBy("lock")
     private @MonotonicNonNull MutableProfile profile;
+    // number of stack traces captured (this is what maxSamples limits)
     @GuardedBy("lock")
     private long sampleCount;
+    // number of samples represented by the retained stack traces, this is larger than the number
+    // of retained stack traces when stack traces are captured at a reduced (weighted) rate
+    @GuardedBy("lock")
+    private long weightedSampleCount;
 
     @VisibleForTesting
     public ThreadProfile(int maxSamples) {
+        this(maxSamples, InternedStackFrames.INSTANCE);
+    }
+
+    @VisibleForTesting
+    ThreadProfile(int maxSamples, InternedStackFrames frameTable) {
         this.maxSamples = maxSamples;
+        this.frameTable = frameTable;
     }
 
     public void mergeInto(MutableProfile profile) {
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
+            if (this.profile != null) {
                 profile.merge(this.profile);
             }
+            // the target profile is shared across transactions (e.g. aggregate profile), so the
+            // frames are resolved here instead of having the target cache the frame id mapping
+            int offset = 0;
+            for (int i = 0; i < unmergedSampleCount; i++) {
+                int length = unmergedSampleLengths[i];
+                StackTraceElement[] stackTrace = new StackTraceElement[length];
+                for (int j = 0; j < length; j++) {
+                    stackTrace[j] = frameTable.getFrame(unmergedFrameIds[offset + j]);
+                }
+                profile.merge(stackTrace, unmergedThreadStates[i], unmergedWeights[i]);
+                offset += length;
+            }
         }
     }
 
     public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
-            }
-            return profile.toProto();
+            return getMergedProfile().toProto();
         }
     }
 
     public long getSampleCount() {
         // lock is needed for visibility
         synchronized (lock) {
-            return Math.min(sampleCount, maxSamples);
+            return weightedSampleCount;
         }
     }
 
@@ -84,34 +113,61 @@ public class ThreadProfile {
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
     public void addStackTrace(ThreadInfo threadInfo) {
+        addStackTrace(threadInfo, 1);
+    }
+
+    // weight is the inverse of the effective sampling rate, see StackTraceCollector
+    public void addStackTrace(ThreadInfo threadInfo, long weight) {
         synchronized (lock) {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
+            weightedSampleCount += weight;
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
             Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            int offset = unmergedFrameIdCount;
+            if (offset + stackTrace.length > unmergedFrameIds.length) {
+                // sized for a full set of unmerged samples at this depth to avoid repeated growth
+                int length = Math.max(unmergedFrameIds.length * 2,
+                        stackTrace.length * MAX_UNMERGED_SAMPLES);
+                unmergedFrameIds = Arrays.copyOf(unmergedFrameIds,
+                        Math.max(offset + stackTrace.length, length));
+            }
+            for (int i = 0; i < stackTrace.length; i++) {
+                int frameId = frameTable.intern(stackTrace[i]);
+                if (frameId == -1) {
+                    // frame table is full
+                    getMergedProfile().merge(stackTrace, threadState, weight);
+                    return;
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                unmergedFrameIds[offset + i] = frameId;
+            }
+            unmergedFrameIdCount += stackTrace.length;
+            unmergedSampleLengths[unmergedSampleCount] = stackTrace.length;
+            unmergedThreadStates[unmergedSampleCount] = threadState;
+            unmergedWeights[unmergedSampleCount] = weight;
+            if (++unmergedSampleCount == MAX_UNMERGED_SAMPLES) {
+                // merged stack tree takes up less memory
+                getMergedProfile();
             }
         }
     }
 
     @GuardedBy("lock")
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    private MutableProfile getMergedProfile() {
+        if (profile == null) {
+            profile = new MutableProfile();
+        }
+        int offset = 0;
+        for (int i = 0; i < unmergedSampleCount; i++) {
+            int length = unmergedSampleLengths[i];
+            profile.merge(unmergedFrameIds, offset, length, unmergedThreadStates[i],
+                    unmergedWeights[i], frameTable);
+            offset += length;
         }
+        Arrays.fill(unmergedThreadStates, null);
+        unmergedFrameIdCount = 0;
+        unmergedSampleCount = 0;
+        return profile;
     }
 }
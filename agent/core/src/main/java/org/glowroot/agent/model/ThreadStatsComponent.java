@@ -21,7 +21,6 @@ import java.lang.management.ThreadMXBean;
 
 import javax.annotation.concurrent.GuardedBy;
 
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
@@ -37,48 +36,67 @@ public class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
-    private final long threadId;
-    private final long startingCpuNanos;
-    private final long startingBlockedMillis;
-    private final long startingWaitedMillis;
-    private final long startingAllocatedBytes;
+    // these are only non-final so that instances can be re-used (see reinitialize())
+    private long threadId;
+    private long startingCpuNanos;
+    private long startingBlockedMillis;
+    private long startingWaitedMillis;
+    private long startingAllocatedBytes;
 
-    private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
+    private @Nullable ThreadAllocatedBytes threadAllocatedBytes;
+    // capturing blocked and waited time requires ThreadMXBean.getThreadInfo() which is by far the
+    // most expensive part of capturing thread stats
+    private boolean captureBlockedWaitedTime;
 
     @GuardedBy("lock")
-    private volatile @MonotonicNonNull ThreadStats completedThreadStats;
+    private volatile @Nullable ThreadStats completedThreadStats;
 
     private final Object lock = new Object();
 
-    public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
-        threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
-        if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
-        } else {
-            startingCpuNanos = -1;
-        }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            startingBlockedMillis = threadInfo.getBlockedTime();
-            startingWaitedMillis = threadInfo.getWaitedTime();
-        } else {
-            startingBlockedMillis = -1;
-            startingWaitedMillis = -1;
-        }
-        if (threadAllocatedBytes != null) {
-            startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
-        } else {
-            startingAllocatedBytes = -1;
+    public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean captureBlockedWaitedTime) {
+        reinitialize(threadAllocatedBytes, captureBlockedWaitedTime);
+    }
+
+    // must be called from transaction thread, this is used to re-use instances once they are no
+    // longer referenced by a transaction
+    public void reinitialize(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean captureBlockedWaitedTime) {
+        synchronized (lock) {
+            threadId = Thread.currentThread().getId();
+            if (IS_THREAD_CPU_TIME_SUPPORTED) {
+                startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+            } else {
+                startingCpuNanos = -1;
+            }
+            if (captureBlockedWaitedTime && IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+                ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+                // thread info for current thread cannot be null
+                checkNotNull(threadInfo);
+                startingBlockedMillis = threadInfo.getBlockedTime();
+                startingWaitedMillis = threadInfo.getWaitedTime();
+            } else {
+                startingBlockedMillis = -1;
+                startingWaitedMillis = -1;
+            }
+            if (threadAllocatedBytes != null) {
+                startingAllocatedBytes =
+                        threadAllocatedBytes.getCurrentThreadAllocatedBytesSafely();
+            } else {
+                startingAllocatedBytes = -1;
+            }
+            this.threadAllocatedBytes = threadAllocatedBytes;
+            this.captureBlockedWaitedTime = captureBlockedWaitedTime;
+            completedThreadStats = null;
         }
-        this.threadAllocatedBytes = threadAllocatedBytes;
     }
 
     // must be called from transaction thread
     public void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            if (completedThreadStats == null) {
+                completedThreadStats = getThreadStatsInternal(true);
+            }
         }
     }
 
@@ -89,7 +107,7 @@ public class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
@@ -104,7 +122,7 @@ public class ThreadStatsComponent {
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadCpuTime()
                 // for the transaction thread
                 if (IS_THREAD_CPU_TIME_SUPPORTED) {
-                    return getTotalCpuNanosInternal();
+                    return getTotalCpuNanosInternal(false);
                 } else {
                     return -1;
                 }
@@ -114,30 +132,32 @@ public class ThreadStatsComponent {
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
-        }
-        long totalCpuNanos;
-        if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            totalCpuNanos = getTotalCpuNanosInternal();
-        } else {
-            totalCpuNanos = -1;
-        }
+    // the current thread variants of the ThreadMXBean methods are used when called from the
+    // transaction thread since they avoid looking up the thread by id
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
         long totalBlockedMillis;
         long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (captureBlockedWaitedTime && IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
             totalBlockedMillis = getTotalBlockedMillis(threadInfo);
             totalWaitedMillis = getTotalWaitedMillis(threadInfo);
         } else {
             totalBlockedMillis = -1;
             totalWaitedMillis = -1;
         }
+        long totalCpuNanos;
+        if (IS_THREAD_CPU_TIME_SUPPORTED) {
+            totalCpuNanos = getTotalCpuNanosInternal(currentThread);
+        } else {
+            totalCpuNanos = -1;
+        }
         long totalAllocatedBytes;
         if (this.threadAllocatedBytes != null) {
-            totalAllocatedBytes = getThreadAllocatedBytes();
+            totalAllocatedBytes = getThreadAllocatedBytes(currentThread);
         } else {
             totalAllocatedBytes = -1;
         }
@@ -145,10 +165,11 @@ public class ThreadStatsComponent {
                 totalAllocatedBytes);
     }
 
-    private long getTotalCpuNanosInternal() {
+    private long getTotalCpuNanosInternal(boolean currentThread) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
-        // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        // than whether or not it is supported), and also if the thread has terminated
+        long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                : threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -179,8 +200,10 @@ public class ThreadStatsComponent {
     }
 
     @RequiresNonNull("threadAllocatedBytes")
-    private long getThreadAllocatedBytes() {
-        long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+    private long getThreadAllocatedBytes(boolean currentThread) {
+        long allocatedBytes = currentThread
+                ? threadAllocatedBytes.getCurrentThreadAllocatedBytesSafely()
+                : threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
         if (startingAllocatedBytes != -1 && allocatedBytes != -1) {
             return allocatedBytes - startingAllocatedBytes;
         } else {
@@ -27,7 +27,12 @@ public class ThreadAllocatedBytes {
 
     private static final Logger logger = LoggerFactory.getLogger(ThreadAllocatedBytes.class);
 
+    // the methods are looked up (and the platform MXBean is retrieved) only once, since this is
+    // called at the start and end of every transaction when capturing thread stats
+    private final Object threadMXBean;
     private final Method getThreadAllocatedBytesMethod;
+    // only available in Java 14+
+    private final @Nullable Method getCurrentThreadAllocatedBytesMethod;
     private volatile boolean disabledDueToError;
 
     public static OptionalService<ThreadAllocatedBytes> create() {
@@ -68,11 +73,44 @@ public class ThreadAllocatedBytes {
         }
         Method getThreadAllocatedBytesMethod =
                 sunThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
-        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod));
+        Method getCurrentThreadAllocatedBytesMethod;
+        try {
+            getCurrentThreadAllocatedBytesMethod =
+                    sunThreadMXBeanClass.getMethod("getCurrentThreadAllocatedBytes");
+        } catch (NoSuchMethodException e) {
+            // log exception at debug level
+            logger.debug(e.getMessage(), e);
+            getCurrentThreadAllocatedBytesMethod = null;
+        }
+        return OptionalService.available(new ThreadAllocatedBytes(
+                ManagementFactory.getThreadMXBean(), getThreadAllocatedBytesMethod,
+                getCurrentThreadAllocatedBytesMethod));
     }
 
-    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod) {
+    private ThreadAllocatedBytes(Object threadMXBean, Method getThreadAllocatedBytesMethod,
+            @Nullable Method getCurrentThreadAllocatedBytesMethod) {
+        this.threadMXBean = threadMXBean;
         this.getThreadAllocatedBytesMethod = getThreadAllocatedBytesMethod;
+        this.getCurrentThreadAllocatedBytesMethod = getCurrentThreadAllocatedBytesMethod;
+    }
+
+    // this avoids looking up the thread by id when the JVM supports it
+    public long getCurrentThreadAllocatedBytesSafely() {
+        if (getCurrentThreadAllocatedBytesMethod == null) {
+            return getThreadAllocatedBytesSafely(Thread.currentThread().getId());
+        }
+        if (disabledDueToError) {
+            // prevent excessive error logging in case there is a problem
+            return -1;
+        }
+        try {
+            return toThreadAllocatedBytes(getCurrentThreadAllocatedBytesMethod.invoke(threadMXBean),
+                    "getCurrentThreadAllocatedBytes");
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            disabledDueToError = true;
+            return -1;
+        }
     }
 
     public long getThreadAllocatedBytesSafely(long threadId) {
@@ -81,19 +119,23 @@ public class ThreadAllocatedBytes {
             return -1;
         }
         try {
-            Long threadAllocatedBytes = (Long) getThreadAllocatedBytesMethod
-                    .invoke(ManagementFactory.getThreadMXBean(), threadId);
-            if (threadAllocatedBytes == null) {
-                logger.error("method unexpectedly returned null:"
-                        + " com.sun.management.ThreadMXBean.getThreadAllocatedBytes()");
-                disabledDueToError = true;
-                return -1;
-            }
-            return threadAllocatedBytes;
+            return toThreadAllocatedBytes(
+                    getThreadAllocatedBytesMethod.invoke(threadMXBean, threadId),
+                    "getThreadAllocatedBytes");
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             disabledDueToError = true;
             return -1;
         }
     }
+
+    private long toThreadAllocatedBytes(@Nullable Object threadAllocatedBytes, String methodName) {
+        if (threadAllocatedBytes == null) {
+            logger.error("method unexpectedly returned null:"
+                    + " com.sun.management.ThreadMXBean.{}()", methodName);
+            disabledDueToError = true;
+            return -1;
+        }
+        return (Long) threadAllocatedBytes;
+    }
 }
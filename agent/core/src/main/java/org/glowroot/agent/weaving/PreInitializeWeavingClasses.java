@@ -257,6 +257,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.config.ImmutableInstrumentationConfig$InitShim");
         types.add("org.glowroot.agent.config.InstrumentationConfig");
         types.add("org.glowroot.agent.impl.NestedTimerMap");
+        types.add("org.glowroot.agent.impl.RecyclingPool");
+        types.add("org.glowroot.agent.impl.RecyclingPool$1");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
         types.add("org.glowroot.agent.impl.TimerImpl");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
@@ -51,6 +51,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.bytecode.api.Bytecode;
+import org.glowroot.agent.bytecode.api.ThreadContextPlus;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.impl.ThreadContextImpl;
 import org.glowroot.agent.impl.TimerImpl;
@@ -160,12 +161,13 @@ public class Weaver {
         if (!weavingTimerEnabled) {
             return null;
         }
-        ThreadContextImpl threadContext =
-                (ThreadContextImpl) transactionRegistry.getCurrentThreadContextHolder().get();
-        if (threadContext == null) {
+        ThreadContextPlus threadContext =
+                transactionRegistry.getCurrentThreadContextHolder().get();
+        // the thread context holder can also hold an UnsampledThreadContext
+        if (!(threadContext instanceof ThreadContextImpl)) {
             return null;
         }
-        TimerImpl currentTimer = threadContext.getCurrentTimer();
+        TimerImpl currentTimer = ((ThreadContextImpl) threadContext).getCurrentTimer();
         if (currentTimer == null) {
             return null;
         }
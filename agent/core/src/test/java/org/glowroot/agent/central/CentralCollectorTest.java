@@ -17,6 +17,10 @@ package org.glowroot.agent.central;
 
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CentralCollectorTest {
@@ -35,4 +39,32 @@ public class CentralCollectorTest {
 
         assertThat(CentralCollector.escapeHostName("a\\b\\c")).isEqualTo("a\\\\b\\\\c");
     }
+
+    @Test
+    public void shouldSendSerializedAggregate() throws Exception {
+        // given
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1234)
+                .setTransactionCount(2)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("abc")
+                        .setTotalNanos(1234)
+                        .setCount(2))
+                .build();
+
+        // when
+        AggregateStreamMessage message = AggregateStreamMessage.newBuilder()
+                .setOverallAggregate(OverallAggregate.newBuilder()
+                        .setTransactionType("Web")
+                        .setUnknownFields(CentralCollector.toUnknownFields(
+                                OverallAggregate.AGGREGATE_FIELD_NUMBER,
+                                aggregate.toByteString())))
+                .build();
+
+        // then
+        OverallAggregate overallAggregate =
+                AggregateStreamMessage.parseFrom(message.toByteArray()).getOverallAggregate();
+        assertThat(overallAggregate.getTransactionType()).isEqualTo("Web");
+        assertThat(overallAggregate.getAggregate()).isEqualTo(aggregate);
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.MutableAggregateTimer;
+import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.agent.model.ThreadProfile;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.model.LazyHistogram.HistogramPool;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateCollectorTest {
+
+    private final HistogramPool histogramPool = new HistogramPool(false);
+
+    @Test
+    public void shouldBuildSameSerializedAggregate() throws Exception {
+        // given
+        AggregateCollector collector = createAggregateCollector();
+        for (int i = 0; i < 3; i++) {
+            collector.add(mockTransaction(1000 * (i + 1)));
+        }
+
+        // when/then
+        assertSameSerializedAggregate(collector);
+    }
+
+    @Test
+    public void shouldBuildSameSerializedScaledAggregate() throws Exception {
+        // given
+        AggregateCollector collector = createAggregateCollector();
+        for (int i = 0; i < 3; i++) {
+            collector.add(mockTransaction(1000 * (i + 1)));
+        }
+        collector.addUnsampled(createUnsampledAggregate(7));
+
+        // when/then
+        assertSameSerializedAggregate(collector);
+    }
+
+    @Test
+    public void shouldBuildSameSerializedUnsampledAggregate() throws Exception {
+        // given
+        AggregateCollector collector =
+                new AggregateCollector("test name", 10, 10, histogramPool);
+        collector.addUnsampled(createUnsampledAggregate(5));
+
+        // when/then
+        assertSameSerializedAggregate(collector);
+    }
+
+    private AggregateCollector createAggregateCollector() {
+        AggregateCollector collector = new AggregateCollector("test name", 10, 10, histogramPool);
+        collector.getMainThreadRootTimers().mergeRootTimer(mockRootTimer("http request", 3000));
+        collector.getAsyncTimers().mergeRootTimer(mockRootTimer("async", 500));
+        // more queries than the limit, so that they overflow into the limit exceeded bucket
+        for (int i = 0; i < 25; i++) {
+            collector.getQueryCollector().mergeQuery("SQL", "select " + i, 10 * i, i, i % 2 == 0,
+                    i, false);
+        }
+        collector.getQueryCollector().mergeQuery("CQL", "select x", 33, 3, false, 0, false);
+        for (int i = 0; i < 5; i++) {
+            collector.getServiceCallCollector().mergeServiceCall("HTTP", "GET /" + i, 20 * i, i);
+        }
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        ThreadInfo threadInfo = ManagementFactory.getThreadMXBean()
+                .getThreadInfo(Thread.currentThread().getId(), Integer.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            threadProfile.addStackTrace(threadInfo);
+        }
+        collector.mergeMainThreadProfile(threadProfile);
+        return collector;
+    }
+
+    private void assertSameSerializedAggregate(AggregateCollector collector) throws Exception {
+        ScratchBuffer scratchBuffer = histogramPool.getScratchBuffer();
+        SharedQueryTextCollectionImpl sharedQueryTextCollection =
+                new SharedQueryTextCollectionImpl();
+        SharedQueryTextCollectionImpl serializedSharedQueryTextCollection =
+                new SharedQueryTextCollectionImpl();
+
+        // when
+        Aggregate aggregate = collector.build(sharedQueryTextCollection, scratchBuffer);
+        ByteString serializedAggregate =
+                collector.buildSerialized(serializedSharedQueryTextCollection, scratchBuffer);
+
+        // then
+        assertThat(Aggregate.parseFrom(serializedAggregate)).isEqualTo(aggregate);
+        assertThat(serializedAggregate).isEqualTo(aggregate.toByteString());
+        assertThat(serializedSharedQueryTextCollection.sharedQueryTexts)
+                .isEqualTo(sharedQueryTextCollection.sharedQueryTexts);
+    }
+
+    private static Transaction mockTransaction(long durationNanos) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getMainThreadStats()).thenReturn(new ThreadStats(10, 1, 2, 300));
+        return transaction;
+    }
+
+    private static CommonTimerImpl mockRootTimer(String name, long totalNanos) {
+        CommonTimerImpl rootTimer = mock(CommonTimerImpl.class);
+        when(rootTimer.getName()).thenReturn(name);
+        when(rootTimer.getTotalNanos()).thenReturn(totalNanos);
+        when(rootTimer.getCount()).thenReturn(3L);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                @SuppressWarnings("unchecked")
+                List<MutableAggregateTimer> childTimers =
+                        (List<MutableAggregateTimer>) invocation.getArguments()[0];
+                childTimers.add(new MutableAggregateTimer("jdbc query", true, 1234.5, 7,
+                        ImmutableList.of(new MutableAggregateTimer("jdbc get connection", false,
+                                55, 1, ImmutableList.<MutableAggregateTimer>of()))));
+                return null;
+            }
+        }).when(rootTimer).mergeChildTimersInto2(any(List.class));
+        return rootTimer;
+    }
+
+    private static UnsampledTransactionCollector.UnsampledAggregate createUnsampledAggregate(
+            int count) {
+        UnsampledTransactionCollector unsampledTransactionCollector =
+                new UnsampledTransactionCollector(60000);
+        for (int i = 0; i < count; i++) {
+            unsampledTransactionCollector.add(1, "Web", "test name", "http request", 1000,
+                    i == 0);
+        }
+        return unsampledTransactionCollector.drain(60000).get(0);
+    }
+
+    private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
+
+        private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        private final List<String> sharedQueryTexts = Lists.newArrayList();
+
+        @Override
+        public int getSharedQueryTextIndex(String queryText) {
+            Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(queryText);
+            if (sharedQueryTextIndex == null) {
+                sharedQueryTextIndex = sharedQueryTextIndexes.size();
+                sharedQueryTextIndexes.put(queryText, sharedQueryTextIndex);
+                sharedQueryTexts.add(queryText);
+            }
+            return sharedQueryTextIndex;
+        }
+    }
+}
@@ -17,7 +17,10 @@ package org.glowroot.agent.impl;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.Test;
 
@@ -25,6 +28,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.model.LazyHistogram.HistogramPool;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -33,8 +37,11 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AggregatorTest {
@@ -74,12 +81,150 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldProcessFromMultipleThreads() throws Exception {
+        // given
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        final Aggregator aggregator =
+                new Aggregator(new MockCollector(), configService, 1000, Clock.systemClock());
+        final List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 800; i++) {
+            transactions.add(buildTransaction());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            final int offset = i * 100;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = offset; j < offset + 100; j++) {
+                        aggregator.add(transactions.get(j));
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+
+        // then
+        for (Transaction transaction : transactions) {
+            verify(transaction, timeout(5000)).removeFromActiveTransactions();
+        }
+        assertThat(aggregator.getPendingTransactionCount()).isZero();
+        assertThat(aggregator.getDroppedTransactionCount()).isZero();
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldFlushWithStripes() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, 4, Clock.systemClock());
+
+        // when
+        int count = 0;
+        long firstCaptureTime = aggregator.add(buildTransaction("a name"));
+        long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
+        while (true) {
+            long captureTime = aggregator.add(buildTransaction("name " + count));
+            count++;
+            if (captureTime > aggregateCaptureTime) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+
+        // then
+        // aggregation is done in a separate thread, so give it a little time to complete
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalDurationNanos() > 0) {
+                break;
+            }
+        }
+        assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(count * 123 * 1000000.0);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldFlushWithUnsampled() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+        // stay clear of the end of the interval
+        while (System.currentTimeMillis() % 1000 > 500) {
+            Thread.sleep(1);
+        }
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            aggregator.addUnsampled(System.currentTimeMillis(), "a type", "a name", "mock timer",
+                    MILLISECONDS.toNanos(123), false);
+        }
+
+        // then
+        // aggregation is done in a separate thread, so give it a little time to complete
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalDurationNanos() > 0) {
+                break;
+            }
+        }
+        assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(10 * 123 * 1000000.0);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldReuseHistogramArraysAcrossIntervals() throws Exception {
+        // given
+        HistogramPool histogramPool = new HistogramPool(false);
+        AggregateIntervalCollector intervalCollector =
+                createIntervalCollector(1000, histogramPool);
+        intervalCollector.add(buildTransaction());
+        int pooledValuesCount = histogramPool.getPooledValuesCount();
+
+        // when
+        intervalCollector.flush(new MockCollector());
+        // aggregator releases after the interval is no longer pending
+        intervalCollector.release();
+        int releasedValuesCount = histogramPool.getPooledValuesCount();
+        AggregateIntervalCollector nextIntervalCollector =
+                createIntervalCollector(2000, histogramPool);
+        nextIntervalCollector.add(buildTransaction());
+
+        // then
+        assertThat(releasedValuesCount).isGreaterThan(pooledValuesCount);
+        assertThat(histogramPool.getPooledValuesCount()).isEqualTo(pooledValuesCount);
+    }
+
+    private static AggregateIntervalCollector createIntervalCollector(long currentTime,
+            HistogramPool histogramPool) {
+        return new AggregateIntervalCollector(currentTime, 1000, 500, 500, 500, 1, histogramPool,
+                Clock.systemClock());
+    }
+
     private static Transaction buildTransaction() {
+        return buildTransaction("a name");
+    }
+
+    private static Transaction buildTransaction(String transactionName) {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
         when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
@@ -115,6 +260,7 @@ public class AggregatorTest {
                         String transactionName, List<String> sharedQueryTexts,
                         Aggregate transactionAggregate) {}
             });
+            aggregateReader.release();
         }
 
         @Override
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RecyclingPoolTest {
+
+    private static final TimerNameImpl ROOT = ImmutableTimerNameImpl.of("root", false);
+    private static final TimerNameImpl CHILD = ImmutableTimerNameImpl.of("child", false);
+
+    @Test
+    public void shouldReuseRecycledTimers() {
+        // given
+        RecyclingPool pool = new RecyclingPool();
+        ThreadContextImpl threadContext = mockThreadContext(pool);
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT);
+        rootTimer.start(0);
+        TimerImpl childTimer = rootTimer.startNestedTimer(CHILD, 1);
+        childTimer.end(2);
+        rootTimer.end(3);
+        // when
+        boolean recycled = pool.recycleTimers(rootTimer);
+        // then
+        assertThat(recycled).isTrue();
+        ThreadContextImpl threadContext2 = mockThreadContext(pool);
+        TimerImpl rootTimer2 = TimerImpl.createRootTimer(threadContext2, ROOT);
+        TimerImpl rootTimer3 = TimerImpl.createRootTimer(threadContext2, ROOT);
+        assertThat(rootTimer2).isSameAs(rootTimer);
+        assertThat(rootTimer3).isSameAs(childTimer);
+        assertThat(rootTimer2.getTotalNanos()).isEqualTo(0);
+        assertThat(rootTimer2.getCount()).isEqualTo(0);
+        assertThat(pool.takeTimer()).isNull();
+    }
+
+    @Test
+    public void shouldNotRecycleActiveTimers() {
+        // given
+        RecyclingPool pool = new RecyclingPool();
+        ThreadContextImpl threadContext = mockThreadContext(pool);
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT);
+        rootTimer.start(0);
+        rootTimer.startNestedTimer(CHILD, 1);
+        // when
+        boolean recycled = pool.recycleTimers(rootTimer);
+        // then
+        assertThat(recycled).isFalse();
+        assertThat(pool.takeTimer()).isNull();
+    }
+
+    private static ThreadContextImpl mockThreadContext(RecyclingPool pool) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getRecyclingPool()).thenReturn(pool);
+        return threadContext;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StackTraceCollectorTest {
+
+    @Test
+    public void shouldCaptureAllWithoutCostEstimate() {
+        assertThat(StackTraceCollector.getSamplingStep(1000, -1, 1000, 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCaptureAllWhenUnderBudget() {
+        // budget is 1% of 1000 milliseconds = 10 milliseconds = 100 threads at 100 microseconds
+        assertThat(StackTraceCollector.getSamplingStep(100, 100000, 1000, 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldThinWhenOverBudget() {
+        assertThat(StackTraceCollector.getSamplingStep(101, 100000, 1000, 1)).isEqualTo(2);
+        assertThat(StackTraceCollector.getSamplingStep(1000, 100000, 1000, 1)).isEqualTo(10);
+        assertThat(StackTraceCollector.getSamplingStep(1000, 100000, 1000, 0.5)).isEqualTo(20);
+    }
+
+    @Test
+    public void shouldAlwaysCaptureAtLeastOne() {
+        assertThat(StackTraceCollector.getSamplingStep(50, 1000000000, 10, 1)).isEqualTo(50);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.TransactionSampler.RateLimiter;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionSamplerTest {
+
+    @Test
+    public void shouldLimitRate() {
+        // given
+        RateLimiter rateLimiter = new RateLimiter(10, 0);
+        // when
+        int acquired = 0;
+        for (int i = 0; i < 100; i++) {
+            if (rateLimiter.tryAcquire(0)) {
+                acquired++;
+            }
+        }
+        // then
+        assertThat(acquired).isEqualTo(10);
+        assertThat(rateLimiter.tryAcquire(MILLISECONDS.toNanos(50))).isFalse();
+        assertThat(rateLimiter.tryAcquire(MILLISECONDS.toNanos(100))).isTrue();
+        assertThat(rateLimiter.tryAcquire(MILLISECONDS.toNanos(100))).isFalse();
+    }
+
+    @Test
+    public void shouldLimitRatePerTransactionType() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L);
+        TransactionSampler transactionSampler = new TransactionSampler(1, 5, ticker);
+        // when
+        int sampledA = 0;
+        int sampledB = 0;
+        for (int i = 0; i < 20; i++) {
+            if (transactionSampler.isSampled("a")) {
+                sampledA++;
+            }
+            if (transactionSampler.isSampled("b")) {
+                sampledB++;
+            }
+        }
+        // then
+        assertThat(sampledA).isEqualTo(5);
+        assertThat(sampledB).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldSampleFraction() {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        TransactionSampler transactionSampler = new TransactionSampler(0.25, 0, ticker);
+        // when
+        int sampled = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (transactionSampler.isSampled("a")) {
+                sampled++;
+            }
+        }
+        // then
+        assertThat(sampled).isBetween(23000, 27000);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.TraceEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class UnsampledThreadContextTest {
+
+    @Test
+    public void shouldNotStartNestedTransaction() {
+        // given
+        TransactionCollector transactionCollector = mock(TransactionCollector.class);
+        ThreadContextThreadLocal.Holder threadContextHolder =
+                new ThreadContextThreadLocal().getHolder();
+        UnsampledThreadContext threadContext =
+                createThreadContext(transactionCollector, threadContextHolder);
+        threadContextHolder.set(threadContext);
+
+        // when
+        TraceEntry nestedEntry = threadContextHolder.get().startTransaction("Web", "nested",
+                mock(MessageSupplier.class), mock(TimerName.class));
+        nestedEntry.end();
+        threadContext.getRootEntry().end();
+
+        // then
+        assertThat(nestedEntry).isSameAs(NopTransactionService.TRACE_ENTRY);
+        assertThat(threadContextHolder.get()).isNull();
+        verify(transactionCollector).onCompletedUnsampledTransaction("Web", "initial",
+                "http request", 100, false);
+        verifyNoMoreInteractions(transactionCollector);
+    }
+
+    @Test
+    public void shouldRecordUnderFinalTransactionName() {
+        // given
+        TransactionCollector transactionCollector = mock(TransactionCollector.class);
+        ThreadContextThreadLocal.Holder threadContextHolder =
+                new ThreadContextThreadLocal().getHolder();
+        UnsampledThreadContext threadContext =
+                createThreadContext(transactionCollector, threadContextHolder);
+
+        // when
+        threadContext.setTransactionName("renamed", 1);
+        threadContext.setTransactionName("not renamed", 0);
+        threadContext.setTransactionType("Background", 1);
+        threadContext.setTransactionError("an error");
+        threadContext.getRootEntry().end();
+        threadContext.getRootEntry().end();
+
+        // then
+        verify(transactionCollector).onCompletedUnsampledTransaction(eq("Background"),
+                eq("renamed"), eq("http request"), anyLong(), eq(true));
+        verifyNoMoreInteractions(transactionCollector);
+    }
+
+    private static UnsampledThreadContext createThreadContext(
+            TransactionCollector transactionCollector,
+            ThreadContextThreadLocal.Holder threadContextHolder) {
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L, 100L);
+        return new UnsampledThreadContext(transactionCollector, "Web", "initial", "http request",
+                ticker, threadContextHolder);
+    }
+}
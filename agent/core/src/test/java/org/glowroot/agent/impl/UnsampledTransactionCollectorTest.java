@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.agent.impl.UnsampledTransactionCollector.UnsampledAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UnsampledTransactionCollectorTest {
+
+    @Test
+    public void shouldOnlyDrainUpToInterval() {
+        // given
+        UnsampledTransactionCollector collector = new UnsampledTransactionCollector(60000);
+        collector.add(59999, "Web", "a name", "http request", 1000, false);
+        collector.add(60000, "Web", "a name", "http request", 1000, false);
+        collector.add(60001, "Web", "a name", "http request", 1000, true);
+
+        // when
+        List<UnsampledAggregate> firstInterval = collector.drain(60000);
+        List<UnsampledAggregate> secondInterval = collector.drain(120000);
+
+        // then
+        assertThat(firstInterval).hasSize(1);
+        assertThat(firstInterval.get(0).getTransactionCount()).isEqualTo(2);
+        assertThat(firstInterval.get(0).getErrorCount()).isEqualTo(0);
+        assertThat(secondInterval).hasSize(1);
+        assertThat(secondInterval.get(0).getTransactionCount()).isEqualTo(1);
+        assertThat(secondInterval.get(0).getErrorCount()).isEqualTo(1);
+        assertThat(collector.drain(180000)).isEmpty();
+    }
+}
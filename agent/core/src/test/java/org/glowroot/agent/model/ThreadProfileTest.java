@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadProfileTest {
+
+    @Test
+    public void shouldMergeUnmergedStackTraces() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        ThreadInfo threadInfo = getCurrentThreadInfo();
+        // when
+        for (int i = 0; i < 5; i++) {
+            threadProfile.addStackTrace(threadInfo);
+        }
+        // then
+        MutableProfile profile = new MutableProfile();
+        threadProfile.mergeInto(profile);
+        assertThat(threadProfile.getSampleCount()).isEqualTo(5);
+        assertThat(profile.getSampleCount()).isEqualTo(5);
+        assertThat(threadProfile.toProto().getNodeCount())
+                .isEqualTo(threadInfo.getStackTrace().length);
+    }
+
+    @Test
+    public void shouldMergeAfterExceedingUnmergedLimit() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        ThreadInfo threadInfo = getCurrentThreadInfo();
+        // when
+        for (int i = 0; i < 25; i++) {
+            threadProfile.addStackTrace(threadInfo);
+        }
+        // then
+        MutableProfile profile = new MutableProfile();
+        threadProfile.mergeInto(profile);
+        assertThat(threadProfile.getSampleCount()).isEqualTo(25);
+        assertThat(profile.getSampleCount()).isEqualTo(25);
+        assertThat(threadProfile.toProto().getNodeCount())
+                .isEqualTo(threadInfo.getStackTrace().length);
+    }
+
+    @Test
+    public void shouldLimitSamples() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(15);
+        ThreadInfo threadInfo = getCurrentThreadInfo();
+        // when
+        for (int i = 0; i < 20; i++) {
+            threadProfile.addStackTrace(threadInfo);
+        }
+        // then
+        MutableProfile profile = new MutableProfile();
+        threadProfile.mergeInto(profile);
+        assertThat(threadProfile.getSampleCount()).isEqualTo(15);
+        assertThat(threadProfile.isSampleLimitExceeded()).isTrue();
+        assertThat(profile.getSampleCount()).isEqualTo(15);
+    }
+
+    @Test
+    public void shouldMergeWhenFrameTableIsFull() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(100, new InternedStackFrames(5));
+        ThreadInfo threadInfo = getCurrentThreadInfo();
+        // when
+        for (int i = 0; i < 25; i++) {
+            threadProfile.addStackTrace(threadInfo);
+        }
+        // then
+        MutableProfile profile = new MutableProfile();
+        threadProfile.mergeInto(profile);
+        assertThat(threadProfile.getSampleCount()).isEqualTo(25);
+        assertThat(profile.getSampleCount()).isEqualTo(25);
+        assertThat(threadProfile.toProto().getNodeCount())
+                .isEqualTo(threadInfo.getStackTrace().length);
+    }
+
+    private static ThreadInfo getCurrentThreadInfo() {
+        return ManagementFactory.getThreadMXBean()
+                .getThreadInfo(Thread.currentThread().getId(), Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ThreadStatsComponentTest {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private static boolean threadContentionMonitoringEnabled;
+
+    @BeforeClass
+    public static void setUp() {
+        assumeTrue(threadMXBean.isThreadContentionMonitoringSupported());
+        threadContentionMonitoringEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+        threadMXBean.setThreadContentionMonitoringEnabled(true);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        threadMXBean.setThreadContentionMonitoringEnabled(threadContentionMonitoringEnabled);
+    }
+
+    @Test
+    public void shouldCaptureBlockedWaitedTime() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null, true);
+
+        // when
+        threadStatsComponent.onComplete();
+
+        // then
+        ThreadStats threadStats = threadStatsComponent.getThreadStats();
+        assertThat(threadStats.getTotalBlockedMillis()).isGreaterThanOrEqualTo(0);
+        assertThat(threadStats.getTotalWaitedMillis()).isGreaterThanOrEqualTo(0);
+    }
+
+    // this is the -Dglowroot.threadStats.skipBlockedWaitedTime path
+    @Test
+    public void shouldSkipBlockedWaitedTime() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null, false);
+
+        // when
+        threadStatsComponent.onComplete();
+
+        // then
+        ThreadStats threadStats = threadStatsComponent.getThreadStats();
+        assertThat(threadStats.getTotalBlockedMillis()).isEqualTo(-1);
+        assertThat(threadStats.getTotalWaitedMillis()).isEqualTo(-1);
+        if (threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+            assertThat(threadStats.getTotalCpuNanos()).isGreaterThanOrEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldSkipBlockedWaitedTimeAfterReinitialize() {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null, true);
+        threadStatsComponent.onComplete();
+
+        // when
+        // recycled thread stats components are reinitialized for the next transaction, which may
+        // be of a transaction type that skips blocked and waited time
+        threadStatsComponent.reinitialize(null, false);
+        threadStatsComponent.onComplete();
+
+        // then
+        ThreadStats threadStats = threadStatsComponent.getThreadStats();
+        assertThat(threadStats.getTotalBlockedMillis()).isEqualTo(-1);
+        assertThat(threadStats.getTotalWaitedMillis()).isEqualTo(-1);
+    }
+}
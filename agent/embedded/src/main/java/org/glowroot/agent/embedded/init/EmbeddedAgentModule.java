@@ -93,6 +93,7 @@ class EmbeddedAgentModule {
 
     private volatile @MonotonicNonNull ScheduledExecutorService backgroundExecutor;
     private volatile @MonotonicNonNull SimpleRepoModule simpleRepoModule;
+    private volatile @MonotonicNonNull GroupCommitWriter groupCommitWriter;
 
     private volatile @MonotonicNonNull UiModule uiModule;
 
@@ -179,13 +180,21 @@ class EmbeddedAgentModule {
                                 dataDir, clock, ticker, configRepository, backgroundExecutor);
                         simpleRepoModule.registerMBeans(new PlatformMBeanServerLifecycleImpl(
                                 agentModule.getLazyPlatformMBeanServer()));
+                        GroupCommitWriter groupCommitWriter = null;
+                        if (GroupCommitWriter.ENABLED) {
+                            groupCommitWriter = new GroupCommitWriter(dataSource);
+                            agentModule.getLazyPlatformMBeanServer().lazyRegisterMBean(
+                                    new GroupCommitWriterStats(groupCommitWriter),
+                                    "org.glowroot:type=GroupCommitWriter");
+                            EmbeddedAgentModule.this.groupCommitWriter = groupCommitWriter;
+                        }
                         // now inject the real collector into the proxy
                         Collector collector = new EmbeddedCollector(
                                 simpleRepoModule.getEnvironmentDao(),
                                 simpleRepoModule.getAggregateDao(), simpleRepoModule.getTraceDao(),
                                 simpleRepoModule.getGaugeValueDao(), configRepository,
                                 simpleRepoModule.getAlertingService(),
-                                simpleRepoModule.getHttpClient());
+                                simpleRepoModule.getHttpClient(), groupCommitWriter);
                         if (collectorProxyClass != null) {
                             startupLogger.info("using collector proxy: {}",
                                     collectorProxyClass.getName());
@@ -341,6 +350,11 @@ class EmbeddedAgentModule {
         if (agentModule != null) {
             agentModule.close();
         }
+        if (groupCommitWriter != null) {
+            // close after agent module so that no more writes are coming in, and before simple
+            // repo module so that pending writes can still be committed
+            groupCommitWriter.close();
+        }
         checkNotNull(simpleRepoModule).close();
         if (backgroundExecutor != null) {
             // close background executor last to prevent exceptions due to above modules attempting
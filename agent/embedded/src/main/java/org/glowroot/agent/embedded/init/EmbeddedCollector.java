@@ -51,11 +51,12 @@ class EmbeddedCollector implements Collector {
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
     private final HttpClient httpClient;
+    private final @Nullable GroupCommitWriter groupCommitWriter;
 
     EmbeddedCollector(EnvironmentDao environmentDao, AggregateDao aggregateDao,
             TraceDao traceRepository, GaugeValueDao gaugeValueRepository,
             ConfigRepositoryImpl configRepository, AlertingService alertingService,
-            HttpClient httpClient) {
+            HttpClient httpClient, @Nullable GroupCommitWriter groupCommitWriter) {
         this.environmentDao = environmentDao;
         this.aggregateDao = aggregateDao;
         this.traceDao = traceRepository;
@@ -63,6 +64,7 @@ class EmbeddedCollector implements Collector {
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.httpClient = httpClient;
+        this.groupCommitWriter = groupCommitWriter;
     }
 
     @Override
@@ -72,8 +74,21 @@ class EmbeddedCollector implements Collector {
     }
 
     @Override
-    public void collectAggregates(AggregateReader aggregateReader) throws Exception {
-        aggregateDao.store(aggregateReader);
+    public void collectAggregates(final AggregateReader aggregateReader) throws Exception {
+        try {
+            if (groupCommitWriter == null) {
+                aggregateDao.store(aggregateReader);
+            } else {
+                groupCommitWriter.writeAggregates(new GroupCommitWriter.Write() {
+                    @Override
+                    public void run() throws Exception {
+                        aggregateDao.store(aggregateReader);
+                    }
+                });
+            }
+        } finally {
+            aggregateReader.release();
+        }
         alertingService.checkForDeletedAlerts(AGENT_ID);
         for (AlertConfig alertConfig : configRepository.getAlertConfigs(AGENT_ID)) {
             AlertCondition alertCondition = alertConfig.getCondition();
@@ -104,8 +119,17 @@ class EmbeddedCollector implements Collector {
     }
 
     @Override
-    public void collectGaugeValues(List<GaugeValue> gaugeValues) throws Exception {
-        gaugeValueDao.store(gaugeValues);
+    public void collectGaugeValues(final List<GaugeValue> gaugeValues) throws Exception {
+        if (groupCommitWriter == null) {
+            gaugeValueDao.store(gaugeValues);
+        } else {
+            groupCommitWriter.writeGaugeValues(new GroupCommitWriter.Write() {
+                @Override
+                public void run() throws Exception {
+                    gaugeValueDao.store(gaugeValues);
+                }
+            });
+        }
         long maxCaptureTime = 0;
         for (GaugeValue gaugeValue : gaugeValues) {
             maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
@@ -130,8 +154,20 @@ class EmbeddedCollector implements Collector {
     }
 
     @Override
-    public void collectTrace(TraceReader traceReader) throws Exception {
-        traceDao.store(traceReader);
+    public void collectTrace(final TraceReader traceReader) throws Exception {
+        if (groupCommitWriter == null) {
+            traceDao.store(traceReader);
+        } else {
+            // the trace is read on the writer thread, which is ok since transactions whose traces
+            // are stored are pinned (see TransactionCollector.onCompletedTransaction()), but note
+            // the trace is not visible in the UI while it is waiting in the writer's queue
+            groupCommitWriter.writeTrace(new GroupCommitWriter.Write() {
+                @Override
+                public void run() throws Exception {
+                    traceDao.store(traceReader);
+                }
+            }, traceReader.update());
+        }
     }
 
     @Override
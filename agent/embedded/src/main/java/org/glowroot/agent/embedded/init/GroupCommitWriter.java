@@ -0,0 +1,309 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.init;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// performs all writes to the embedded storage on a single dedicated thread, committing whatever
+// writes have accumulated since the prior commit together as a single (group) commit
+//
+// aggregate and gauge value writes are drained ahead of trace writes, and their callers wait until
+// the write has been committed (which also keeps the aggregate readers valid while being written),
+// trace writes are queued and the caller returns immediately, so that a burst of slow traces does
+// not hold up aggregates and gauge values, and the trace queue is bounded (traces are dropped
+// once it is full, same as TransactionCollector does when its backlog is full)
+class GroupCommitWriter {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.embedded.groupCommit");
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private static final int MAX_PENDING_TRACES =
+            Integer.getInteger("glowroot.embedded.groupCommit.maxPendingTraces", 500);
+
+    // aggregate and gauge value writes block their caller, so these are only reached if there are
+    // many concurrent callers
+    private static final int MAX_PENDING_AGGREGATES = 10;
+    private static final int MAX_PENDING_GAUGE_VALUES = 10;
+
+    private static final int MAX_GROUP_SIZE = 100;
+
+    private final DataSource dataSource;
+    private final int maxPendingTraces;
+
+    private final ExecutorService writerExecutor;
+
+    private final Object queueLock = new Object();
+    @GuardedBy("queueLock")
+    private final ArrayDeque<PendingWrite> aggregateQueue = new ArrayDeque<PendingWrite>();
+    @GuardedBy("queueLock")
+    private final ArrayDeque<PendingWrite> gaugeValueQueue = new ArrayDeque<PendingWrite>();
+    @GuardedBy("queueLock")
+    private final ArrayDeque<PendingWrite> traceQueue = new ArrayDeque<PendingWrite>();
+    @GuardedBy("queueLock")
+    private boolean closed;
+
+    private final AtomicLong droppedTraceCount = new AtomicLong();
+    private final AtomicLong groupCommitCount = new AtomicLong();
+    private final AtomicLong groupCommitWriteCount = new AtomicLong();
+
+    private final RateLimitedLogger backPressureLogger =
+            new RateLimitedLogger(GroupCommitWriter.class);
+
+    GroupCommitWriter(DataSource dataSource) {
+        this(dataSource, MAX_PENDING_TRACES);
+    }
+
+    @VisibleForTesting
+    GroupCommitWriter(DataSource dataSource, int maxPendingTraces) {
+        this.dataSource = dataSource;
+        this.maxPendingTraces = maxPendingTraces;
+        writerExecutor = Executors
+                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Storage-Writer"));
+        writerExecutor.execute(new Writer());
+    }
+
+    void writeAggregates(Write write) throws Exception {
+        PendingWrite pendingWrite = new PendingWrite(write, true);
+        synchronized (queueLock) {
+            add(aggregateQueue, MAX_PENDING_AGGREGATES, pendingWrite);
+        }
+        pendingWrite.await();
+    }
+
+    void writeGaugeValues(Write write) throws Exception {
+        PendingWrite pendingWrite = new PendingWrite(write, true);
+        synchronized (queueLock) {
+            add(gaugeValueQueue, MAX_PENDING_GAUGE_VALUES, pendingWrite);
+        }
+        pendingWrite.await();
+    }
+
+    // update is true when the trace was already (partially) stored, in which case the limit does
+    // not apply to make sure the final version of the trace does not get left out
+    void writeTrace(Write write, boolean update) {
+        synchronized (queueLock) {
+            if (closed) {
+                return;
+            }
+            if (traceQueue.size() >= maxPendingTraces && !update) {
+                droppedTraceCount.getAndIncrement();
+                backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
+                        + " traces already waiting to be stored", maxPendingTraces);
+                return;
+            }
+            traceQueue.add(new PendingWrite(write, false));
+            queueLock.notifyAll();
+        }
+    }
+
+    int getAggregateQueueDepth() {
+        synchronized (queueLock) {
+            return aggregateQueue.size();
+        }
+    }
+
+    int getGaugeValueQueueDepth() {
+        synchronized (queueLock) {
+            return gaugeValueQueue.size();
+        }
+    }
+
+    int getTraceQueueDepth() {
+        synchronized (queueLock) {
+            return traceQueue.size();
+        }
+    }
+
+    long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
+    long getGroupCommitCount() {
+        return groupCommitCount.get();
+    }
+
+    long getGroupCommitWriteCount() {
+        return groupCommitWriteCount.get();
+    }
+
+    // pending writes are still committed before the writer thread exits
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        synchronized (queueLock) {
+            closed = true;
+            queueLock.notifyAll();
+        }
+        writerExecutor.shutdown();
+        if (!writerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    @GuardedBy("queueLock")
+    private void add(ArrayDeque<PendingWrite> queue, int maxPending, PendingWrite pendingWrite)
+            throws InterruptedException {
+        while (queue.size() >= maxPending && !closed) {
+            queueLock.wait();
+        }
+        if (closed) {
+            pendingWrite.complete(new IllegalStateException("Storage writer is closed"));
+            return;
+        }
+        queue.add(pendingWrite);
+        queueLock.notifyAll();
+    }
+
+    // drains in priority order: aggregates, then gauge values, then traces
+    @GuardedBy("queueLock")
+    private List<PendingWrite> drainGroup() {
+        List<PendingWrite> group = Lists.newArrayList();
+        drainTo(aggregateQueue, group);
+        drainTo(gaugeValueQueue, group);
+        drainTo(traceQueue, group);
+        return group;
+    }
+
+    private static void drainTo(ArrayDeque<PendingWrite> queue, List<PendingWrite> group) {
+        while (group.size() < MAX_GROUP_SIZE) {
+            PendingWrite pendingWrite = queue.poll();
+            if (pendingWrite == null) {
+                return;
+            }
+            group.add(pendingWrite);
+        }
+    }
+
+    private void commit(List<PendingWrite> group) {
+        try {
+            dataSource.beginGroupCommit();
+        } catch (Exception e) {
+            // fall back to committing each update individually
+            logger.error(e.getMessage(), e);
+        }
+        for (PendingWrite pendingWrite : group) {
+            try {
+                pendingWrite.write.run();
+            } catch (Throwable t) {
+                pendingWrite.exception = t;
+            }
+        }
+        Throwable commitException = null;
+        try {
+            dataSource.endGroupCommit();
+        } catch (Throwable t) {
+            commitException = t;
+        }
+        groupCommitCount.getAndIncrement();
+        groupCommitWriteCount.addAndGet(group.size());
+        for (PendingWrite pendingWrite : group) {
+            Throwable t = pendingWrite.exception;
+            if (t == null) {
+                t = commitException;
+            }
+            if (pendingWrite.callerWaiting) {
+                pendingWrite.complete(t);
+            } else if (t != null) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    interface Write {
+        void run() throws Exception;
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                List<PendingWrite> group;
+                synchronized (queueLock) {
+                    while (aggregateQueue.isEmpty() && gaugeValueQueue.isEmpty()
+                            && traceQueue.isEmpty() && !closed) {
+                        try {
+                            queueLock.wait();
+                        } catch (InterruptedException e) {
+                            // should not happen since this thread is never interrupted
+                            logger.debug(e.getMessage(), e);
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    group = drainGroup();
+                    if (group.isEmpty()) {
+                        // closed and all pending writes have been committed
+                        return;
+                    }
+                    // wake up any callers waiting for space in a queue
+                    queueLock.notifyAll();
+                }
+                commit(group);
+            }
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final Write write;
+        private final boolean callerWaiting;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        // only accessed by the writer thread until the latch is released
+        private @Nullable Throwable exception;
+
+        private PendingWrite(Write write, boolean callerWaiting) {
+            this.write = write;
+            this.callerWaiting = callerWaiting;
+        }
+
+        private void complete(@Nullable Throwable exception) {
+            this.exception = exception;
+            latch.countDown();
+        }
+
+        private void await() throws Exception {
+            latch.await();
+            Throwable t = exception;
+            if (t instanceof Exception) {
+                throw (Exception) t;
+            } else if (t != null) {
+                throw new Exception(t);
+            }
+        }
+    }
+}
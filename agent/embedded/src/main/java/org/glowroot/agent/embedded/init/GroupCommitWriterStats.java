@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.init;
+
+public class GroupCommitWriterStats implements GroupCommitWriterStatsMXBean {
+
+    private final GroupCommitWriter groupCommitWriter;
+
+    GroupCommitWriterStats(GroupCommitWriter groupCommitWriter) {
+        this.groupCommitWriter = groupCommitWriter;
+    }
+
+    @Override
+    public int getAggregateQueueDepth() {
+        return groupCommitWriter.getAggregateQueueDepth();
+    }
+
+    @Override
+    public int getGaugeValueQueueDepth() {
+        return groupCommitWriter.getGaugeValueQueueDepth();
+    }
+
+    @Override
+    public int getTraceQueueDepth() {
+        return groupCommitWriter.getTraceQueueDepth();
+    }
+
+    @Override
+    public long getDroppedTraceCount() {
+        return groupCommitWriter.getDroppedTraceCount();
+    }
+
+    @Override
+    public long getGroupCommitCount() {
+        return groupCommitWriter.getGroupCommitCount();
+    }
+
+    @Override
+    public long getGroupCommitWriteCount() {
+        return groupCommitWriter.getGroupCommitWriteCount();
+    }
+}
@@ -76,8 +76,15 @@ class PreInitializeStorageShutdownClasses {
         List<String> types = Lists.newArrayList();
         types.add("org.glowroot.agent.embedded.util.CappedDatabase");
         types.add("org.glowroot.agent.embedded.util.CappedDatabase$ShutdownHookThread");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabaseCodec");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabaseCodec$1");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabaseCodec$2");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabaseCodec$3");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabaseMappedFile");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabaseMappedFile$Ring");
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.DataSource");
+        types.add("org.glowroot.agent.embedded.util.DataSource$ReadConnection");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
         return types;
     }
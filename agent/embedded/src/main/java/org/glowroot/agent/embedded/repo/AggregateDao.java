@@ -20,11 +20,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -33,6 +37,7 @@ import org.immutables.value.Value;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.repo.IncrementalRollup.PartialAggregate;
 import org.glowroot.agent.embedded.repo.model.Stored;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
@@ -44,11 +49,14 @@ import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimeSeriesSegment;
+import org.glowroot.agent.embedded.util.TimeSeriesSegment.Series;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
@@ -81,6 +89,9 @@ public class AggregateDao implements AggregateRepository {
 
     private static final String AGENT_ID = "";
 
+    private static final String OVERALL_SERIES_KIND = "aggregate_tt";
+    private static final String TRANSACTION_SERIES_KIND = "aggregate_tn";
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -151,19 +162,36 @@ public class AggregateDao implements AggregateRepository {
     private final ConfigRepositoryImpl configRepository;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
+    private final @Nullable TimeSeriesStore timeSeriesStore;
+    private final @Nullable IncrementalRollup incrementalRollup;
+    private final @Nullable RollupScheduler rollupScheduler;
 
+    // index is rollup level, index 0 is not used
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao) throws Exception {
+            FullQueryTextDao fullQueryTextDao, @Nullable TimeSeriesStore timeSeriesStore,
+            @Nullable RollupScheduler rollupScheduler) throws Exception {
+        this(dataSource, rollupCappedDatabases, configRepository, transactionTypeDao,
+                fullQueryTextDao, timeSeriesStore, rollupScheduler, IncrementalRollup.ENABLED);
+    }
+
+    @VisibleForTesting
+    AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
+            ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
+            FullQueryTextDao fullQueryTextDao, @Nullable TimeSeriesStore timeSeriesStore,
+            @Nullable RollupScheduler rollupScheduler, boolean incrementalRollup)
+            throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.timeSeriesStore = timeSeriesStore;
+        this.rollupScheduler = rollupScheduler;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         for (int i = 0; i < rollupConfigs.size(); i++) {
@@ -177,15 +205,21 @@ public class AggregateDao implements AggregateRepository {
                     .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
         }
 
-        // don't need last_rollup_times table like in GaugeValueDao since there is already index
-        // on capture_time so these queries are relatively fast
-        long[] lastRollupTimes = new long[rollupConfigs.size()];
-        lastRollupTimes[0] = 0;
-        for (int i = 1; i < lastRollupTimes.length; i++) {
-            lastRollupTimes[i] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
-                    + " from aggregate_tt_rollup_" + castUntainted(i));
+        List<Column> columns = Lists.newArrayList();
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
+        }
+        dataSource.syncTable("aggregate_last_rollup_times", columns);
+
+        lastRollupTimes = initData(rollupConfigs, dataSource);
+
+        if (incrementalRollup) {
+            this.incrementalRollup = new IncrementalRollup(this, dataSource,
+                    rollupCappedDatabases, configRepository, lastRollupTimes);
+            recoverPartialRollups(rollupConfigs);
+        } else {
+            this.incrementalRollup = null;
         }
-        this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
         // TODO initial rollup in case store is not called in a reasonable time
     }
@@ -203,6 +237,10 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
                         overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                if (incrementalRollup != null) {
+                    incrementalRollup.add(captureTime, transactionType, null, overallAggregate,
+                            truncatedQueryTexts);
+                }
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
             @Override
@@ -212,6 +250,10 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
                         transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                if (incrementalRollup != null) {
+                    incrementalRollup.add(captureTime, transactionType, transactionName,
+                            transactionAggregate, truncatedQueryTexts);
+                }
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -234,14 +276,35 @@ public class AggregateDao implements AggregateRepository {
         });
         synchronized (rollupLock) {
             List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-            for (int i = 1; i < rollupConfigs.size(); i++) {
-                RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
-                        rollupConfig.intervalMillis());
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
+            if (incrementalRollup == null) {
+                for (int i = 1; i < rollupConfigs.size(); i++) {
+                    RollupConfig rollupConfig = rollupConfigs.get(i);
+                    long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
+                            rollupConfig.intervalMillis());
+                    long lastRollupTime = lastRollupTimes.get(i);
+                    if (safeRollupTime > lastRollupTime) {
+                        rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i,
+                                i - 1);
+                        // JVM termination here will cause last_rollup_*_time to be out of sync,
+                        // which will cause a re-rollup of this time after the next startup, but
+                        // this is ok since the rollup deletes any prior rollup rows for the same
+                        // capture time before inserting (see deleteRollupRows())
+                        updateLastRollupTime(dataSource, lastRollupTimes, i, safeRollupTime);
+                    }
+                }
+            } else {
+                incrementalRollup.persistCompleted(captureTime);
+            }
+            if (timeSeriesStore != null) {
+                for (int i = 0; i < rollupConfigs.size(); i++) {
+                    // rows at rollup level 0 are final once stored
+                    long safeCaptureTime = i == 0 ? captureTime : lastRollupTimes.get(i);
+                    long segmentMillis = timeSeriesStore
+                            .getSegmentMillis(rollupConfigs.get(i).intervalMillis());
+                    timeSeriesStore.seal(new AggregateSeriesSource(true, i), segmentMillis,
+                            safeCaptureTime);
+                    timeSeriesStore.seal(new AggregateSeriesSource(false, i), segmentMillis,
+                            safeCaptureTime);
                 }
             }
         }
@@ -283,7 +346,22 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
-        return dataSource.query(new OverviewAggregateQuery(query));
+        if (timeSeriesStore == null) {
+            return dataSource.query(new OverviewAggregateQuery(query));
+        }
+        final List<OverviewAggregate> overviewAggregates = Lists.newArrayList();
+        long sealedCaptureTime =
+                readSealedSeries(timeSeriesStore, query, new TimeSeriesStore.RowVisitor() {
+                    @Override
+                    public void visit(Series series, int row) throws Exception {
+                        overviewAggregates.add(readOverviewAggregate(series, row));
+                    }
+                });
+        if (query.to() > sealedCaptureTime) {
+            overviewAggregates.addAll(dataSource.query(
+                    new OverviewAggregateQuery(getUnsealedQuery(query, sealedCaptureTime))));
+        }
+        return overviewAggregates;
     }
 
     // query.from() is INCLUSIVE
@@ -297,7 +375,27 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
-        return dataSource.query(new ThroughputAggregateQuery(query));
+        if (timeSeriesStore == null) {
+            return dataSource.query(new ThroughputAggregateQuery(query));
+        }
+        final List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
+        long sealedCaptureTime =
+                readSealedSeries(timeSeriesStore, query, new TimeSeriesStore.RowVisitor() {
+                    @Override
+                    public void visit(Series series, int row) {
+                        // see AggregateSeriesQuery for the column order
+                        throughputAggregates.add(ImmutableThroughputAggregate.builder()
+                                .captureTime(series.getCaptureTime(row))
+                                .transactionCount((long) series.getDouble(1, row))
+                                .errorCount((long) series.getDouble(2, row))
+                                .build());
+                    }
+                });
+        if (query.to() > sealedCaptureTime) {
+            throughputAggregates.addAll(dataSource.query(
+                    new ThroughputAggregateQuery(getUnsealedQuery(query, sealedCaptureTime))));
+        }
+        return throughputAggregates;
     }
 
     @Override
@@ -423,18 +521,77 @@ public class AggregateDao implements AggregateRepository {
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        if (timeSeriesStore != null) {
+            timeSeriesStore.deleteBefore(OVERALL_SERIES_KIND, rollupLevel, captureTime);
+            timeSeriesStore.deleteBefore(TRANSACTION_SERIES_KIND, rollupLevel, captureTime);
+        }
+    }
+
+    // returns the sealed capture time, rows after which need to be read from h2
+    private long readSealedSeries(TimeSeriesStore timeSeriesStore, TransactionQuery query,
+            TimeSeriesStore.RowVisitor visitor) throws Exception {
+        String transactionName = query.transactionName();
+        AggregateSeriesSource source =
+                new AggregateSeriesSource(transactionName == null, query.rollupLevel());
+        long sealedCaptureTime = timeSeriesStore.getSealedCaptureTime(source);
+        if (query.from() <= sealedCaptureTime) {
+            timeSeriesStore.read(source, getSeriesKey(query.transactionType(), transactionName),
+                    query.from(), Math.min(query.to(), sealedCaptureTime), visitor);
+        }
+        return sealedCaptureTime;
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (rollupLock) {
+            if (incrementalRollup != null) {
+                incrementalRollup.clear();
+            }
+            AtomicLongArray lastRollupTimes =
+                    initData(configRepository.getRollupConfigs(), dataSource);
+            for (int i = 0; i < lastRollupTimes.length(); i++) {
+                this.lastRollupTimes.set(i, lastRollupTimes.get(i));
+            }
+        }
     }
 
-    private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
+    void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
-        for (Long rollupTime : rollupTimes) {
-            dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
-            dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
+        if (rollupTimes.isEmpty()) {
+            return;
+        }
+        if (rollupScheduler == null) {
+            new RollupTask(null, rollupTimes, fixedIntervalMillis, fromRollupLevel,
+                    toRollupLevel).call();
+            return;
+        }
+        // transaction types are rolled up independently of each other
+        List<String> transactionTypes = dataSource.query(new RollupTransactionTypeQuery(
+                fromRollupLevel, lastRollupTime, curentRollupTime));
+        List<RollupTask> tasks = Lists.newArrayList();
+        for (String transactionType : transactionTypes) {
+            tasks.add(new RollupTask(transactionType, rollupTimes, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
         }
+        rollupScheduler.invokeAll(tasks);
+    }
+
+    // rebuilds the partial rollups from the rows after each rollup level's watermark, using the
+    // coarsest rollup level available for each time range, e.g. the partial level 2 rollup is
+    // rebuilt from level 1 rows after the level 2 watermark up to the level 1 watermark, and from
+    // level 0 rows after that
+    private void recoverPartialRollups(List<RollupConfig> rollupConfigs) throws Exception {
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            long from = lastRollupTimes.get(i);
+            for (int j = i - 1; j >= 0; j--) {
+                long to = j == 0 ? Long.MAX_VALUE : Math.max(lastRollupTimes.get(j), from);
+                if (to > from) {
+                    dataSource.query(new RecoverPartialRollupQuery(j, i, from, to));
+                }
+                from = to;
+            }
+        }
     }
 
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
@@ -455,7 +612,8 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private void merge(MutableAggregate mergedAggregate, ResultSet resultSet, int startColumnIndex,
+    // returns the serialized size of the merged data (see IncrementalRollup.PartialAggregate)
+    private int merge(MutableAggregate mergedAggregate, ResultSet resultSet, int startColumnIndex,
             int fromRollupLevel) throws Exception {
         int i = startColumnIndex;
         double totalDurationNanos = resultSet.getDouble(i++);
@@ -479,19 +637,23 @@ public class AggregateDao implements AggregateRepository {
         Double auxThreadTotalAllocatedBytes = RowMappers.getDouble(resultSet, i++);
         byte[] durationNanosHistogram = checkNotNull(resultSet.getBytes(i++));
 
+        int payloadBytes = durationNanosHistogram.length;
         mergedAggregate.addTotalDurationNanos(totalDurationNanos);
         mergedAggregate.addTransactionCount(transactionCount);
         mergedAggregate.addErrorCount(errorCount);
         mergedAggregate.addAsyncTransactions(asyncTransactions);
         if (mainThreadRootTimers != null) {
+            payloadBytes += mainThreadRootTimers.length;
             mergedAggregate.mergeMainThreadRootTimers(
                     readMessages(mainThreadRootTimers, Aggregate.Timer.parser()));
         }
         if (auxThreadRootTimers != null) {
+            payloadBytes += auxThreadRootTimers.length;
             mergedAggregate.mergeAuxThreadRootTimers(
                     readMessages(auxThreadRootTimers, Aggregate.Timer.parser()));
         }
         if (asyncTimers != null) {
+            payloadBytes += asyncTimers.length;
             mergedAggregate.mergeAsyncTimers(readMessages(asyncTimers, Aggregate.Timer.parser()));
         }
         mergedAggregate.addMainThreadTotalCpuNanos(mainThreadTotalCpuNanos);
@@ -509,6 +671,7 @@ public class AggregateDao implements AggregateRepository {
                     .readMessages(queriesCappedId, Stored.QueriesByType.parser());
             if (queries != null) {
                 for (Stored.QueriesByType queriesByType : queries) {
+                    payloadBytes += queriesByType.getSerializedSize();
                     for (Stored.Query query : queriesByType.getQueryList()) {
                         mergedAggregate.mergeQuery(queriesByType.getType(),
                                 query.getTruncatedText(),
@@ -525,6 +688,7 @@ public class AggregateDao implements AggregateRepository {
                             Stored.ServiceCallsByType.parser());
             if (serviceCalls != null) {
                 for (Stored.ServiceCallsByType serviceCallsByType : serviceCalls) {
+                    payloadBytes += serviceCallsByType.getSerializedSize();
                     for (Stored.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
                         mergedAggregate.mergeServiceCall(serviceCallsByType.getType(),
                                 serviceCall.getText(), serviceCall.getTotalDurationNanos(),
@@ -537,6 +701,7 @@ public class AggregateDao implements AggregateRepository {
             Profile mainThreadProfile = rollupCappedDatabases.get(fromRollupLevel)
                     .readMessage(mainThreadProfileCappedId, Profile.parser());
             if (mainThreadProfile != null) {
+                payloadBytes += mainThreadProfile.getSerializedSize();
                 mergedAggregate.mergeMainThreadProfile(mainThreadProfile);
             }
         }
@@ -544,12 +709,14 @@ public class AggregateDao implements AggregateRepository {
             Profile auxThreadProfile = rollupCappedDatabases.get(fromRollupLevel)
                     .readMessage(auxThreadProfileCappedId, Profile.parser());
             if (auxThreadProfile != null) {
+                payloadBytes += auxThreadProfile.getSerializedSize();
                 mergedAggregate.mergeAuxThreadProfile(auxThreadProfile);
             }
         }
+        return payloadBytes;
     }
 
-    private int getMaxQueryAggregates() {
+    static int getMaxQueryAggregates(ConfigRepositoryImpl configRepository) {
         AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(AGENT_ID);
         if (advancedConfig.hasMaxQueryAggregates()) {
             return advancedConfig.getMaxQueryAggregates().getValue();
@@ -558,7 +725,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private int getMaxServiceCallAggregates() {
+    static int getMaxServiceCallAggregates(ConfigRepositoryImpl configRepository) {
         AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(AGENT_ID);
         if (advancedConfig.hasMaxServiceCallAggregates()) {
             return advancedConfig.getMaxServiceCallAggregates().getValue();
@@ -567,6 +734,122 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // re-rollup of the same capture time (e.g. after JVM termination prior to updating the
+    // watermark) merges over rows with the same key (see AggregateInsert), but would leave behind
+    // rows that the re-rollup does not produce again (e.g. if lower level rows have expired in the
+    // meantime), so prior rollup rows for the capture time are deleted first
+    static void deleteRollupRows(DataSource dataSource, int rollupLevel, long captureTime,
+            @Nullable String onlyTransactionType) throws SQLException {
+        if (onlyTransactionType == null) {
+            dataSource.update("delete from aggregate_tt_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time = ?", captureTime);
+            dataSource.update("delete from aggregate_tn_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time = ?", captureTime);
+        } else {
+            dataSource.update("delete from aggregate_tt_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time = ? and transaction_type = ?", captureTime,
+                    onlyTransactionType);
+            dataSource.update("delete from aggregate_tn_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time = ? and transaction_type = ?", captureTime,
+                    onlyTransactionType);
+        }
+    }
+
+    static void updateLastRollupTime(DataSource dataSource, AtomicLongArray lastRollupTimes,
+            int rollupLevel, long lastRollupTime) throws SQLException {
+        dataSource.update("update aggregate_last_rollup_times set last_rollup_"
+                + castUntainted(rollupLevel) + "_time = ?", lastRollupTime);
+        lastRollupTimes.set(rollupLevel, lastRollupTime);
+    }
+
+    private static AtomicLongArray initData(List<RollupConfig> rollupConfigs,
+            DataSource dataSource) throws Exception {
+        List<String> columnNames = Lists.newArrayList();
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            columnNames.add("last_rollup_" + i + "_time");
+        }
+        Joiner joiner = Joiner.on(", ");
+        String selectClause = castUntainted(joiner.join(columnNames));
+        long[] values = dataSource.query(new LastRollupTimesQuery(selectClause));
+        if (values.length == 0) {
+            // there is already an index on capture_time so these queries are relatively fast
+            values = new long[rollupConfigs.size() - 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
+                        + " from aggregate_tt_rollup_" + castUntainted(i + 1));
+            }
+            String valueClause = castUntainted(joiner.join(Longs.asList(values)));
+            dataSource.update("insert into aggregate_last_rollup_times (" + selectClause
+                    + ") values (" + valueClause + ")");
+        }
+        long[] lastRollupTimes = new long[rollupConfigs.size()];
+        System.arraycopy(values, 0, lastRollupTimes, 1, values.length);
+        return new AtomicLongArray(lastRollupTimes);
+    }
+
+    private static @Untainted String getTransactionTypeFilter(
+            @Nullable String onlyTransactionType) {
+        return onlyTransactionType == null ? "" : " and transaction_type = ?";
+    }
+
+    private static TransactionQuery getUnsealedQuery(TransactionQuery query,
+            long sealedCaptureTime) {
+        return ImmutableTransactionQuery.copyOf(query)
+                .withFrom(Math.max(query.from(), sealedCaptureTime + 1));
+    }
+
+    private static String getSeriesKey(String transactionType, @Nullable String transactionName) {
+        if (transactionName == null) {
+            return transactionType;
+        } else {
+            return transactionType + '\u0000' + transactionName;
+        }
+    }
+
+    private static OverviewAggregate readOverviewAggregate(Series series, int row)
+            throws InvalidProtocolBufferException {
+        // see AggregateSeriesQuery for the column order
+        int i = 0;
+        ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
+                .captureTime(series.getCaptureTime(row))
+                .totalDurationNanos(series.getDouble(i++, row))
+                .transactionCount((long) series.getDouble(i++, row));
+        i++; // error count
+        builder.asyncTransactions(series.getDouble(i++, row) != 0);
+        int j = 0;
+        byte[] mainThreadRootTimers = series.getBytes(j++, row);
+        if (mainThreadRootTimers != null) {
+            builder.mainThreadRootTimers(
+                    readMessages(mainThreadRootTimers, Aggregate.Timer.parser()));
+        }
+        byte[] auxThreadRootTimers = series.getBytes(j++, row);
+        if (auxThreadRootTimers != null) {
+            builder.auxThreadRootTimers(
+                    readMessages(auxThreadRootTimers, Aggregate.Timer.parser()));
+        }
+        byte[] asyncTimers = series.getBytes(j++, row);
+        if (asyncTimers != null) {
+            builder.asyncTimers(readMessages(asyncTimers, Aggregate.Timer.parser()));
+        }
+        Aggregate.ThreadStats mainThreadStats = ThreadStatsCreator.create(
+                series.getNullableDouble(i++, row), series.getNullableDouble(i++, row),
+                series.getNullableDouble(i++, row), series.getNullableDouble(i++, row));
+        if (mainThreadStats != null) {
+            builder.mainThreadStats(mainThreadStats);
+        }
+        Aggregate.ThreadStats auxThreadStats = ThreadStatsCreator.create(
+                series.getNullableDouble(i++, row), series.getNullableDouble(i++, row),
+                series.getNullableDouble(i++, row), series.getNullableDouble(i++, row));
+        if (auxThreadStats != null) {
+            builder.auxThreadStats(auxThreadStats);
+        }
+        return builder.build();
+    }
+
+    private static double toDouble(@Nullable Double value) {
+        return value == null ? Double.NaN : value;
+    }
+
     private static @Untainted String getTableName(TransactionQuery query) {
         if (query.transactionName() == null) {
             return "aggregate_tt_rollup_" + castUntainted(query.rollupLevel());
@@ -985,16 +1268,207 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private class AggregateSeriesSource implements TimeSeriesStore.SeriesSource {
+
+        private final boolean overall;
+        private final int rollupLevel;
+
+        private AggregateSeriesSource(boolean overall, int rollupLevel) {
+            this.overall = overall;
+            this.rollupLevel = rollupLevel;
+        }
+
+        @Override
+        public String getKind() {
+            return overall ? OVERALL_SERIES_KIND : TRANSACTION_SERIES_KIND;
+        }
+
+        @Override
+        public int getRollupLevel() {
+            return rollupLevel;
+        }
+
+        @Override
+        public int getDoubleColumnCount() {
+            return 12;
+        }
+
+        @Override
+        public int getBytesColumnCount() {
+            return 3;
+        }
+
+        @Override
+        public long readNextCaptureTime(long captureTime) throws Exception {
+            return dataSource.queryForLong("select ifnull(min(capture_time), 0) from "
+                    + getTableName() + " where capture_time > ?", captureTime);
+        }
+
+        @Override
+        public void writeSeries(long from, long to, TimeSeriesSegment.Writer writer)
+                throws Exception {
+            dataSource.query(new AggregateSeriesQuery(getTableName(), overall, from, to, writer));
+        }
+
+        private @Untainted String getTableName() {
+            if (overall) {
+                return "aggregate_tt_rollup_" + castUntainted(rollupLevel);
+            } else {
+                return "aggregate_tn_rollup_" + castUntainted(rollupLevel);
+            }
+        }
+    }
+
+    private static class AggregateSeriesQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final @Untainted String tableName;
+        private final boolean overall;
+        private final long from;
+        private final long to;
+        private final TimeSeriesSegment.Writer writer;
+
+        private AggregateSeriesQuery(@Untainted String tableName, boolean overall, long from,
+                long to, TimeSeriesSegment.Writer writer) {
+            this.tableName = tableName;
+            this.overall = overall;
+            this.from = from;
+            this.to = to;
+            this.writer = writer;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            String seriesKeyColumns =
+                    overall ? "transaction_type" : "transaction_type, transaction_name";
+            return "select " + seriesKeyColumns + ", capture_time, total_duration_nanos,"
+                    + " transaction_count, error_count, async_transactions,"
+                    + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
+                    + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
+                    + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
+                    + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
+                    + " main_thread_root_timers, aux_thread_root_timers, async_root_timers from "
+                    + tableName + " where capture_time > ? and capture_time <= ? order by "
+                    + seriesKeyColumns + ", capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            double[] doubleValues = new double[12];
+            while (resultSet.next()) {
+                int i = 1;
+                String transactionType = checkNotNull(resultSet.getString(i++));
+                String transactionName = overall ? null : checkNotNull(resultSet.getString(i++));
+                long captureTime = resultSet.getLong(i++);
+                int j = 0;
+                doubleValues[j++] = resultSet.getDouble(i++);
+                doubleValues[j++] = resultSet.getLong(i++);
+                doubleValues[j++] = resultSet.getLong(i++);
+                doubleValues[j++] = resultSet.getBoolean(i++) ? 1 : 0;
+                while (j < doubleValues.length) {
+                    doubleValues[j++] = toDouble(RowMappers.getDouble(resultSet, i++));
+                }
+                writer.add(getSeriesKey(transactionType, transactionName), captureTime,
+                        doubleValues, resultSet.getBytes(i++), resultSet.getBytes(i++),
+                        resultSet.getBytes(i++));
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+
+    private class RecoverPartialRollupQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final int fromRollupLevel;
+        private final int toRollupLevel;
+        private final long from;
+        private final long to;
+
+        private RecoverPartialRollupQuery(int fromRollupLevel, int toRollupLevel, long from,
+                long to) {
+            this.fromRollupLevel = fromRollupLevel;
+            this.toRollupLevel = toRollupLevel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            // overall and transaction aggregates are read together in capture time order since
+            // the partial rollup only moves forward
+            String columns = "capture_time, total_duration_nanos, transaction_count, error_count,"
+                    + " async_transactions, queries_capped_id, service_calls_capped_id,"
+                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
+                    + " main_thread_root_timers, aux_thread_root_timers, async_root_timers,"
+                    + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
+                    + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
+                    + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
+                    + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
+                    + " duration_nanos_histogram";
+            return castUntainted("select transaction_type, cast(null as varchar), " + columns
+                    + " from aggregate_tt_rollup_" + fromRollupLevel
+                    + " where capture_time > ? and capture_time <= ? union all"
+                    + " select transaction_type, transaction_name, " + columns
+                    + " from aggregate_tn_rollup_" + fromRollupLevel
+                    + " where capture_time > ? and capture_time <= ? order by capture_time");
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {
+            int i = 1;
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            IncrementalRollup incrementalRollup = checkNotNull(AggregateDao.this.incrementalRollup);
+            while (resultSet.next()) {
+                String transactionType = checkNotNull(resultSet.getString(1));
+                String transactionName = resultSet.getString(2);
+                long captureTime = resultSet.getLong(3);
+                PartialAggregate partialAggregate = incrementalRollup.getPartialAggregate(
+                        toRollupLevel, captureTime, transactionType, transactionName);
+                if (partialAggregate != null) {
+                    int payloadBytes =
+                            merge(partialAggregate.aggregate(), resultSet, 4, fromRollupLevel);
+                    incrementalRollup.updatePayloadBytes(partialAggregate, payloadBytes);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+
     private class RollupOverallAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        // null means all transaction types
+        private final @Nullable String onlyTransactionType;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
-        private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupOverallAggregates(@Nullable String onlyTransactionType,
+                long rollupCaptureTime, long fixedIntervalMillis, int fromRollupLevel,
+                int toRollupLevel) {
+            this.onlyTransactionType = onlyTransactionType;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
@@ -1013,19 +1487,23 @@ public class AggregateDao implements AggregateRepository {
                     + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
                     + " duration_nanos_histogram from aggregate_tt_rollup_"
                     + castUntainted(fromRollupLevel) + " where capture_time > ?"
-                    + " and capture_time <= ? order by transaction_type";
+                    + " and capture_time <= ?" + getTransactionTypeFilter(onlyTransactionType)
+                    + " order by transaction_type";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
             preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
             preparedStatement.setLong(2, rollupCaptureTime);
+            if (onlyTransactionType != null) {
+                preparedStatement.setString(3, onlyTransactionType);
+            }
         }
 
         @Override
         public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
-            int maxQueryAggregates = getMaxQueryAggregates();
-            int maxServiceCallAggregates = getMaxServiceCallAggregates();
+            int maxQueryAggregates = getMaxQueryAggregates(configRepository);
+            int maxServiceCallAggregates = getMaxServiceCallAggregates(configRepository);
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
             MutableOverallAggregate curr = null;
             while (resultSet.next()) {
@@ -1057,13 +1535,17 @@ public class AggregateDao implements AggregateRepository {
 
     private class RollupTransactionAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        // null means all transaction types
+        private final @Nullable String onlyTransactionType;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
 
-        private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupTransactionAggregates(@Nullable String onlyTransactionType,
+                long rollupCaptureTime, long fixedIntervalMillis, int fromRollupLevel,
+                int toRollupLevel) {
+            this.onlyTransactionType = onlyTransactionType;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
@@ -1082,20 +1564,24 @@ public class AggregateDao implements AggregateRepository {
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
                     + " aux_thread_total_allocated_bytes, duration_nanos_histogram"
                     + " from aggregate_tn_rollup_" + castUntainted(fromRollupLevel)
-                    + " where capture_time > ? and capture_time <= ? order by transaction_type,"
-                    + " transaction_name";
+                    + " where capture_time > ? and capture_time <= ?"
+                    + getTransactionTypeFilter(onlyTransactionType)
+                    + " order by transaction_type, transaction_name";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
             preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
             preparedStatement.setLong(2, rollupCaptureTime);
+            if (onlyTransactionType != null) {
+                preparedStatement.setString(3, onlyTransactionType);
+            }
         }
 
         @Override
         public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
-            int maxQueryAggregates = getMaxQueryAggregates();
-            int maxServiceCallAggregates = getMaxServiceCallAggregates();
+            int maxQueryAggregates = getMaxQueryAggregates(configRepository);
+            int maxServiceCallAggregates = getMaxServiceCallAggregates(configRepository);
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
             ScratchBuffer scratchBuffer = new ScratchBuffer();
             MutableTransactionAggregate curr = null;
@@ -1216,6 +1702,67 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private class RollupTask implements Callable</*@Nullable*/ Void> {
+
+        private final @Nullable String onlyTransactionType;
+        private final List<Long> rollupTimes;
+        private final long fixedIntervalMillis;
+        private final int fromRollupLevel;
+        private final int toRollupLevel;
+
+        private RollupTask(@Nullable String onlyTransactionType, List<Long> rollupTimes,
+                long fixedIntervalMillis, int fromRollupLevel, int toRollupLevel) {
+            this.onlyTransactionType = onlyTransactionType;
+            this.rollupTimes = rollupTimes;
+            this.fixedIntervalMillis = fixedIntervalMillis;
+            this.fromRollupLevel = fromRollupLevel;
+            this.toRollupLevel = toRollupLevel;
+        }
+
+        @Override
+        public @Nullable Void call() throws Exception {
+            for (Long rollupTime : rollupTimes) {
+                deleteRollupRows(dataSource, toRollupLevel, rollupTime, onlyTransactionType);
+                dataSource.query(new RollupOverallAggregates(onlyTransactionType, rollupTime,
+                        fixedIntervalMillis, fromRollupLevel, toRollupLevel));
+                dataSource.query(new RollupTransactionAggregates(onlyTransactionType, rollupTime,
+                        fixedIntervalMillis, fromRollupLevel, toRollupLevel));
+            }
+            return null;
+        }
+    }
+
+    private static class RollupTransactionTypeQuery implements JdbcRowQuery<String> {
+
+        private final int rollupLevel;
+        private final long lastRollupTime;
+        private final long curentRollupTime;
+
+        private RollupTransactionTypeQuery(int rollupLevel, long lastRollupTime,
+                long curentRollupTime) {
+            this.rollupLevel = rollupLevel;
+            this.lastRollupTime = lastRollupTime;
+            this.curentRollupTime = curentRollupTime;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select distinct transaction_type from aggregate_tt_rollup_"
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, lastRollupTime);
+            preparedStatement.setLong(2, curentRollupTime);
+        }
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getString(1));
+        }
+    }
+
     private static class RollupTimeRowMapper implements JdbcRowQuery<Long> {
 
         private final int rollupLevel;
@@ -1252,6 +1799,41 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
+
+        private final @Untainted String selectClause;
+
+        private LastRollupTimesQuery(@Untainted String selectClause) {
+            this.selectClause = selectClause;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select " + selectClause + " from aggregate_last_rollup_times";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {}
+
+        @Override
+        public long[] processResultSet(ResultSet resultSet) throws Exception {
+            if (!resultSet.next()) {
+                return new long[0];
+            }
+            int columns = resultSet.getMetaData().getColumnCount();
+            long[] values = new long[columns];
+            for (int i = 0; i < columns; i++) {
+                values[i] = resultSet.getLong(i + 1);
+            }
+            return values;
+        }
+
+        @Override
+        public long[] valueIfDataSourceClosed() {
+            return new long[0];
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface CappedId {
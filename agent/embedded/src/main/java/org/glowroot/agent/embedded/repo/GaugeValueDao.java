@@ -28,6 +28,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 
 import org.glowroot.agent.embedded.util.DataSource;
@@ -39,6 +40,8 @@ import org.glowroot.agent.embedded.util.ImmutableIndex;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimeSeriesSegment;
+import org.glowroot.agent.embedded.util.TimeSeriesSegment.Series;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.GaugeValueRepository;
@@ -51,6 +54,8 @@ import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class GaugeValueDao implements GaugeValueRepository {
 
+    private static final String SERIES_KIND = "gauge_value";
+
     private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
             ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
             ImmutableColumn.of("capture_time", ColumnType.BIGINT),
@@ -65,6 +70,7 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final DataSource dataSource;
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
+    private final @Nullable TimeSeriesStore timeSeriesStore;
 
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
@@ -72,12 +78,13 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final Object rollupLock = new Object();
 
     GaugeValueDao(DataSource dataSource, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
-            Clock clock) throws Exception {
+            Clock clock, @Nullable TimeSeriesStore timeSeriesStore) throws Exception {
         this.dataSource = dataSource;
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
+        this.timeSeriesStore = timeSeriesStore;
 
         for (int i = 0; i <= rollupConfigs.size(); i++) {
             dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
@@ -160,6 +167,14 @@ public class GaugeValueDao implements GaugeValueRepository {
                     lastRollupTimes.set(i, safeRollupTime);
                 }
             }
+            if (timeSeriesStore != null) {
+                timeSeriesStore.seal(new GaugeSeriesSource(0),
+                        getSegmentMillis(timeSeriesStore, 0), safeCurrentTime);
+                for (int i = 0; i < rollupConfigs.size(); i++) {
+                    timeSeriesStore.seal(new GaugeSeriesSource(i + 1),
+                            getSegmentMillis(timeSeriesStore, i + 1), lastRollupTimes.get(i));
+                }
+            }
         }
     }
 
@@ -172,11 +187,37 @@ public class GaugeValueDao implements GaugeValueRepository {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        if (timeSeriesStore == null) {
+            return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        }
+        GaugeSeriesSource source = new GaugeSeriesSource(rollupLevel);
+        long sealedCaptureTime = timeSeriesStore.getSealedCaptureTime(source);
+        final List<GaugeValue> gaugeValues = Lists.newArrayList();
+        if (from <= sealedCaptureTime) {
+            timeSeriesStore.read(source, Long.toString(gaugeId), from,
+                    Math.min(to, sealedCaptureTime), new TimeSeriesStore.RowVisitor() {
+                        @Override
+                        public void visit(Series series, int row) {
+                            gaugeValues.add(GaugeValue.newBuilder()
+                                    .setCaptureTime(series.getCaptureTime(row))
+                                    .setValue(series.getDouble(0, row))
+                                    .setWeight((long) series.getDouble(1, row))
+                                    .build());
+                        }
+                    });
+        }
+        if (to > sealedCaptureTime) {
+            gaugeValues.addAll(dataSource.query(new GaugeValueQuery(gaugeId,
+                    Math.max(from, sealedCaptureTime + 1), to, rollupLevel)));
+        }
+        return gaugeValues;
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        if (timeSeriesStore != null) {
+            timeSeriesStore.deleteBefore(SERIES_KIND, rollupLevel, captureTime);
+        }
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -200,6 +241,12 @@ public class GaugeValueDao implements GaugeValueRepository {
                 lastRollupTime, safeRollupTime);
     }
 
+    // raw gauge values (rollup level 0) use the same segment size as rollup level 1
+    private long getSegmentMillis(TimeSeriesStore timeSeriesStore, int rollupLevel) {
+        return timeSeriesStore.getSegmentMillis(
+                rollupConfigs.get(Math.max(rollupLevel - 1, 0)).intervalMillis());
+    }
+
     private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
             DataSource dataSource) throws Exception {
         List<String> columnNames = Lists.newArrayList();
@@ -249,6 +296,96 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private class GaugeSeriesSource implements TimeSeriesStore.SeriesSource {
+
+        private final int rollupLevel;
+
+        private GaugeSeriesSource(int rollupLevel) {
+            this.rollupLevel = rollupLevel;
+        }
+
+        @Override
+        public String getKind() {
+            return SERIES_KIND;
+        }
+
+        @Override
+        public int getRollupLevel() {
+            return rollupLevel;
+        }
+
+        @Override
+        public int getDoubleColumnCount() {
+            // value and weight
+            return 2;
+        }
+
+        @Override
+        public int getBytesColumnCount() {
+            return 0;
+        }
+
+        @Override
+        public long readNextCaptureTime(long captureTime) throws Exception {
+            return dataSource.queryForLong("select ifnull(min(capture_time), 0)"
+                    + " from gauge_value_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time > ?", captureTime);
+        }
+
+        @Override
+        public void writeSeries(long from, long to, TimeSeriesSegment.Writer writer)
+                throws Exception {
+            dataSource.query(new GaugeSeriesQuery(rollupLevel, from, to, writer));
+        }
+    }
+
+    private static class GaugeSeriesQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final int rollupLevel;
+        private final long from;
+        private final long to;
+        private final TimeSeriesSegment.Writer writer;
+
+        private GaugeSeriesQuery(int rollupLevel, long from, long to,
+                TimeSeriesSegment.Writer writer) {
+            this.rollupLevel = rollupLevel;
+            this.from = from;
+            this.to = to;
+            this.writer = writer;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select gauge_id, capture_time, value, weight from gauge_value_rollup_"
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?"
+                    + " order by gauge_id, capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            while (resultSet.next()) {
+                int i = 1;
+                String seriesKey = Long.toString(resultSet.getLong(i++));
+                long captureTime = resultSet.getLong(i++);
+                double value = resultSet.getDouble(i++);
+                long weight = resultSet.getLong(i++);
+                writer.add(seriesKey, captureTime, new double[] {value, weight});
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+
     private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
 
         private final @Untainted String selectClause;
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.embedded.repo.AggregateDao.TruncatedQueryText;
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.common2.repo.util.RollupLevelService;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// folds each stored (rollup level 0) aggregate interval directly into in-memory partial rollups
+// for each of the higher rollup levels, so that rolling up never needs to re-read the source rows
+// (along with their queries, service calls and profiles from the capped database)
+//
+// a partial rollup is persisted once its interval is complete, followed by the rollup level's
+// watermark (see AggregateDao.updateLastRollupTime()), after a JVM restart the partial rollups
+// are rebuilt from the rows after the watermarks (see AggregateDao.recoverPartialRollups())
+//
+// the memory held for each rollup level is bounded by the estimated payload of its aggregates,
+// which is the sum over the aggregates of the largest serialized aggregate (including queries,
+// service calls and profiles) merged into each, since a merged aggregate holds roughly the union of
+// what has been merged into it, and the number of queries and service calls it holds is capped
+// (see AdvancedConfig maxQueryAggregates and maxServiceCallAggregates)
+//
+// the default bound of 16 MB per rollup level covers many thousands of transaction names with
+// typical payloads, the heap retained by the (deserialized) aggregates is a small multiple of the
+// estimated payload, and is held for each rollup level above 0, so the worst case with the default
+// rollup configs is a small multiple of 48 MB
+//
+// once the bound is exceeded the partial rollup is discarded and the interval is rolled up from
+// the lower rollup level rows instead, same as when incremental rollup is not enabled
+class IncrementalRollup {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.embedded.incrementalRollup");
+
+    private static final long MAX_PAYLOAD_BYTES_PER_ROLLUP_LEVEL =
+            Integer.getInteger("glowroot.embedded.incrementalRollup.maxPayloadMb", 16) * 1024L
+                    * 1024;
+
+    private final AggregateDao aggregateDao;
+    private final DataSource dataSource;
+    private final List<CappedDatabase> rollupCappedDatabases;
+    private final ConfigRepositoryImpl configRepository;
+    private final List<RollupConfig> rollupConfigs;
+    // shared with AggregateDao, index is rollup level
+    private final AtomicLongArray lastRollupTimes;
+
+    // index is rollup level, index 0 is not used
+    private final PartialRollup[] partialRollups;
+
+    private final ScratchBuffer scratchBuffer = new ScratchBuffer();
+
+    IncrementalRollup(AggregateDao aggregateDao, DataSource dataSource,
+            List<CappedDatabase> rollupCappedDatabases, ConfigRepositoryImpl configRepository,
+            AtomicLongArray lastRollupTimes) {
+        this.aggregateDao = aggregateDao;
+        this.dataSource = dataSource;
+        this.rollupCappedDatabases = rollupCappedDatabases;
+        this.configRepository = configRepository;
+        rollupConfigs = configRepository.getRollupConfigs();
+        this.lastRollupTimes = lastRollupTimes;
+        partialRollups = new PartialRollup[rollupConfigs.size()];
+        for (int i = 1; i < partialRollups.length; i++) {
+            partialRollups[i] = new PartialRollup();
+        }
+    }
+
+    synchronized void add(long captureTime, String transactionType,
+            @Nullable String transactionName, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) throws Exception {
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            if (captureTime <= lastRollupTimes.get(i)) {
+                // same as non-incremental rollup, data that arrives for an interval that has
+                // already been rolled up is not included in the rollup
+                continue;
+            }
+            PartialAggregate partialAggregate =
+                    getPartialAggregate(i, captureTime, transactionType, transactionName);
+            if (partialAggregate != null) {
+                merge(partialAggregate.aggregate, aggregate, truncatedQueryTexts);
+                updatePayloadBytes(partialAggregate, aggregate.getSerializedSize());
+            }
+        }
+    }
+
+    // persists partial rollups whose intervals are complete once captureTime has been stored
+    synchronized void persistCompleted(long captureTime) throws Exception {
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
+                    rollupConfigs.get(i).intervalMillis());
+            PartialRollup partialRollup = partialRollups[i];
+            if (partialRollup.rollupTime != 0 && partialRollup.rollupTime <= safeRollupTime) {
+                persist(i);
+            }
+            if (safeRollupTime > lastRollupTimes.get(i)) {
+                AggregateDao.updateLastRollupTime(dataSource, lastRollupTimes, i,
+                        safeRollupTime);
+            }
+        }
+    }
+
+    // returns the partial rollup aggregate for the interval containing captureTime, first
+    // persisting the rollup level's current partial rollup if it is for an earlier interval
+    //
+    // returns null if the partial rollup has exceeded MAX_PAYLOAD_BYTES_PER_ROLLUP_LEVEL
+    synchronized @Nullable PartialAggregate getPartialAggregate(int rollupLevel, long captureTime,
+            String transactionType, @Nullable String transactionName) throws Exception {
+        long intervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+        long rollupTime = (long) Math.ceil(captureTime / (double) intervalMillis) * intervalMillis;
+        PartialRollup partialRollup = partialRollups[rollupLevel];
+        if (rollupTime > partialRollup.rollupTime) {
+            if (partialRollup.rollupTime != 0) {
+                persist(rollupLevel);
+                partialRollup = partialRollups[rollupLevel];
+            }
+            partialRollup.rollupTime = rollupTime;
+        }
+        if (partialRollup.overflowed) {
+            return null;
+        }
+        // (unexpected) out of order capture times are merged into the current partial rollup
+        Map<String, PartialAggregate> aggregates;
+        String key;
+        if (transactionName == null) {
+            aggregates = partialRollup.overallAggregates;
+            key = transactionType;
+        } else {
+            aggregates = partialRollup.transactionAggregates.get(transactionType);
+            if (aggregates == null) {
+                aggregates = Maps.newHashMap();
+                partialRollup.transactionAggregates.put(transactionType, aggregates);
+            }
+            key = transactionName;
+        }
+        PartialAggregate aggregate = aggregates.get(key);
+        if (aggregate == null) {
+            aggregate = new PartialAggregate(partialRollup,
+                    new MutableAggregate(AggregateDao.getMaxQueryAggregates(configRepository),
+                            AggregateDao.getMaxServiceCallAggregates(configRepository)));
+            aggregates.put(key, aggregate);
+        }
+        return aggregate;
+    }
+
+    // called after merging payloadBytes (serialized size) into the partial aggregate
+    synchronized void updatePayloadBytes(PartialAggregate partialAggregate, int payloadBytes) {
+        if (payloadBytes <= partialAggregate.payloadBytes) {
+            return;
+        }
+        PartialRollup partialRollup = partialAggregate.partialRollup;
+        partialRollup.payloadBytes += payloadBytes - partialAggregate.payloadBytes;
+        partialAggregate.payloadBytes = payloadBytes;
+        if (partialRollup.payloadBytes > MAX_PAYLOAD_BYTES_PER_ROLLUP_LEVEL
+                && !partialRollup.overflowed) {
+            // release the memory, the interval will be rolled up from the lower rollup level
+            partialRollup.overallAggregates.clear();
+            partialRollup.transactionAggregates.clear();
+            partialRollup.overflowed = true;
+        }
+    }
+
+    synchronized void clear() {
+        for (int i = 1; i < partialRollups.length; i++) {
+            partialRollups[i] = new PartialRollup();
+        }
+    }
+
+    private void persist(int rollupLevel) throws Exception {
+        PartialRollup partialRollup = partialRollups[rollupLevel];
+        long rollupTime = partialRollup.rollupTime;
+        if (partialRollup.overflowed) {
+            long intervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+            aggregateDao.rollup(rollupTime - intervalMillis, rollupTime, intervalMillis,
+                    rollupLevel, rollupLevel - 1);
+        } else {
+            persistAggregates(rollupLevel, partialRollup);
+        }
+        // JVM termination before the watermark is updated will cause the interval to be rebuilt
+        // and persisted again after the next startup, which is ok since any prior rollup rows for
+        // the same capture time are deleted before inserting (see AggregateDao.deleteRollupRows())
+        if (rollupTime > lastRollupTimes.get(rollupLevel)) {
+            AggregateDao.updateLastRollupTime(dataSource, lastRollupTimes, rollupLevel,
+                    rollupTime);
+        }
+        partialRollups[rollupLevel] = new PartialRollup();
+    }
+
+    private void persistAggregates(int rollupLevel, PartialRollup partialRollup)
+            throws Exception {
+        long rollupTime = partialRollup.rollupTime;
+        AggregateDao.deleteRollupRows(dataSource, rollupLevel, rollupTime, null);
+        CappedDatabase cappedDatabase = rollupCappedDatabases.get(rollupLevel);
+        for (Map.Entry<String, PartialAggregate> entry : partialRollup.overallAggregates
+                .entrySet()) {
+            dataSource.update(new AggregateInsert(entry.getKey(), null, rollupTime,
+                    entry.getValue().aggregate, rollupLevel, cappedDatabase, scratchBuffer));
+        }
+        for (Map.Entry<String, Map<String, PartialAggregate>> outerEntry : partialRollup
+                .transactionAggregates.entrySet()) {
+            for (Map.Entry<String, PartialAggregate> entry : outerEntry.getValue().entrySet()) {
+                dataSource.update(new AggregateInsert(outerEntry.getKey(), entry.getKey(),
+                        rollupTime, entry.getValue().aggregate, rollupLevel, cappedDatabase,
+                        scratchBuffer));
+            }
+        }
+    }
+
+    private static void merge(MutableAggregate mergedAggregate, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        Aggregate.ThreadStats mainThreadStats = aggregate.getMainThreadStats();
+        mergedAggregate.addMainThreadTotalCpuNanos(mainThreadStats.hasTotalCpuNanos()
+                ? mainThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalBlockedNanos(mainThreadStats.hasTotalBlockedNanos()
+                ? mainThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalWaitedNanos(mainThreadStats.hasTotalWaitedNanos()
+                ? mainThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalAllocatedBytes(mainThreadStats.hasTotalAllocatedBytes()
+                ? mainThreadStats.getTotalAllocatedBytes().getValue() : null);
+        Aggregate.ThreadStats auxThreadStats = aggregate.getAuxThreadStats();
+        mergedAggregate.addAuxThreadTotalCpuNanos(auxThreadStats.hasTotalCpuNanos()
+                ? auxThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalBlockedNanos(auxThreadStats.hasTotalBlockedNanos()
+                ? auxThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalWaitedNanos(auxThreadStats.hasTotalWaitedNanos()
+                ? auxThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalAllocatedBytes(auxThreadStats.hasTotalAllocatedBytes()
+                ? auxThreadStats.getTotalAllocatedBytes().getValue() : null);
+        mergedAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.Query query : aggregate.getQueryList()) {
+            TruncatedQueryText truncatedQueryText =
+                    truncatedQueryTexts.get(query.getSharedQueryTextIndex());
+            mergedAggregate.mergeQuery(query.getType(), truncatedQueryText.truncatedText(),
+                    truncatedQueryText.fullTextSha1(), query.getTotalDurationNanos(),
+                    query.getExecutionCount(), query.hasTotalRows(),
+                    query.getTotalRows().getValue());
+        }
+        for (Aggregate.ServiceCall serviceCall : aggregate.getServiceCallList()) {
+            mergedAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                    serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mergedAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mergedAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    private static class PartialRollup {
+
+        // 0 if there is no data yet for the current interval
+        private long rollupTime;
+
+        private final Map<String, PartialAggregate> overallAggregates = Maps.newHashMap();
+        // transaction type -> transaction name -> aggregate
+        private final Map<String, Map<String, PartialAggregate>> transactionAggregates =
+                Maps.newHashMap();
+        // sum of the aggregates' payloadBytes
+        private long payloadBytes;
+        // true once payloadBytes has exceeded MAX_PAYLOAD_BYTES_PER_ROLLUP_LEVEL
+        private boolean overflowed;
+    }
+
+    static class PartialAggregate {
+
+        private final PartialRollup partialRollup;
+        private final MutableAggregate aggregate;
+        // largest serialized size merged into the aggregate so far
+        private int payloadBytes;
+
+        private PartialAggregate(PartialRollup partialRollup, MutableAggregate aggregate) {
+            this.partialRollup = partialRollup;
+            this.aggregate = aggregate;
+        }
+
+        MutableAggregate aggregate() {
+            return aggregate;
+        }
+    }
+}
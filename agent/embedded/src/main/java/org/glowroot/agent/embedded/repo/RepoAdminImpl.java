@@ -23,6 +23,7 @@ import java.util.concurrent.Callable;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
@@ -48,18 +49,22 @@ class RepoAdminImpl implements RepoAdmin {
     private final EnvironmentDao environmentDao;
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
+    private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
+    private final TraceDao traceDao;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
+    private final @Nullable TimeSeriesStore timeSeriesStore;
     private final Clock clock;
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             CappedDatabase traceCappedDatabase, ConfigRepositoryImpl configRepository,
             EnvironmentDao environmentDao, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
-            GaugeValueDao gaugeValueDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            Clock clock) {
+            AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, TraceDao traceDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            TraceAttributeNameDao traceAttributeNameDao,
+            @Nullable TimeSeriesStore timeSeriesStore, Clock clock) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
@@ -67,10 +72,13 @@ class RepoAdminImpl implements RepoAdmin {
         this.environmentDao = environmentDao;
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
+        this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
+        this.traceDao = traceDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.traceAttributeNameDao = traceAttributeNameDao;
+        this.timeSeriesStore = timeSeriesStore;
         this.clock = clock;
     }
 
@@ -88,10 +96,15 @@ class RepoAdminImpl implements RepoAdmin {
         environmentDao.reinitAfterDeletingDatabase();
         gaugeIdDao.invalidateCache();
         gaugeNameDao.invalidateCache();
+        aggregateDao.reinitAfterDeletingDatabase();
         gaugeValueDao.reinitAfterDeletingDatabase();
+        traceDao.reinitAfterDeletingDatabase();
         transactionTypeDao.invalidateCache();
         fullQueryTextDao.invalidateCache();
         traceAttributeNameDao.invalidateCache();
+        if (timeSeriesStore != null) {
+            timeSeriesStore.reinitAfterDeletingDatabase();
+        }
         if (environment != null) {
             environmentDao.store(environment);
         }
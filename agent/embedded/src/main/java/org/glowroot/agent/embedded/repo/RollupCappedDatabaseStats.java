@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.Map;
+
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
@@ -44,4 +46,9 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     public CappedDatabaseStats getAggregateProfiles() {
         return cappedDatabase.getStats(AGGREGATE_PROFILES);
     }
+
+    @Override
+    public Map<String, CappedDatabaseStats> getCodecs() {
+        return cappedDatabase.getStatsByCodec();
+    }
 }
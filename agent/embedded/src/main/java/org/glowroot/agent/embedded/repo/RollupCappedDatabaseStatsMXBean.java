@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.Map;
+
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
 public interface RollupCappedDatabaseStatsMXBean {
@@ -22,4 +24,7 @@ public interface RollupCappedDatabaseStatsMXBean {
     CappedDatabaseStats getAggregateQueries();
     CappedDatabaseStats getAggregateServiceCalls();
     CappedDatabaseStats getAggregateProfiles();
+
+    // keyed by codec name
+    Map<String, CappedDatabaseStats> getCodecs();
 }
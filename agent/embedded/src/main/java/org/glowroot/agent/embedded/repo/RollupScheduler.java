@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.util.ThreadFactories;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// runs the independent tasks of a single rollup level (e.g. one per transaction type) in parallel
+// and waits for all of them (fork/join), so callers still roll up one level at a time since each
+// level is rolled up from the level below it
+//
+// the number of threads is capped at half of the available processors so that rolling up never
+// competes with application threads, and the threads time out when idle between rollups
+//
+// this is only enabled together with the read connection pool (-Dglowroot.h2.readConnections),
+// since otherwise every query and update of the rollup tasks is serialized on the single
+// connection's lock, so the tasks would just take turns while adding thread overhead, with read
+// connections the reading and merging of the rows being rolled up can run in parallel and only
+// the writes are serialized
+class RollupScheduler {
+
+    private static final int PARALLELISM =
+            Integer.getInteger("glowroot.embedded.rollupParallelism", 1);
+
+    private final ThreadPoolExecutor executor;
+
+    static @Nullable RollupScheduler create(DataSource dataSource) {
+        if (!dataSource.hasReadConnections()) {
+            return null;
+        }
+        int parallelism =
+                Math.min(PARALLELISM, Runtime.getRuntime().availableProcessors() / 2);
+        if (parallelism <= 1) {
+            return null;
+        }
+        return new RollupScheduler(parallelism);
+    }
+
+    @VisibleForTesting
+    RollupScheduler(int parallelism) {
+        executor = new ThreadPoolExecutor(parallelism, parallelism, 60, SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                ThreadFactories.create("Glowroot-Rollup-%d"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    void invokeAll(List<? extends Callable</*@Nullable*/ Void>> tasks) throws Exception {
+        if (tasks.size() == 1) {
+            tasks.get(0).call();
+            return;
+        }
+        List<Future</*@Nullable*/ Void>> futures = executor.invokeAll(tasks);
+        for (Future</*@Nullable*/ Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, Exception.class);
+                throw e;
+            }
+        }
+    }
+
+    void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+}
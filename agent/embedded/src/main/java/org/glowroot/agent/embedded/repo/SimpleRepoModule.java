@@ -66,6 +66,7 @@ public class SimpleRepoModule {
     private final AlertingService alertingService;
     private final HttpClient httpClient;
     private final @Nullable ReaperRunnable reaperRunnable;
+    private final @Nullable RollupScheduler rollupScheduler;
 
     public SimpleRepoModule(DataSource dataSource, File dataDir, Clock clock, Ticker ticker,
             ConfigRepositoryImpl configRepository,
@@ -98,14 +99,20 @@ public class SimpleRepoModule {
         transactionTypeDao = new TransactionTypeDao(dataSource);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(dataSource);
+        TimeSeriesStore timeSeriesStore = null;
+        if (TimeSeriesStore.ENABLED) {
+            timeSeriesStore = new TimeSeriesStore(dataSource, new File(dataDir, "time-series"));
+        }
+        rollupScheduler = RollupScheduler.create(dataSource);
         aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases, configRepository,
-                transactionTypeDao, fullQueryTextDao);
+                transactionTypeDao, fullQueryTextDao, timeSeriesStore, rollupScheduler);
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao,
                 fullQueryTextDao, traceAttributeNameDao);
         GaugeIdDao gaugeIdDao = new GaugeIdDao(dataSource);
         GaugeNameDao gaugeNameDao = new GaugeNameDao(dataSource);
-        gaugeValueDao = new GaugeValueDao(dataSource, gaugeIdDao, gaugeNameDao, clock);
+        gaugeValueDao =
+                new GaugeValueDao(dataSource, gaugeIdDao, gaugeNameDao, clock, timeSeriesStore);
         incidentDao = new IncidentDao(dataSource);
 
         if (initialSchemaVersion == null) {
@@ -114,8 +121,9 @@ public class SimpleRepoModule {
         }
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, environmentDao, gaugeIdDao, gaugeNameDao, gaugeValueDao,
-                transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
+                configRepository, environmentDao, gaugeIdDao, gaugeNameDao, aggregateDao,
+                gaugeValueDao, traceDao, transactionTypeDao, fullQueryTextDao,
+                traceAttributeNameDao, timeSeriesStore, clock);
 
         httpClient = new HttpClient(configRepository);
 
@@ -199,6 +207,9 @@ public class SimpleRepoModule {
             reaperRunnable.cancel();
         }
         alertingService.close();
+        if (rollupScheduler != null) {
+            rollupScheduler.close();
+        }
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
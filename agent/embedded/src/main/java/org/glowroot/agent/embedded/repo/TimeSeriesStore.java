@@ -0,0 +1,359 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.ImmutableColumn;
+import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimeSeriesSegment;
+import org.glowroot.agent.embedded.util.TimeSeriesSegment.Series;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// columnar segments (see TimeSeriesSegment) of the data behind the overview, throughput and gauge
+// charts, so that chart queries over long time ranges read a handful of compact segment files
+// instead of deserializing thousands of h2 rows
+//
+// h2 is still the system of record (rollups, summaries and percentiles are computed from the h2
+// rows) and also holds the segment metadata, blocks of time are only sealed into a segment once
+// their rows can no longer change, and chart queries read segments up to the sealed capture time
+// and h2 after that
+class TimeSeriesStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeSeriesStore.class);
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.embedded.timeSeriesSegments");
+
+    // number of intervals (at the rollup level's interval) covered by each segment
+    private static final int INTERVALS_PER_SEGMENT =
+            Integer.getInteger("glowroot.embedded.timeSeriesSegments.intervalsPerSegment", 240);
+
+    // this bounds the work done by each call to seal(), e.g. when catching up on existing data
+    // after first enabling segments
+    private static final int MAX_SEGMENTS_PER_SEAL = 4;
+
+    private static final String FILE_SUFFIX = ".segment";
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("kind", ColumnType.VARCHAR),
+            ImmutableColumn.of("rollup_level", ColumnType.BIGINT),
+            // from_capture_time is exclusive and capture_time is inclusive
+            ImmutableColumn.of("from_capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("file_name", ColumnType.VARCHAR)); // nullable
+
+    private final DataSource dataSource;
+    private final File directory;
+    private final int intervalsPerSegment;
+
+    // key is kind + ":" + rollup level
+    private final ConcurrentMap<String, Long> sealedCaptureTimes = Maps.newConcurrentMap();
+
+    private final Object lock = new Object();
+
+    TimeSeriesStore(DataSource dataSource, File directory) throws Exception {
+        this(dataSource, directory, INTERVALS_PER_SEGMENT);
+    }
+
+    @VisibleForTesting
+    TimeSeriesStore(DataSource dataSource, File directory, int intervalsPerSegment)
+            throws Exception {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory.getAbsolutePath());
+        }
+        this.dataSource = dataSource;
+        this.directory = directory;
+        this.intervalsPerSegment = intervalsPerSegment;
+        dataSource.syncTable("time_series_segment", columns);
+        dataSource.syncIndexes("time_series_segment", ImmutableList.<Index>of(
+                ImmutableIndex.of("time_series_segment_idx",
+                        ImmutableList.of("kind", "rollup_level", "capture_time"))));
+        deleteUnreferencedFiles();
+    }
+
+    long getSegmentMillis(long intervalMillis) {
+        return intervalMillis * intervalsPerSegment;
+    }
+
+    // returns 0 if nothing has been sealed
+    long getSealedCaptureTime(SeriesSource source) throws Exception {
+        String key = getKey(source.getKind(), source.getRollupLevel());
+        Long sealedCaptureTime = sealedCaptureTimes.get(key);
+        if (sealedCaptureTime != null) {
+            return sealedCaptureTime;
+        }
+        synchronized (lock) {
+            return getSealedCaptureTimeUnderLock(key, source.getKind(), source.getRollupLevel());
+        }
+    }
+
+    // seals complete blocks of time (segmentMillis each) up to and including safeCaptureTime,
+    // rows must not be added or changed at or before safeCaptureTime after this is called
+    void seal(SeriesSource source, long segmentMillis, long safeCaptureTime) throws Exception {
+        String kind = source.getKind();
+        int rollupLevel = source.getRollupLevel();
+        String key = getKey(kind, rollupLevel);
+        synchronized (lock) {
+            for (int i = 0; i < MAX_SEGMENTS_PER_SEAL; i++) {
+                long sealedCaptureTime = getSealedCaptureTimeUnderLock(key, kind, rollupLevel);
+                long nextCaptureTime = source.readNextCaptureTime(sealedCaptureTime);
+                if (nextCaptureTime == 0) {
+                    return;
+                }
+                // skip directly to the block containing the next row, so that gaps in the data
+                // (e.g. while the monitored jvm was not running) do not produce empty segments
+                long toCaptureTime = (long) Math.ceil(nextCaptureTime / (double) segmentMillis)
+                        * segmentMillis;
+                if (toCaptureTime > safeCaptureTime) {
+                    return;
+                }
+                long fromCaptureTime = Math.max(sealedCaptureTime, toCaptureTime - segmentMillis);
+                String fileName = kind + "-" + rollupLevel + "-" + toCaptureTime + FILE_SUFFIX;
+                TimeSeriesSegment.Writer writer =
+                        new TimeSeriesSegment.Writer(new File(directory, fileName),
+                                source.getDoubleColumnCount(), source.getBytesColumnCount());
+                boolean written;
+                try {
+                    source.writeSeries(fromCaptureTime, toCaptureTime, writer);
+                    written = writer.close();
+                } catch (Exception e) {
+                    writer.abort();
+                    throw e;
+                }
+                // JVM termination after the file is written but before the metadata row is
+                // inserted will leave an unreferenced file, which is deleted on next startup
+                dataSource.update("insert into time_series_segment (kind, rollup_level,"
+                        + " from_capture_time, capture_time, file_name) values (?, ?, ?, ?, ?)",
+                        kind, rollupLevel, fromCaptureTime, toCaptureTime,
+                        written ? fileName : null);
+                sealedCaptureTimes.put(key, toCaptureTime);
+            }
+        }
+    }
+
+    // from and to are both INCLUSIVE, and to must not be greater than the sealed capture time
+    void read(SeriesSource source, String seriesKey, long from, long to, RowVisitor visitor)
+            throws Exception {
+        List<String> fileNames = dataSource.query(
+                new SegmentFileNameQuery(source.getKind(), source.getRollupLevel(), from, to));
+        for (String fileName : fileNames) {
+            Series series;
+            try {
+                series = TimeSeriesSegment.read(new File(directory, fileName), seriesKey,
+                        source.getDoubleColumnCount(), source.getBytesColumnCount());
+            } catch (FileNotFoundException e) {
+                // segment was expired concurrently by deleteBefore()
+                logger.debug(e.getMessage(), e);
+                continue;
+            }
+            if (series == null) {
+                continue;
+            }
+            for (int i = 0; i < series.size(); i++) {
+                long captureTime = series.getCaptureTime(i);
+                if (captureTime >= from && captureTime <= to) {
+                    visitor.visit(series, i);
+                }
+            }
+        }
+    }
+
+    // only deletes segments that are entirely before captureTime
+    void deleteBefore(String kind, int rollupLevel, long captureTime) throws Exception {
+        synchronized (lock) {
+            List<String> fileNames =
+                    dataSource.query(new ExpiredFileNameQuery(kind, rollupLevel, captureTime));
+            dataSource.update("delete from time_series_segment where kind = ? and rollup_level = ?"
+                    + " and capture_time < ?", kind, rollupLevel, captureTime);
+            // sealed capture time is re-read since it goes back to zero if all segments for the
+            // kind and rollup level were deleted
+            sealedCaptureTimes.remove(getKey(kind, rollupLevel));
+            for (String fileName : fileNames) {
+                deleteFile(new File(directory, fileName));
+            }
+        }
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (lock) {
+            sealedCaptureTimes.clear();
+            deleteUnreferencedFiles();
+        }
+    }
+
+    private long getSealedCaptureTimeUnderLock(String key, String kind, int rollupLevel)
+            throws SQLException {
+        Long sealedCaptureTime = sealedCaptureTimes.get(key);
+        if (sealedCaptureTime == null) {
+            sealedCaptureTime = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
+                    + " from time_series_segment where kind = ? and rollup_level = ?", kind,
+                    rollupLevel);
+            sealedCaptureTimes.put(key, sealedCaptureTime);
+        }
+        return sealedCaptureTime;
+    }
+
+    private void deleteUnreferencedFiles() throws Exception {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list directory: " + directory.getAbsolutePath());
+        }
+        Set<String> fileNames = Sets.newHashSet(dataSource.query(new AllFileNamesQuery()));
+        for (File file : files) {
+            if (!fileNames.contains(file.getName())) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static String getKey(String kind, int rollupLevel) {
+        return kind + ":" + rollupLevel;
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("could not delete file: {}", file.getAbsolutePath());
+        }
+    }
+
+    interface SeriesSource {
+
+        String getKind();
+
+        int getRollupLevel();
+
+        int getDoubleColumnCount();
+
+        int getBytesColumnCount();
+
+        // returns 0 if there are no rows after captureTime
+        long readNextCaptureTime(long captureTime) throws Exception;
+
+        // from is exclusive and to is inclusive, rows must be written ordered by series key and
+        // then by capture time
+        void writeSeries(long from, long to, TimeSeriesSegment.Writer writer) throws Exception;
+    }
+
+    interface RowVisitor {
+        void visit(Series series, int row) throws Exception;
+    }
+
+    private static class SegmentFileNameQuery implements JdbcRowQuery<String> {
+
+        private final String kind;
+        private final int rollupLevel;
+        private final long from;
+        private final long to;
+
+        private SegmentFileNameQuery(String kind, int rollupLevel, long from, long to) {
+            this.kind = kind;
+            this.rollupLevel = rollupLevel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select file_name from time_series_segment where kind = ? and rollup_level = ?"
+                    + " and capture_time >= ? and from_capture_time < ? and file_name is not null"
+                    + " order by capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setString(i++, kind);
+            preparedStatement.setLong(i++, rollupLevel);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+        }
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getString(1));
+        }
+    }
+
+    private static class ExpiredFileNameQuery implements JdbcRowQuery<String> {
+
+        private final String kind;
+        private final int rollupLevel;
+        private final long captureTime;
+
+        private ExpiredFileNameQuery(String kind, int rollupLevel, long captureTime) {
+            this.kind = kind;
+            this.rollupLevel = rollupLevel;
+            this.captureTime = captureTime;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select file_name from time_series_segment where kind = ? and rollup_level = ?"
+                    + " and capture_time < ? and file_name is not null";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setString(i++, kind);
+            preparedStatement.setLong(i++, rollupLevel);
+            preparedStatement.setLong(i++, captureTime);
+        }
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getString(1));
+        }
+    }
+
+    private static class AllFileNamesQuery implements JdbcRowQuery<String> {
+
+        @Override
+        public @Untainted String getSql() {
+            return "select file_name from time_series_segment where file_name is not null";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) {}
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getString(1));
+        }
+    }
+}
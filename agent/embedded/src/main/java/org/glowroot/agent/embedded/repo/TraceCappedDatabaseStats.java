@@ -15,12 +15,15 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.Map;
+
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
 public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean {
 
     static final String TRACE_ENTRIES = "trace entries";
+    static final String TRACE_ENCODED_ENTRIES = "trace encoded entries";
     static final String TRACE_QUERIES = "trace queries";
     static final String TRACE_SHARED_QUERY_TEXTS = "trace shared query texts";
     static final String TRACE_PROFILES = "trace profiles";
@@ -36,6 +39,11 @@ public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean
         return cappedDatabase.getStats(TRACE_ENTRIES);
     }
 
+    @Override
+    public CappedDatabaseStats getTraceEncodedEntries() {
+        return cappedDatabase.getStats(TRACE_ENCODED_ENTRIES);
+    }
+
     @Override
     public CappedDatabaseStats getTraceQueries() {
         return cappedDatabase.getStats(TRACE_QUERIES);
@@ -50,4 +58,9 @@ public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean
     public CappedDatabaseStats getTraceProfiles() {
         return cappedDatabase.getStats(TRACE_PROFILES);
     }
+
+    @Override
+    public Map<String, CappedDatabaseStats> getCodecs() {
+        return cappedDatabase.getStatsByCodec();
+    }
 }
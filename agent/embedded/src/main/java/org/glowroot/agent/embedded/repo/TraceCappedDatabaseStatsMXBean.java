@@ -15,12 +15,18 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.Map;
+
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
 public interface TraceCappedDatabaseStatsMXBean {
 
     CappedDatabaseStats getTraceEntries();
+    CappedDatabaseStats getTraceEncodedEntries();
     CappedDatabaseStats getTraceQueries();
     CappedDatabaseStats getTraceSharedQueryTexts();
     CappedDatabaseStats getTraceProfiles();
+
+    // keyed by codec name
+    Map<String, CappedDatabaseStats> getCodecs();
 }
@@ -20,9 +20,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -34,6 +37,8 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.embedded.repo.TracePointQueryBuilder.ParameterizedSql;
+import org.glowroot.agent.embedded.repo.TraceSearchIndex.SearchRange;
+import org.glowroot.agent.embedded.repo.model.Stored;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
@@ -62,6 +67,7 @@ import org.glowroot.common2.repo.ImmutableErrorMessageCount;
 import org.glowroot.common2.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common2.repo.ImmutableErrorMessageResult;
 import org.glowroot.common2.repo.ImmutableHeaderPlus;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
@@ -92,6 +98,9 @@ public class TraceDao implements TraceRepository {
             ImmutableColumn.of("error_message", ColumnType.VARCHAR),
             ImmutableColumn.of("header", ColumnType.VARBINARY), // protobuf
             ImmutableColumn.of("entries_capped_id", ColumnType.BIGINT),
+            // entries are stored under either entries_capped_id or encoded_entries_capped_id (see
+            // TraceEntryEncoding)
+            ImmutableColumn.of("encoded_entries_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("queries_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("shared_query_texts_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("main_thread_profile_capped_id", ColumnType.BIGINT),
@@ -139,9 +148,21 @@ public class TraceDao implements TraceRepository {
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
+    private final @Nullable TraceSearchIndex traceSearchIndex;
+    private final boolean traceEntryEncoding;
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
             TraceAttributeNameDao traceAttributeNameDao) throws Exception {
+        this(dataSource, traceCappedDatabase, transactionTypeDao, fullQueryTextDao,
+                traceAttributeNameDao, TraceSearchIndex.ENABLED, TraceEntryEncoding.ENABLED);
+    }
+
+    @VisibleForTesting
+    TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            TraceAttributeNameDao traceAttributeNameDao, boolean traceSearchIndex,
+            boolean traceEntryEncoding) throws Exception {
         this.dataSource = dataSource;
         this.traceCappedDatabase = traceCappedDatabase;
         this.traceAttributeNameDao = traceAttributeNameDao;
@@ -163,10 +184,16 @@ public class TraceDao implements TraceRepository {
             dataSource.execute("alter table trace add column queries_capped_id bigint");
             startupLogger.info("glowroot schema upgrade complete");
         }
+        if (dataSource.tableExists("trace")
+                && !dataSource.columnExists("trace", "encoded_entries_capped_id")) {
+            dataSource.execute("alter table trace add column encoded_entries_capped_id bigint");
+        }
         dataSource.syncTable("trace", traceColumns);
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        this.traceSearchIndex = traceSearchIndex ? new TraceSearchIndex(dataSource) : null;
+        this.traceEntryEncoding = traceEntryEncoding;
     }
 
     public void store(TraceReader traceReader) throws Exception {
@@ -193,6 +220,9 @@ public class TraceDao implements TraceRepository {
         }
         transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
                 header.getCaptureTime());
+        if (traceSearchIndex != null) {
+            traceSearchIndex.add(header);
+        }
     }
 
     @Override
@@ -311,10 +341,22 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        if (traceSearchIndex != null) {
+            traceSearchIndex.deleteBefore(captureTime);
+        }
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        if (traceSearchIndex != null) {
+            traceSearchIndex.reinitAfterDeletingDatabase();
+        }
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
+        if (traceSearchIndex != null) {
+            return readPointsUsingIndex(traceSearchIndex, traceKind, query, filter, limit);
+        }
         ParameterizedSql parameterizedSql =
                 new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
         List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
@@ -322,6 +364,50 @@ public class TraceDao implements TraceRepository {
         return Result.create(points, limit);
     }
 
+    // only searches the time ranges that the index says can contain matching traces, starting
+    // with the ranges that contain the slowest traces, and stopping once the remaining ranges
+    // cannot contain any traces slower than the slowest traces found so far
+    private Result<TracePoint> readPointsUsingIndex(TraceSearchIndex traceSearchIndex,
+            TraceKind traceKind, TraceQuery query, TracePointFilter filter, int limit)
+            throws Exception {
+        List<SearchRange> searchRanges = traceSearchIndex.getSearchRanges(query, filter);
+        List<TracePoint> points = Lists.newArrayList();
+        for (SearchRange searchRange : searchRanges) {
+            if (limit != 0 && points.size() > limit
+                    && searchRange.maxDurationNanos() <= points.get(limit).durationNanos()) {
+                break;
+            }
+            TraceQuery rangeQuery = ImmutableTraceQuery.copyOf(query)
+                    .withFrom(searchRange.from())
+                    .withTo(searchRange.to());
+            ParameterizedSql parameterizedSql =
+                    new TracePointQueryBuilder(traceKind, rangeQuery, filter, limit)
+                            .getParameterizedSql();
+            points.addAll(dataSource.query(new TracePointQuery(parameterizedSql)));
+            if (limit != 0) {
+                Collections.sort(points, new Comparator<TracePoint>() {
+                    @Override
+                    public int compare(TracePoint left, TracePoint right) {
+                        return compareDurations(right, left);
+                    }
+                });
+                if (points.size() > limit + 1) {
+                    points = Lists.newArrayList(points.subList(0, limit + 1));
+                }
+            }
+        }
+        if (limit == 0) {
+            Collections.sort(points, new Comparator<TracePoint>() {
+                @Override
+                public int compare(TracePoint left, TracePoint right) {
+                    return compareDurations(left, right);
+                }
+            });
+        }
+        // one extra record over the limit is fetched above to identify if the limit was hit
+        return Result.create(points, limit);
+    }
+
     private List<Trace.SharedQueryText> getSharedQueryTextsForExport(
             List<Trace.SharedQueryText> sharedQueryTexts) throws SQLException {
         List<Trace.SharedQueryText> sharedQueryTextsForExport = Lists.newArrayList();
@@ -347,6 +433,25 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTextsForExport;
     }
 
+    private List<Trace.Entry> readEntries(@Nullable Long entriesCappedId,
+            @Nullable Long encodedEntriesCappedId) throws IOException {
+        if (entriesCappedId != null) {
+            return traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
+        }
+        if (encodedEntriesCappedId != null) {
+            return TraceEntryEncoding.decode(traceCappedDatabase
+                    .readMessages(encodedEntriesCappedId, Stored.TraceEntry.parser()));
+        }
+        return ImmutableList.of();
+    }
+
+    private static int compareDurations(TracePoint left, TracePoint right) {
+        if (left.durationNanos() == right.durationNanos()) {
+            return 0;
+        }
+        return left.durationNanos() < right.durationNanos() ? -1 : 1;
+    }
+
     private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
             ErrorMessageFilter filter) {
         sql.append(" and transaction_type = ?");
@@ -445,6 +550,7 @@ public class TraceDao implements TraceRepository {
         private final String traceId;
         private final Trace.Header header;
         private final @Nullable Long entriesCappedId;
+        private final @Nullable Long encodedEntriesCappedId;
         private final @Nullable Long queriesCappedId;
         private final @Nullable Long sharedQueryTextsCappedId;
         private final @Nullable Long mainThreadProfileId;
@@ -457,9 +563,16 @@ public class TraceDao implements TraceRepository {
             List<Trace.Entry> entries = trace.getEntryList();
             if (entries.isEmpty()) {
                 entriesCappedId = null;
+                encodedEntriesCappedId = null;
+            } else if (traceEntryEncoding) {
+                entriesCappedId = null;
+                encodedEntriesCappedId = traceCappedDatabase.writeMessages(
+                        TraceEntryEncoding.encode(entries),
+                        TraceCappedDatabaseStats.TRACE_ENCODED_ENTRIES);
             } else {
                 entriesCappedId = traceCappedDatabase.writeMessages(entries,
                         TraceCappedDatabaseStats.TRACE_ENTRIES);
+                encodedEntriesCappedId = null;
             }
             List<Aggregate.Query> queries = trace.getQueryList();
             if (queries.isEmpty()) {
@@ -493,10 +606,10 @@ public class TraceDao implements TraceRepository {
         public @Untainted String getSql() {
             return "merge into trace (id, partial, slow, error, start_time, capture_time,"
                     + " duration_nanos, transaction_type, transaction_name, headline, user,"
-                    + " error_message, header, entries_capped_id, queries_capped_id,"
-                    + " shared_query_texts_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id) key (id) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
-                    + " ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                    + " error_message, header, entries_capped_id, encoded_entries_capped_id,"
+                    + " queries_capped_id, shared_query_texts_capped_id,"
+                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id) key (id)"
+                    + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         }
 
         // minimal work inside this method as it is called with active connection
@@ -529,6 +642,7 @@ public class TraceDao implements TraceRepository {
                     .build()
                     .toByteArray());
             RowMappers.setLong(preparedStatement, i++, entriesCappedId);
+            RowMappers.setLong(preparedStatement, i++, encodedEntriesCappedId);
             RowMappers.setLong(preparedStatement, i++, queriesCappedId);
             RowMappers.setLong(preparedStatement, i++, sharedQueryTextsCappedId);
             RowMappers.setLong(preparedStatement, i++, mainThreadProfileId);
@@ -613,7 +727,8 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select headline, user, header, entries_capped_id, queries_capped_id,"
+            return "select headline, user, header, coalesce(entries_capped_id,"
+                    + " encoded_entries_capped_id), queries_capped_id,"
                     + " main_thread_profile_capped_id, aux_thread_profile_capped_id from trace"
                     + " where id = ?";
         }
@@ -669,7 +784,8 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select entries_capped_id, shared_query_texts_capped_id from trace where id = ?";
+            return "select entries_capped_id, encoded_entries_capped_id,"
+                    + " shared_query_texts_capped_id from trace where id = ?";
         }
 
         @Override
@@ -684,12 +800,12 @@ public class TraceDao implements TraceRepository {
             }
             int i = 1;
             Long entriesCappedId = RowMappers.getLong(resultSet, i++);
+            Long encodedEntriesCappedId = RowMappers.getLong(resultSet, i++);
             Long sharedQueryTextsCappedId = RowMappers.getLong(resultSet, i++);
-            if (entriesCappedId == null) {
+            if (entriesCappedId == null && encodedEntriesCappedId == null) {
                 return null;
             }
-            List<Trace.Entry> entries =
-                    traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
+            List<Trace.Entry> entries = readEntries(entriesCappedId, encodedEntriesCappedId);
             if (entries.isEmpty()) {
                 return null;
             }
@@ -767,8 +883,8 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select entries_capped_id, queries_capped_id, shared_query_texts_capped_id from"
-                    + " trace where id = ?";
+            return "select entries_capped_id, encoded_entries_capped_id, queries_capped_id,"
+                    + " shared_query_texts_capped_id from trace where id = ?";
         }
 
         @Override
@@ -783,12 +899,10 @@ public class TraceDao implements TraceRepository {
             }
             int i = 1;
             Long entriesCappedId = RowMappers.getLong(resultSet, i++);
+            Long encodedEntriesCappedId = RowMappers.getLong(resultSet, i++);
             Long queriesCappedId = RowMappers.getLong(resultSet, i++);
             Long sharedQueryTextsCappedId = RowMappers.getLong(resultSet, i++);
-            List<Trace.Entry> entries = ImmutableList.of();
-            if (entriesCappedId != null) {
-                entries = traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
-            }
+            List<Trace.Entry> entries = readEntries(entriesCappedId, encodedEntriesCappedId);
             List<Aggregate.Query> queries = ImmutableList.of();
             if (queriesCappedId != null) {
                 queries =
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.glowroot.agent.embedded.repo.model.Stored;
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// trace entries of N+1 style traces repeat the same messages, detail maps and location stack
+// traces over and over, so instead of storing each Trace.Entry in full, messages, detail maps and
+// stack trace frames are replaced by indexes into per-trace dictionaries, and start offsets are
+// delta encoded
+//
+// the dictionaries are not stored separately, each encoded entry carries the dictionary additions
+// that it introduces, so entries are still written and read as a stream of delimited messages
+//
+// redundancy across traces is left to the capped database codec (see CappedDatabaseCodec)
+class TraceEntryEncoding {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.embedded.traceEntryEncoding");
+
+    private TraceEntryEncoding() {}
+
+    static List<Stored.TraceEntry> encode(List<Trace.Entry> entries) {
+        Map<String, Integer> texts = Maps.newHashMap();
+        Map<ByteString, Integer> details = Maps.newHashMap();
+        Map<Proto.StackTraceElement, Integer> frames = Maps.newHashMap();
+        List<Stored.TraceEntry> encodedEntries = Lists.newArrayList();
+        long priorStartOffsetNanos = 0;
+        for (Trace.Entry entry : entries) {
+            Stored.TraceEntry.Builder builder = Stored.TraceEntry.newBuilder()
+                    .setDepth(entry.getDepth())
+                    .setStartOffsetNanosDelta(entry.getStartOffsetNanos() - priorStartOffsetNanos)
+                    .setDurationNanos(entry.getDurationNanos())
+                    .setActive(entry.getActive());
+            priorStartOffsetNanos = entry.getStartOffsetNanos();
+            builder.setMessageIndex(getTextIndex(entry.getMessage(), texts, builder));
+            if (entry.getDetailEntryCount() > 0) {
+                ByteString detail = Trace.Entry.newBuilder()
+                        .addAllDetailEntry(entry.getDetailEntryList())
+                        .build()
+                        .toByteString();
+                Integer detailIndex = details.get(detail);
+                if (detailIndex == null) {
+                    // 1-based so that 0 can represent no detail entries
+                    detailIndex = details.size() + 1;
+                    details.put(detail, detailIndex);
+                    builder.addNewDetail(detail);
+                }
+                builder.setDetailIndex(detailIndex);
+            }
+            for (Proto.StackTraceElement element : entry.getLocationStackTraceElementList()) {
+                Integer frameIndex = frames.get(element);
+                if (frameIndex == null) {
+                    frameIndex = frames.size();
+                    frames.put(element, frameIndex);
+                    builder.addNewFrame(Stored.StackTraceFrame.newBuilder()
+                            .setClassNameIndex(
+                                    getTextIndex(element.getClassName(), texts, builder))
+                            .setMethodNameIndex(
+                                    getTextIndex(element.getMethodName(), texts, builder))
+                            .setFileNameIndex(getTextIndex(element.getFileName(), texts, builder))
+                            .setLineNumber(element.getLineNumber()));
+                }
+                builder.addLocationStackTraceFrameIndex(frameIndex);
+            }
+            if (entry.hasQueryEntryMessage() || entry.hasError()) {
+                Trace.Entry.Builder remainder = Trace.Entry.newBuilder();
+                if (entry.hasQueryEntryMessage()) {
+                    remainder.setQueryEntryMessage(entry.getQueryEntryMessage());
+                }
+                if (entry.hasError()) {
+                    remainder.setError(entry.getError());
+                }
+                builder.setRemainder(remainder.build().toByteString());
+            }
+            encodedEntries.add(builder.build());
+        }
+        return encodedEntries;
+    }
+
+    static List<Trace.Entry> decode(List<Stored.TraceEntry> encodedEntries)
+            throws InvalidProtocolBufferException {
+        List<String> texts = Lists.newArrayList();
+        List<List<Trace.DetailEntry>> details = Lists.newArrayList();
+        List<Proto.StackTraceElement> frames = Lists.newArrayList();
+        List<Trace.Entry> entries = Lists.newArrayList();
+        long startOffsetNanos = 0;
+        for (Stored.TraceEntry encodedEntry : encodedEntries) {
+            // dictionary additions must be applied before resolving any indexes of the entry
+            texts.addAll(encodedEntry.getNewTextList());
+            for (ByteString detail : encodedEntry.getNewDetailList()) {
+                details.add(Trace.Entry.parseFrom(detail).getDetailEntryList());
+            }
+            for (Stored.StackTraceFrame frame : encodedEntry.getNewFrameList()) {
+                frames.add(Proto.StackTraceElement.newBuilder()
+                        .setClassName(texts.get(frame.getClassNameIndex()))
+                        .setMethodName(texts.get(frame.getMethodNameIndex()))
+                        .setFileName(texts.get(frame.getFileNameIndex()))
+                        .setLineNumber(frame.getLineNumber())
+                        .build());
+            }
+            startOffsetNanos += encodedEntry.getStartOffsetNanosDelta();
+            Trace.Entry.Builder builder = Trace.Entry.newBuilder();
+            if (!encodedEntry.getRemainder().isEmpty()) {
+                builder.mergeFrom(encodedEntry.getRemainder());
+            }
+            builder.setDepth(encodedEntry.getDepth())
+                    .setStartOffsetNanos(startOffsetNanos)
+                    .setDurationNanos(encodedEntry.getDurationNanos())
+                    .setActive(encodedEntry.getActive())
+                    .setMessage(texts.get(encodedEntry.getMessageIndex()));
+            int detailIndex = encodedEntry.getDetailIndex();
+            if (detailIndex > 0) {
+                builder.addAllDetailEntry(details.get(detailIndex - 1));
+            }
+            for (int frameIndex : encodedEntry.getLocationStackTraceFrameIndexList()) {
+                builder.addLocationStackTraceElement(frames.get(frameIndex));
+            }
+            entries.add(builder.build());
+        }
+        return entries;
+    }
+
+    private static int getTextIndex(String text, Map<String, Integer> texts,
+            Stored.TraceEntry.Builder builder) {
+        Integer textIndex = texts.get(text);
+        if (textIndex == null) {
+            textIndex = texts.size();
+            texts.put(text, textIndex);
+            builder.addNewText(text);
+        }
+        return textIndex;
+    }
+}
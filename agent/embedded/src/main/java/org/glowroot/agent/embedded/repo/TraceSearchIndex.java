@@ -0,0 +1,507 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.embedded.util.ImmutableColumn;
+import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// secondary index used to narrow down trace searches to the time buckets (per transaction type)
+// that can contain matching traces, each bucket has a bloom filter of the trigrams of the trace
+// headlines, error messages, users and attribute values (plus the transaction names and attribute
+// names), and the max trace duration in the bucket
+//
+// the buckets are searched in order of their max trace duration, which allows the search for the
+// slowest traces to stop once the remaining buckets cannot contain any slower traces (see
+// TraceDao.readPoints())
+//
+// buckets are kept in memory until the next bucket is complete, and are then written to the
+// trace_search_bucket table followed by the flushed capture time, after a JVM restart the
+// in-memory buckets are rebuilt from the trace table rows after the flushed capture time
+class TraceSearchIndex {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.embedded.traceSearchIndex");
+
+    private static final long BUCKET_MILLIS = HOURS.toMillis(1);
+
+    private static final int EXPECTED_TOKENS_PER_BUCKET = 20000;
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.03;
+
+    private static final int TRIGRAM = 3;
+
+    // token prefixes
+    private static final char TRANSACTION_NAME = 'n';
+    private static final char HEADLINE = 'h';
+    private static final char ERROR_MESSAGE = 'e';
+    private static final char USER = 'u';
+    private static final char ATTRIBUTE_NAME = 'A';
+    private static final char ATTRIBUTE_VALUE = 'a';
+
+    private static final Funnel<CharSequence> funnel = Funnels.stringFunnel(Charsets.UTF_8);
+
+    private static final ImmutableList<Column> bucketColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("max_duration_nanos", ColumnType.BIGINT),
+            ImmutableColumn.of("bloom_filter", ColumnType.VARBINARY));
+
+    private static final ImmutableList<Index> bucketIndexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("trace_search_bucket_idx",
+                    ImmutableList.of("transaction_type", "capture_time")));
+
+    private final DataSource dataSource;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private long flushedCaptureTime;
+    @GuardedBy("lock")
+    private final Map<BucketKey, Bucket> unflushedBuckets = Maps.newHashMap();
+
+    TraceSearchIndex(DataSource dataSource) throws Exception {
+        this.dataSource = dataSource;
+        dataSource.syncTable("trace_search_bucket", bucketColumns);
+        dataSource.syncIndexes("trace_search_bucket", bucketIndexes);
+        dataSource.syncTable("trace_search_flushed", ImmutableList.<Column>of(
+                ImmutableColumn.of("capture_time", ColumnType.BIGINT)));
+        synchronized (lock) {
+            flushedCaptureTime = initFlushedCaptureTime();
+            dataSource.query(new RebuildQuery(flushedCaptureTime));
+        }
+    }
+
+    void add(Trace.Header header) throws Exception {
+        synchronized (lock) {
+            Bucket bucket = getBucketForUpdate(header.getTransactionType(),
+                    header.getCaptureTime());
+            bucket.addTrace(header.getTransactionName(), header.getDurationNanos(),
+                    header.getHeadline(), header.getUser(),
+                    header.hasError() ? header.getError().getMessage() : null);
+            for (Trace.Attribute attribute : header.getAttributeList()) {
+                for (String value : attribute.getValueList()) {
+                    bucket.addAttribute(attribute.getName(), value);
+                }
+            }
+            afterUpdate(bucket);
+        }
+    }
+
+    // returns the time ranges that can contain traces matching the query and filter, ordered by
+    // the max trace duration in the range (descending)
+    List<SearchRange> getSearchRanges(TraceQuery query, TracePointFilter filter)
+            throws Exception {
+        List<String> tokens = getTokens(query, filter);
+        long fromBucketCaptureTime = getBucketCaptureTime(query.from() + 1);
+        long toBucketCaptureTime = getBucketCaptureTime(query.to());
+        List<SearchRange> searchRanges = Lists.newArrayList();
+        synchronized (lock) {
+            if (fromBucketCaptureTime <= flushedCaptureTime) {
+                List<Bucket> buckets = dataSource.query(new BucketQuery(query.transactionType(),
+                        fromBucketCaptureTime,
+                        Math.min(toBucketCaptureTime, flushedCaptureTime)));
+                for (Bucket bucket : buckets) {
+                    addIfMatches(bucket, query, filter, tokens, searchRanges);
+                }
+            }
+            for (Bucket bucket : unflushedBuckets.values()) {
+                if (bucket.key.transactionType().equals(query.transactionType())
+                        && bucket.key.captureTime() >= fromBucketCaptureTime
+                        && bucket.key.captureTime() <= toBucketCaptureTime) {
+                    addIfMatches(bucket, query, filter, tokens, searchRanges);
+                }
+            }
+        }
+        Collections.sort(searchRanges, new Comparator<SearchRange>() {
+            @Override
+            public int compare(SearchRange left, SearchRange right) {
+                if (left.maxDurationNanos() == right.maxDurationNanos()) {
+                    return 0;
+                }
+                return left.maxDurationNanos() > right.maxDurationNanos() ? -1 : 1;
+            }
+        });
+        return searchRanges;
+    }
+
+    void deleteBefore(long captureTime) throws SQLException {
+        dataSource.deleteBefore("trace_search_bucket", captureTime);
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (lock) {
+            unflushedBuckets.clear();
+            flushedCaptureTime = initFlushedCaptureTime();
+        }
+    }
+
+    @GuardedBy("lock")
+    private long initFlushedCaptureTime() throws SQLException {
+        Long flushedCaptureTime =
+                dataSource.queryForOptionalLong("select capture_time from trace_search_flushed");
+        if (flushedCaptureTime == null) {
+            dataSource.update("insert into trace_search_flushed (capture_time) values (0)");
+            return 0;
+        }
+        return flushedCaptureTime;
+    }
+
+    @GuardedBy("lock")
+    private Bucket getBucketForUpdate(String transactionType, long captureTime)
+            throws Exception {
+        BucketKey key = ImmutableBucketKey.of(transactionType, getBucketCaptureTime(captureTime));
+        if (key.captureTime() <= flushedCaptureTime) {
+            // trace stored (well) out of order, or the trace is a later update of a trace that was
+            // captured before the bucket was flushed (the trace can only move to a later bucket)
+            List<Bucket> buckets = dataSource.query(new BucketQuery(transactionType,
+                    key.captureTime(), key.captureTime()));
+            return buckets.isEmpty() ? new Bucket(key) : buckets.get(0);
+        }
+        Bucket bucket = unflushedBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(key);
+            unflushedBuckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    @GuardedBy("lock")
+    private void afterUpdate(Bucket bucket) throws Exception {
+        long captureTime = bucket.key.captureTime();
+        if (captureTime <= flushedCaptureTime) {
+            dataSource.update(new BucketMerge(bucket));
+            return;
+        }
+        // the previous bucket is kept in memory as well in case of traces that are stored slightly
+        // out of order
+        long flushCaptureTime = captureTime - 2 * BUCKET_MILLIS;
+        if (flushCaptureTime > flushedCaptureTime) {
+            Iterator<Bucket> i = unflushedBuckets.values().iterator();
+            while (i.hasNext()) {
+                Bucket unflushedBucket = i.next();
+                if (unflushedBucket.key.captureTime() <= flushCaptureTime) {
+                    dataSource.update(new BucketMerge(unflushedBucket));
+                    i.remove();
+                }
+            }
+            // JVM termination before this is updated will cause the buckets to be rebuilt and
+            // written again after the next startup, which is ok since it will just overwrite them
+            dataSource.update("update trace_search_flushed set capture_time = ?",
+                    flushCaptureTime);
+            flushedCaptureTime = flushCaptureTime;
+        }
+    }
+
+    private static void addIfMatches(Bucket bucket, TraceQuery query, TracePointFilter filter,
+            List<String> tokens, List<SearchRange> searchRanges) {
+        if (bucket.maxDurationNanos < filter.durationNanosLow()) {
+            return;
+        }
+        for (String token : tokens) {
+            if (!bucket.bloomFilter.mightContain(token)) {
+                return;
+            }
+        }
+        long captureTime = bucket.key.captureTime();
+        searchRanges.add(ImmutableSearchRange.of(
+                Math.max(query.from(), captureTime - BUCKET_MILLIS),
+                Math.min(query.to(), captureTime), bucket.maxDurationNanos));
+    }
+
+    // the tokens that must be present in a bucket for it to contain matching traces
+    private static List<String> getTokens(TraceQuery query, TracePointFilter filter) {
+        List<String> tokens = Lists.newArrayList();
+        String transactionName = query.transactionName();
+        if (transactionName != null) {
+            tokens.add(TRANSACTION_NAME + transactionName);
+        }
+        addSearchTrigrams(HEADLINE, filter.headlineComparator(), filter.headline(), tokens);
+        addSearchTrigrams(ERROR_MESSAGE, filter.errorMessageComparator(), filter.errorMessage(),
+                tokens);
+        addSearchTrigrams(USER, filter.userComparator(), filter.user(), tokens);
+        String attributeName = filter.attributeName();
+        if (!Strings.isNullOrEmpty(attributeName)) {
+            tokens.add(ATTRIBUTE_NAME + upper(attributeName));
+        }
+        addSearchTrigrams(ATTRIBUTE_VALUE, filter.attributeValueComparator(),
+                filter.attributeValue(), tokens);
+        return tokens;
+    }
+
+    private static void addSearchTrigrams(char prefix, @Nullable StringComparator comparator,
+            @Nullable String text, List<String> tokens) {
+        if (comparator == null || Strings.isNullOrEmpty(text)
+                || comparator == StringComparator.NOT_CONTAINS) {
+            return;
+        }
+        String upperText = upper(text);
+        if (comparator == StringComparator.EQUALS) {
+            addTrigrams(prefix, upperText, tokens);
+            return;
+        }
+        // like wildcards (and escape character) cannot be part of a trigram
+        int start = 0;
+        for (int i = 0; i <= upperText.length(); i++) {
+            if (i == upperText.length() || isLikeSpecialChar(upperText.charAt(i))) {
+                addTrigrams(prefix, upperText.substring(start, i), tokens);
+                start = i + 1;
+            }
+        }
+    }
+
+    private static void addTrigrams(char prefix, String upperText, List<String> tokens) {
+        for (int i = 0; i + TRIGRAM <= upperText.length(); i++) {
+            tokens.add(prefix + upperText.substring(i, i + TRIGRAM));
+        }
+    }
+
+    private static boolean isLikeSpecialChar(char c) {
+        return c == '%' || c == '_' || c == '\\';
+    }
+
+    private static long getBucketCaptureTime(long captureTime) {
+        return (long) Math.ceil(captureTime / (double) BUCKET_MILLIS) * BUCKET_MILLIS;
+    }
+
+    private static String upper(String str) {
+        return str.toUpperCase(Locale.ENGLISH);
+    }
+
+    private static class Bucket {
+
+        private final BucketKey key;
+        private long maxDurationNanos;
+        private final BloomFilter<CharSequence> bloomFilter;
+
+        private Bucket(BucketKey key) {
+            this.key = key;
+            bloomFilter = BloomFilter.create(funnel, EXPECTED_TOKENS_PER_BUCKET,
+                    FALSE_POSITIVE_PROBABILITY);
+        }
+
+        private Bucket(BucketKey key, long maxDurationNanos, byte[] bloomFilter)
+                throws IOException {
+            this.key = key;
+            this.maxDurationNanos = maxDurationNanos;
+            this.bloomFilter = BloomFilter.readFrom(new ByteArrayInputStream(bloomFilter), funnel);
+        }
+
+        private void addTrace(String transactionName, long durationNanos,
+                @Nullable String headline, @Nullable String user,
+                @Nullable String errorMessage) {
+            maxDurationNanos = Math.max(maxDurationNanos, durationNanos);
+            bloomFilter.put(TRANSACTION_NAME + transactionName);
+            putTrigrams(HEADLINE, headline);
+            putTrigrams(USER, user);
+            putTrigrams(ERROR_MESSAGE, errorMessage);
+        }
+
+        private void addAttribute(String name, String value) {
+            bloomFilter.put(ATTRIBUTE_NAME + upper(name));
+            putTrigrams(ATTRIBUTE_VALUE, value);
+        }
+
+        private void putTrigrams(char prefix, @Nullable String text) {
+            if (text == null) {
+                return;
+            }
+            String upperText = upper(text);
+            for (int i = 0; i + TRIGRAM <= upperText.length(); i++) {
+                bloomFilter.put(prefix + upperText.substring(i, i + TRIGRAM));
+            }
+        }
+
+        private byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bloomFilter.writeTo(out);
+            return out.toByteArray();
+        }
+    }
+
+    // rebuilds the unflushed buckets after a JVM restart
+    private class RebuildQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final long flushedCaptureTime;
+
+        private RebuildQuery(long flushedCaptureTime) {
+            this.flushedCaptureTime = flushedCaptureTime;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select trace.transaction_type, trace.transaction_name, trace.capture_time,"
+                    + " trace.duration_nanos, trace.headline, trace.user, trace.error_message,"
+                    + " attr.name, attr.value from trace left join trace_attribute attr"
+                    + " on attr.trace_id = trace.id where trace.capture_time > ?"
+                    + " order by trace.capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, flushedCaptureTime);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            while (resultSet.next()) {
+                int i = 1;
+                String transactionType = checkNotNull(resultSet.getString(i++));
+                String transactionName = checkNotNull(resultSet.getString(i++));
+                long captureTime = resultSet.getLong(i++);
+                long durationNanos = resultSet.getLong(i++);
+                String headline = resultSet.getString(i++);
+                String user = resultSet.getString(i++);
+                String errorMessage = resultSet.getString(i++);
+                String attributeName = resultSet.getString(i++);
+                String attributeValue = resultSet.getString(i++);
+                Bucket bucket = getBucketForUpdate(transactionType, captureTime);
+                bucket.addTrace(transactionName, durationNanos, headline, user, errorMessage);
+                if (attributeName != null && attributeValue != null) {
+                    bucket.addAttribute(attributeName, attributeValue);
+                }
+                afterUpdate(bucket);
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+
+    private static class BucketQuery implements JdbcRowQuery<Bucket> {
+
+        private final String transactionType;
+        private final long from;
+        private final long to;
+
+        private BucketQuery(String transactionType, long from, long to) {
+            this.transactionType = transactionType;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select capture_time, max_duration_nanos, bloom_filter from trace_search_bucket"
+                    + " where transaction_type = ? and capture_time >= ? and capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setString(i++, transactionType);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+        }
+
+        @Override
+        public Bucket mapRow(ResultSet resultSet) throws Exception {
+            int i = 1;
+            long captureTime = resultSet.getLong(i++);
+            long maxDurationNanos = resultSet.getLong(i++);
+            byte[] bloomFilter = checkNotNull(resultSet.getBytes(i++));
+            return new Bucket(ImmutableBucketKey.of(transactionType, captureTime),
+                    maxDurationNanos, bloomFilter);
+        }
+    }
+
+    private static class BucketMerge implements JdbcUpdate {
+
+        private final Bucket bucket;
+        private final byte[] bloomFilter;
+
+        private BucketMerge(Bucket bucket) throws IOException {
+            this.bucket = bucket;
+            // serialized outside of the data source lock
+            bloomFilter = bucket.toByteArray();
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "merge into trace_search_bucket (transaction_type, capture_time,"
+                    + " max_duration_nanos, bloom_filter) key (transaction_type, capture_time)"
+                    + " values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setString(i++, bucket.key.transactionType());
+            preparedStatement.setLong(i++, bucket.key.captureTime());
+            preparedStatement.setLong(i++, bucket.maxDurationNanos);
+            preparedStatement.setBytes(i++, bloomFilter);
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BucketKey {
+        String transactionType();
+        // the end of the bucket
+        long captureTime();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SearchRange {
+        // non-inclusive
+        long from();
+        long to();
+        long maxDurationNanos();
+    }
+}
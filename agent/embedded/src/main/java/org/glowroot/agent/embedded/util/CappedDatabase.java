@@ -17,18 +17,22 @@ package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -40,41 +44,78 @@ import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
-import com.ning.compress.lzf.util.ChunkDecoderFactory;
-import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.glowroot.agent.util.AppServerDetection;
-import org.glowroot.agent.util.JavaVersion;
+import org.glowroot.agent.embedded.util.CappedDatabaseDictionaries.Dictionary;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    // when memory-mapped, reads do not take the lock (and so do not wait on writes), see
+    // CappedDatabaseMappedFile
+    private static final boolean MEMORY_MAPPED =
+            Boolean.getBoolean("glowroot.cappedDatabase.memoryMapped");
+
+    // lzf, deflate or deflate-dictionary, see CappedDatabaseCodec
+    private static final CappedDatabaseCodec CODEC = getCodec();
+
     private final File file;
     private final Object lock = new Object();
+    // exactly one of out (along with inFile) and mappedFile is non-null
     @GuardedBy("lock")
-    private final CappedDatabaseOutputStream out;
+    private final @Nullable CappedDatabaseOutputStream out;
+    private final @Nullable CappedDatabaseMappedFile mappedFile;
     private final Thread shutdownHookThread;
     @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    private @Nullable RandomAccessFile inFile;
     private volatile boolean closed = false;
 
+    private final CappedDatabaseCodec codec;
+    private final CappedDatabaseDictionaries dictionaries;
+
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
+    private final ConcurrentMap<String, CappedDatabaseStats> statsByCodec =
+            Maps.newConcurrentMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, ticker, MEMORY_MAPPED);
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean memoryMapped)
+            throws IOException {
+        this(file, requestedSizeKb, ticker, memoryMapped, CODEC,
+                new CappedDatabaseDictionaries(getDictionariesFile(file)));
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean memoryMapped,
+            CappedDatabaseCodec codec, CappedDatabaseDictionaries dictionaries)
+            throws IOException {
         this.file = file;
         this.ticker = ticker;
-        out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
+        this.codec = codec;
+        // dictionaries are loaded regardless of codec, so that blocks written with a dictionary
+        // are still readable after switching to a different codec
+        this.dictionaries = dictionaries;
+        mappedFile =
+                memoryMapped ? CappedDatabaseMappedFile.create(file, requestedSizeKb) : null;
+        if (mappedFile == null) {
+            out = new CappedDatabaseOutputStream(file, requestedSizeKb);
+            inFile = new RandomAccessFile(file, "r");
+        } else {
+            out = null;
+            inFile = null;
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -108,6 +149,10 @@ public class CappedDatabase {
         return stats;
     }
 
+    public Map<String, CappedDatabaseStats> getStatsByCodec() {
+        return statsByCodec;
+    }
+
     @OnlyUsedByTests
     long write(final ByteSource byteSource, String type) throws IOException {
         return write(type, new Copier() {
@@ -124,11 +169,28 @@ public class CappedDatabase {
                 return -1;
             }
             long startTick = ticker.read();
-            out.startBlock();
+            CappedDatabaseCodec codec = this.codec;
+            Dictionary dictionary = null;
+            if (codec == CappedDatabaseCodec.DEFLATE_DICTIONARY) {
+                dictionary = dictionaries.getDictionaryForWrite(type, getCurrIndex(),
+                        getSmallestNonExpiredId());
+                if (dictionary == null) {
+                    // not enough samples yet to train the dictionary
+                    codec = CappedDatabaseCodec.DEFLATE;
+                }
+            }
             NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
+                    new NonClosingCountingOutputStream(startBlock());
+            OutputStream compressingStream =
+                    codec.newOutputStream(countingStreamAfterCompression, dictionary);
+            SamplingOutputStream samplingStream = null;
+            if (this.codec == CappedDatabaseCodec.DEFLATE_DICTIONARY) {
+                samplingStream = new SamplingOutputStream(compressingStream,
+                        CappedDatabaseDictionaries.getSampleSize());
+                compressingStream = samplingStream;
+            }
             CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+                    new CountingOutputStream(compressingStream);
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
             long endTick = ticker.read();
@@ -139,41 +201,25 @@ public class CappedDatabase {
             }
             stats.record(countingStreamBeforeCompression.getCount(),
                     countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            getCodecStats(codec).record(countingStreamBeforeCompression.getCount(),
+                    countingStreamAfterCompression.getCount(), endTick - startTick);
+            if (samplingStream != null) {
+                dictionaries.addSample(type, samplingStream.getSample());
+            }
+            return endBlock();
         }
     }
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        InputStream input = openBlock(cappedId);
+        if (input == null) {
             return null;
         }
-        if (inTheFuture) {
-            // this can happen when the glowroot folder is copied for analysis without shutting down
-            // the JVM and glowroot.capped.db is copied first, then new data is written to
-            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
-            // glowroot.h2.db is copied with capped ids that do not exist in the copied
-            // glowroot.capped.db
-            return null;
-        }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
@@ -184,28 +230,10 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ MessageLite> List<T> readMessages(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        InputStream input = openBlock(cappedId);
+        if (input == null) {
             return ImmutableList.of();
         }
-        if (inTheFuture) {
-            // this can happen when the glowroot folder is copied for analysis without shutting down
-            // the JVM and glowroot.capped.db is copied first, then new data is written to
-            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
-            // glowroot.h2.db is copied with capped ids that do not exist in the copied
-            // glowroot.capped.db
-            return ImmutableList.of();
-        }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
@@ -215,10 +243,7 @@ public class CappedDatabase {
                 messages.add(message);
             }
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
@@ -234,14 +259,15 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return isOverwritten(cappedId);
     }
 
     public long getSmallestNonExpiredId() {
+        if (mappedFile != null) {
+            return mappedFile.getSmallestNonOverwrittenId();
+        }
         synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
+            return checkNotNull(out).getSmallestNonOverwrittenId();
         }
     }
 
@@ -250,8 +276,12 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
+            if (mappedFile != null) {
+                mappedFile.resize(newSizeKb);
+                return;
+            }
+            checkNotNull(inFile).close();
+            checkNotNull(out).resize(newSizeKb);
             inFile = new RandomAccessFile(file, "r");
         }
     }
@@ -260,25 +290,137 @@ public class CappedDatabase {
     public void close() throws IOException {
         synchronized (lock) {
             closed = true;
-            out.close();
-            inFile.close();
+            closeFiles();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
-        if (AppServerDetection.isIbmJvm() && JavaVersion.isJava6()) {
-            return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
-        } else {
-            return new LZFOutputStream(outputStream);
+    @GuardedBy("lock")
+    private OutputStream startBlock() {
+        if (mappedFile != null) {
+            mappedFile.startBlock();
+            return mappedFile;
+        }
+        CappedDatabaseOutputStream out = checkNotNull(this.out);
+        out.startBlock();
+        return out;
+    }
+
+    @GuardedBy("lock")
+    private long endBlock() throws IOException {
+        if (mappedFile != null) {
+            return mappedFile.endBlock();
         }
+        return checkNotNull(out).endBlock();
     }
 
-    private static LZFInputStream newLZFInputStream(InputStream inputStream) throws IOException {
-        if (AppServerDetection.isIbmJvm() && JavaVersion.isJava6()) {
-            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), inputStream);
+    // returns null if the block has been overwritten or does not exist (yet)
+    private @Nullable InputStream openBlock(long cappedId) throws IOException {
+        boolean overwritten;
+        boolean inTheFuture;
+        if (mappedFile != null) {
+            overwritten = mappedFile.isOverwritten(cappedId);
+            inTheFuture = cappedId >= mappedFile.getCommittedIndex();
         } else {
-            return new LZFInputStream(inputStream);
+            synchronized (lock) {
+                CappedDatabaseOutputStream out = checkNotNull(this.out);
+                overwritten = out.isOverwritten(cappedId);
+                inTheFuture = cappedId >= out.getCurrIndex();
+            }
+        }
+        if (overwritten) {
+            return null;
+        }
+        if (inTheFuture) {
+            // this can happen when the glowroot folder is copied for analysis without shutting down
+            // the JVM and glowroot.capped.db is copied first, then new data is written to
+            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
+            // glowroot.h2.db is copied with capped ids that do not exist in the copied
+            // glowroot.capped.db
+            return null;
+        }
+        return newDecompressingInputStream(newBlockInputStream(cappedId));
+    }
+
+    private InputStream newDecompressingInputStream(InputStream blockInputStream)
+            throws IOException {
+        long startTick = ticker.read();
+        PushbackInputStream in = new PushbackInputStream(blockInputStream, 1);
+        CappedDatabaseCodec codec = CappedDatabaseCodec.readHeader(in);
+        InputStream decompressingStream = codec.newInputStream(in, dictionaries);
+        return new DecodeStatsInputStream(decompressingStream, getCodecStats(codec),
+                ticker.read() - startTick);
+    }
+
+    private CappedDatabaseStats getCodecStats(CappedDatabaseCodec codec) {
+        CappedDatabaseStats stats = statsByCodec.get(codec.getName());
+        if (stats == null) {
+            stats = new CappedDatabaseStats();
+            CappedDatabaseStats existing = statsByCodec.putIfAbsent(codec.getName(), stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    @GuardedBy("lock")
+    private long getCurrIndex() {
+        if (mappedFile != null) {
+            // this is only called by the writer (under lock), so there are no uncommitted writes
+            return mappedFile.getCommittedIndex();
+        }
+        return checkNotNull(out).getCurrIndex();
+    }
+
+    private InputStream newBlockInputStream(long cappedId) {
+        if (mappedFile != null) {
+            // reads are served straight from memory, so there is no need for buffering
+            return mappedFile.newBlockInputStream(cappedId);
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying RandomAccessFile
+        final int bufferSize = 32768;
+        return new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize);
+    }
+
+    private boolean isOverwritten(long cappedId) {
+        if (mappedFile != null) {
+            return mappedFile.isOverwritten(cappedId);
+        }
+        synchronized (lock) {
+            return checkNotNull(out).isOverwritten(cappedId);
+        }
+    }
+
+    // this is called from the shutdown hook, see PreInitializeStorageShutdownClasses
+    @GuardedBy("lock")
+    private void closeFiles() throws IOException {
+        if (mappedFile != null) {
+            mappedFile.close();
+        }
+        if (out != null) {
+            out.close();
+        }
+        if (inFile != null) {
+            inFile.close();
+        }
+    }
+
+    private static File getDictionariesFile(File file) {
+        return new File(file.getPath() + ".dictionaries");
+    }
+
+    private static CappedDatabaseCodec getCodec() {
+        String value = System.getProperty("glowroot.cappedDatabase.codec");
+        if (value == null) {
+            return CappedDatabaseCodec.LZF;
+        }
+        try {
+            return CappedDatabaseCodec.forName(value);
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid glowroot.cappedDatabase.codec: {}", value);
+            return CappedDatabaseCodec.LZF;
         }
     }
 
@@ -293,11 +435,7 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
+            return new InputStreamReader(newDecompressingInputStream(newBlockInputStream(cappedId)),
                     UTF_8);
         }
     }
@@ -318,6 +456,8 @@ public class CappedDatabase {
                 return -1;
             }
             synchronized (lock) {
+                CappedDatabaseOutputStream out = checkNotNull(CappedDatabase.this.out);
+                RandomAccessFile inFile = checkNotNull(CappedDatabase.this.inFile);
                 if (out.isOverwritten(cappedId)) {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
@@ -361,8 +501,7 @@ public class CappedDatabase {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
-                    out.close();
-                    inFile.close();
+                    closeFiles();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -375,7 +514,7 @@ public class CappedDatabase {
     }
 
     @SuppressWarnings("serial")
-    private static class CappedBlockRolledOverMidReadException extends IOException {
+    static class CappedBlockRolledOverMidReadException extends IOException {
         public CappedBlockRolledOverMidReadException(String message) {
             super(message);
         }
@@ -408,4 +547,95 @@ public class CappedDatabase {
             return count;
         }
     }
+
+    // keeps a copy of the first bytes written, for training compression dictionaries
+    private static class SamplingOutputStream extends FilterOutputStream {
+
+        private final byte[] sample;
+        private int sampleLength;
+
+        private SamplingOutputStream(OutputStream out, int sampleSize) {
+            super(out);
+            sample = new byte[sampleSize];
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            int n = Math.min(len, sample.length - sampleLength);
+            if (n > 0) {
+                System.arraycopy(b, off, sample, sampleLength, n);
+                sampleLength += n;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (sampleLength < sample.length) {
+                sample[sampleLength++] = (byte) b;
+            }
+        }
+
+        private byte[] getSample() {
+            byte[] copy = new byte[sampleLength];
+            System.arraycopy(sample, 0, copy, 0, sampleLength);
+            return copy;
+        }
+    }
+
+    // records decoded bytes and time spent decoding (including reading the underlying block) to
+    // the codec stats when closed
+    private class DecodeStatsInputStream extends FilterInputStream {
+
+        private final CappedDatabaseStats codecStats;
+        private long nanos;
+        private long count;
+        private boolean closed;
+
+        private DecodeStatsInputStream(InputStream in, CappedDatabaseStats codecStats,
+                long openNanos) {
+            super(in);
+            this.codecStats = codecStats;
+            nanos = openNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startTick = ticker.read();
+            int b = in.read();
+            nanos += ticker.read() - startTick;
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long startTick = ticker.read();
+            int n = in.read(b, off, len);
+            nanos += ticker.read() - startTick;
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                codecStats.recordRead(count, nanos);
+            }
+            in.close();
+        }
+    }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+import com.ning.compress.lzf.util.ChunkDecoderFactory;
+import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.embedded.util.CappedDatabaseDictionaries.Dictionary;
+import org.glowroot.agent.util.AppServerDetection;
+import org.glowroot.agent.util.JavaVersion;
+
+// the codec is recorded in the first byte of each block so that blocks stay readable after the
+// codec is changed, except for LZF (which was originally the only codec) whose blocks are
+// recognized by the 'Z' that every LZF chunk starts with
+enum CappedDatabaseCodec {
+
+    LZF("lzf", -1) {
+        @Override
+        OutputStream newOutputStream(OutputStream out, @Nullable Dictionary dictionary) {
+            if (AppServerDetection.isIbmJvm() && JavaVersion.isJava6()) {
+                return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), out);
+            } else {
+                return new LZFOutputStream(out);
+            }
+        }
+        @Override
+        InputStream newInputStream(InputStream in, CappedDatabaseDictionaries dictionaries)
+                throws IOException {
+            if (AppServerDetection.isIbmJvm() && JavaVersion.isJava6()) {
+                return new LZFInputStream(ChunkDecoderFactory.safeInstance(), in);
+            } else {
+                return new LZFInputStream(in);
+            }
+        }
+    },
+
+    DEFLATE("deflate", 1) {
+        @Override
+        OutputStream newOutputStream(OutputStream out, @Nullable Dictionary dictionary)
+                throws IOException {
+            out.write(header);
+            return newDeflaterOutputStream(out, null);
+        }
+        @Override
+        InputStream newInputStream(InputStream in, CappedDatabaseDictionaries dictionaries) {
+            return newInflaterInputStream(in, null);
+        }
+    },
+
+    // deflate using a dictionary trained from recent blocks of the same type, see
+    // CappedDatabaseDictionaries
+    DEFLATE_DICTIONARY("deflate-dictionary", 2) {
+        @Override
+        OutputStream newOutputStream(OutputStream out, @Nullable Dictionary dictionary)
+                throws IOException {
+            if (dictionary == null) {
+                throw new IllegalStateException("Dictionary is required");
+            }
+            out.write(header);
+            new DataOutputStream(out).writeInt(dictionary.id());
+            return newDeflaterOutputStream(out, dictionary.bytes());
+        }
+        @Override
+        InputStream newInputStream(InputStream in, CappedDatabaseDictionaries dictionaries)
+                throws IOException {
+            int dictionaryId = new DataInputStream(in).readInt();
+            byte[] dictionary = dictionaries.getBytes(dictionaryId);
+            if (dictionary == null) {
+                throw new IOException("Dictionary not found: " + dictionaryId);
+            }
+            return newInflaterInputStream(in, dictionary);
+        }
+    };
+
+    private final String name;
+    final int header;
+
+    private CappedDatabaseCodec(String name, int header) {
+        this.name = name;
+        this.header = header;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    abstract OutputStream newOutputStream(OutputStream out, @Nullable Dictionary dictionary)
+            throws IOException;
+
+    // the header has already been read from the input stream
+    abstract InputStream newInputStream(InputStream in, CappedDatabaseDictionaries dictionaries)
+            throws IOException;
+
+    static CappedDatabaseCodec forName(String name) {
+        for (CappedDatabaseCodec codec : values()) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unexpected capped database codec: " + name);
+    }
+
+    // reads the header, leaving the input stream positioned at the start of the codec's data
+    static CappedDatabaseCodec readHeader(PushbackInputStream in) throws IOException {
+        int header = in.read();
+        if (header == DEFLATE.header) {
+            return DEFLATE;
+        }
+        if (header == DEFLATE_DICTIONARY.header) {
+            return DEFLATE_DICTIONARY;
+        }
+        if (header != -1) {
+            in.unread(header);
+        }
+        return LZF;
+    }
+
+    private static OutputStream newDeflaterOutputStream(OutputStream out,
+            byte /*@Nullable*/ [] dictionary) {
+        // nowrap since there is no need for the zlib header and checksum
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        return new DeflaterOutputStream(out, deflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // the deflater is not ended by DeflaterOutputStream since it was passed in
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    private static InputStream newInflaterInputStream(InputStream in,
+            byte /*@Nullable*/ [] dictionary) {
+        final Inflater inflater = new Inflater(true);
+        if (dictionary != null) {
+            inflater.setDictionary(dictionary);
+        }
+        return new InflaterInputStream(new NowrapPaddingInputStream(in), inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // the inflater is not ended by InflaterInputStream since it was passed in
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    // the inflater may need an extra "dummy" byte at the end of the input when using the nowrap
+    // option (see Inflater javadoc)
+    private static class NowrapPaddingInputStream extends InputStream {
+
+        private final InputStream in;
+        private boolean padded;
+
+        private NowrapPaddingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1 && !padded) {
+                padded = true;
+                return 0;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            int n = in.read(bytes, off, len);
+            if (n == -1 && !padded && len > 0) {
+                padded = true;
+                bytes[off] = 0;
+                return 1;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
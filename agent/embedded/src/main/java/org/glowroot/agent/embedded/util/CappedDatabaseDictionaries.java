@@ -0,0 +1,283 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// compression dictionaries for CappedDatabaseCodec.DEFLATE_DICTIONARY, one active dictionary per
+// block type, trained from the beginnings of recent blocks of that type (which is where the
+// repetitive protobuf structure of e.g. trace entries is)
+//
+// dictionaries are persisted to a side file so that blocks stay readable after restart, and a
+// dictionary is only removed once all blocks that could have been written with it have been
+// overwritten in the capped database
+class CappedDatabaseDictionaries {
+
+    // deflate can only reference the last 32kb of the dictionary
+    private static final int MAX_DICTIONARY_SIZE = 32768;
+    private static final int SAMPLE_SIZE = 4096;
+
+    private final File file;
+    private final int minSamples;
+    private final int retrainBlockCount;
+
+    @GuardedBy("this")
+    private final Map<Integer, Dictionary> dictionaries = Maps.newLinkedHashMap();
+    @GuardedBy("this")
+    private final Map<String, Training> trainingByType = Maps.newHashMap();
+    @GuardedBy("this")
+    private int nextId;
+
+    CappedDatabaseDictionaries(File file) throws IOException {
+        this(file, 8, 10000);
+    }
+
+    @VisibleForTesting
+    CappedDatabaseDictionaries(File file, int minSamples, int retrainBlockCount)
+            throws IOException {
+        this.file = file;
+        this.minSamples = minSamples;
+        this.retrainBlockCount = retrainBlockCount;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    static int getSampleSize() {
+        return SAMPLE_SIZE;
+    }
+
+    synchronized byte /*@Nullable*/ [] getBytes(int id) {
+        Dictionary dictionary = dictionaries.get(id);
+        return dictionary == null ? null : dictionary.bytes;
+    }
+
+    // returns null if there are not enough samples yet to train a dictionary for the type
+    //
+    // currIndex is the capped id that the next block will be written at
+    synchronized @Nullable Dictionary getDictionaryForWrite(String type, long currIndex,
+            long smallestNonOverwrittenId) throws IOException {
+        Training training = getTraining(type);
+        Dictionary dictionary = training.dictionary;
+        if (dictionary != null && training.blocksSinceTraining < retrainBlockCount) {
+            training.blocksSinceTraining++;
+            return dictionary;
+        }
+        if (training.samples.size() < minSamples) {
+            return dictionary;
+        }
+        dictionary = new Dictionary(nextId++, type, currIndex, training.buildDictionaryBytes());
+        prune(dictionary, smallestNonOverwrittenId);
+        dictionaries.put(dictionary.id, dictionary);
+        append(dictionary);
+        training.dictionary = dictionary;
+        training.blocksSinceTraining = 1;
+        return dictionary;
+    }
+
+    synchronized void addSample(String type, byte[] sample) {
+        getTraining(type).addSample(sample);
+    }
+
+    @VisibleForTesting
+    synchronized int getDictionaryCount() {
+        return dictionaries.size();
+    }
+
+    @GuardedBy("this")
+    private Training getTraining(String type) {
+        Training training = trainingByType.get(type);
+        if (training == null) {
+            training = new Training();
+            trainingByType.put(type, training);
+        }
+        return training;
+    }
+
+    // a dictionary is no longer referenced once a newer dictionary of the same type was created at
+    // a capped id that has since been overwritten, since blocks written with the older dictionary
+    // all precede that capped id
+    @GuardedBy("this")
+    private void prune(Dictionary newDictionary, long smallestNonOverwrittenId)
+            throws IOException {
+        Map<String, Long> newestOverwrittenCreatedIndex = Maps.newHashMap();
+        for (Dictionary dictionary : dictionaries.values()) {
+            if (dictionary.createdIndex <= smallestNonOverwrittenId) {
+                newestOverwrittenCreatedIndex.put(dictionary.type, dictionary.createdIndex);
+            }
+        }
+        boolean pruned = false;
+        Iterator<Dictionary> i = dictionaries.values().iterator();
+        while (i.hasNext()) {
+            Dictionary dictionary = i.next();
+            Long createdIndex = newestOverwrittenCreatedIndex.get(dictionary.type);
+            if (createdIndex != null && dictionary.createdIndex < createdIndex) {
+                i.remove();
+                pruned = true;
+            }
+        }
+        if (pruned) {
+            rewrite();
+        }
+    }
+
+    @GuardedBy("this")
+    private void load() throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                Dictionary dictionary;
+                try {
+                    dictionary = readDictionary(in);
+                } catch (EOFException e) {
+                    // end of file, or partially written dictionary (in which case it was never
+                    // used since dictionaries are synced to disk before being used)
+                    break;
+                }
+                dictionaries.put(dictionary.id, dictionary);
+                nextId = Math.max(nextId, dictionary.id + 1);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @GuardedBy("this")
+    private void append(Dictionary dictionary) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            writeDictionary(out, dictionary);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    @GuardedBy("this")
+    private void rewrite() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            for (Dictionary dictionary : dictionaries.values()) {
+                writeDictionary(out, dictionary);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!file.delete() || !tmpFile.renameTo(file)) {
+            throw new IOException("Could not rename file: " + tmpFile.getAbsolutePath());
+        }
+    }
+
+    private static Dictionary readDictionary(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        String type = in.readUTF();
+        long createdIndex = in.readLong();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new Dictionary(id, type, createdIndex, bytes);
+    }
+
+    private static void writeDictionary(DataOutputStream out, Dictionary dictionary)
+            throws IOException {
+        out.writeInt(dictionary.id);
+        out.writeUTF(dictionary.type);
+        out.writeLong(dictionary.createdIndex);
+        out.writeInt(dictionary.bytes.length);
+        out.write(dictionary.bytes);
+    }
+
+    static class Dictionary {
+
+        private final int id;
+        private final String type;
+        // the capped id that the first block written with this dictionary was written at (or
+        // after)
+        private final long createdIndex;
+        private final byte[] bytes;
+
+        private Dictionary(int id, String type, long createdIndex, byte[] bytes) {
+            this.id = id;
+            this.type = type;
+            this.createdIndex = createdIndex;
+            this.bytes = bytes;
+        }
+
+        int id() {
+            return id;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+    }
+
+    private class Training {
+
+        private final ArrayDeque<byte[]> samples = new ArrayDeque<byte[]>();
+        private @Nullable Dictionary dictionary;
+        private int blocksSinceTraining;
+
+        private void addSample(byte[] sample) {
+            samples.add(sample);
+            if (samples.size() > Math.max(minSamples, MAX_DICTIONARY_SIZE / SAMPLE_SIZE)) {
+                samples.remove();
+            }
+        }
+
+        // the most recent samples go last since deflate favors (shorter distances to) the end of
+        // the dictionary
+        private byte[] buildDictionaryBytes() {
+            int size = 0;
+            for (byte[] sample : samples) {
+                size += sample.length;
+            }
+            byte[] bytes = new byte[Math.min(size, MAX_DICTIONARY_SIZE)];
+            int pos = bytes.length;
+            Iterator<byte[]> i = samples.descendingIterator();
+            while (i.hasNext() && pos > 0) {
+                byte[] sample = i.next();
+                int len = Math.min(sample.length, pos);
+                System.arraycopy(sample, sample.length - len, bytes, pos - len, len);
+                pos -= len;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.embedded.util.CappedDatabase.CappedBlockRolledOverMidReadException;
+
+import static org.glowroot.agent.embedded.util.CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES;
+import static org.glowroot.agent.embedded.util.CappedDatabaseOutputStream.HEADER_SKIP_BYTES;
+
+// memory-mapped alternative to CappedDatabaseOutputStream (and to the RandomAccessFile that
+// CappedDatabase reads through), using the same file format
+//
+// writes need to be externally synchronized around startBlock()/write()/endBlock() (single
+// writer), reads do not take that lock (so they do not wait on compressing and writing an entire
+// block), and only hold the read side of ringLock while copying bytes out of the mapping, the
+// writer holds the write side of ringLock while reserving and writing each chunk, so a reader
+// either sees the reservation and fails the same way that a read through
+// CappedDatabaseOutputStream fails when the block rolls over mid-read, or copies the bytes before
+// they are overwritten
+//
+// the data region is mapped in segments since a single mapping is limited to 2gb
+class CappedDatabaseMappedFile extends OutputStream {
+
+    private static final int SEGMENT_SIZE_BYTES = 1 << 30;
+
+    private static final int HEADER_CURR_INDEX_POS = 0;
+
+    private final File file;
+    private final int segmentSizeBytes;
+
+    // guards the contents of the mapping, and replacing the ring during resize
+    private final ReadWriteLock ringLock = new ReentrantReadWriteLock();
+
+    private volatile Ring ring;
+
+    // index up to which blocks have been completely written
+    private volatile long committedIndex;
+    // index up to which the writer may have (started to) write, so bytes at indexes smaller than
+    // reservedIndex - sizeBytes may have been overwritten
+    private volatile long reservedIndex;
+
+    // only accessed by the writer
+    private long currIndex;
+    private long blockStartIndex;
+
+    // returns null if memory-mapping is not available on this platform (files cannot be deleted
+    // on windows while they are still mapped, which is needed for resizing, and there is no
+    // supported way to unmap before java 9)
+    static @Nullable CappedDatabaseMappedFile create(File file, int requestedSizeKb)
+            throws IOException {
+        String osName = System.getProperty("os.name");
+        if (osName != null && osName.toLowerCase(Locale.ENGLISH).startsWith("windows")) {
+            return null;
+        }
+        return new CappedDatabaseMappedFile(file, requestedSizeKb, SEGMENT_SIZE_BYTES);
+    }
+
+    @VisibleForTesting
+    CappedDatabaseMappedFile(File file, int requestedSizeKb, int segmentSizeBytes)
+            throws IOException {
+        this.file = file;
+        this.segmentSizeBytes = segmentSizeBytes;
+        if (!file.exists() || file.length() == 0) {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.writeLong(0);
+                out.writeInt(requestedSizeKb);
+                out.writeLong(0);
+            } finally {
+                out.close();
+            }
+        }
+        ring = map(file, segmentSizeBytes);
+        currIndex = ring.header.getLong(HEADER_CURR_INDEX_POS);
+        committedIndex = currIndex;
+        reservedIndex = currIndex;
+    }
+
+    void startBlock() {
+        Ring ring = this.ring;
+        long remainingBytes = ring.sizeBytes - ring.convertToPosition(currIndex);
+        if (remainingBytes < BLOCK_HEADER_SKIP_BYTES) {
+            // not enough space for contiguous block header
+            currIndex += remainingBytes;
+        }
+        blockStartIndex = currIndex;
+        // make space for block size to be written at start position
+        currIndex += BLOCK_HEADER_SKIP_BYTES;
+        Lock writeLock = ringLock.writeLock();
+        writeLock.lock();
+        try {
+            reservedIndex = currIndex;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    long endBlock() {
+        Ring ring = this.ring;
+        Lock writeLock = ringLock.writeLock();
+        writeLock.lock();
+        try {
+            ring.put(ring.convertToPosition(blockStartIndex),
+                    Longs.toByteArray(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES), 0,
+                    BLOCK_HEADER_SKIP_BYTES);
+        } finally {
+            writeLock.unlock();
+        }
+        ring.header.putLong(HEADER_CURR_INDEX_POS, currIndex);
+        ring.force();
+        // volatile write publishes the block to readers
+        committedIndex = currIndex;
+        return blockStartIndex;
+    }
+
+    boolean isOverwritten(long cappedId) {
+        return cappedId < getSmallestNonOverwrittenId();
+    }
+
+    long getSmallestNonOverwrittenId() {
+        return ring.getSmallestNonOverwrittenId(reservedIndex);
+    }
+
+    long getCommittedIndex() {
+        return committedIndex;
+    }
+
+    int getSizeKb() {
+        return ring.sizeKb;
+    }
+
+    InputStream newBlockInputStream(long cappedId) {
+        return new MappedBlockInputStream(cappedId);
+    }
+
+    // needs to be externally synchronized with writes
+    void resize(int newSizeKb) throws IOException {
+        if (newSizeKb == ring.sizeKb) {
+            return;
+        }
+        // readers always go through the current ring (see MappedBlockInputStream.read()), since
+        // the resize can rewrite the file in place (see CappedDatabaseOutputStream.resize()), in
+        // which case the old mapping no longer matches where subsequent writes go
+        Lock writeLock = ringLock.writeLock();
+        writeLock.lock();
+        try {
+            ring.force();
+            // the RandomAccessFile based implementation already knows how to resize in-place, and
+            // has the same file format
+            CappedDatabaseOutputStream out = new CappedDatabaseOutputStream(file, newSizeKb);
+            try {
+                out.resize(newSizeKb);
+            } finally {
+                out.close();
+            }
+            ring = map(file, segmentSizeBytes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // needs to be externally synchronized with writes
+    @Override
+    public void close() {
+        ring.force();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Ring ring = this.ring;
+        if (currIndex + len - blockStartIndex > ring.sizeBytes) {
+            throw new IOException(
+                    "A single block cannot have more bytes than size of the capped database");
+        }
+        long currPosition = ring.convertToPosition(currIndex);
+        long remaining = ring.sizeBytes - currPosition;
+        Lock writeLock = ringLock.writeLock();
+        writeLock.lock();
+        try {
+            // reserve along with writing, so that readers of the region being overwritten can
+            // detect it
+            reservedIndex = currIndex + len;
+            if (len >= remaining) {
+                // intentionally handling == case here
+                ring.put(currPosition, b, off, (int) remaining);
+                ring.put(0, b, off + (int) remaining, len - (int) remaining);
+            } else {
+                ring.put(currPosition, b, off, len);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        currIndex += len;
+    }
+
+    private static Ring map(File file, int segmentSizeBytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // a mapping, once established, does not depend on the channel that created it
+            MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER_SKIP_BYTES);
+            int sizeKb = header.getInt(8);
+            long lastResizeBaseIndex = header.getLong(12);
+            long sizeBytes = sizeKb * 1024L;
+            int segmentCount = (int) ((sizeBytes + segmentSizeBytes - 1) / segmentSizeBytes);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long segmentStart = (long) i * segmentSizeBytes;
+                segments[i] = channel.map(MapMode.READ_WRITE, HEADER_SKIP_BYTES + segmentStart,
+                        Math.min(segmentSizeBytes, sizeBytes - segmentStart));
+            }
+            return new Ring(header, segments, segmentSizeBytes, sizeKb, lastResizeBaseIndex);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // immutable view of the file between resizes
+    private static class Ring {
+
+        private final MappedByteBuffer header;
+        private final MappedByteBuffer[] segments;
+        private final int segmentSizeBytes;
+        private final int sizeKb;
+        private final long sizeBytes;
+        // the smallest index saved during the last resize
+        private final long lastResizeBaseIndex;
+
+        private Ring(MappedByteBuffer header, MappedByteBuffer[] segments, int segmentSizeBytes,
+                int sizeKb, long lastResizeBaseIndex) {
+            this.header = header;
+            this.segments = segments;
+            this.segmentSizeBytes = segmentSizeBytes;
+            this.sizeKb = sizeKb;
+            sizeBytes = sizeKb * 1024L;
+            this.lastResizeBaseIndex = lastResizeBaseIndex;
+        }
+
+        private long getSmallestNonOverwrittenId(long reservedIndex) {
+            // need to check lastResizeBaseIndex in case it was recently resized larger, in which
+            // case reservedIndex - sizeBytes would be less than lastResizeBaseIndex
+            return Math.max(lastResizeBaseIndex, reservedIndex - sizeBytes);
+        }
+
+        private long convertToPosition(long index) {
+            return (index - lastResizeBaseIndex) % sizeBytes;
+        }
+
+        // the range must not wrap around the end of the ring
+        private void put(long position, byte[] bytes, int off, int len) {
+            while (len > 0) {
+                ByteBuffer segment = segments[(int) (position / segmentSizeBytes)].duplicate();
+                int segmentOffset = (int) (position % segmentSizeBytes);
+                int n = Math.min(len, segment.capacity() - segmentOffset);
+                segment.position(segmentOffset);
+                segment.put(bytes, off, n);
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // the range must not wrap around the end of the ring
+        private void get(long position, byte[] bytes, int off, int len) {
+            while (len > 0) {
+                ByteBuffer segment = segments[(int) (position / segmentSizeBytes)].duplicate();
+                int segmentOffset = (int) (position % segmentSizeBytes);
+                int n = Math.min(len, segment.capacity() - segmentOffset);
+                segment.position(segmentOffset);
+                segment.get(bytes, off, n);
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            header.force();
+        }
+    }
+
+    private class MappedBlockInputStream extends InputStream {
+
+        private final long cappedId;
+        private long blockLength = -1;
+        private long blockIndex;
+
+        private MappedBlockInputStream(long cappedId) {
+            this.cappedId = cappedId;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (blockIndex == blockLength) {
+                return -1;
+            }
+            Lock readLock = ringLock.readLock();
+            readLock.lock();
+            try {
+                // the ring is re-read on each read since it is replaced by resize(), and the
+                // writer cannot reserve or overwrite anything while the read lock is held, so
+                // checking before copying is enough
+                Ring ring = CappedDatabaseMappedFile.this.ring;
+                checkNotOverwritten(ring);
+                if (blockLength == -1) {
+                    byte[] blockHeader = new byte[BLOCK_HEADER_SKIP_BYTES];
+                    ring.get(ring.convertToPosition(cappedId), blockHeader, 0,
+                            BLOCK_HEADER_SKIP_BYTES);
+                    blockLength = Longs.fromByteArray(blockHeader);
+                    if (blockLength == 0) {
+                        return -1;
+                    }
+                }
+                long filePosition =
+                        ring.convertToPosition(cappedId + BLOCK_HEADER_SKIP_BYTES + blockIndex);
+                long blockRemaining = blockLength - blockIndex;
+                long fileRemaining = ring.sizeBytes - filePosition;
+                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+                ring.get(filePosition, bytes, off, numToRead);
+                blockIndex += numToRead;
+                return numToRead;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes) throws IOException {
+            return read(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            int n = read(bytes, 0, 1);
+            return n == -1 ? -1 : bytes[0] & 0xff;
+        }
+
+        private void checkNotOverwritten(Ring ring) throws CappedBlockRolledOverMidReadException {
+            if (cappedId < ring.getSmallestNonOverwrittenId(reservedIndex)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.embedded.util;
 
+// this is used both per block type (write stats only) and per codec
 public class CappedDatabaseStats {
 
     private long totalBytesBeforeCompression;
@@ -22,43 +23,68 @@ public class CappedDatabaseStats {
     private long totalNanos;
     private long writeCount;
 
-    public long getTotalBytesBeforeCompression() {
+    private long totalBytesDecoded;
+    private long totalDecodeNanos;
+    private long readCount;
+
+    public synchronized long getTotalBytesBeforeCompression() {
         return totalBytesBeforeCompression;
     }
 
-    public long getTotalBytesAfterCompression() {
+    public synchronized long getTotalBytesAfterCompression() {
         return totalBytesAfterCompression;
     }
 
-    public double getTotalMillis() {
+    public synchronized double getTotalMillis() {
         return totalNanos / 1000000.0;
     }
 
-    public long getWriteCount() {
+    public synchronized long getWriteCount() {
         return writeCount;
     }
 
-    public double getCompressionRatio() {
+    public synchronized double getCompressionRatio() {
         return (totalBytesBeforeCompression - totalBytesAfterCompression)
                 / (double) totalBytesBeforeCompression;
     }
 
-    public double getAverageBytesPerWriteBeforeCompression() {
+    public synchronized double getAverageBytesPerWriteBeforeCompression() {
         return totalBytesBeforeCompression / (double) writeCount;
     }
 
-    public double getAverageBytesPerWriteAfterCompression() {
+    public synchronized double getAverageBytesPerWriteAfterCompression() {
         return totalBytesAfterCompression / (double) writeCount;
     }
 
-    public double getAverageMillisPerWrite() {
+    public synchronized double getAverageMillisPerWrite() {
         return totalNanos / (1000 * 1000 * (double) writeCount);
     }
 
-    void record(long bytesBeforeCompression, long bytesAfterCompression, long nanos) {
+    // uncompressed megabytes per second, including the time to write to the capped database file
+    public synchronized double getEncodeMegabytesPerSecond() {
+        return totalBytesBeforeCompression * 1000 / (double) totalNanos;
+    }
+
+    public synchronized long getReadCount() {
+        return readCount;
+    }
+
+    // uncompressed megabytes per second, including the time to read from the capped database file
+    public synchronized double getDecodeMegabytesPerSecond() {
+        return totalBytesDecoded * 1000 / (double) totalDecodeNanos;
+    }
+
+    synchronized void record(long bytesBeforeCompression, long bytesAfterCompression,
+            long nanos) {
         totalBytesBeforeCompression += bytesBeforeCompression;
         totalBytesAfterCompression += bytesAfterCompression;
         totalNanos += nanos;
         writeCount++;
     }
+
+    synchronized void recordRead(long bytesDecoded, long nanos) {
+        totalBytesDecoded += bytesDecoded;
+        totalDecodeNanos += nanos;
+        readCount++;
+    }
 }
@@ -21,10 +21,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -53,6 +56,7 @@ import org.glowroot.common2.repo.RepoAdmin.H2Table;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class DataSource {
@@ -65,14 +69,45 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // number of additional connections used for queries, so that a slow (e.g. UI) query doesn't
+    // block writes and other queries, 0 means all queries share the single (write) connection
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.h2.readConnections", 0);
+
+    private static final int MAX_QUERY_STATS = 1000;
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private Connection connection;
+    // written under lock, but also read outside of lock to decide whether to use read connection
+    private volatile boolean groupCommit;
     private volatile boolean closed;
 
+    private final int readConnectionCount;
+    private final Object readConnectionLock = new Object();
+    // read connections that are not currently in use
+    @GuardedBy("readConnectionLock")
+    private final Deque<ReadConnection> readConnectionPool = new ArrayDeque<ReadConnection>();
+    @GuardedBy("readConnectionLock")
+    private int readConnectionsInUse;
+    // read connections are not handed out while this is non-zero (see exclusively())
+    @GuardedBy("readConnectionLock")
+    private int readConnectionSuspensions;
+
+    private final ConcurrentMap<String, H2QueryStats> queryStats = Maps.newConcurrentMap();
+
+    // whether the current thread is running a query on a read connection, see useReadConnection()
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private final ThreadLocal<Boolean> inReadConnectionQuery = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -99,50 +134,69 @@ public class DataSource {
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        // read connections are not supported since each connection to the unnamed in-memory
+        // database gets its own private database
+        readConnectionCount = 0;
+        connection = createConnection(null, false);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READ_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    public DataSource(File dbFile, int readConnectionCount) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        this.readConnectionCount = readConnectionCount;
+        boolean multiThreaded = readConnectionCount > 0;
+        connection = createConnection(dbFile, multiThreaded);
+        synchronized (lock) {
+            openReadConnections();
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
+    public boolean hasReadConnections() {
+        return readConnectionCount > 0;
+    }
+
     public void defrag() throws SQLException {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        exclusively(new ExclusiveAction() {
+            @Override
+            @SuppressWarnings("GuardedBy")
+            public void run() throws SQLException {
+                shutdownAndReconnect("shutdown defrag");
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
-        }
+        });
     }
 
     public void compact() throws SQLException {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        exclusively(new ExclusiveAction() {
+            @Override
+            @SuppressWarnings("GuardedBy")
+            public void run() throws SQLException {
+                shutdownAndReconnect("shutdown compact");
             }
-            execute("shutdown compact");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
-        }
+        });
     }
 
     public long getH2DataFileSize() {
         return dbFile == null ? 0 : dbFile.length();
     }
 
+    List<H2QueryStats> getQueryStats() {
+        return ImmutableList.copyOf(queryStats.values());
+    }
+
     public List<H2Table> analyzeH2DiskSpace() throws Exception {
         return suppressQueryTimeout(new Callable<List<H2Table>>() {
             @Override
@@ -153,33 +207,17 @@ public class DataSource {
     }
 
     public void deleteAll() throws SQLException {
+        final File dbFile = this.dbFile;
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            List<String> schemaVersionRows =
-                    queryForStringList("select schema_version from schema_version");
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
-            }
-            connection = createConnection(dbFile);
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
-                    .entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
-                    .entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            for (String schemaVersionRow : schemaVersionRows) {
-                update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+        exclusively(new ExclusiveAction() {
+            @Override
+            @SuppressWarnings("GuardedBy")
+            public void run() throws SQLException {
+                deleteAllExclusively(dbFile);
             }
-        }
+        });
     }
 
     public void execute(@Untainted String sql) throws SQLException {
@@ -205,51 +243,41 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
+        return executeQuery(sql, args, 0L, new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        });
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
+        return executeQuery(sql, args, null, new ResultSetExtractor</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                Long value = resultSet.wasNull() ? null : val;
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return value;
+            }
+        });
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -267,25 +295,26 @@ public class DataSource {
         });
     }
 
-    public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closed) {
+    public <T> T query(final JdbcQuery<T> jdbcQuery) throws Exception {
+        return executeQuery(jdbcQuery.getSql(), new StatementQuery<T, Exception>() {
+            @Override
+            public T valueIfDataSourceClosed() {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
+            @Override
+            public T execute(PreparedStatement preparedStatement) throws Exception {
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    return jdbcQuery.processResultSet(resultSet);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
             }
-            // don't need to close statement since they are all cached and used under lock
-        }
+        });
     }
 
     public <T extends /*@NonNull*/ Object> /*@Nullable*/ T queryAtMostOne(JdbcRowQuery<T> jdbcQuery)
@@ -300,30 +329,31 @@ public class DataSource {
         return list.get(0);
     }
 
-    public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
+    public <T extends /*@NonNull*/ Object> List<T> query(final JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
+        return executeQuery(jdbcQuery.getSql(), new StatementQuery<List<T>, SQLException>() {
+            @Override
+            public List<T> valueIfDataSourceClosed() {
                 return ImmutableList.of();
             }
-            PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
+            @Override
+            public List<T> execute(PreparedStatement preparedStatement) throws SQLException {
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    List<T> mappedRows = Lists.newArrayList();
+                    while (resultSet.next()) {
+                        mappedRows.add(jdbcQuery.mapRow(resultSet));
+                    }
+                    return ImmutableList.copyOf(mappedRows);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
                 }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
-        }
+        });
     }
 
     public int update(final @Untainted String sql, final @Nullable Object... args)
@@ -350,14 +380,20 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return 0;
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
             if (closed) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeUpdate();
-            // don't need to close statement since they are all cached and used under lock
+            long executionStartTick = System.nanoTime();
+            try {
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeUpdate();
+                // don't need to close statement since they are all cached and used under lock
+            } finally {
+                recordQueryStats(jdbcUpdate.getSql(), startTick, executionStartTick);
+            }
         }
     }
 
@@ -369,14 +405,20 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return new int[0];
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
             if (closed) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeBatch();
-            // don't need to close statement since they are all cached and used under lock
+            long executionStartTick = System.nanoTime();
+            try {
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeBatch();
+                // don't need to close statement since they are all cached and used under lock
+            } finally {
+                recordQueryStats(jdbcUpdate.getSql(), startTick, executionStartTick);
+            }
         }
     }
 
@@ -470,6 +512,33 @@ public class DataSource {
         }
     }
 
+    // until endGroupCommit() is called, updates (from any thread) are not committed individually,
+    // but are instead committed together by endGroupCommit(), which saves a transaction log write
+    // (and sync) per update
+    public void beginGroupCommit() throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            connection.setAutoCommit(false);
+            groupCommit = true;
+        }
+    }
+
+    public void endGroupCommit() throws SQLException {
+        synchronized (lock) {
+            if (closed || !groupCommit) {
+                return;
+            }
+            groupCommit = false;
+            try {
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
     public <V> V suppressQueryTimeout(Callable<V> callable) throws Exception {
         boolean priorValue = suppressQueryTimeout.get();
         suppressQueryTimeout.set(true);
@@ -480,6 +549,62 @@ public class DataSource {
         }
     }
 
+    // runs the action under the lock with the read connections closed, read connections that are
+    // in use are waited for before (not while) acquiring the lock, since a query callback running
+    // on a read connection may itself need the lock (e.g. rollup writes from its query callback)
+    private void exclusively(ExclusiveAction action) throws SQLException {
+        suspendReadConnections();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                if (groupCommit) {
+                    connection.commit();
+                }
+                closeReadConnections();
+                action.run();
+                openReadConnections();
+            }
+        } finally {
+            resumeReadConnections();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void shutdownAndReconnect(@Untainted String shutdownSql) throws SQLException {
+        execute(shutdownSql);
+        preparedStatementCache.invalidateAll();
+        connection = createConnection(checkNotNull(dbFile), readConnectionCount > 0);
+        if (groupCommit) {
+            connection.setAutoCommit(false);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void deleteAllExclusively(File dbFile) throws SQLException {
+        List<String> schemaVersionRows =
+                queryForStringList("select schema_version from schema_version");
+        connection.close();
+        preparedStatementCache.invalidateAll();
+        if (!dbFile.delete()) {
+            throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+        }
+        connection = createConnection(dbFile, readConnectionCount > 0);
+        if (groupCommit) {
+            connection.setAutoCommit(false);
+        }
+        for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables.entrySet()) {
+            syncTable(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes.entrySet()) {
+            syncIndexes(entry.getKey(), entry.getValue());
+        }
+        for (String schemaVersionRow : schemaVersionRows) {
+            update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+        }
+    }
+
     @OnlyUsedByTests
     public void close() throws SQLException {
         synchronized (lock) {
@@ -487,6 +612,7 @@ public class DataSource {
                 return;
             }
             closed = true;
+            closeReadConnections();
             connection.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
@@ -531,16 +657,179 @@ public class DataSource {
         return tables;
     }
 
+    private <T extends /*@Nullable*/ Object> T executeQuery(@Untainted String sql,
+            final Object[] args, final T valueIfDataSourceClosed, final ResultSetExtractor<T> rse)
+            throws SQLException {
+        return executeQuery(sql, new StatementQuery<T, SQLException>() {
+            @Override
+            public T valueIfDataSourceClosed() {
+                return valueIfDataSourceClosed;
+            }
+            @Override
+            public T execute(PreparedStatement preparedStatement) throws SQLException {
+                for (int i = 0; i < args.length; i++) {
+                    preparedStatement.setObject(i + 1, args[i]);
+                }
+                ResultSet resultSet = preparedStatement.executeQuery();
+                return extractAndClose(resultSet, rse);
+            }
+        });
+    }
+
+    private <T extends /*@Nullable*/ Object, E extends Exception> T executeQuery(
+            @Untainted String sql, StatementQuery<T, E> statementQuery) throws E, SQLException {
+        long startTick = System.nanoTime();
+        if (!useReadConnection()) {
+            synchronized (lock) {
+                if (closed) {
+                    return statementQuery.valueIfDataSourceClosed();
+                }
+                long executionStartTick = System.nanoTime();
+                try {
+                    return statementQuery
+                            .execute(prepareStatement(sql, QUERY_TIMEOUT_SECONDS));
+                    // don't need to close statement since they are all cached and used under lock
+                } finally {
+                    recordQueryStats(sql, startTick, executionStartTick);
+                }
+            }
+        }
+        ReadConnection readConnection = takeReadConnection();
+        if (readConnection == null) {
+            return statementQuery.valueIfDataSourceClosed();
+        }
+        inReadConnectionQuery.set(true);
+        try {
+            long executionStartTick = System.nanoTime();
+            try {
+                return statementQuery.execute(readConnection.prepareStatement(sql));
+                // don't need to close statement since they are all cached and used by only one
+                // thread at a time (while the read connection is taken from the pool)
+            } finally {
+                recordQueryStats(sql, startTick, executionStartTick);
+            }
+        } finally {
+            inReadConnectionQuery.set(false);
+            releaseReadConnection(readConnection);
+        }
+    }
+
+    // queries that run while holding the lock (e.g. as part of a larger operation) and queries
+    // during a group commit (which need to see the uncommitted data, and which otherwise would
+    // wait on the table locks held by the group commit) use the write connection
+    //
+    // nested queries (issued from the query callback of a query that is running on a read
+    // connection, e.g. rollup from the partial rollup recovery callback) also use the write
+    // connection, since waiting for a second read connection while holding one would wait forever
+    // once all read connections are held by such callers (or while exclusively() is waiting for
+    // the read connections to be returned), and since the outer query's (cached) prepared
+    // statement cannot be re-executed while its result set is still being read
+    private boolean useReadConnection() {
+        return readConnectionCount > 0 && !groupCommit && !Thread.holdsLock(lock)
+                && !inReadConnectionQuery.get();
+    }
+
+    private @Nullable ReadConnection takeReadConnection() throws SQLException {
+        synchronized (readConnectionLock) {
+            while (true) {
+                if (closed) {
+                    return null;
+                }
+                if (readConnectionSuspensions == 0) {
+                    ReadConnection readConnection = readConnectionPool.poll();
+                    if (readConnection != null) {
+                        readConnectionsInUse++;
+                        return readConnection;
+                    }
+                }
+                try {
+                    // timeout is so that closed flag is re-checked periodically
+                    readConnectionLock.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(e);
+                }
+            }
+        }
+    }
+
+    private void releaseReadConnection(ReadConnection readConnection) throws SQLException {
+        synchronized (readConnectionLock) {
+            readConnectionsInUse--;
+            readConnectionLock.notifyAll();
+            if (!closed) {
+                readConnectionPool.add(readConnection);
+                return;
+            }
+        }
+        // the data source was closed while this read connection was in use
+        readConnection.connection.close();
+    }
+
+    // stops handing out read connections and waits for the read connections that are in use to be
+    // returned to the pool, this must not be called while holding the lock
+    private void suspendReadConnections() throws SQLException {
+        synchronized (readConnectionLock) {
+            readConnectionSuspensions++;
+            try {
+                while (readConnectionsInUse > 0 && !closed) {
+                    readConnectionLock.wait(1000);
+                }
+            } catch (InterruptedException e) {
+                resumeReadConnections();
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+        }
+    }
+
+    private void resumeReadConnections() {
+        synchronized (readConnectionLock) {
+            readConnectionSuspensions--;
+            readConnectionLock.notifyAll();
+        }
+    }
+
     @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
+    private void openReadConnections() throws SQLException {
+        for (int i = 0; i < readConnectionCount; i++) {
+            ReadConnection readConnection =
+                    new ReadConnection(createConnection(checkNotNull(dbFile), true));
+            synchronized (readConnectionLock) {
+                readConnectionPool.add(readConnection);
+                readConnectionLock.notifyAll();
+            }
         }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
+    }
+
+    // closes the read connections that are not in use, read connections that are in use are closed
+    // when they are returned if the data source has been closed, and otherwise are not expected
+    // (see exclusively())
+    @GuardedBy("lock")
+    private void closeReadConnections() throws SQLException {
+        synchronized (readConnectionLock) {
+            ReadConnection readConnection;
+            while ((readConnection = readConnectionPool.poll()) != null) {
+                readConnection.connection.close();
+            }
+        }
+    }
+
+    private void recordQueryStats(String sql, long startTick, long executionStartTick) {
+        long endTick = System.nanoTime();
+        H2QueryStats stats = queryStats.get(sql);
+        if (stats == null) {
+            if (queryStats.size() >= MAX_QUERY_STATS) {
+                // protect against unbounded growth in case of dynamically generated sql
+                return;
+            }
+            stats = new H2QueryStats(sql);
+            H2QueryStats existing = queryStats.putIfAbsent(sql, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(executionStartTick - startTick, endTick - executionStartTick);
     }
 
     @GuardedBy("lock")
@@ -565,6 +854,12 @@ public class DataSource {
     @GuardedBy("lock")
     private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
             throws SQLException {
+        return prepareStatement(preparedStatementCache, sql, queryTimeoutSeconds);
+    }
+
+    private PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -596,7 +891,8 @@ public class DataSource {
         }
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private static Connection createConnection(@Nullable File dbFile, boolean multiThreaded)
+            throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -610,6 +906,12 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (multiThreaded) {
+                // multi_threaded is needed for statements on different connections to execute
+                // concurrently, and lock_timeout is needed since with multiple connections, h2's
+                // table locks are now contended (this wait replaces waiting on the lock above)
+                url += ";multi_threaded=true;lock_timeout=" + QUERY_TIMEOUT_SECONDS * 1000;
+            }
             return new JdbcConnection(url, props);
         }
     }
@@ -667,6 +969,38 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private interface ExclusiveAction {
+        void run() throws SQLException;
+    }
+
+    private interface StatementQuery<T extends /*@Nullable*/ Object, E extends Exception> {
+        T valueIfDataSourceClosed();
+        T execute(PreparedStatement preparedStatement) throws E;
+    }
+
+    private class ReadConnection {
+
+        private final Connection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        private ReadConnection(final Connection connection) {
+            this.connection = connection;
+            preparedStatementCache = CacheBuilder.newBuilder().weakValues()
+                    .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            return DataSource.this.prepareStatement(preparedStatementCache, sql,
+                    QUERY_TIMEOUT_SECONDS);
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -679,6 +1013,10 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
+                    // read connections that are in use by (blocked) non-daemon threads may never
+                    // be returned to the pool, and closing the write connection with
+                    // db_close_on_exit=false closes the database (and their sessions) anyways
+                    closeReadConnections();
                     connection.close();
                 }
             } catch (SQLException e) {
@@ -15,6 +15,10 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.util.List;
+
+import com.google.common.collect.Ordering;
+
 public class H2DatabaseStats implements H2DatabaseStatsMXBean {
 
     private final DataSource dataSource;
@@ -27,4 +31,14 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    @Override
+    public List<H2QueryStats> getQueryStats() {
+        return new Ordering<H2QueryStats>() {
+            @Override
+            public int compare(H2QueryStats left, H2QueryStats right) {
+                return Double.compare(right.getTotalMillis(), left.getTotalMillis());
+            }
+        }.sortedCopy(dataSource.getQueryStats());
+    }
 }
@@ -0,0 +1,566 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+// columnar encoding of time series data, each segment file holds any number of series (e.g. one
+// per transaction type or per gauge) covering the same block of time
+//
+// capture times are delta-of-delta encoded and double values are XOR encoded against the prior
+// value in the same column (as described in "Gorilla: A Fast, Scalable, In-Memory Time Series
+// Database"), so regular capture intervals and slowly changing values only take a few bits per
+// row, byte array columns (e.g. serialized root timers) are stored length prefixed
+//
+// the series directory (with per-series capture time range and per-column min/max) is written at
+// the end of the file so that series can be streamed out one at a time while writing
+public class TimeSeriesSegment {
+
+    private static final int MAGIC = 0x47545353;
+    private static final int VERSION = 1;
+
+    // footer offset (long) followed by magic (int)
+    private static final int TRAILER_SIZE = 12;
+
+    private TimeSeriesSegment() {}
+
+    public static @Nullable Series read(File file, String seriesKey, int doubleColumnCount,
+            int bytesColumnCount) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            if (length < TRAILER_SIZE) {
+                throw new IOException("Invalid time series segment: " + file.getName());
+            }
+            in.seek(length - TRAILER_SIZE);
+            long footerOffset = in.readLong();
+            if (in.readInt() != MAGIC || footerOffset < 0 || footerOffset > length) {
+                throw new IOException("Invalid time series segment: " + file.getName());
+            }
+            byte[] footerBytes = new byte[(int) (length - TRAILER_SIZE - footerOffset)];
+            in.seek(footerOffset);
+            in.readFully(footerBytes);
+            DataInputStream footer = new DataInputStream(new ByteArrayInputStream(footerBytes));
+            if (footer.readInt() != doubleColumnCount || footer.readInt() != bytesColumnCount) {
+                throw new IOException("Unexpected columns in time series segment: "
+                        + file.getName());
+            }
+            int seriesCount = footer.readInt();
+            for (int i = 0; i < seriesCount; i++) {
+                SeriesHeader header = SeriesHeader.read(footer, doubleColumnCount);
+                if (header.key.equals(seriesKey)) {
+                    byte[] data = new byte[header.length];
+                    in.seek(header.offset);
+                    in.readFully(data);
+                    return decode(header, data, bytesColumnCount);
+                }
+            }
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Series decode(SeriesHeader header, byte[] data, int bytesColumnCount)
+            throws IOException {
+        int rowCount = header.rowCount;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte[] bits = new byte[in.readInt()];
+        in.readFully(bits);
+        BitInput bitInput = new BitInput(bits);
+        long[] captureTimes = new long[rowCount];
+        decodeCaptureTimes(bitInput, captureTimes);
+        double[][] doubleColumns = new double[header.mins.length][];
+        for (int i = 0; i < doubleColumns.length; i++) {
+            doubleColumns[i] = new double[rowCount];
+            decodeDoubles(bitInput, doubleColumns[i]);
+        }
+        byte[][][] bytesColumns = new byte[bytesColumnCount][][];
+        for (int i = 0; i < bytesColumnCount; i++) {
+            bytesColumns[i] = new byte[rowCount][];
+            for (int j = 0; j < rowCount; j++) {
+                int length = in.readInt();
+                if (length != -1) {
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    bytesColumns[i][j] = bytes;
+                }
+            }
+        }
+        return new Series(header, captureTimes, doubleColumns, bytesColumns);
+    }
+
+    private static void encodeCaptureTimes(BitOutput out, long[] captureTimes, int count) {
+        if (count == 0) {
+            return;
+        }
+        out.writeBits(captureTimes[0], 64);
+        long priorDelta = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = captureTimes[i] - captureTimes[i - 1];
+            long deltaOfDelta = delta - priorDelta;
+            priorDelta = delta;
+            if (deltaOfDelta == 0) {
+                out.writeBits(0, 1);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                out.writeBits(2, 2);
+                out.writeBits(deltaOfDelta, 7);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                out.writeBits(6, 3);
+                out.writeBits(deltaOfDelta, 9);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                out.writeBits(14, 4);
+                out.writeBits(deltaOfDelta, 12);
+            } else {
+                out.writeBits(15, 4);
+                out.writeBits(deltaOfDelta, 64);
+            }
+        }
+    }
+
+    private static void decodeCaptureTimes(BitInput in, long[] captureTimes) {
+        if (captureTimes.length == 0) {
+            return;
+        }
+        captureTimes[0] = in.readBits(64);
+        long priorDelta = 0;
+        for (int i = 1; i < captureTimes.length; i++) {
+            long deltaOfDelta;
+            if (in.readBits(1) == 0) {
+                deltaOfDelta = 0;
+            } else if (in.readBits(1) == 0) {
+                deltaOfDelta = readSigned(in, 7);
+            } else if (in.readBits(1) == 0) {
+                deltaOfDelta = readSigned(in, 9);
+            } else if (in.readBits(1) == 0) {
+                deltaOfDelta = readSigned(in, 12);
+            } else {
+                deltaOfDelta = in.readBits(64);
+            }
+            priorDelta += deltaOfDelta;
+            captureTimes[i] = captureTimes[i - 1] + priorDelta;
+        }
+    }
+
+    private static long readSigned(BitInput in, int bitCount) {
+        long value = in.readBits(bitCount);
+        if (value > 1L << (bitCount - 1)) {
+            value -= 1L << bitCount;
+        }
+        return value;
+    }
+
+    private static void encodeDoubles(BitOutput out, double[] values, int count) {
+        if (count == 0) {
+            return;
+        }
+        long priorBits = Double.doubleToRawLongBits(values[0]);
+        out.writeBits(priorBits, 64);
+        int priorLeadingZeros = -1;
+        int priorTrailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ priorBits;
+            priorBits = bits;
+            if (xor == 0) {
+                out.writeBits(0, 1);
+                continue;
+            }
+            // leading zero count is written in 5 bits
+            int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            if (priorLeadingZeros != -1 && leadingZeros >= priorLeadingZeros
+                    && trailingZeros >= priorTrailingZeros) {
+                // meaningful bits fit inside the prior window
+                out.writeBits(2, 2);
+                out.writeBits(xor >>> priorTrailingZeros,
+                        64 - priorLeadingZeros - priorTrailingZeros);
+            } else {
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                out.writeBits(3, 2);
+                out.writeBits(leadingZeros, 5);
+                out.writeBits(meaningfulBits - 1, 6);
+                out.writeBits(xor >>> trailingZeros, meaningfulBits);
+                priorLeadingZeros = leadingZeros;
+                priorTrailingZeros = trailingZeros;
+            }
+        }
+    }
+
+    private static void decodeDoubles(BitInput in, double[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        long priorBits = in.readBits(64);
+        values[0] = Double.longBitsToDouble(priorBits);
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (in.readBits(1) != 0) {
+                if (in.readBits(1) != 0) {
+                    leadingZeros = (int) in.readBits(5);
+                    int meaningfulBits = (int) in.readBits(6) + 1;
+                    trailingZeros = 64 - leadingZeros - meaningfulBits;
+                }
+                long xor = in.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+                priorBits ^= xor;
+            }
+            values[i] = Double.longBitsToDouble(priorBits);
+        }
+    }
+
+    // series must be added one at a time, in capture time order, i.e. all rows for one series key
+    // must be added before moving on to the next series key
+    public static class Writer {
+
+        private final File file;
+        private final File tmpFile;
+        private final int doubleColumnCount;
+        private final int bytesColumnCount;
+        private final DataOutputStream out;
+        private final FileOutputStream fileOut;
+
+        private final List<SeriesHeader> headers = Lists.newArrayList();
+
+        private @Nullable String currKey;
+        private int currRowCount;
+        private long[] currCaptureTimes = new long[64];
+        private final double[][] currDoubleColumns;
+        private final byte[][][] currBytesColumns;
+
+        private boolean closed;
+
+        public Writer(File file, int doubleColumnCount, int bytesColumnCount) throws IOException {
+            this.file = file;
+            tmpFile = new File(file.getPath() + ".tmp");
+            this.doubleColumnCount = doubleColumnCount;
+            this.bytesColumnCount = bytesColumnCount;
+            currDoubleColumns = new double[doubleColumnCount][currCaptureTimes.length];
+            currBytesColumns = new byte[bytesColumnCount][currCaptureTimes.length][];
+            fileOut = new FileOutputStream(tmpFile);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        // null double values should be passed as NaN
+        public void add(String seriesKey, long captureTime, double[] doubleValues,
+                byte /*@Nullable*/ []... bytesValues) throws IOException {
+            checkArgument(doubleValues.length == doubleColumnCount);
+            checkArgument(bytesValues.length == bytesColumnCount);
+            if (!seriesKey.equals(currKey)) {
+                flushSeries();
+                currKey = seriesKey;
+            }
+            if (currRowCount == currCaptureTimes.length) {
+                int newLength = currRowCount * 2;
+                currCaptureTimes = Arrays.copyOf(currCaptureTimes, newLength);
+                for (int i = 0; i < doubleColumnCount; i++) {
+                    currDoubleColumns[i] = Arrays.copyOf(currDoubleColumns[i], newLength);
+                }
+                for (int i = 0; i < bytesColumnCount; i++) {
+                    currBytesColumns[i] = Arrays.copyOf(currBytesColumns[i], newLength);
+                }
+            }
+            currCaptureTimes[currRowCount] = captureTime;
+            for (int i = 0; i < doubleColumnCount; i++) {
+                currDoubleColumns[i][currRowCount] = doubleValues[i];
+            }
+            for (int i = 0; i < bytesColumnCount; i++) {
+                currBytesColumns[i][currRowCount] = bytesValues[i];
+            }
+            currRowCount++;
+        }
+
+        public int getSeriesCount() {
+            return headers.size() + (currKey == null ? 0 : 1);
+        }
+
+        // returns false (and writes nothing) if no rows were added
+        public boolean close() throws IOException {
+            checkState(!closed);
+            closed = true;
+            boolean success = false;
+            try {
+                flushSeries();
+                if (headers.isEmpty()) {
+                    return false;
+                }
+                long footerOffset = out.size();
+                out.writeInt(doubleColumnCount);
+                out.writeInt(bytesColumnCount);
+                out.writeInt(headers.size());
+                for (SeriesHeader header : headers) {
+                    header.write(out);
+                }
+                out.writeLong(footerOffset);
+                out.writeInt(MAGIC);
+                out.flush();
+                fileOut.getFD().sync();
+                success = true;
+            } finally {
+                out.close();
+                if (!success || headers.isEmpty()) {
+                    deleteTmpFile();
+                }
+            }
+            if (!tmpFile.renameTo(file)) {
+                deleteTmpFile();
+                throw new IOException("Could not rename file: " + tmpFile.getAbsolutePath());
+            }
+            return true;
+        }
+
+        public void abort() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+            deleteTmpFile();
+        }
+
+        private void flushSeries() throws IOException {
+            if (currKey == null) {
+                return;
+            }
+            BitOutput bitOutput = new BitOutput();
+            encodeCaptureTimes(bitOutput, currCaptureTimes, currRowCount);
+            double[] mins = new double[doubleColumnCount];
+            double[] maxes = new double[doubleColumnCount];
+            for (int i = 0; i < doubleColumnCount; i++) {
+                encodeDoubles(bitOutput, currDoubleColumns[i], currRowCount);
+                mins[i] = Double.NaN;
+                maxes[i] = Double.NaN;
+                for (int j = 0; j < currRowCount; j++) {
+                    double value = currDoubleColumns[i][j];
+                    if (!Double.isNaN(value)) {
+                        mins[i] = Double.isNaN(mins[i]) ? value : Math.min(mins[i], value);
+                        maxes[i] = Double.isNaN(maxes[i]) ? value : Math.max(maxes[i], value);
+                    }
+                }
+            }
+            int offset = out.size();
+            byte[] bits = bitOutput.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+            for (int i = 0; i < bytesColumnCount; i++) {
+                for (int j = 0; j < currRowCount; j++) {
+                    byte[] bytes = currBytesColumns[i][j];
+                    if (bytes == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    currBytesColumns[i][j] = null;
+                }
+            }
+            headers.add(new SeriesHeader(currKey, offset, out.size() - offset, currRowCount,
+                    currCaptureTimes[0], currCaptureTimes[currRowCount - 1], mins, maxes));
+            currKey = null;
+            currRowCount = 0;
+        }
+
+        private void deleteTmpFile() throws IOException {
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                throw new IOException("Could not delete file: " + tmpFile.getAbsolutePath());
+            }
+        }
+    }
+
+    public static class Series {
+
+        private final SeriesHeader header;
+        private final long[] captureTimes;
+        private final double[][] doubleColumns;
+        private final byte[][][] bytesColumns;
+
+        private Series(SeriesHeader header, long[] captureTimes, double[][] doubleColumns,
+                byte[][][] bytesColumns) {
+            this.header = header;
+            this.captureTimes = captureTimes;
+            this.doubleColumns = doubleColumns;
+            this.bytesColumns = bytesColumns;
+        }
+
+        public int size() {
+            return captureTimes.length;
+        }
+
+        public long getCaptureTime(int row) {
+            return captureTimes[row];
+        }
+
+        // returns NaN for null
+        public double getDouble(int column, int row) {
+            return doubleColumns[column][row];
+        }
+
+        public @Nullable Double getNullableDouble(int column, int row) {
+            double value = doubleColumns[column][row];
+            return Double.isNaN(value) ? null : value;
+        }
+
+        public byte /*@Nullable*/ [] getBytes(int column, int row) {
+            return bytesColumns[column][row];
+        }
+
+        // min/max over the whole series, ignoring nulls, NaN if all values are null
+        public double getMin(int column) {
+            return header.mins[column];
+        }
+
+        public double getMax(int column) {
+            return header.maxes[column];
+        }
+    }
+
+    private static class SeriesHeader {
+
+        private final String key;
+        private final long offset;
+        private final int length;
+        private final int rowCount;
+        private final long minCaptureTime;
+        private final long maxCaptureTime;
+        private final double[] mins;
+        private final double[] maxes;
+
+        private SeriesHeader(String key, long offset, int length, int rowCount,
+                long minCaptureTime, long maxCaptureTime, double[] mins, double[] maxes) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.rowCount = rowCount;
+            this.minCaptureTime = minCaptureTime;
+            this.maxCaptureTime = maxCaptureTime;
+            this.mins = mins;
+            this.maxes = maxes;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.writeInt(rowCount);
+            out.writeLong(minCaptureTime);
+            out.writeLong(maxCaptureTime);
+            for (int i = 0; i < mins.length; i++) {
+                out.writeDouble(mins[i]);
+                out.writeDouble(maxes[i]);
+            }
+        }
+
+        private static SeriesHeader read(DataInputStream in, int doubleColumnCount)
+                throws IOException {
+            String key = in.readUTF();
+            long offset = in.readLong();
+            int length = in.readInt();
+            int rowCount = in.readInt();
+            long minCaptureTime = in.readLong();
+            long maxCaptureTime = in.readLong();
+            double[] mins = new double[doubleColumnCount];
+            double[] maxes = new double[doubleColumnCount];
+            for (int i = 0; i < doubleColumnCount; i++) {
+                mins[i] = in.readDouble();
+                maxes[i] = in.readDouble();
+            }
+            return new SeriesHeader(key, offset, length, rowCount, minCaptureTime,
+                    maxCaptureTime, mins, maxes);
+        }
+    }
+
+    private static class BitOutput {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private long buffer;
+        private int bufferBitCount;
+
+        // writes the low bitCount bits of value, most significant first
+        private void writeBits(long value, int bitCount) {
+            int remaining = bitCount;
+            while (remaining > 0) {
+                int take = Math.min(64 - bufferBitCount, remaining);
+                long chunk = (value >>> (remaining - take)) & mask(take);
+                buffer = take == 64 ? chunk : (buffer << take) | chunk;
+                bufferBitCount += take;
+                remaining -= take;
+                if (bufferBitCount == 64) {
+                    out.write(Longs.toByteArray(buffer), 0, 8);
+                    buffer = 0;
+                    bufferBitCount = 0;
+                }
+            }
+        }
+
+        private byte[] toByteArray() {
+            if (bufferBitCount > 0) {
+                long aligned = buffer << (64 - bufferBitCount);
+                out.write(Longs.toByteArray(aligned), 0, (bufferBitCount + 7) / 8);
+                buffer = 0;
+                bufferBitCount = 0;
+            }
+            return out.toByteArray();
+        }
+
+        private static long mask(int bitCount) {
+            return bitCount == 64 ? -1 : (1L << bitCount) - 1;
+        }
+    }
+
+    private static class BitInput {
+
+        private final byte[] bytes;
+        private int position;
+
+        private BitInput(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private long readBits(int bitCount) {
+            long value = 0;
+            int remaining = bitCount;
+            while (remaining > 0) {
+                int bitOffset = position & 7;
+                int available = 8 - bitOffset;
+                int take = Math.min(available, remaining);
+                int b = bytes[position >>> 3] & 0xff;
+                value = (value << take) | ((b >>> (available - take)) & ((1 << take) - 1));
+                position += take;
+                remaining -= take;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.init;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GroupCommitWriterTest {
+
+    private DataSource dataSource;
+    private GroupCommitWriter groupCommitWriter;
+    private ExecutorService executor;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        dataSource.execute("create table test (id bigint)");
+        groupCommitWriter = new GroupCommitWriter(dataSource, 2);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        groupCommitWriter.close();
+        dataSource.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldCommitWrites() throws Exception {
+        // when
+        groupCommitWriter.writeAggregates(new Insert(1));
+        groupCommitWriter.writeGaugeValues(new Insert(2));
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        assertThat(groupCommitWriter.getGroupCommitCount()).isEqualTo(2);
+        assertThat(groupCommitWriter.getGroupCommitWriteCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldGroupCommitAndPrioritize() throws Exception {
+        // given
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        List<String> order = Lists.newCopyOnWriteArrayList();
+        groupCommitWriter.writeTrace(new BlockingWrite(blockingLatch), false);
+        waitForQueueDepth(0);
+        // when
+        groupCommitWriter.writeTrace(new RecordingWrite(order, "trace"), false);
+        Future<?> future = executor.submit(new WriteAggregates(new RecordingWrite(order, "agg")));
+        while (groupCommitWriter.getAggregateQueueDepth() == 0) {
+            MILLISECONDS.sleep(1);
+        }
+        blockingLatch.countDown();
+        future.get(10, SECONDS);
+        waitForQueueDepth(0);
+        groupCommitWriter.close();
+        // then
+        assertThat(order).containsExactly("agg", "trace");
+        assertThat(groupCommitWriter.getGroupCommitCount()).isEqualTo(2);
+        assertThat(groupCommitWriter.getGroupCommitWriteCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldDropTracesWhenQueueIsFull() throws Exception {
+        // given
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        groupCommitWriter.writeTrace(new BlockingWrite(blockingLatch), false);
+        waitForQueueDepth(0);
+        // when
+        groupCommitWriter.writeTrace(new Insert(1), false);
+        groupCommitWriter.writeTrace(new Insert(2), false);
+        groupCommitWriter.writeTrace(new Insert(3), false);
+        // updates of partially stored traces are not dropped
+        groupCommitWriter.writeTrace(new Insert(4), true);
+        // then
+        assertThat(groupCommitWriter.getTraceQueueDepth()).isEqualTo(3);
+        assertThat(groupCommitWriter.getDroppedTraceCount()).isEqualTo(1);
+        blockingLatch.countDown();
+        groupCommitWriter.close();
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(3);
+        assertThat(dataSource.queryForLong("select count(*) from test where id = 3")).isZero();
+    }
+
+    @Test
+    public void shouldPropagateException() throws Exception {
+        // when
+        Exception exception = null;
+        try {
+            groupCommitWriter.writeGaugeValues(new GroupCommitWriter.Write() {
+                @Override
+                public void run() throws Exception {
+                    throw new IllegalStateException("test");
+                }
+            });
+        } catch (IllegalStateException e) {
+            exception = e;
+        }
+        // then
+        assertThat(exception).isNotNull();
+        assertThat(exception.getMessage()).isEqualTo("test");
+    }
+
+    private void waitForQueueDepth(int depth) throws InterruptedException {
+        while (groupCommitWriter.getTraceQueueDepth() != depth) {
+            MILLISECONDS.sleep(1);
+        }
+    }
+
+    private class Insert implements GroupCommitWriter.Write {
+
+        private final long id;
+
+        private Insert(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() throws Exception {
+            dataSource.update("insert into test (id) values (?)", id);
+        }
+    }
+
+    private static class BlockingWrite implements GroupCommitWriter.Write {
+
+        private final CountDownLatch latch;
+
+        private BlockingWrite(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() throws Exception {
+            latch.await();
+        }
+    }
+
+    private static class RecordingWrite implements GroupCommitWriter.Write {
+
+        private final List<String> order;
+        private final String name;
+
+        private RecordingWrite(List<String> order, String name) {
+            this.order = order;
+            this.name = name;
+        }
+
+        @Override
+        public void run() throws Exception {
+            order.add(name);
+        }
+    }
+
+    private class WriteAggregates implements Callable<Void> {
+
+        private final GroupCommitWriter.Write write;
+
+        private WriteAggregates(GroupCommitWriter.Write write) {
+            this.write = write;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            groupCommitWriter.writeAggregates(write);
+            return null;
+        }
+    }
+}
@@ -18,9 +18,14 @@ package org.glowroot.agent.embedded.repo;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -33,6 +38,7 @@ import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionSummaryCollector;
@@ -45,6 +51,7 @@ import org.glowroot.common2.repo.ImmutableRollupConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -59,6 +66,7 @@ public class AggregateDaoTest {
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
+    private ConfigRepositoryImpl configRepository;
     private AggregateDao aggregateDao;
 
     @Before
@@ -72,7 +80,7 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        configRepository = mock(ConfigRepositoryImpl.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(AdvancedConfig.getDefaultInstance());
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
@@ -82,7 +90,8 @@ public class AggregateDaoTest {
         aggregateDao = new AggregateDao(
                 dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
                         cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null, null);
     }
 
     @After
@@ -132,6 +141,340 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadOverviewAndThroughputFromTimeSeriesSegments() throws Exception {
+        // given
+        File directory = Files.createTempDir();
+        TimeSeriesStore timeSeriesStore = new TimeSeriesStore(dataSource, directory, 10);
+        aggregateDao = new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                timeSeriesStore, null);
+        // capture times 10000 and 20000 are sealed (10 second segments at rollup level 0)
+        populateAggregates();
+        storeOverallAggregate(25000, 5);
+
+        // when
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .transactionName("two")
+                .from(15000)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        List<ThroughputAggregate> throughputAggregates =
+                aggregateDao.readThroughputAggregates(AGENT_ID, query);
+        List<OverviewAggregate> transactionOverviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, transactionQuery);
+
+        // then
+        assertThat(new File(directory, "aggregate_tt-0-20000.segment")).exists();
+        assertThat(overviewAggregates).hasSize(3);
+        assertThat(overviewAggregates.get(0).captureTime()).isEqualTo(10000);
+        assertThat(overviewAggregates.get(0).totalDurationNanos()).isEqualTo(1000000);
+        assertThat(overviewAggregates.get(0).transactionCount()).isEqualTo(10);
+        assertThat(overviewAggregates.get(1).captureTime()).isEqualTo(20000);
+        assertThat(overviewAggregates.get(2).captureTime()).isEqualTo(25000);
+        assertThat(overviewAggregates.get(2).transactionCount()).isEqualTo(5);
+        assertThat(throughputAggregates).hasSize(3);
+        assertThat(throughputAggregates.get(1).transactionCount()).isEqualTo(10);
+        assertThat(throughputAggregates.get(1).errorCount()).isEqualTo(0);
+        assertThat(transactionOverviewAggregates).hasSize(1);
+        assertThat(transactionOverviewAggregates.get(0).captureTime()).isEqualTo(20000);
+        assertThat(transactionOverviewAggregates.get(0).transactionCount()).isEqualTo(2);
+
+        // when
+        aggregateDao.deleteBefore(15000, 0);
+
+        // then
+        assertThat(new File(directory, "aggregate_tt-0-10000.segment")).doesNotExist();
+        assertThat(new File(directory, "aggregate_tt-0-20000.segment")).exists();
+        assertThat(aggregateDao.readOverviewAggregates(AGENT_ID, query)).hasSize(2);
+
+        // cleanup
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldRollupIncrementally() throws Exception {
+        // given
+        aggregateDao = new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null, null, true);
+        populateAggregates();
+        storeOverallAggregate(25000, 5);
+        storeOverallAggregate(40000, 3);
+
+        // when
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .transactionName("seven")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        List<OverviewAggregate> transactionOverviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, transactionQuery);
+
+        // then
+        assertThat(overviewAggregates).hasSize(2);
+        assertThat(overviewAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overviewAggregates.get(0).transactionCount()).isEqualTo(10);
+        assertThat(overviewAggregates.get(1).captureTime()).isEqualTo(30000);
+        assertThat(overviewAggregates.get(1).transactionCount()).isEqualTo(15);
+        assertThat(overviewAggregates.get(1).totalDurationNanos()).isEqualTo(1500000);
+        assertThat(transactionOverviewAggregates).hasSize(2);
+        assertThat(transactionOverviewAggregates.get(1).transactionCount()).isEqualTo(7);
+
+        // when (partial rollup for 45000 is rebuilt after restart)
+        aggregateDao = new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null, null, true);
+        storeOverallAggregate(44000, 2);
+        storeOverallAggregate(50000, 1);
+        overviewAggregates = aggregateDao.readOverviewAggregates(AGENT_ID, query);
+
+        // then
+        assertThat(overviewAggregates).hasSize(3);
+        assertThat(overviewAggregates.get(2).captureTime()).isEqualTo(45000);
+        assertThat(overviewAggregates.get(2).transactionCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldRollupIncrementallyWithManyTransactionNames() throws Exception {
+        // given
+        aggregateDao = new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null, null, true);
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return 10000;
+            }
+            @Override
+            public void release() {}
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(5000 * 100000)
+                                .setTransactionCount(5000)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+                for (int i = 0; i < 5000; i++) {
+                    aggregateVisitor.visitTransactionAggregate("a type", "name" + i,
+                            new ArrayList<String>(), Aggregate.newBuilder()
+                                    .setTotalDurationNanos(100000)
+                                    .setTransactionCount(1)
+                                    .setDurationNanosHistogram(getFakeHistogram())
+                                    .build());
+                }
+            }
+        });
+        // the level 1 rollup can only come from the partial rollup if the level 0 rows are gone
+        dataSource.update("delete from aggregate_tt_rollup_0");
+        dataSource.update("delete from aggregate_tn_rollup_0");
+
+        // when
+        storeOverallAggregate(20000, 1);
+
+        // then
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(15000)
+                .rollupLevel(1)
+                .build();
+        TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .transactionName("name4999")
+                .from(0)
+                .to(15000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        List<OverviewAggregate> transactionOverviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, transactionQuery);
+        assertThat(overviewAggregates).hasSize(1);
+        assertThat(overviewAggregates.get(0).transactionCount()).isEqualTo(5000);
+        assertThat(transactionOverviewAggregates).hasSize(1);
+        assertThat(transactionOverviewAggregates.get(0).transactionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotDuplicateRollupAfterWatermarkIsLost() throws Exception {
+        // given
+        storeOverallAggregate(10000, 5);
+        storeOverallAggregate(20000, 3);
+        // simulate JVM termination between rollup and updating the watermark
+        dataSource.update("update aggregate_last_rollup_times set last_rollup_1_time = 0");
+        aggregateDao = new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null, null, false);
+
+        // when
+        storeOverallAggregate(35000, 2);
+
+        // then
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        assertThat(overviewAggregates).hasSize(2);
+        assertThat(overviewAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overviewAggregates.get(0).transactionCount()).isEqualTo(5);
+        assertThat(overviewAggregates.get(1).captureTime()).isEqualTo(30000);
+        assertThat(overviewAggregates.get(1).transactionCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldRollupTransactionTypesInParallel() throws Exception {
+        // given
+        RollupScheduler rollupScheduler = new RollupScheduler(2);
+        aggregateDao = new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null, rollupScheduler, false);
+        populateAggregates();
+        storeOverallAggregate("another type", 25000, 5);
+        storeOverallAggregate(40000, 3);
+
+        // when
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        TransactionQuery anotherQuery = ImmutableTransactionQuery.builder()
+                .transactionType("another type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .transactionName("seven")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        List<OverviewAggregate> anotherOverviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, anotherQuery);
+        List<OverviewAggregate> transactionOverviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, transactionQuery);
+
+        // then
+        assertThat(overviewAggregates).hasSize(2);
+        assertThat(overviewAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overviewAggregates.get(0).transactionCount()).isEqualTo(10);
+        assertThat(overviewAggregates.get(1).captureTime()).isEqualTo(30000);
+        assertThat(overviewAggregates.get(1).transactionCount()).isEqualTo(10);
+        assertThat(anotherOverviewAggregates).hasSize(1);
+        assertThat(anotherOverviewAggregates.get(0).captureTime()).isEqualTo(30000);
+        assertThat(anotherOverviewAggregates.get(0).transactionCount()).isEqualTo(5);
+        assertThat(transactionOverviewAggregates).hasSize(2);
+        assertThat(transactionOverviewAggregates.get(1).transactionCount()).isEqualTo(7);
+
+        // cleanup
+        rollupScheduler.close();
+    }
+
+    @Test
+    public void shouldRollupConcurrentlyWithDefrag() throws Exception {
+        // given
+        File tempDir = Files.createTempDir();
+        final DataSource dataSource = new DataSource(new File(tempDir, "data.h2.db"), 2);
+        aggregateDao = new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null, null, false);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        // when
+        Future<?> rollupFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 1; i <= 40; i++) {
+                    storeOverallAggregate(i * 5000, 1);
+                }
+                return null;
+            }
+        });
+        Future<?> defragFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < 10; i++) {
+                    dataSource.defrag();
+                }
+                return null;
+            }
+        });
+
+        // then
+        defragFuture.get(60, SECONDS);
+        rollupFuture.get(60, SECONDS);
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(200000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        long transactionCount = 0;
+        for (OverviewAggregate overviewAggregate : overviewAggregates) {
+            transactionCount += overviewAggregate.transactionCount();
+        }
+        // capture times up to 195000 have been rolled up (200000 is not safe to roll up yet)
+        assertThat(transactionCount).isEqualTo(39);
+
+        // cleanup
+        executor.shutdown();
+        dataSource.close();
+        for (File file : tempDir.listFiles()) {
+            file.delete();
+        }
+        tempDir.delete();
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -140,6 +483,8 @@ public class AggregateDaoTest {
                 return 10000;
             }
             @Override
+            public void release() {}
+            @Override
             public void accept(AggregateVisitor aggregateVisitor) throws Exception {
                 aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
                         Aggregate.newBuilder()
@@ -178,6 +523,8 @@ public class AggregateDaoTest {
                 return 20000;
             }
             @Override
+            public void release() {}
+            @Override
             public void accept(AggregateVisitor aggregateVisitor) throws Exception {
                 aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
                         Aggregate.newBuilder()
@@ -211,6 +558,32 @@ public class AggregateDaoTest {
         });
     }
 
+    private void storeOverallAggregate(long captureTime, int transactionCount)
+            throws Exception {
+        storeOverallAggregate("a type", captureTime, transactionCount);
+    }
+
+    private void storeOverallAggregate(final String transactionType, final long captureTime,
+            final int transactionCount) throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void release() {}
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate(transactionType, new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(transactionCount * 100000)
+                                .setTransactionCount(transactionCount)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+            }
+        });
+    }
+
     // used by TransactionCommonServiceTest
     public AggregateRepository getAggregateRepository() {
         return aggregateDao;
@@ -16,8 +16,10 @@
 package org.glowroot.agent.embedded.repo;
 
 import java.io.File;
+import java.util.List;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -27,14 +29,20 @@ import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.Entries;
+import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.HeaderPlus;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.Proto;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -286,6 +294,106 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTracesUsingSearchIndex() throws Exception {
+        // given
+        TraceDao traceDao = new TraceDao(dataSource, cappedDatabase,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), true, false);
+        storeTrace(traceDao, 1000, "GET /alpha", 10);
+        storeTrace(traceDao, HOURS.toMillis(1) + 1000, "GET /beta", 20);
+        // this causes the first two (hourly) buckets to be flushed to the trace_search_bucket
+        // table
+        storeTrace(traceDao, HOURS.toMillis(3) + 1000, "GET /alpha/x", 5);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(HOURS.toMillis(5))
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("alpha")
+                .build();
+        TracePointFilter noFilter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 10);
+        Result<TracePoint> slowestResult = traceDao.readSlowPoints(AGENT_ID, query, noFilter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(2);
+        assertThat(queryResult.records().get(0).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(10));
+        assertThat(queryResult.records().get(1).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(5));
+        assertThat(slowestResult.records()).hasSize(1);
+        assertThat(slowestResult.records().get(0).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(20));
+        assertThat(slowestResult.moreAvailable()).isTrue();
+
+        // when (unflushed bucket is rebuilt after restart)
+        traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class), true, false);
+        queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 10);
+
+        // then
+        assertThat(queryResult.records()).hasSize(2);
+
+        // cleanup
+        dataSource.execute("drop table trace_search_bucket");
+        dataSource.execute("drop table trace_search_flushed");
+    }
+
+    @Test
+    public void shouldReadEncodedEntries() throws Exception {
+        // given
+        TraceDao traceDao = new TraceDao(dataSource, cappedDatabase,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), false, true);
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 2)
+                    .setStartOffsetNanos(i * 100)
+                    .setDurationNanos(50)
+                    .setMessage("select 1 from dual")
+                    .addDetailEntry(Trace.DetailEntry.newBuilder()
+                            .setName("rows")
+                            .addValue(Trace.DetailValue.newBuilder().setLong(i % 3)))
+                    .addLocationStackTraceElement(Proto.StackTraceElement.newBuilder()
+                            .setClassName("com.example.Dao")
+                            .setMethodName("find")
+                            .setFileName("Dao.java")
+                            .setLineNumber(42))
+                    .addLocationStackTraceElement(Proto.StackTraceElement.newBuilder()
+                            .setClassName("com.example.Service")
+                            .setMethodName("find")
+                            .setFileName("Service.java")
+                            .setLineNumber(i))
+                    .build());
+        }
+        entries.add(Trace.Entry.newBuilder()
+                .setStartOffsetNanos(2000)
+                .setActive(true)
+                .setError(Trace.Error.newBuilder()
+                        .setMessage("boom"))
+                .build());
+        TraceReader traceReader =
+                TraceTestData.createTraceReader(TraceTestData.createTraceHeader(), entries);
+        traceDao.store(traceReader);
+
+        // when
+        HeaderPlus headerPlus = traceDao.readHeaderPlus(AGENT_ID, traceReader.traceId());
+        Entries readEntries = traceDao.readEntries(AGENT_ID, traceReader.traceId());
+
+        // then
+        assertThat(headerPlus.entriesExistence()).isEqualTo(Existence.YES);
+        assertThat(readEntries.entries()).isEqualTo(entries);
+    }
+
     @Test
     public void shouldDeletedTrace() throws Exception {
         // given
@@ -296,4 +404,14 @@ public class TraceDaoTest {
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ID, traceReader.traceId())).isNull();
     }
+
+    private static void storeTrace(TraceDao traceDao, long captureTime, String headline,
+            long durationMillis) throws Exception {
+        Trace.Header header = TraceTestData.createTraceHeader().toBuilder()
+                .setCaptureTime(captureTime)
+                .setHeadline(headline)
+                .setDurationNanos(MILLISECONDS.toNanos(durationMillis))
+                .build();
+        traceDao.store(TraceTestData.createTraceReader(header));
+    }
 }
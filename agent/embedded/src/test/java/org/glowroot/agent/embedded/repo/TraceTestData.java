@@ -15,8 +15,11 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.List;
 import java.util.UUID;
 
+import com.google.common.collect.ImmutableList;
+
 import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.common.util.Styles;
@@ -28,11 +31,15 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 class TraceTestData {
 
     static TraceReader createTraceReader() {
-        return new TraceReaderImpl(createTraceHeader());
+        return new TraceReaderImpl(createTraceHeader(), ImmutableList.<Trace.Entry>of());
     }
 
     static TraceReader createTraceReader(Trace.Header header) {
-        return new TraceReaderImpl(header);
+        return new TraceReaderImpl(header, ImmutableList.<Trace.Entry>of());
+    }
+
+    static TraceReader createTraceReader(Trace.Header header, List<Trace.Entry> entries) {
+        return new TraceReaderImpl(header, entries);
     }
 
     static Trace.Header createTraceHeader() {
@@ -69,9 +76,11 @@ class TraceTestData {
 
         private final String traceId;
         private final Trace.Header header;
+        private final List<Trace.Entry> entries;
 
-        private TraceReaderImpl(Trace.Header header) {
+        private TraceReaderImpl(Trace.Header header, List<Trace.Entry> entries) {
             this.header = header;
+            this.entries = entries;
             traceId = UUID.randomUUID().toString();
         }
 
@@ -97,6 +106,9 @@ class TraceTestData {
 
         @Override
         public void accept(TraceVisitor traceVisitor) throws Exception {
+            for (Trace.Entry entry : entries) {
+                traceVisitor.visitEntry(entry);
+            }
             traceVisitor.visitHeader(header);
         }
     }
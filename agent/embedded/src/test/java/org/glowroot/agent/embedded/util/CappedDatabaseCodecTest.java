@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CappedDatabaseCodecTest {
+
+    private File tempFile;
+    private File dictionariesFile;
+    private CappedDatabase cappedDatabase;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        dictionariesFile = new File(tempFile.getPath() + ".dictionaries");
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        if (cappedDatabase != null) {
+            cappedDatabase.close();
+        }
+        tempFile.delete();
+        dictionariesFile.delete();
+    }
+
+    @Test
+    public void shouldWriteAndReadWithEachCodec() throws Exception {
+        for (CappedDatabaseCodec codec : CappedDatabaseCodec.values()) {
+            // given
+            open(codec, new CappedDatabaseDictionaries(dictionariesFile, 1, 1000));
+            // when
+            long cappedId1 = write(1);
+            long cappedId2 = write(2);
+            // then
+            assertThat(cappedDatabase.read(cappedId1).read()).isEqualTo(block(1));
+            assertThat(cappedDatabase.read(cappedId2).read()).isEqualTo(block(2));
+            cappedDatabase.close();
+            cappedDatabase = null;
+        }
+    }
+
+    @Test
+    public void shouldReadBlocksWrittenWithPriorCodec() throws Exception {
+        // given
+        open(CappedDatabaseCodec.LZF, new CappedDatabaseDictionaries(dictionariesFile));
+        long lzfCappedId = write(1);
+        cappedDatabase.close();
+        open(CappedDatabaseCodec.DEFLATE, new CappedDatabaseDictionaries(dictionariesFile));
+        long deflateCappedId = write(2);
+        cappedDatabase.close();
+        // when
+        open(CappedDatabaseCodec.LZF, new CappedDatabaseDictionaries(dictionariesFile));
+        // then
+        assertThat(cappedDatabase.read(lzfCappedId).read()).isEqualTo(block(1));
+        assertThat(cappedDatabase.read(deflateCappedId).read()).isEqualTo(block(2));
+    }
+
+    @Test
+    public void shouldTrainDictionary() throws Exception {
+        // given
+        open(CappedDatabaseCodec.DEFLATE_DICTIONARY,
+                new CappedDatabaseDictionaries(dictionariesFile, 2, 1000));
+        write(1);
+        write(2);
+        // when
+        long cappedId = write(3);
+        // then
+        CappedDatabaseStats deflateStats = cappedDatabase.getStatsByCodec().get("deflate");
+        CappedDatabaseStats dictionaryStats =
+                cappedDatabase.getStatsByCodec().get("deflate-dictionary");
+        assertThat(deflateStats.getWriteCount()).isEqualTo(2);
+        assertThat(dictionaryStats.getWriteCount()).isEqualTo(1);
+        assertThat(dictionaryStats.getCompressionRatio())
+                .isGreaterThan(deflateStats.getCompressionRatio());
+        // and dictionary is still available after restart
+        cappedDatabase.close();
+        open(CappedDatabaseCodec.LZF, new CappedDatabaseDictionaries(dictionariesFile));
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(block(3));
+        assertThat(cappedDatabase.getStatsByCodec().get("deflate-dictionary").getReadCount())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void shouldPruneDictionariesOfOverwrittenBlocks() throws Exception {
+        // given
+        CappedDatabaseDictionaries dictionaries =
+                new CappedDatabaseDictionaries(dictionariesFile, 1, 1);
+        open(CappedDatabaseCodec.DEFLATE_DICTIONARY, dictionaries);
+        // when
+        long cappedId = 0;
+        for (int i = 0; i < 200; i++) {
+            cappedId = write(i);
+        }
+        // then
+        assertThat(dictionaries.getDictionaryCount()).isLessThan(50);
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(block(199));
+        cappedDatabase.close();
+        open(CappedDatabaseCodec.DEFLATE_DICTIONARY,
+                new CappedDatabaseDictionaries(dictionariesFile, 1, 1));
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(block(199));
+    }
+
+    private void open(CappedDatabaseCodec codec, CappedDatabaseDictionaries dictionaries)
+            throws IOException {
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), false, codec,
+                dictionaries);
+    }
+
+    private long write(int i) throws IOException {
+        return cappedDatabase.write(ByteSource.wrap(block(i).getBytes(UTF_8)), "test");
+    }
+
+    private static String block(int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 5; j++) {
+            sb.append("jdbc query: select name, value from table_");
+            sb.append(i % 3);
+            sb.append(" where id = ");
+            sb.append(i * 31 + j);
+            sb.append(" => ");
+            sb.append(j);
+            sb.append(" rows\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.CappedDatabase.CappedBlockRolledOverMidReadException;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CappedDatabaseMappedTest {
+
+    private File tempFile;
+    private CappedDatabase cappedDatabase;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker(), true);
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        cappedDatabase.close();
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldWrite() throws Exception {
+        // given
+        String text = "0123456789";
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldWrapAndKeepGoing() throws Exception {
+        // given
+        String text = createRandomText();
+        for (int i = 0; i < 5; i++) {
+            cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        }
+
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldWrapOverOldBlocks() throws Exception {
+        // given
+        String text = createRandomText();
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        for (int i = 0; i < 4; i++) {
+            cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        }
+
+        // then
+        assertThat(cappedDatabase.isExpired(cappedId)).isTrue();
+        String exceptionClassName = null;
+        try {
+            cappedDatabase.read(cappedId).read();
+        } catch (Exception e) {
+            exceptionClassName = e.getClass().getName();
+        }
+        assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
+                + "$CappedBlockRolledOverMidReadException");
+    }
+
+    @Test
+    public void shouldBeReadableWithoutMemoryMapping() throws Exception {
+        // given
+        String text = createRandomText();
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // when
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker(), false);
+
+        // then
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker(), true);
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldWrapAndThenResizeSmaller() throws Exception {
+        shouldWrapAndResize(1);
+    }
+
+    @Test
+    public void shouldWrapAndThenResizeLarger() throws Exception {
+        shouldWrapAndResize(3);
+    }
+
+    @Test
+    public void shouldReadWhileWriting() throws Exception {
+        // given
+        final String text = createRandomText();
+        final long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // when
+        Future<Integer> future = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int successfulReads = 0;
+                while (!done.get()) {
+                    String text2;
+                    try {
+                        text2 = cappedDatabase.read(cappedId).read();
+                    } catch (IOException e) {
+                        assertThat(cappedDatabase.isExpired(cappedId)).isTrue();
+                        continue;
+                    }
+                    // any read that completes must not have seen partially overwritten data
+                    assertThat(text2).isEqualTo(text);
+                    successfulReads++;
+                }
+                return successfulReads;
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        }
+        done.set(true);
+
+        // then
+        future.get();
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldReadAndWriteAcrossSegments() throws Exception {
+        // given
+        File file = File.createTempFile("glowroot-test-", ".capped.db");
+        CappedDatabaseMappedFile mappedFile = new CappedDatabaseMappedFile(file, 1, 100);
+        byte[] bytes = createRandomText().getBytes(UTF_8);
+
+        // when
+        long cappedId = 0;
+        for (int i = 0; i < 3; i++) {
+            mappedFile.startBlock();
+            mappedFile.write(bytes);
+            cappedId = mappedFile.endBlock();
+        }
+
+        // then
+        InputStream in = mappedFile.newBlockInputStream(cappedId);
+        assertThat(ByteStreams.toByteArray(in)).isEqualTo(bytes);
+        mappedFile.close();
+        file.delete();
+    }
+
+    @Test(expected = CappedBlockRolledOverMidReadException.class)
+    public void shouldNotReadOverwrittenBlockAfterResizeSmallerInPlace() throws Exception {
+        // given
+        File file = File.createTempFile("glowroot-test-", ".capped.db");
+        CappedDatabaseMappedFile mappedFile = new CappedDatabaseMappedFile(file, 4, 1 << 30);
+        byte[] bytes = new byte[500];
+        mappedFile.startBlock();
+        mappedFile.write(bytes);
+        long cappedId = mappedFile.endBlock();
+        InputStream in = mappedFile.newBlockInputStream(cappedId);
+        in.read(new byte[100]);
+
+        // when
+        // resize smaller before the data has wrapped is done in place, after which subsequent
+        // writes wrap around the new (smaller) size and overwrite the block being read
+        mappedFile.resize(1);
+        for (int i = 0; i < 2; i++) {
+            mappedFile.startBlock();
+            mappedFile.write(bytes);
+            mappedFile.endBlock();
+        }
+
+        // then
+        try {
+            in.read(new byte[100]);
+        } finally {
+            mappedFile.close();
+            file.delete();
+        }
+    }
+
+    private void shouldWrapAndResize(int newSizeKb) throws Exception {
+        // when
+        String text = createRandomText();
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        cappedDatabase.resize(newSizeKb);
+
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+        long cappedId2 = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        assertThat(cappedDatabase.read(cappedId2).read()).isEqualTo(text);
+
+        // also test close and re-open
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker(), true);
+        text2 = cappedDatabase.read(cappedId2).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    private static String createRandomText() {
+        // use random text so that the lzf compressed text is also large and forces wrapping
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DataSourceReadConnectionTest {
+
+    private File tempDir;
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        tempDir = Files.createTempDir();
+        dataSource = new DataSource(new File(tempDir, "data.h2.db"), 2);
+        dataSource.execute("create table test (id bigint)");
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+        for (File file : tempDir.listFiles()) {
+            file.delete();
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void shouldReadCommittedWrites() throws Exception {
+        // when
+        dataSource.update("insert into test (id) values (?)", 1);
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReadUncommittedWritesDuringGroupCommit() throws Exception {
+        // when
+        dataSource.beginGroupCommit();
+        dataSource.update("insert into test (id) values (?)", 1);
+        long count = dataSource.queryForLong("select count(*) from test");
+        dataSource.endGroupCommit();
+        // then
+        assertThat(count).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReadConcurrently() throws Exception {
+        // given
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        dataSource.update("insert into test (id) values (?)", 1);
+        // when
+        Callable<Long> query = new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long count = 0;
+                for (int i = 0; i < 100; i++) {
+                    count += dataSource.queryForLong("select count(*) from test");
+                }
+                return count;
+            }
+        };
+        for (int i = 0; i < 4; i++) {
+            executor.submit(query);
+        }
+        executor.shutdown();
+        // then
+        assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+        H2QueryStats stats = getQueryStats("select count(*) from test");
+        assertThat(stats.getExecutionCount()).isEqualTo(400);
+    }
+
+    @Test
+    public void shouldDefragWithReadConnections() throws Exception {
+        // given
+        dataSource.update("insert into test (id) values (?)", 1);
+        // when
+        dataSource.defrag();
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+    }
+
+    // this is what happens when a rollup (which writes from its query callback) runs concurrently
+    // with defrag (which holds the lock while closing the read connections)
+    @Test
+    public void shouldDefragWhileQueryCallbackWrites() throws Exception {
+        // given
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        dataSource.update("insert into test (id) values (?)", 1);
+        final CountDownLatch inCallback = new CountDownLatch(1);
+        // when
+        Future<Long> queryFuture = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return dataSource.query(new JdbcQuery<Long>() {
+                    @Override
+                    public String getSql() {
+                        return "select id from test";
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) {}
+                    @Override
+                    public Long processResultSet(ResultSet resultSet) throws Exception {
+                        long id = 0;
+                        while (resultSet.next()) {
+                            id = resultSet.getLong(1);
+                        }
+                        inCallback.countDown();
+                        // give defrag time to acquire the lock
+                        Thread.sleep(200);
+                        dataSource.update("insert into test (id) values (?)", id + 1);
+                        return id;
+                    }
+                    @Override
+                    public Long valueIfDataSourceClosed() {
+                        return 0L;
+                    }
+                });
+            }
+        });
+        inCallback.await();
+        Future<?> defragFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.defrag();
+                return null;
+            }
+        });
+        // then
+        defragFuture.get(10, SECONDS);
+        assertThat(queryFuture.get(10, SECONDS)).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        executor.shutdown();
+    }
+
+    // this is what happens when partial rollup recovery (see IncrementalRollup) runs a rollup from
+    // its query callback
+    @Test
+    public void shouldRunNestedQueryWithSingleReadConnection() throws Exception {
+        // given
+        dataSource.close();
+        dataSource = new DataSource(new File(tempDir, "data.h2.db"), 1);
+        dataSource.update("insert into test (id) values (?)", 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // when
+        Future<Long> queryFuture = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return dataSource.query(new JdbcQuery<Long>() {
+                    @Override
+                    public String getSql() {
+                        return "select id from test";
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) {}
+                    @Override
+                    public Long processResultSet(ResultSet resultSet) throws Exception {
+                        long count = 0;
+                        while (resultSet.next()) {
+                            count += dataSource.queryForLong("select count(*) from test");
+                        }
+                        return count;
+                    }
+                    @Override
+                    public Long valueIfDataSourceClosed() {
+                        return 0L;
+                    }
+                });
+            }
+        });
+        // then
+        assertThat(queryFuture.get(10, SECONDS)).isEqualTo(1);
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldRecordQueryStats() throws Exception {
+        // when
+        dataSource.update("insert into test (id) values (?)", 1);
+        dataSource.update("insert into test (id) values (?)", 2);
+        dataSource.queryForLong("select count(*) from test");
+        // then
+        assertThat(getQueryStats("insert into test (id) values (?)").getExecutionCount())
+                .isEqualTo(2);
+        H2QueryStats stats = getQueryStats("select count(*) from test");
+        assertThat(stats.getExecutionCount()).isEqualTo(1);
+        assertThat(stats.getMaxMillis()).isEqualTo(stats.getTotalMillis());
+    }
+
+    private H2QueryStats getQueryStats(String sql) {
+        for (H2QueryStats stats : dataSource.getQueryStats()) {
+            if (stats.getSql().equals(sql)) {
+                return stats;
+            }
+        }
+        throw new AssertionError("Query stats not found: " + sql);
+    }
+}
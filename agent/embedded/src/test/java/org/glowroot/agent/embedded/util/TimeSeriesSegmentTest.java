@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.TimeSeriesSegment.Series;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimeSeriesSegmentTest {
+
+    private File file;
+
+    @Before
+    public void onBefore() throws IOException {
+        file = File.createTempFile("glowroot-test-", ".segment");
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadWhatWasWritten() throws Exception {
+        // given
+        Random random = new Random(0);
+        long[] captureTimes = new long[500];
+        double[][] values = new double[3][500];
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < captureTimes.length; i++) {
+            // mostly regular intervals, with some jitter and some gaps
+            if (i % 50 == 0) {
+                captureTime += 86400000L * random.nextInt(10);
+            } else if (i % 7 == 0) {
+                captureTime += 60000 + random.nextInt(4000) - 2000;
+            } else {
+                captureTime += 60000;
+            }
+            captureTimes[i] = captureTime;
+            values[0][i] = i % 10 == 0 ? Double.NaN : random.nextDouble() * 1000000;
+            values[1][i] = i / 20;
+            values[2][i] = i % 3 == 0 ? -i : i;
+        }
+        TimeSeriesSegment.Writer writer = new TimeSeriesSegment.Writer(file, 3, 1);
+        for (int i = 0; i < captureTimes.length; i++) {
+            byte[] bytes = i % 4 == 0 ? null : ("row " + i).getBytes(UTF_8);
+            writer.add("a", captureTimes[i],
+                    new double[] {values[0][i], values[1][i], values[2][i]}, bytes);
+        }
+        writer.add("b", 123, new double[] {1, 2, 3}, new byte[0]);
+        assertThat(writer.close()).isTrue();
+
+        // when
+        Series a = TimeSeriesSegment.read(file, "a", 3, 1);
+        Series b = TimeSeriesSegment.read(file, "b", 3, 1);
+        Series c = TimeSeriesSegment.read(file, "c", 3, 1);
+
+        // then
+        assertThat(a.size()).isEqualTo(captureTimes.length);
+        for (int i = 0; i < captureTimes.length; i++) {
+            assertThat(a.getCaptureTime(i)).isEqualTo(captureTimes[i]);
+            for (int j = 0; j < 3; j++) {
+                assertThat(Double.doubleToRawLongBits(a.getDouble(j, i)))
+                        .isEqualTo(Double.doubleToRawLongBits(values[j][i]));
+            }
+            if (i % 4 == 0) {
+                assertThat(a.getBytes(0, i)).isNull();
+            } else {
+                assertThat(new String(a.getBytes(0, i), UTF_8)).isEqualTo("row " + i);
+            }
+        }
+        assertThat(a.getNullableDouble(0, 0)).isNull();
+        assertThat(a.getMin(1)).isEqualTo(0);
+        assertThat(a.getMax(1)).isEqualTo(24);
+        assertThat(a.getMin(2)).isEqualTo(-498);
+        assertThat(a.getMax(2)).isEqualTo(499);
+        assertThat(b.size()).isEqualTo(1);
+        assertThat(b.getCaptureTime(0)).isEqualTo(123);
+        assertThat(b.getDouble(2, 0)).isEqualTo(3);
+        assertThat(b.getBytes(0, 0)).isEmpty();
+        assertThat(c).isNull();
+    }
+
+    @Test
+    public void shouldEncodeRegularSeriesCompactly() throws Exception {
+        // given
+        TimeSeriesSegment.Writer writer = new TimeSeriesSegment.Writer(file, 1, 0);
+        for (int i = 0; i < 1000; i++) {
+            writer.add("a", 1500000000000L + i * 60000L, new double[] {42});
+        }
+        // when
+        writer.close();
+        // then
+        // one bit per capture time and one bit per value after the first of each
+        assertThat(file.length()).isLessThan(400);
+        assertThat(TimeSeriesSegment.read(file, "a", 1, 0).getCaptureTime(999))
+                .isEqualTo(1500000000000L + 999 * 60000L);
+    }
+
+    @Test
+    public void shouldNotWriteEmptySegment() throws Exception {
+        // given
+        file.delete();
+        TimeSeriesSegment.Writer writer = new TimeSeriesSegment.Writer(file, 1, 0);
+        // when
+        boolean written = writer.close();
+        // then
+        assertThat(written).isFalse();
+        assertThat(file).doesNotExist();
+        assertThat(new File(file.getPath() + ".tmp")).doesNotExist();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectUnexpectedColumns() throws Exception {
+        // given
+        TimeSeriesSegment.Writer writer = new TimeSeriesSegment.Writer(file, 1, 0);
+        writer.add("a", 1, new double[] {1});
+        writer.close();
+        // when
+        TimeSeriesSegment.read(file, "a", 2, 0);
+    }
+}
@@ -208,7 +208,7 @@ public class CentralModule {
             });
             rollupService = new RollupService(repos.getAgentDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    clusterManager, clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getAgentDao(),
                     repos.getConfigRepository(), repos.getIncidentDao(), alertingService,
                     repos.getSyntheticResultDao(), ticker, clock, version);
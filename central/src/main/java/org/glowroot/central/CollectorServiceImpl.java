@@ -43,6 +43,7 @@ import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.V09AgentRollupDao;
+import org.glowroot.central.util.Session;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -300,9 +301,13 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             responseObserver.onError(new Exception());
             return;
         }
+        // the per agent semaphore only limits each agent to one collection at a time, the total
+        // number of concurrent cassandra queries is limited by the session's ingest budget
+        Session.setBudget(Session.Budget.INGEST);
         try {
             runnable.run();
         } finally {
+            Session.setBudget(null);
             semaphore.release();
         }
     }
@@ -16,10 +16,11 @@
 package org.glowroot.central;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
@@ -31,6 +32,9 @@ import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupOwnership;
+import org.glowroot.central.util.Session;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.AgentRollupRepository.AgentRollup;
 
@@ -40,32 +44,44 @@ class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final int WORKER_THREADS =
+            Integer.getInteger("glowroot.central.rollup.threads", 4);
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final CentralAlertingService centralAlertingService;
+    private final ClusterManager clusterManager;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+
+    private volatile RollupOwnership ownership;
 
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
             SyntheticResultDao syntheticResultDao, CentralAlertingService centralAlertingService,
-            Clock clock) {
+            ClusterManager clusterManager, Clock clock) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
+        this.clusterManager = clusterManager;
         this.clock = clock;
+        ownership = RollupOwnership.create(clusterManager);
+        clusterManager.addMembershipListener(this::onMembershipChange);
+        workerExecutor = Executors.newFixedThreadPool(WORKER_THREADS);
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
 
     @Override
     public void run() {
+        Session.setBudget(Session.Budget.ROLLUP);
         while (!closed) {
             try {
                 Thread.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
@@ -82,11 +98,22 @@ class RollupService implements Runnable {
 
     void close() throws InterruptedException {
         closed = true;
-        // shutdownNow() is needed here to send interrupt to RollupService thread
+        // shutdownNow() is needed here to send interrupt to RollupService threads
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Timed out waiting for rollup thread to terminate");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for rollup worker threads to terminate");
+        }
+    }
+
+    private void onMembershipChange() {
+        ownership = RollupOwnership.create(clusterManager);
+        logger.info("central cluster membership changed, rollups are now partitioned across {}"
+                + " central node(s)", ownership.getNodeCount());
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -94,30 +121,56 @@ class RollupService implements Runnable {
             timer = "outer rollup loop")
     private void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(agentDao.readRecentlyActiveAgentRollups(7))) {
-            rollupAggregates(agentRollup);
-            rollupGauges(agentRollup);
-            rollupSyntheticMonitors(agentRollup);
-            // checking aggregate and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length (and alerts on rollups are not checked
-            // anywhere else)
-            //
-            // agent (not rollup) alerts are also checked right after receiving the respective data
-            // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
-            // minute in case no data has been received from the agent recently
-            checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+        // refresh in case a membership change was missed (e.g. transport started after this
+        // service was constructed)
+        ownership = RollupOwnership.create(clusterManager);
+        // children are rolled up before their parent, so ownership is by top-level agent rollup
+        // which keeps each agent rollup tree on a single node
+        List<Future<?>> futures = new ArrayList<>();
+        for (AgentRollup agentRollup : agentDao.readRecentlyActiveAgentRollups(7)) {
+            if (ownership.isOwned(agentRollup.id())) {
+                futures.add(workerExecutor.submit(() -> {
+                    Session.setBudget(Session.Budget.ROLLUP);
+                    rollup(agentRollup);
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
         }
         // FIXME keep this here as fallback, but also resolve alerts immediately when they are
         // deleted (or when their condition is updated)
         centralAlertingService.checkForAllDeletedAlerts();
     }
 
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Agent rollup", traceHeadline = "Agent rollup: {{0.id}}",
+            timer = "agent rollup")
+    private void rollup(AgentRollup agentRollup) throws Exception {
+        if (!ownership.isOwned(agentRollup.id())) {
+            // ownership moved to another central node since this was queued
+            return;
+        }
+        rollupAggregates(agentRollup);
+        rollupGauges(agentRollup);
+        rollupSyntheticMonitors(agentRollup);
+        // checking aggregate and gauge alerts after rollup since their calculation can depend
+        // on rollups depending on time period length (and alerts on rollups are not checked
+        // anywhere else)
+        //
+        // agent (not rollup) alerts are also checked right after receiving the respective data
+        // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
+        // minute in case no data has been received from the agent recently
+        checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+    }
+
     private void rollupAggregates(AgentRollup agentRollup) throws InterruptedException {
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
             rollupAggregates(childAgentRollup);
         }
         try {
@@ -180,12 +233,6 @@ class RollupService implements Runnable {
                 agentRollup.display(), clock.currentTimeMillis());
     }
 
-    private static <T> List<T> shuffle(List<T> agentRollups) {
-        List<T> mutable = new ArrayList<>(agentRollups);
-        Collections.shuffle(mutable);
-        return mutable;
-    }
-
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
@@ -46,6 +46,9 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.repo.IngestRollup.PartialAggregate;
+import org.glowroot.central.repo.IngestRollup.PartialRollup;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
@@ -229,15 +232,38 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private final ImmutableList<Table> allTables;
 
+    private final @Nullable IngestRollup ingestRollup;
+
+    private final @Nullable ChartCache<OverviewAggregate> overviewChartCache;
+    private final @Nullable ChartCache<PercentileAggregate> percentileChartCache;
+    private final @Nullable ChartCache<ThroughputAggregate> throughputChartCache;
+
     AggregateDaoImpl(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepositoryImpl configRepository, Clock clock)
-            throws Exception {
+            FullQueryTextDao fullQueryTextDao, ConfigRepositoryImpl configRepository,
+            ClusterManager clusterManager, Clock clock) throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
         this.clock = clock;
+        ingestRollup = IngestRollup.ENABLED ? new IngestRollup(clusterManager, clock) : null;
+        if (ChartCache.ENABLED) {
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            overviewChartCache = new ChartCache<>("overviewChartCache", clusterManager,
+                    rollupConfigs, clock, this::readOverviewAggregatesInternal,
+                    OverviewAggregate::captureTime);
+            percentileChartCache = new ChartCache<>("percentileChartCache", clusterManager,
+                    rollupConfigs, clock, this::readPercentileAggregatesInternal,
+                    PercentileAggregate::captureTime);
+            throughputChartCache = new ChartCache<>("throughputChartCache", clusterManager,
+                    rollupConfigs, clock, this::readThroughputAggregatesInternal,
+                    ThroughputAggregate::captureTime);
+        } else {
+            overviewChartCache = null;
+            percentileChartCache = null;
+            throughputChartCache = null;
+        }
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
@@ -459,25 +485,32 @@ public class AggregateDaoImpl implements AggregateDao {
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+            // statements are collected so that statements sharing the same partition key can be
+            // batched together (see Session.executeBatchedAsync())
+            List<BoundStatement> statements = new ArrayList<>();
+            storeOverallAggregate(agentId, transactionType, captureTime, overallAggregate,
+                    sharedQueryTexts, adjustedTTL, statements);
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL,
+                        statements);
             }
+            futures.addAll(session.executeBatchedAsync(statements));
             // wait for success before proceeding in order to ensure cannot end up with
             // "no overview table records found" during a transactionName rollup, since
             // transactionName rollups are based on finding transactionName in summary table
             MoreFutures.waitForAll(futures);
             futures.clear();
+            statements.clear();
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionSummary(agentId, transactionType,
+                storeTransactionSummary(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), adjustedTTL));
+                        transactionAggregate.getAggregate(), adjustedTTL, statements);
             }
+            futures.addAll(session.executeBatchedAsync(statements));
             futures.addAll(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
         }
         futures.add(agentDao.insert(agentIdForMeta, captureTime));
@@ -516,6 +549,15 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.executeAsync(boundStatement));
         MoreFutures.waitForAll(futures);
+
+        if (ingestRollup != null && agentRollupIds.size() > 1
+                && ingestRollup.isOwned(agentRollupIds.get(agentRollupIds.size() - 1))) {
+            String parentAgentRollupId = agentRollupIds.get(1);
+            ingestRollup.add(parentAgentRollupId, agentId, captureTime, aggregatesByTypeList,
+                    sharedQueryTexts,
+                    getMaxQueryAggregatesPerTransactionAggregate(parentAgentRollupId),
+                    getMaxServiceCallAggregatesPerTransactionAggregate(parentAgentRollupId));
+        }
     }
 
     // query.from() is non-inclusive
@@ -602,6 +644,15 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
+        if (overviewChartCache != null) {
+            return overviewChartCache.read(agentRollupId, query);
+        }
+        return readOverviewAggregatesInternal(agentRollupId, query);
+    }
+
+    // query.from() is INCLUSIVE
+    private List<OverviewAggregate> readOverviewAggregatesInternal(String agentRollupId,
+            TransactionQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, overviewTable);
         List<OverviewAggregate> overviewAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -653,6 +704,15 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
+        if (percentileChartCache != null) {
+            return percentileChartCache.read(agentRollupId, query);
+        }
+        return readPercentileAggregatesInternal(agentRollupId, query);
+    }
+
+    // query.from() is INCLUSIVE
+    private List<PercentileAggregate> readPercentileAggregatesInternal(String agentRollupId,
+            TransactionQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, histogramTable);
         List<PercentileAggregate> percentileAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -676,6 +736,15 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
+        if (throughputChartCache != null) {
+            return throughputChartCache.read(agentRollupId, query);
+        }
+        return readThroughputAggregatesInternal(agentRollupId, query);
+    }
+
+    // query.from() is INCLUSIVE
+    private List<ThroughputAggregate> readThroughputAggregatesInternal(String agentRollupId,
+            TransactionQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, throughputTable);
         List<ThroughputAggregate> throughputAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -855,14 +924,23 @@ public class AggregateDaoImpl implements AggregateDao {
             TTL adjustedTTL = getAdjustedTTL(ttl, captureTime, clock);
             RollupParams rollupParams =
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
+            IngestRollup.Interval ingestedInterval =
+                    ingestRollup == null ? null : ingestRollup.remove(agentRollupId, captureTime);
             List<Future<?>> futures = new ArrayList<>();
             for (Map.Entry<String, Collection<String>> entry : needsRollupFromChildren.getKeys()
                     .asMap()
                     .entrySet()) {
                 String transactionType = entry.getKey();
                 Collection<String> childAgentRollupIds = entry.getValue();
-                futures.addAll(rollupOneFromChildren(rollupParams, transactionType,
-                        childAgentRollupIds, captureTime));
+                PartialRollup partialRollup = ingestedInterval == null ? null
+                        : ingestedInterval.get(transactionType, childAgentRollupIds);
+                if (partialRollup == null) {
+                    futures.addAll(rollupOneFromChildren(rollupParams, transactionType,
+                            childAgentRollupIds, captureTime));
+                } else {
+                    futures.addAll(rollupOneFromIngest(rollupParams, transactionType,
+                            partialRollup, captureTime));
+                }
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
@@ -961,6 +1039,61 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
+    // writes the same rows as rollupOneFromChildren(), but from the partial rollup that was
+    // accumulated while storing the children's aggregates, instead of reading back the child rows
+    private List<Future<?>> rollupOneFromIngest(RollupParams rollup, String transactionType,
+            PartialRollup partialRollup, long captureTime) throws Exception {
+
+        ImmutableTransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .from(captureTime)
+                .to(captureTime)
+                .rollupLevel(rollup.rollupLevel()) // rolling up from same level (which is always 0)
+                .build();
+        List<Future<?>> futures = new ArrayList<>();
+
+        PartialAggregate overallAggregate = partialRollup.getOverallAggregate();
+        MutableAggregate aggregate = overallAggregate.getAggregate();
+        futures.addAll(insertOverallSummary(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount()));
+        if (aggregate.getErrorCount() > 0) {
+            futures.addAll(insertErrorSummary(rollup, query, aggregate.getErrorCount(),
+                    overallAggregate.getErrorSummaryTransactionCount()));
+        }
+
+        Map<String, MutableSummary> summaries = new HashMap<>();
+        Map<String, MutableErrorSummary> errorSummaries = new HashMap<>();
+        for (Map.Entry<String, PartialAggregate> entry : partialRollup.getTransactionAggregates()
+                .entrySet()) {
+            PartialAggregate transactionAggregate = entry.getValue();
+            aggregate = transactionAggregate.getAggregate();
+            MutableSummary summary = new MutableSummary();
+            summary.totalDurationNanos = aggregate.getTotalDurationNanos();
+            summary.transactionCount = aggregate.getTransactionCount();
+            summaries.put(entry.getKey(), summary);
+            if (aggregate.getErrorCount() > 0) {
+                MutableErrorSummary errorSummary = new MutableErrorSummary();
+                errorSummary.errorCount = aggregate.getErrorCount();
+                errorSummary.transactionCount =
+                        transactionAggregate.getErrorSummaryTransactionCount();
+                errorSummaries.put(entry.getKey(), errorSummary);
+            }
+        }
+        futures.addAll(insertTransactionSummaries(rollup, query, summaries));
+        futures.addAll(insertTransactionErrorSummaries(rollup, query, errorSummaries));
+
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        futures.addAll(insertOtherParts(rollup, query, overallAggregate.getAggregate(),
+                scratchBuffer));
+
+        for (Map.Entry<String, PartialAggregate> entry : partialRollup.getTransactionAggregates()
+                .entrySet()) {
+            futures.addAll(insertOtherParts(rollup, query.withTransactionName(entry.getKey()),
+                    entry.getValue().getAggregate(), scratchBuffer));
+        }
+        return futures;
+    }
+
     private List<Future<?>> rollupOne(RollupParams rollup, String transactionType, long from,
             long to) throws Exception {
 
@@ -1020,6 +1153,44 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
+    private List<Future<?>> insertOtherParts(RollupParams rollup, TransactionQuery query,
+            MutableAggregate aggregate, ScratchBuffer scratchBuffer) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        futures.addAll(insertOverview(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.isAsyncTransactions(),
+                aggregate.getMainThreadRootTimersProto(), aggregate.getAuxThreadRootTimersProto(),
+                aggregate.getAsyncTimersProto(), aggregate.getMainThreadStats(),
+                aggregate.getAuxThreadStats()));
+        futures.addAll(insertHistogram(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.getDurationNanosHistogram(),
+                scratchBuffer));
+        futures.addAll(insertThroughput(rollup, query, aggregate.getTransactionCount(), false,
+                aggregate.getErrorCount()));
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            futures.addAll(insertQueries(queries.getSortedAndTruncatedQueries(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        ServiceCallCollector serviceCalls = aggregate.getServiceCalls();
+        if (serviceCalls != null) {
+            futures.addAll(insertServiceCalls(serviceCalls.getSortedAndTruncatedServiceCalls(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        MutableProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            futures.addAll(
+                    insertThreadProfile(rollup, query, mainThreadProfileTable, mainThreadProfile));
+        }
+        MutableProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            futures.addAll(
+                    insertThreadProfile(rollup, query, auxThreadProfileTable, auxThreadProfile));
+        }
+        return futures;
+    }
+
     private List<Future<?>> rollupOverallSummary(RollupParams rollup, TransactionQuery query)
             throws Exception {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, summaryTable);
@@ -1052,6 +1223,11 @@ public class AggregateDaoImpl implements AggregateDao {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
         }
+        return insertOverallSummary(rollup, query, totalDurationNanos, transactionCount);
+    }
+
+    private List<Future<?>> insertOverallSummary(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1091,6 +1267,11 @@ public class AggregateDaoImpl implements AggregateDao {
             errorCount += row.getLong(0);
             transactionCount += row.getLong(1);
         }
+        return insertErrorSummary(rollup, query, errorCount, transactionCount);
+    }
+
+    private List<Future<?>> insertErrorSummary(RollupParams rollup, TransactionQuery query,
+            long errorCount, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1138,7 +1319,6 @@ public class AggregateDaoImpl implements AggregateDao {
     private List<Future<?>> rollupTransactionSummaryFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows, List<String> transactionNames)
             throws Exception {
-        BoundStatement boundStatement;
         Map<String, MutableSummary> summaries = new HashMap<>();
         for (Row row : rows) {
             int i = 0;
@@ -1151,6 +1331,13 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.totalDurationNanos += row.getDouble(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        transactionNames.addAll(summaries.keySet());
+        return insertTransactionSummaries(rollup, query, summaries);
+    }
+
+    private List<Future<?>> insertTransactionSummaries(RollupParams rollup,
+            TransactionQuery query, Map<String, MutableSummary> summaries) throws Exception {
+        BoundStatement boundStatement;
         List<Future<?>> futures = new ArrayList<>();
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(summaryTable, rollup.rollupLevel());
@@ -1167,7 +1354,6 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
             futures.add(session.executeAsync(boundStatement));
         }
-        transactionNames.addAll(summaries.keySet());
         return futures;
     }
 
@@ -1197,7 +1383,6 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> rollupTransactionErrorSummaryFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows) throws Exception {
-        BoundStatement boundStatement;
         Map<String, MutableErrorSummary> summaries = new HashMap<>();
         for (Row row : rows) {
             int i = 0;
@@ -1210,6 +1395,13 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.errorCount += row.getLong(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        return insertTransactionErrorSummaries(rollup, query, summaries);
+    }
+
+    private List<Future<?>> insertTransactionErrorSummaries(RollupParams rollup,
+            TransactionQuery query, Map<String, MutableErrorSummary> summaries)
+            throws Exception {
+        BoundStatement boundStatement;
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel());
         List<Future<?>> futures = new ArrayList<>();
@@ -1288,6 +1480,17 @@ public class AggregateDaoImpl implements AggregateDao {
             auxThreadStats.addTotalWaitedNanos(row.get(i++, Double.class));
             auxThreadStats.addTotalAllocatedBytes(row.get(i++, Double.class));
         }
+        return insertOverview(rollup, query, totalDurationNanos, transactionCount,
+                asyncTransactions, MutableAggregate.toProto(mainThreadRootTimers),
+                MutableAggregate.toProto(auxThreadRootTimers),
+                MutableAggregate.toProto(asyncTimers), mainThreadStats, auxThreadStats);
+    }
+
+    private List<Future<?>> insertOverview(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount, boolean asyncTransactions,
+            List<Aggregate.Timer> mainThreadRootTimers, List<Aggregate.Timer> auxThreadRootTimers,
+            List<Aggregate.Timer> asyncTimers, MutableThreadStats mainThreadStats,
+            MutableThreadStats auxThreadStats) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
@@ -1307,20 +1510,17 @@ public class AggregateDaoImpl implements AggregateDao {
         if (mainThreadRootTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(mainThreadRootTimers));
         }
         if (auxThreadRootTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(auxThreadRootTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(auxThreadRootTimers));
         }
         if (asyncTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(asyncTimers));
         }
         boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
@@ -1370,6 +1570,13 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(i++));
             durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(bytes));
         }
+        return insertHistogram(rollup, query, totalDurationNanos, transactionCount,
+                durationNanosHistogram, scratchBuffer);
+    }
+
+    private List<Future<?>> insertHistogram(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount, LazyHistogram durationNanosHistogram,
+            ScratchBuffer scratchBuffer) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
@@ -1429,6 +1636,13 @@ public class AggregateDaoImpl implements AggregateDao {
                 errorCount += row.getLong(1);
             }
         }
+        return insertThroughput(rollup, query, transactionCount, hasMissingErrorCount,
+                errorCount);
+    }
+
+    private List<Future<?>> insertThroughput(RollupParams rollup, TransactionQuery query,
+            long transactionCount, boolean hasMissingErrorCount, long errorCount)
+            throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
@@ -1554,6 +1768,11 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(bytes));
         }
+        return insertThreadProfile(rollup, query, table, profile);
+    }
+
+    private List<Future<?>> insertThreadProfile(RollupParams rollup, TransactionQuery query,
+            Table table, MutableProfile profile) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1595,13 +1814,12 @@ public class AggregateDaoImpl implements AggregateDao {
         return rows;
     }
 
-    private List<Future<?>> storeOverallAggregate(String agentRollupId, String transactionType,
+    private void storeOverallAggregate(String agentRollupId, String transactionType,
             long captureTime, Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts,
-            TTL adjustedTTL) throws Exception {
+            TTL adjustedTTL, List<BoundStatement> statements) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1610,7 +1828,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1621,7 +1839,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1630,7 +1848,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1641,7 +1859,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1651,7 +1869,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1662,7 +1880,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1673,22 +1891,21 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel, agentRollupId,
+                transactionType, null, captureTime, adjustedTTL, statements);
+        insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel, agentRollupId,
+                transactionType, null, captureTime, adjustedTTL, statements);
     }
 
-    private List<Future<?>> storeTransactionAggregate(String agentRollupId, String transactionType,
+    private void storeTransactionAggregate(String agentRollupId, String transactionType,
             String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
+            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL,
+            List<BoundStatement> statements) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1696,7 +1913,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1708,7 +1925,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1719,7 +1936,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1731,7 +1948,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1743,22 +1960,20 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel, agentRollupId,
+                transactionType, transactionName, captureTime, adjustedTTL, statements);
+        insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel, agentRollupId,
+                transactionType, transactionName, captureTime, adjustedTTL, statements);
     }
 
-    private List<Future<?>> storeTransactionSummary(String agentRollupId, String transactionType,
-            String transactionName, long captureTime, Aggregate aggregate, TTL adjustedTTL)
-            throws Exception {
+    private void storeTransactionSummary(String agentRollupId, String transactionType,
+            String transactionName, long captureTime, Aggregate aggregate, TTL adjustedTTL,
+            List<BoundStatement> statements) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1768,7 +1983,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1780,16 +1995,14 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        return futures;
     }
 
-    private List<Future<?>> insertQueries(List<Aggregate.Query> queries,
+    private void insertQueries(List<Aggregate.Query> queries,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
-            TTL adjustedTTL) throws Exception {
-        List<Future<?>> futures = new ArrayList<>();
+            TTL adjustedTTL, List<BoundStatement> statements) throws Exception {
         for (Aggregate.Query query : queries) {
             Aggregate.SharedQueryText sharedQueryText =
                     sharedQueryTexts.get(query.getSharedQueryTextIndex());
@@ -1824,9 +2037,8 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        return futures;
     }
 
     private List<Future<?>> insertQueries(List<MutableQuery> queries, int rollupLevel,
@@ -1865,10 +2077,10 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
-    private List<Future<?>> insertServiceCallsProto(List<Aggregate.ServiceCall> serviceCalls,
+    private void insertServiceCallsProto(List<Aggregate.ServiceCall> serviceCalls,
             int rollupLevel, String agentRollupId, String transactionType,
-            @Nullable String transactionName, long captureTime, TTL adjustedTTL) throws Exception {
-        List<Future<?>> futures = new ArrayList<>();
+            @Nullable String transactionName, long captureTime, TTL adjustedTTL,
+            List<BoundStatement> statements) throws Exception {
         for (Aggregate.ServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1888,9 +2100,8 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
             boundStatement.setLong(i++, serviceCall.getExecutionCount());
             boundStatement.setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.executeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        return futures;
     }
 
     private List<Future<?>> insertServiceCalls(List<MutableServiceCall> serviceCalls,
@@ -2129,7 +2340,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static List<Aggregate.Query> getQueries(Aggregate aggregate) {
+    static List<Aggregate.Query> getQueries(Aggregate aggregate) {
         List<Aggregate.OldQueriesByType> queriesByTypeList = aggregate.getOldQueriesByTypeList();
         if (queriesByTypeList.isEmpty()) {
             return aggregate.getQueryList();
@@ -2149,7 +2360,7 @@ public class AggregateDaoImpl implements AggregateDao {
         return queries;
     }
 
-    private static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
+    static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
         List<Aggregate.OldServiceCallsByType> serviceCallsByTypeList =
                 aggregate.getOldServiceCallsByTypeList();
         if (serviceCallsByTypeList.isEmpty()) {
@@ -99,7 +99,7 @@ public class CentralRepoModule {
         }
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, agentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, clusterManager, clock);
         GaugeValueDaoImpl gaugeValueDaoImpl =
                 new GaugeValueDaoImpl(session, configRepository, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl =
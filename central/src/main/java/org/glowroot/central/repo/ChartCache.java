@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.Cache;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// read-through cache of chart data, the time range of each query is split into fixed capture time
+// buckets, and buckets that can no longer change (because they are far enough in the past to have
+// received all of their data and to have been rolled up) are cached, while the trailing part of
+// the time range is always read from cassandra
+//
+// agents that reconnect after an outage can still send (and trigger rollups of) data that is old
+// enough to already be cached, which is why cached buckets also expire after a while
+class ChartCache<T> {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.central.chartCache");
+
+    private static final int MAX_SIZE =
+            Integer.getInteger("glowroot.central.chartCache.maxSize", 10000);
+
+    private static final int EXPIRATION_MINUTES = 60;
+
+    private static final int INTERVALS_PER_BUCKET = 60;
+
+    // time after the end of an interval before it is treated as immutable, in addition to the
+    // interval itself, which leaves time for the data to arrive and for the rollup to run
+    private static final long IMMUTABLE_DELAY_MILLIS = MINUTES.toMillis(10);
+
+    private final List<RollupConfig> rollupConfigs;
+    private final Clock clock;
+    private final ChartReader<T> reader;
+    private final ToLongFunction<T> captureTimeFunction;
+
+    private final Cache<BucketKey, List<T>> cache;
+
+    ChartCache(String cacheName, ClusterManager clusterManager, List<RollupConfig> rollupConfigs,
+            Clock clock, ChartReader<T> reader, ToLongFunction<T> captureTimeFunction) {
+        this.rollupConfigs = rollupConfigs;
+        this.clock = clock;
+        this.reader = reader;
+        this.captureTimeFunction = captureTimeFunction;
+        cache = clusterManager.createSizeLimitedCache(cacheName, MAX_SIZE, EXPIRATION_MINUTES,
+                this::load);
+    }
+
+    // query.from() is INCLUSIVE
+    List<T> read(String agentRollupId, TransactionQuery query) throws Exception {
+        long intervalMillis = rollupConfigs.get(query.rollupLevel()).intervalMillis();
+        long bucketMillis = intervalMillis * INTERVALS_PER_BUCKET;
+        long immutableTime = clock.currentTimeMillis() - intervalMillis - IMMUTABLE_DELAY_MILLIS;
+        List<T> results = new ArrayList<>();
+        long from = query.from();
+        // buckets are (bucketStart, bucketStart + bucketMillis]
+        long bucketStart = Math.floorDiv(from - 1, bucketMillis) * bucketMillis;
+        while (from <= query.to()) {
+            long bucketEnd = bucketStart + bucketMillis;
+            if (bucketEnd > immutableTime) {
+                // trailing part of the time range (possibly still in progress) is read live
+                results.addAll(reader.read(agentRollupId, ImmutableTransactionQuery.builder()
+                        .copyFrom(query)
+                        .from(from)
+                        .build()));
+                return results;
+            }
+            BucketKey key = ImmutableBucketKey.builder()
+                    .agentRollupId(agentRollupId)
+                    .transactionType(query.transactionType())
+                    .transactionName(query.transactionName())
+                    .rollupLevel(query.rollupLevel())
+                    .from(bucketStart + 1)
+                    .to(bucketEnd)
+                    .build();
+            for (T row : cache.get(key)) {
+                long captureTime = captureTimeFunction.applyAsLong(row);
+                if (captureTime >= from && captureTime <= query.to()) {
+                    results.add(row);
+                }
+            }
+            from = bucketEnd + 1;
+            bucketStart = bucketEnd;
+        }
+        return results;
+    }
+
+    private List<T> load(BucketKey key) throws Exception {
+        return reader.read(key.agentRollupId(), ImmutableTransactionQuery.builder()
+                .transactionType(key.transactionType())
+                .transactionName(key.transactionName())
+                .from(key.from())
+                .to(key.to())
+                .rollupLevel(key.rollupLevel())
+                .build());
+    }
+
+    interface ChartReader<T> {
+        // query.from() is INCLUSIVE
+        List<T> read(String agentRollupId, TransactionQuery query) throws Exception;
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    interface BucketKey extends Serializable {
+        String agentRollupId();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+        long from(); // inclusive
+        long to();
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupOwnership;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// folds each agent's aggregates, as they are stored, into in-memory partial rollups for the
+// agent's parent agent rollup, so that the parent's rollup from children (see
+// AggregateDaoImpl.rollupFromChildren()) can write the parent rows directly instead of reading
+// back the rows of every child
+//
+// partial rollups are only kept on the central node that owns the parent's agent rollup tree (see
+// RollupOwnership), since no other node will ever use them
+//
+// a partial rollup is only used if it contains exactly the children listed in the parent's
+// "needs rollup from child" records for the interval, otherwise (e.g. late data, children whose
+// aggregates were received by a different central node, an agent re-sending an interval, or the
+// interval not being tracked because too many intervals were pending) the rollup falls back to
+// reading back the child rows
+class IngestRollup {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.central.ingestRollup");
+
+    // the parent is rolled up from children within a minute or so after the end of the interval
+    // (see RollupService), so partial rollups that have not been used a few minutes after that are
+    // assumed to be abandoned, e.g. because ownership moved to a different central node or the
+    // rollup failed (in which case the retry falls back to reading back the child rows anyways)
+    private static final long EXPIRATION_MILLIS = MINUTES.toMillis(5);
+    private static final long PURGE_INTERVAL_MILLIS = MINUTES.toMillis(1);
+
+    // each interval holds the merged aggregates of all transaction names of an agent rollup, so
+    // this caps the memory in case rollups fall behind
+    private static final int MAX_INTERVALS =
+            Integer.getInteger("glowroot.central.ingestRollup.maxIntervals", 1000);
+
+    private final Clock clock;
+
+    private final ConcurrentMap<IntervalKey, Interval> intervals = new ConcurrentHashMap<>();
+
+    private volatile RollupOwnership ownership;
+
+    private volatile long lastPurgeTime;
+
+    IngestRollup(ClusterManager clusterManager, Clock clock) {
+        this.clock = clock;
+        ownership = RollupOwnership.create(clusterManager);
+        clusterManager.addMembershipListener(
+                () -> ownership = RollupOwnership.create(clusterManager));
+    }
+
+    boolean isOwned(String topLevelAgentRollupId) {
+        return ownership.isOwned(topLevelAgentRollupId);
+    }
+
+    // must be called after the child's "needs rollup from child" record has been inserted, so
+    // that a partial rollup can never contain a child that the rollup does not know about
+    void add(String agentRollupId, String childAgentRollupId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int maxQueryAggregates,
+            int maxServiceCallAggregates) {
+        purgeExpiredIfNeeded();
+        IntervalKey key = ImmutableIntervalKey.of(agentRollupId, captureTime);
+        while (true) {
+            Interval interval = intervals.get(key);
+            if (interval == null) {
+                if (intervals.size() >= MAX_INTERVALS) {
+                    // the size check races with other threads, but only by a few intervals
+                    return;
+                }
+                interval = intervals.computeIfAbsent(key, k -> new Interval());
+            }
+            synchronized (interval) {
+                if (interval.closed) {
+                    // the interval was rolled up concurrently, this is now late data for a new
+                    // interval instance
+                    intervals.remove(key, interval);
+                    continue;
+                }
+                for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                    interval.add(childAgentRollupId, aggregatesByType, sharedQueryTexts,
+                            maxQueryAggregates, maxServiceCallAggregates);
+                }
+                return;
+            }
+        }
+    }
+
+    // the returned interval is no longer modified
+    @Nullable
+    Interval remove(String agentRollupId, long captureTime) {
+        Interval interval = intervals.remove(ImmutableIntervalKey.of(agentRollupId, captureTime));
+        if (interval == null) {
+            return null;
+        }
+        synchronized (interval) {
+            interval.closed = true;
+        }
+        return interval;
+    }
+
+    private void purgeExpiredIfNeeded() {
+        long currentTime = clock.currentTimeMillis();
+        if (currentTime - lastPurgeTime < PURGE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPurgeTime = currentTime;
+        Iterator<IntervalKey> i = intervals.keySet().iterator();
+        while (i.hasNext()) {
+            if (i.next().captureTime() < currentTime - EXPIRATION_MILLIS) {
+                i.remove();
+            }
+        }
+    }
+
+    private static void merge(MutableAggregate mergedAggregate, Aggregate aggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        // same as reading back the child rows, where missing thread stats are stored as null
+        Aggregate.ThreadStats mainThreadStats = aggregate.getMainThreadStats();
+        mergedAggregate.addMainThreadTotalCpuNanos(mainThreadStats.hasTotalCpuNanos()
+                ? mainThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalBlockedNanos(mainThreadStats.hasTotalBlockedNanos()
+                ? mainThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalWaitedNanos(mainThreadStats.hasTotalWaitedNanos()
+                ? mainThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalAllocatedBytes(mainThreadStats.hasTotalAllocatedBytes()
+                ? mainThreadStats.getTotalAllocatedBytes().getValue() : null);
+        Aggregate.ThreadStats auxThreadStats = aggregate.getAuxThreadStats();
+        mergedAggregate.addAuxThreadTotalCpuNanos(auxThreadStats.hasTotalCpuNanos()
+                ? auxThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalBlockedNanos(auxThreadStats.hasTotalBlockedNanos()
+                ? auxThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalWaitedNanos(auxThreadStats.hasTotalWaitedNanos()
+                ? auxThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalAllocatedBytes(auxThreadStats.hasTotalAllocatedBytes()
+                ? auxThreadStats.getTotalAllocatedBytes().getValue() : null);
+        mergedAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.Query query : AggregateDaoImpl.getQueries(aggregate)) {
+            Aggregate.SharedQueryText sharedQueryText =
+                    sharedQueryTexts.get(query.getSharedQueryTextIndex());
+            // same as the query text and sha1 that are stored in the child rows
+            String fullTextSha1 = sharedQueryText.getFullTextSha1();
+            String truncatedText;
+            if (fullTextSha1.isEmpty()) {
+                truncatedText = sharedQueryText.getFullText();
+            } else {
+                truncatedText = sharedQueryText.getTruncatedText();
+            }
+            mergedAggregate.mergeQuery(query.getType(), truncatedText,
+                    fullTextSha1.isEmpty() ? null : fullTextSha1, query.getTotalDurationNanos(),
+                    query.getExecutionCount(), query.hasTotalRows(),
+                    query.getTotalRows().getValue());
+        }
+        for (Aggregate.ServiceCall serviceCall : AggregateDaoImpl.getServiceCalls(aggregate)) {
+            mergedAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                    serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mergedAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mergedAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    static class Interval {
+
+        // transaction type -> partial rollup
+        private final Map<String, PartialRollup> partialRollups = new HashMap<>();
+
+        private boolean closed;
+
+        // returns null if the partial rollup cannot be used in place of reading back the child
+        // rows
+        synchronized @Nullable PartialRollup get(String transactionType,
+                Collection<String> childAgentRollupIds) {
+            PartialRollup partialRollup = partialRollups.get(transactionType);
+            if (partialRollup == null || partialRollup.duplicateChild) {
+                return null;
+            }
+            Set<String> expectedChildAgentRollupIds = new HashSet<>(childAgentRollupIds);
+            if (!partialRollup.childAgentRollupIds.equals(expectedChildAgentRollupIds)) {
+                return null;
+            }
+            return partialRollup;
+        }
+
+        private void add(String childAgentRollupId, OldAggregatesByType aggregatesByType,
+                List<Aggregate.SharedQueryText> sharedQueryTexts, int maxQueryAggregates,
+                int maxServiceCallAggregates) {
+            String transactionType = aggregatesByType.getTransactionType();
+            PartialRollup partialRollup = partialRollups.get(transactionType);
+            if (partialRollup == null) {
+                partialRollup = new PartialRollup(maxQueryAggregates, maxServiceCallAggregates);
+                partialRollups.put(transactionType, partialRollup);
+            }
+            if (!partialRollup.childAgentRollupIds.add(childAgentRollupId)) {
+                // the child re-sent the interval, its child rows were overwritten, but the
+                // partial rollup cannot remove the prior contribution
+                partialRollup.duplicateChild = true;
+                return;
+            }
+            partialRollup.overallAggregate.add(aggregatesByType.getOverallAggregate(),
+                    sharedQueryTexts);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                partialRollup.getTransactionAggregate(transactionAggregate.getTransactionName())
+                        .add(transactionAggregate.getAggregate(), sharedQueryTexts);
+            }
+        }
+    }
+
+    static class PartialRollup {
+
+        private final Set<String> childAgentRollupIds = new HashSet<>();
+        private boolean duplicateChild;
+
+        private final int maxQueryAggregates;
+        private final int maxServiceCallAggregates;
+
+        private final PartialAggregate overallAggregate;
+        private final Map<String, PartialAggregate> transactionAggregates = new HashMap<>();
+
+        private PartialRollup(int maxQueryAggregates, int maxServiceCallAggregates) {
+            this.maxQueryAggregates = maxQueryAggregates;
+            this.maxServiceCallAggregates = maxServiceCallAggregates;
+            overallAggregate = new PartialAggregate(maxQueryAggregates, maxServiceCallAggregates);
+        }
+
+        PartialAggregate getOverallAggregate() {
+            return overallAggregate;
+        }
+
+        Map<String, PartialAggregate> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+
+        private PartialAggregate getTransactionAggregate(String transactionName) {
+            PartialAggregate transactionAggregate = transactionAggregates.get(transactionName);
+            if (transactionAggregate == null) {
+                transactionAggregate =
+                        new PartialAggregate(maxQueryAggregates, maxServiceCallAggregates);
+                transactionAggregates.put(transactionName, transactionAggregate);
+            }
+            return transactionAggregate;
+        }
+    }
+
+    static class PartialAggregate {
+
+        private final MutableAggregate aggregate;
+
+        // error summary rows are only stored for children that had errors, so when reading back
+        // the child rows, the error summary transaction count only includes those children
+        private long errorSummaryTransactionCount;
+
+        private PartialAggregate(int maxQueryAggregates, int maxServiceCallAggregates) {
+            aggregate = new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+        }
+
+        MutableAggregate getAggregate() {
+            return aggregate;
+        }
+
+        long getErrorSummaryTransactionCount() {
+            return errorSummaryTransactionCount;
+        }
+
+        private void add(Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            merge(this.aggregate, aggregate, sharedQueryTexts);
+            if (aggregate.getErrorCount() > 0) {
+                errorSummaryTransactionCount += aggregate.getTransactionCount();
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface IntervalKey {
+        String agentRollupId();
+        long captureTime();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import com.google.common.annotations.VisibleForTesting;
+
+// concurrency limit that adapts to observed query latency
+//
+// the limit follows the ratio between the long term (baseline) latency and the short term
+// latency, so it shrinks as soon as queries start queuing up inside cassandra (or the driver), and
+// grows back (by roughly the square root of the limit per sample) once latency returns to the
+// baseline, timeouts and overloaded errors additionally cut the limit multiplicatively
+class AdaptiveLimiter {
+
+    // short term latency tolerated relative to the baseline before the limit starts shrinking
+    private static final double TOLERANCE = 2;
+
+    private static final double SHORT_TERM_ALPHA = 0.1;
+    private static final double LONG_TERM_ALPHA = 0.002;
+    private static final double SMOOTHING = 0.2;
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    // all fields below are guarded by this
+    private double limit;
+    private int inFlight;
+    private double shortTermLatencyNanos;
+    private double longTermLatencyNanos;
+
+    AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = initialLimit;
+    }
+
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    // used when blocking is not an option (e.g. inside of cassandra driver callbacks), which can
+    // temporarily push the number of queries in flight over the limit
+    synchronized void acquireWithoutWaiting() {
+        inFlight++;
+    }
+
+    synchronized void onSuccess(long latencyNanos) {
+        release();
+        if (longTermLatencyNanos == 0) {
+            shortTermLatencyNanos = latencyNanos;
+            longTermLatencyNanos = latencyNanos;
+            return;
+        }
+        shortTermLatencyNanos += (latencyNanos - shortTermLatencyNanos) * SHORT_TERM_ALPHA;
+        longTermLatencyNanos += (latencyNanos - longTermLatencyNanos) * LONG_TERM_ALPHA;
+        if (longTermLatencyNanos > TOLERANCE * shortTermLatencyNanos) {
+            // latency has recovered, so let the baseline catch up faster than the long term
+            // average would, otherwise a past period of overload would keep the limit too high
+            longTermLatencyNanos *= 0.95;
+        }
+        double gradient = Math.max(0.5,
+                Math.min(1, TOLERANCE * longTermLatencyNanos / shortTermLatencyNanos));
+        if (gradient == 1 && inFlight < limit / 2) {
+            // no evidence that a higher limit would be used, so don't grow it
+            return;
+        }
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        setLimit(limit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+    }
+
+    // timeouts and overloaded errors
+    synchronized void onDropped() {
+        release();
+        setLimit(limit * BACKOFF_RATIO);
+    }
+
+    // any other errors, which say nothing about the load on cassandra
+    synchronized void onIgnored() {
+        release();
+    }
+
+    @VisibleForTesting
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    private void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private void setLimit(double newLimit) {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+}
@@ -59,6 +59,11 @@ public class CassandraWriteMetrics {
 
     private final Map<String, WriteMetrics> writeMetrics = new ConcurrentHashMap<>();
 
+    // unlogged (same partition) batches, see Session.executeBatchedAsync()
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedStatementCount = new AtomicLong();
+    private final AtomicLong batchedBytes = new AtomicLong();
+
     private final ThreadLocal</*@Nullable*/ String> currTransactionType = new ThreadLocal<>();
     private final ThreadLocal</*@Nullable*/ String> currTransactionName = new ThreadLocal<>();
 
@@ -82,7 +87,7 @@ public class CassandraWriteMetrics {
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
                         .build())
-                .scheduleAtFixedRate(writeMetrics::clear,
+                .scheduleAtFixedRate(this::clear,
                         millisUntilNextMidnightUTC, DAYS.toMillis(1), MILLISECONDS);
     }
 
@@ -141,6 +146,33 @@ public class CassandraWriteMetrics {
         return getCassandraDataWritten(perTableMetrics.nestedWriteMetricsMap, limit);
     }
 
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public double getStatementsPerBatch() {
+        long batchCount = this.batchCount.get();
+        return batchCount == 0 ? 0 : batchedStatementCount.get() / (double) batchCount;
+    }
+
+    public double getBytesPerBatch() {
+        long batchCount = this.batchCount.get();
+        return batchCount == 0 ? 0 : batchedBytes.get() / (double) batchCount;
+    }
+
+    void recordBatchMetrics(int statementCount, long bytes) {
+        batchCount.incrementAndGet();
+        batchedStatementCount.addAndGet(statementCount);
+        batchedBytes.addAndGet(bytes);
+    }
+
+    private void clear() {
+        writeMetrics.clear();
+        batchCount.set(0);
+        batchedStatementCount.set(0);
+        batchedBytes.set(0);
+    }
+
     void recordMetrics(Statement statement) {
         try {
             recordMetricsInternal(statement);
@@ -17,7 +17,9 @@ package org.glowroot.central.util;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -28,6 +30,8 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.infinispan.configuration.cache.CacheMode;
@@ -36,6 +40,9 @@ import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
+import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
 import org.infinispan.remoting.transport.Address;
 import org.infinispan.util.function.SerializableFunction;
 import org.infinispan.util.function.TriConsumer;
@@ -45,6 +52,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.central.util.Cache.CacheLoader;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public abstract class ClusterManager {
@@ -74,14 +82,32 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createCache(
             String cacheName, CacheLoader<K, V> loader);
 
+    // evicts the least recently used entries beyond maxSize, and expires entries the given number
+    // of minutes after they were loaded
+    public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSizeLimitedCache(
+            String cacheName, int maxSize, int expirationMinutes, CacheLoader<K, V> loader);
+
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> ConcurrentMap<K, V> createReplicatedMap(
             String mapName);
 
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    // the id of this central node, unique within the cluster
+    public abstract String getLocalNodeId();
+
+    // the ids of all central nodes that are currently members of the cluster (including this node)
+    public abstract List<String> getNodeIds();
+
+    public abstract void addMembershipListener(MembershipListener listener);
+
     public abstract void close() throws InterruptedException;
 
+    public interface MembershipListener {
+        // called when a central node joins or leaves the cluster
+        void onChange();
+    }
+
     private static class ClusterManagerImpl extends ClusterManager {
 
         private final EmbeddedCacheManager cacheManager;
@@ -107,6 +133,20 @@ public abstract class ClusterManager {
             return new CacheImpl<K, V>(cacheManager.getCache(cacheName), loader);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSizeLimitedCache(
+                String cacheName, int maxSize, int expirationMinutes, CacheLoader<K, V> loader) {
+            ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
+            configurationBuilder.clustering()
+                    .cacheMode(CacheMode.INVALIDATION_ASYNC);
+            configurationBuilder.memory()
+                    .size(maxSize);
+            configurationBuilder.expiration()
+                    .lifespan(expirationMinutes, MINUTES);
+            cacheManager.defineConfiguration(cacheName, configurationBuilder.build());
+            return new CacheImpl<K, V>(cacheManager.getCache(cacheName), loader);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> ConcurrentMap<K, V> createReplicatedMap(
                 String mapName) {
@@ -127,6 +167,31 @@ public abstract class ClusterManager {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public String getLocalNodeId() {
+            Address address = cacheManager.getAddress();
+            return address == null ? NonClusterManager.LOCAL_NODE_ID : address.toString();
+        }
+
+        @Override
+        public List<String> getNodeIds() {
+            List<Address> members = cacheManager.getMembers();
+            if (members == null) {
+                // transport not started (yet)
+                return ImmutableList.of(getLocalNodeId());
+            }
+            List<String> nodeIds = new ArrayList<>();
+            for (Address member : members) {
+                nodeIds.add(member.toString());
+            }
+            return nodeIds;
+        }
+
+        @Override
+        public void addMembershipListener(MembershipListener listener) {
+            cacheManager.addListener(new ViewChangedListener(listener));
+        }
+
         @Override
         public void close() throws InterruptedException {
             cacheManager.stop();
@@ -181,12 +246,25 @@ public abstract class ClusterManager {
 
     private static class NonClusterManager extends ClusterManager {
 
+        private static final String LOCAL_NODE_ID = "local";
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createCache(
                 String cacheName, CacheLoader<K, V> loader) {
             return new NonClusterCacheImpl<K, V>(new ConcurrentHashMap<>(), loader);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSizeLimitedCache(
+                String cacheName, int maxSize, int expirationMinutes, CacheLoader<K, V> loader) {
+            ConcurrentMap<K, V> cache = CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .expireAfterWrite(expirationMinutes, MINUTES)
+                    .<K, V>build()
+                    .asMap();
+            return new NonClusterCacheImpl<K, V>(cache, loader);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
                 String cacheName) {
@@ -199,10 +277,41 @@ public abstract class ClusterManager {
             return new ConcurrentHashMap<>();
         }
 
+        @Override
+        public String getLocalNodeId() {
+            return LOCAL_NODE_ID;
+        }
+
+        @Override
+        public List<String> getNodeIds() {
+            return ImmutableList.of(LOCAL_NODE_ID);
+        }
+
+        @Override
+        public void addMembershipListener(MembershipListener listener) {
+            // membership never changes
+        }
+
         @Override
         public void close() {}
     }
 
+    // infinispan requires listener classes to be public
+    @Listener
+    public static class ViewChangedListener {
+
+        private final MembershipListener listener;
+
+        private ViewChangedListener(MembershipListener listener) {
+            this.listener = listener;
+        }
+
+        @ViewChanged
+        public void viewChanged(@SuppressWarnings("unused") ViewChangedEvent event) {
+            listener.onChange();
+        }
+    }
+
     private static class CacheImpl<K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object>
             implements Cache<K, V> {
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// maps keys to nodes so that when a node joins or leaves, only the keys owned by that node move
+// (instead of nearly all keys, as with hash modulo node count), each node is placed on the ring
+// many times so that keys are spread evenly even with a small number of nodes
+public class ConsistentHashRing {
+
+    private static final HashFunction hashFunction = Hashing.murmur3_32();
+
+    // parallel arrays sorted by hash
+    private final int[] hashes;
+    private final String[] nodeIds;
+
+    public ConsistentHashRing(Collection<String> nodeIds, int virtualNodesPerNode) {
+        checkArgument(!nodeIds.isEmpty(), "nodeIds must not be empty");
+        checkArgument(virtualNodesPerNode > 0, "virtualNodesPerNode must be positive");
+        // on the (very unlikely) hash collision the lower node id wins, so that all nodes agree
+        Map<Integer, String> ring = new TreeMap<>();
+        for (String nodeId : nodeIds) {
+            for (int i = 0; i < virtualNodesPerNode; i++) {
+                int hash = hash(nodeId + '#' + i);
+                String existing = ring.get(hash);
+                if (existing == null || nodeId.compareTo(existing) < 0) {
+                    ring.put(hash, nodeId);
+                }
+            }
+        }
+        hashes = new int[ring.size()];
+        this.nodeIds = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : ring.entrySet()) {
+            hashes[i] = entry.getKey();
+            this.nodeIds[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    public String getNodeId(String key) {
+        int index = Arrays.binarySearch(hashes, hash(key));
+        if (index < 0) {
+            // first virtual node clockwise from the key
+            index = -index - 1;
+            if (index == hashes.length) {
+                index = 0;
+            }
+        }
+        return nodeIds[index];
+    }
+
+    private static int hash(String value) {
+        return hashFunction.hashString(value, UTF_8).asInt();
+    }
+}
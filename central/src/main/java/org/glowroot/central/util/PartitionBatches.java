@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+// groups statements by partition key, so that each group can be sent as a single unlogged batch,
+// which cassandra applies as a single mutation on a single replica set
+//
+// statements without a partition key (routing key) are each put in their own group
+class PartitionBatches {
+
+    private PartitionBatches() {}
+
+    static <T> List<List<T>> group(List<T> statements,
+            Function<T, /*@Nullable*/ ByteBuffer> routingKeyFunction,
+            ToIntFunction<T> sizeFunction, int maxStatements, int maxBytes) {
+        List<List<T>> batches = new ArrayList<>();
+        // preserving order (of first statement per partition) to keep batches deterministic
+        Map<ByteBuffer, Batch<T>> openBatches = new LinkedHashMap<>();
+        for (T statement : statements) {
+            ByteBuffer routingKey = routingKeyFunction.apply(statement);
+            if (routingKey == null) {
+                List<T> batch = new ArrayList<>();
+                batch.add(statement);
+                batches.add(batch);
+                continue;
+            }
+            int size = sizeFunction.applyAsInt(statement);
+            Batch<T> batch = openBatches.get(routingKey);
+            if (batch != null && (batch.statements.size() == maxStatements
+                    || batch.bytes + size > maxBytes)) {
+                batches.add(batch.statements);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch<T>();
+                openBatches.put(routingKey, batch);
+            }
+            batch.statements.add(statement);
+            batch.bytes += size;
+        }
+        for (Batch<T> batch : openBatches.values()) {
+            batches.add(batch.statements);
+        }
+        return batches;
+    }
+
+    private static class Batch<T> {
+
+        private final List<T> statements = new ArrayList<>();
+        private int bytes;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.annotations.VisibleForTesting;
+
+// each (top-level) agent rollup is rolled up by a single central node, chosen by consistent
+// hashing of the agent rollup id over the current cluster members, so that nodes don't duplicate
+// work or contend on the same aggregate_needs_rollup_* partitions, and so that only a fraction of
+// agent rollups move to a different node when a node joins or leaves
+//
+// this is a snapshot of the cluster membership, a new instance needs to be created on membership
+// change
+public class RollupOwnership {
+
+    private static final int VIRTUAL_NODES_PER_NODE = 100;
+
+    private final ConsistentHashRing ring;
+    private final String localNodeId;
+    private final int nodeCount;
+
+    @VisibleForTesting
+    public RollupOwnership(List<String> nodeIds, String localNodeId) {
+        ring = new ConsistentHashRing(nodeIds, VIRTUAL_NODES_PER_NODE);
+        this.localNodeId = localNodeId;
+        nodeCount = nodeIds.size();
+    }
+
+    // children are rolled up together with their parent, so the agent rollup id passed in here
+    // must be the top-level agent rollup id, which keeps each agent rollup tree on a single node
+    public boolean isOwned(String topLevelAgentRollupId) {
+        return ring.getNodeId(topLevelAgentRollupId).equals(localNodeId);
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public static RollupOwnership create(ClusterManager clusterManager) {
+        String localNodeId = clusterManager.getLocalNodeId();
+        List<String> nodeIds = clusterManager.getNodeIds();
+        if (!nodeIds.contains(localNodeId)) {
+            // e.g. in the middle of (re)joining the cluster
+            nodeIds = new ArrayList<>(nodeIds);
+            nodeIds.add(localNodeId);
+        }
+        return new RollupOwnership(nodeIds, localNodeId);
+    }
+}
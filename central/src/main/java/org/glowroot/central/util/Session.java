@@ -15,21 +15,35 @@
  */
 package org.glowroot.central.util;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
 
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.exceptions.BusyPoolException;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
@@ -42,6 +56,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -49,15 +64,37 @@ public class Session {
 
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
-    // limit concurrent async queries per thread (mainly so the rollup thread doesn't hog them all)
+    // limit on concurrent async queries per budget, the actual limit adapts to cassandra latency
+    // (see AdaptiveLimiter)
+    private static final int MAX_CONCURRENT_QUERIES =
+            Integer.getInteger("glowroot.cassandra.maxConcurrentQueries", 1024);
+
+    private static final int MIN_CONCURRENT_QUERIES = 8;
+
+    private static final ThreadLocal</*@Nullable*/ Budget> currBudget = new ThreadLocal<>();
+
+    // true while running the callbacks of a completed query, which run inside of a cassandra
+    // driver thread
     @SuppressWarnings("nullness:type.argument.type.incompatible")
-    private static final ThreadLocal<Semaphore> perThreadSemaphores = new ThreadLocal<Semaphore>() {
+    private static final ThreadLocal<Boolean> inCallback = new ThreadLocal<Boolean>() {
         @Override
-        protected Semaphore initialValue() {
-            return new Semaphore(512);
+        protected Boolean initialValue() {
+            return false;
         }
     };
 
+    // statements that share the same partition key are sent as a single unlogged batch, which
+    // cassandra applies as a single mutation, and which the (default) token aware load balancing
+    // policy sends directly to a replica of that partition
+    private static final boolean UNLOGGED_BATCHES =
+            Boolean.getBoolean("glowroot.cassandra.unloggedBatches");
+
+    // default stays under cassandra's default batch_size_warn_threshold_in_kb
+    private static final int MAX_BATCH_BYTES =
+            Integer.getInteger("glowroot.cassandra.maxBatchBytes", 5 * 1024);
+
+    private static final int MAX_BATCH_STATEMENTS = 100;
+
     private final com.datastax.driver.core.Session wrappedSession;
     private final String keyspaceName;
 
@@ -65,17 +102,29 @@ public class Session {
 
     private final CassandraWriteMetrics cassandraWriteMetrics;
 
+    private final Map<Budget, AdaptiveLimiter> limiters = new EnumMap<>(Budget.class);
+
     public Session(com.datastax.driver.core.Session wrappedSession, String keyspaceName)
             throws InterruptedException {
         this.wrappedSession = wrappedSession;
         this.keyspaceName = keyspaceName;
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
+        for (Budget budget : Budget.values()) {
+            limiters.put(budget, new AdaptiveLimiter(MAX_CONCURRENT_QUERIES / 4,
+                    MIN_CONCURRENT_QUERIES, MAX_CONCURRENT_QUERIES));
+        }
 
         updateSchemaWithRetry(wrappedSession, "create keyspace if not exists " + keyspaceName
                 + " with replication = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 }");
         wrappedSession.execute("use " + keyspaceName);
     }
 
+    // queries from threads that have not set a budget (e.g. UI requests) are charged to READ, and
+    // queries issued from callbacks of a completed query are charged to the budget of that query
+    public static void setBudget(@Nullable Budget budget) {
+        currBudget.set(budget);
+    }
+
     public CassandraWriteMetrics getCassandraWriteMetrics() {
         return cassandraWriteMetrics;
     }
@@ -113,6 +162,50 @@ public class Session {
         });
     }
 
+    // statements that do not share a partition key with any other statement are executed
+    // individually
+    public List<ListenableFuture<ResultSet>> executeBatchedAsync(List<BoundStatement> statements)
+            throws Exception {
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        if (!UNLOGGED_BATCHES) {
+            for (BoundStatement statement : statements) {
+                futures.add(executeAsync(statement));
+            }
+            return futures;
+        }
+        ProtocolVersion protocolVersion =
+                getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        CodecRegistry codecRegistry = getCluster().getConfiguration().getCodecRegistry();
+        List<List<BoundStatement>> batches = PartitionBatches.group(statements,
+                statement -> getRoutingKey(statement, protocolVersion, codecRegistry),
+                Session::getSize, MAX_BATCH_STATEMENTS, MAX_BATCH_BYTES);
+        for (List<BoundStatement> batch : batches) {
+            if (batch.size() == 1) {
+                futures.add(executeAsync(batch.get(0)));
+            } else {
+                futures.add(executeBatchAsync(batch));
+            }
+        }
+        return futures;
+    }
+
+    private ListenableFuture<ResultSet> executeBatchAsync(List<BoundStatement> statements)
+            throws Exception {
+        BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batchStatement.addAll(statements);
+        return throttle(() -> {
+            // for now, need to record metrics in the same method because CassandraWriteMetrics
+            // relies on some thread locals
+            long bytes = 0;
+            for (BoundStatement statement : statements) {
+                cassandraWriteMetrics.recordMetrics(statement);
+                bytes += getSize(statement);
+            }
+            cassandraWriteMetrics.recordBatchMetrics(statements.size(), bytes);
+            return wrappedSession.executeAsync(batchStatement);
+        });
+    }
+
     private ListenableFuture<ResultSet> executeAsync(String query) throws Exception {
         return throttle(() -> wrappedSession.executeAsync(query));
     }
@@ -250,34 +343,89 @@ public class Session {
         updateSchemaWithRetry(createTableQuery);
     }
 
-    private static ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle)
+    private ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle)
             throws Exception {
-        Semaphore perThreadSemaphore = perThreadSemaphores.get();
-        perThreadSemaphore.acquire();
+        Budget budget = MoreObjects.firstNonNull(currBudget.get(), Budget.READ);
+        AdaptiveLimiter limiter = checkNotNull(limiters.get(budget));
+        if (inCallback.get()) {
+            // blocking here would block a cassandra driver thread, which could prevent the very
+            // queries that would free up the budget from completing
+            limiter.acquireWithoutWaiting();
+        } else {
+            limiter.acquire();
+        }
+        long startTick = System.nanoTime();
         SettableFuture<ResultSet> outerFuture = SettableFuture.create();
         ResultSetFuture innerFuture;
         try {
             innerFuture = doUnderThrottle.execute();
         } catch (Throwable t) {
-            perThreadSemaphore.release();
+            limiter.onIgnored();
             Throwables.propagateIfPossible(t, Exception.class);
             throw new Exception(t);
         }
         Futures.addCallback(innerFuture, new FutureCallback<ResultSet>() {
             @Override
             public void onSuccess(ResultSet result) {
-                perThreadSemaphore.release();
-                outerFuture.set(result);
+                limiter.onSuccess(System.nanoTime() - startTick);
+                runCallbacks(budget, () -> outerFuture.set(result));
             }
             @Override
             public void onFailure(Throwable t) {
-                perThreadSemaphore.release();
-                outerFuture.setException(t);
+                if (isTimeoutOrOverloaded(t)) {
+                    limiter.onDropped();
+                } else {
+                    limiter.onIgnored();
+                }
+                runCallbacks(budget, () -> outerFuture.setException(t));
             }
         }, MoreExecutors.directExecutor());
         return outerFuture;
     }
 
+    // callbacks registered on the outer future with direct executor run inside of the set() and
+    // setException() calls
+    private static void runCallbacks(Budget budget, Runnable runnable) {
+        Budget priorBudget = currBudget.get();
+        boolean priorInCallback = inCallback.get();
+        currBudget.set(budget);
+        inCallback.set(true);
+        try {
+            runnable.run();
+        } finally {
+            currBudget.set(priorBudget);
+            inCallback.set(priorInCallback);
+        }
+    }
+
+    private static boolean isTimeoutOrOverloaded(Throwable t) {
+        return t instanceof OperationTimedOutException || t instanceof ReadTimeoutException
+                || t instanceof WriteTimeoutException || t instanceof OverloadedException
+                || t instanceof BusyPoolException || t instanceof NoHostAvailableException;
+    }
+
+    private static @Nullable ByteBuffer getRoutingKey(BoundStatement statement,
+            ProtocolVersion protocolVersion, CodecRegistry codecRegistry) {
+        ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null || !routingKey.hasRemaining()) {
+            return null;
+        }
+        return routingKey;
+    }
+
+    // serialized size of the bound values
+    private static int getSize(BoundStatement statement) {
+        int size = 0;
+        int count = statement.preparedStatement().getVariables().size();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer bytes = statement.getBytesUnsafe(i);
+            if (bytes != null) {
+                size += bytes.remaining();
+            }
+        }
+        return size;
+    }
+
     private static @Nullable String getTableName(String createTableQuery, String prefix) {
         if (createTableQuery.startsWith(prefix)) {
             String suffix = createTableQuery.substring(prefix.length());
@@ -347,6 +495,10 @@ public class Session {
         return getTwcsCompactionClause("HOURS", getCompactionWindowSizeHours(expirationHours));
     }
 
+    public enum Budget {
+        INGEST, ROLLUP, READ
+    }
+
     private interface DoUnderThrottle {
         ResultSetFuture execute();
     }
@@ -15,8 +15,13 @@
  */
 package org.glowroot.central;
 
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 
+import org.glowroot.central.util.RollupOwnership;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class RollupServiceTest {
@@ -28,4 +33,25 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldPartitionAgentRollupsAcrossNodes() {
+        // given
+        List<String> nodeIds = ImmutableList.of("node1", "node2", "node3");
+        List<RollupOwnership> ownerships = ImmutableList.of(
+                new RollupOwnership(nodeIds, "node1"), new RollupOwnership(nodeIds, "node2"),
+                new RollupOwnership(nodeIds, "node3"));
+
+        // when/then
+        for (int i = 0; i < 1000; i++) {
+            String agentRollupId = "agent-" + i;
+            int owners = 0;
+            for (RollupOwnership ownership : ownerships) {
+                if (ownership.isOwned(agentRollupId)) {
+                    owners++;
+                }
+            }
+            assertThat(owners).isEqualTo(1);
+        }
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.ImmutableRollupConfig;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChartCacheTest {
+
+    private static final long NOW = HOURS.toMillis(10) + MINUTES.toMillis(30);
+
+    private List<TransactionQuery> readerQueries;
+    private ChartCache<Long> chartCache;
+
+    @Before
+    public void beforeEach() {
+        readerQueries = new ArrayList<>();
+        Clock clock = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return NOW;
+            }
+        };
+        chartCache = new ChartCache<>("test", ClusterManager.create(),
+                ImmutableList.of(ImmutableRollupConfig.of(MINUTES.toMillis(1), 0)), clock,
+                (agentRollupId, query) -> read(query), Long::longValue);
+    }
+
+    @Test
+    public void shouldReturnSameRowsAsReader() throws Exception {
+        // given
+        TransactionQuery query = query(HOURS.toMillis(2), NOW);
+
+        // when
+        List<Long> rows = chartCache.read("a", query);
+
+        // then
+        assertThat(rows).isEqualTo(read(query));
+    }
+
+    @Test
+    public void shouldOnlyReadTrailingIntervalLive() throws Exception {
+        // given
+        TransactionQuery query = query(HOURS.toMillis(2), NOW);
+        chartCache.read("a", query);
+        readerQueries.clear();
+
+        // when
+        chartCache.read("a", query);
+
+        // then
+        assertThat(readerQueries).hasSize(1);
+        assertThat(readerQueries.get(0).from()).isEqualTo(HOURS.toMillis(10) + 1);
+        assertThat(readerQueries.get(0).to()).isEqualTo(NOW);
+    }
+
+    @Test
+    public void shouldShareCachedBucketsAcrossTimeRanges() throws Exception {
+        // given
+        chartCache.read("a", query(HOURS.toMillis(2), NOW));
+        readerQueries.clear();
+
+        // when
+        List<Long> rows =
+                chartCache.read("a", query(HOURS.toMillis(3) + MINUTES.toMillis(5), NOW));
+
+        // then
+        assertThat(rows.get(0)).isEqualTo(HOURS.toMillis(3) + MINUTES.toMillis(5));
+        assertThat(readerQueries).hasSize(1);
+    }
+
+    @Test
+    public void shouldReadRecentTimeRangeLive() throws Exception {
+        // given
+        TransactionQuery query = query(HOURS.toMillis(10) + MINUTES.toMillis(5), NOW);
+
+        // when
+        chartCache.read("a", query);
+        chartCache.read("a", query);
+
+        // then
+        assertThat(readerQueries).hasSize(2);
+    }
+
+    // one row per minute
+    private List<Long> read(TransactionQuery query) {
+        readerQueries.add(query);
+        List<Long> rows = new ArrayList<>();
+        long minute = MINUTES.toMillis(1);
+        for (long captureTime = (query.from() + minute - 1) / minute * minute;
+                captureTime <= query.to(); captureTime += minute) {
+            rows.add(captureTime);
+        }
+        return rows;
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+}
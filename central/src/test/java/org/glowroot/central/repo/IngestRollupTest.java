@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.central.repo.IngestRollup.PartialAggregate;
+import org.glowroot.central.repo.IngestRollup.PartialRollup;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IngestRollupTest {
+
+    private static final List<Aggregate.SharedQueryText> SHARED_QUERY_TEXTS =
+            ImmutableList.of(Aggregate.SharedQueryText.newBuilder()
+                    .setFullText("select 1")
+                    .build());
+
+    @Test
+    public void shouldMergeChildren() {
+        // given
+        IngestRollup ingestRollup = new IngestRollup(ClusterManager.create(), createClock());
+        ingestRollup.add("parent::", "agent1", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+        ingestRollup.add("parent::", "agent2", 60000, createAggregates(3000, 2, 1),
+                SHARED_QUERY_TEXTS, 100, 100);
+
+        // when
+        IngestRollup.Interval interval = ingestRollup.remove("parent::", 60000);
+
+        // then
+        assertThat(interval).isNotNull();
+        PartialRollup partialRollup =
+                interval.get("Web", ImmutableList.of("agent1", "agent2"));
+        assertThat(partialRollup).isNotNull();
+        PartialAggregate overallAggregate = partialRollup.getOverallAggregate();
+        assertThat(overallAggregate.getAggregate().getTotalDurationNanos()).isEqualTo(4000);
+        assertThat(overallAggregate.getAggregate().getTransactionCount()).isEqualTo(3);
+        assertThat(overallAggregate.getAggregate().getErrorCount()).isEqualTo(1);
+        // only includes the child with errors
+        assertThat(overallAggregate.getErrorSummaryTransactionCount()).isEqualTo(2);
+        assertThat(overallAggregate.getAggregate().getQueries()
+                .getSortedAndTruncatedQueries().get(0).getExecutionCount()).isEqualTo(3);
+        PartialAggregate transactionAggregate =
+                partialRollup.getTransactionAggregates().get("tn");
+        assertThat(transactionAggregate.getAggregate().getTransactionCount()).isEqualTo(3);
+        assertThat(ingestRollup.remove("parent::", 60000)).isNull();
+    }
+
+    @Test
+    public void shouldNotUseWhenMissingChild() {
+        // given
+        IngestRollup ingestRollup = new IngestRollup(ClusterManager.create(), createClock());
+        ingestRollup.add("parent::", "agent1", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+
+        // when
+        IngestRollup.Interval interval = ingestRollup.remove("parent::", 60000);
+
+        // then
+        assertThat(interval.get("Web", ImmutableList.of("agent1", "agent2"))).isNull();
+        assertThat(interval.get("Background", ImmutableList.of("agent1"))).isNull();
+        assertThat(interval.get("Web", ImmutableList.of("agent1"))).isNotNull();
+    }
+
+    @Test
+    public void shouldNotUseWhenChildResent() {
+        // given
+        IngestRollup ingestRollup = new IngestRollup(ClusterManager.create(), createClock());
+        ingestRollup.add("parent::", "agent1", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+        ingestRollup.add("parent::", "agent1", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+
+        // when
+        IngestRollup.Interval interval = ingestRollup.remove("parent::", 60000);
+
+        // then
+        assertThat(interval.get("Web", ImmutableList.of("agent1"))).isNull();
+    }
+
+    @Test
+    public void shouldStartNewIntervalForLateData() {
+        // given
+        IngestRollup ingestRollup = new IngestRollup(ClusterManager.create(), createClock());
+        ingestRollup.add("parent::", "agent1", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+        ingestRollup.remove("parent::", 60000);
+
+        // when
+        ingestRollup.add("parent::", "agent2", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+
+        // then
+        IngestRollup.Interval interval = ingestRollup.remove("parent::", 60000);
+        assertThat(interval.get("Web", ImmutableList.of("agent2"))).isNotNull();
+    }
+
+    @Test
+    public void shouldExpireAbandonedIntervals() {
+        // given
+        Clock clock = createClock();
+        IngestRollup ingestRollup = new IngestRollup(ClusterManager.create(), clock);
+        ingestRollup.add("parent::", "agent1", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+
+        // when
+        when(clock.currentTimeMillis()).thenReturn(60000 + MINUTES.toMillis(6));
+        ingestRollup.add("parent::", "agent1", 60000 + MINUTES.toMillis(6),
+                createAggregates(1000, 1, 0), SHARED_QUERY_TEXTS, 100, 100);
+
+        // then
+        assertThat(ingestRollup.remove("parent::", 60000)).isNull();
+        assertThat(ingestRollup.remove("parent::", 60000 + MINUTES.toMillis(6))).isNotNull();
+    }
+
+    @Test
+    public void shouldNotTrackMoreThanMaxIntervals() {
+        // given
+        IngestRollup ingestRollup = new IngestRollup(ClusterManager.create(), createClock());
+        for (int i = 0; i < 1000; i++) {
+            ingestRollup.add("parent" + i + "::", "agent1", 60000, createAggregates(1000, 1, 0),
+                    SHARED_QUERY_TEXTS, 100, 100);
+        }
+
+        // when
+        ingestRollup.add("parent::", "agent1", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+        ingestRollup.add("parent0::", "agent2", 60000, createAggregates(1000, 1, 0),
+                SHARED_QUERY_TEXTS, 100, 100);
+
+        // then
+        assertThat(ingestRollup.remove("parent::", 60000)).isNull();
+        IngestRollup.Interval interval = ingestRollup.remove("parent0::", 60000);
+        assertThat(interval.get("Web", ImmutableList.of("agent1", "agent2"))).isNotNull();
+    }
+
+    private static Clock createClock() {
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(60000L);
+        return clock;
+    }
+
+    private static List<OldAggregatesByType> createAggregates(double totalDurationNanos,
+            long transactionCount, long errorCount) {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(errorCount)
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(totalDurationNanos)
+                        .setExecutionCount(transactionCount))
+                .build();
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("tn")
+                        .setAggregate(aggregate))
+                .build());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void shouldBackOffOnTimeouts() {
+        // given
+        AdaptiveLimiter limiter = new AdaptiveLimiter(100, 8, 1000);
+
+        // when
+        limiter.acquireWithoutWaiting();
+        limiter.onDropped();
+
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(90);
+    }
+
+    @Test
+    public void shouldNotBackOffBelowMinLimit() {
+        // given
+        AdaptiveLimiter limiter = new AdaptiveLimiter(100, 8, 1000);
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            limiter.acquireWithoutWaiting();
+            limiter.onDropped();
+        }
+
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldGrowWhileLatencyIsStable() throws Exception {
+        // given
+        AdaptiveLimiter limiter = new AdaptiveLimiter(16, 8, 1000);
+        int inFlight = 0;
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            // keep the limiter fully utilized
+            while (inFlight < limiter.getLimit()) {
+                limiter.acquire();
+                inFlight++;
+            }
+            limiter.onSuccess(MILLISECONDS.toNanos(1));
+            inFlight--;
+        }
+
+        // then
+        assertThat(limiter.getLimit()).isGreaterThan(100);
+    }
+
+    @Test
+    public void shouldNotGrowWhenUnderutilized() {
+        // given
+        AdaptiveLimiter limiter = new AdaptiveLimiter(100, 8, 1000);
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            limiter.acquireWithoutWaiting();
+            limiter.onSuccess(MILLISECONDS.toNanos(1));
+        }
+
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldShrinkWhenLatencyIncreases() {
+        // given
+        AdaptiveLimiter limiter = new AdaptiveLimiter(100, 8, 1000);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquireWithoutWaiting();
+        }
+        for (int i = 0; i < 1000; i++) {
+            limiter.onSuccess(MILLISECONDS.toNanos(1));
+            limiter.acquireWithoutWaiting();
+        }
+        int limitBefore = limiter.getLimit();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess(MILLISECONDS.toNanos(10));
+            limiter.acquireWithoutWaiting();
+        }
+
+        // then
+        assertThat(limiter.getLimit()).isLessThan(limitBefore / 2);
+    }
+
+    @Test
+    public void shouldWaitForPermit() throws Exception {
+        // given
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+        limiter.acquire();
+        Thread thread = new Thread(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // when
+        thread.start();
+        thread.join(100);
+
+        // then
+        assertThat(thread.isAlive()).isTrue();
+        limiter.onSuccess(MILLISECONDS.toNanos(1));
+        thread.join(10000);
+        assertThat(thread.isAlive()).isFalse();
+    }
+}
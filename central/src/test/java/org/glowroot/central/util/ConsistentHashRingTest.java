@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void shouldSpreadKeysEvenly() {
+        // given
+        ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a", "b", "c"), 100);
+        Map<String, Integer> counts = new HashMap<>();
+
+        // when
+        for (int i = 0; i < 30000; i++) {
+            counts.merge(ring.getNodeId("agent-" + i), 1, Integer::sum);
+        }
+
+        // then
+        assertThat(counts).containsOnlyKeys("a", "b", "c");
+        for (int count : counts.values()) {
+            assertThat(count).isBetween(7000, 13000);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysToJoiningNode() {
+        // given
+        ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a", "b", "c"), 100);
+        ConsistentHashRing joinedRing =
+                new ConsistentHashRing(ImmutableList.of("a", "b", "c", "d"), 100);
+
+        // when
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String key = "agent-" + i;
+            String nodeId = ring.getNodeId(key);
+            String joinedNodeId = joinedRing.getNodeId(key);
+            if (!joinedNodeId.equals(nodeId)) {
+                assertThat(joinedNodeId).isEqualTo("d");
+                moved++;
+            }
+        }
+
+        // then
+        assertThat(moved).isBetween(1500, 3500);
+    }
+
+    @Test
+    public void shouldNotDependOnNodeOrder() {
+        // given
+        ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of("a", "b", "c"), 100);
+        ConsistentHashRing reorderedRing =
+                new ConsistentHashRing(ImmutableList.of("c", "a", "b"), 100);
+
+        // when/then
+        for (int i = 0; i < 1000; i++) {
+            String key = "agent-" + i;
+            assertThat(reorderedRing.getNodeId(key)).isEqualTo(ring.getNodeId(key));
+        }
+    }
+}
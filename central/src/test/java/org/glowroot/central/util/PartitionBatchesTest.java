@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartitionBatchesTest {
+
+    @Test
+    public void shouldGroupByPartitionKey() {
+        // when
+        List<List<String>> batches =
+                group(ImmutableList.of("a:1", "b:1", "a:2", "none", "b:2", "a:3"), 100, 1000);
+
+        // then
+        assertThat(batches).containsExactly(ImmutableList.of("none"),
+                ImmutableList.of("a:1", "a:2", "a:3"), ImmutableList.of("b:1", "b:2"));
+    }
+
+    @Test
+    public void shouldSplitOnMaxStatements() {
+        // when
+        List<List<String>> batches =
+                group(ImmutableList.of("a:1", "a:2", "a:3", "a:4", "a:5"), 2, 1000);
+
+        // then
+        assertThat(batches).containsExactly(ImmutableList.of("a:1", "a:2"),
+                ImmutableList.of("a:3", "a:4"), ImmutableList.of("a:5"));
+    }
+
+    @Test
+    public void shouldSplitOnMaxBytes() {
+        // when
+        List<List<String>> batches =
+                group(ImmutableList.of("a:1", "a:2", "a:3333333333", "a:4"), 100, 8);
+
+        // then
+        assertThat(batches).containsExactly(ImmutableList.of("a:1", "a:2"),
+                ImmutableList.of("a:3333333333"), ImmutableList.of("a:4"));
+    }
+
+    private static List<List<String>> group(List<String> statements, int maxStatements,
+            int maxBytes) {
+        return PartitionBatches.group(statements, PartitionBatchesTest::getPartitionKey,
+                String::length, maxStatements, maxBytes);
+    }
+
+    private static @Nullable ByteBuffer getPartitionKey(String statement) {
+        int index = statement.indexOf(':');
+        if (index == -1) {
+            return null;
+        }
+        return ByteBuffer.wrap(statement.substring(0, index).getBytes(UTF_8));
+    }
+}
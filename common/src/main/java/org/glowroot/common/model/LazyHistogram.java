@@ -21,37 +21,56 @@ import java.util.Arrays;
 import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class LazyHistogram {
 
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    private static final int MIN_VALUES = 8;
     private static final int MAX_VALUES = 1024;
 
-    private long[] values = new long[8];
+    private static final long[] EMPTY_VALUES = new long[0];
+
+    private final @Nullable HistogramPool pool;
+
+    private long[] values;
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @Nullable Histogram histogram;
+
+    public LazyHistogram() {
+        pool = null;
+        values = new long[MIN_VALUES];
+    }
 
-    public LazyHistogram() {}
+    // backing arrays are taken from the pool, and are returned to the pool as they are outgrown,
+    // and on release()
+    public LazyHistogram(HistogramPool pool) {
+        this.pool = pool;
+        values = pool.getValues(MIN_VALUES);
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        pool = null;
         ByteString encodedBytes = hist.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
-            List<Long> orderedRawValues = hist.getOrderedRawValueList();
-            values = new long[orderedRawValues.size()];
+            // using indexed access to avoid boxing
+            values = new long[hist.getOrderedRawValueCount()];
             for (int i = 0; i < values.length; i++) {
-                values[i] = orderedRawValues.get(i);
+                values[i] = hist.getOrderedRawValue(i);
             }
             size = values.length;
         } else {
+            values = EMPTY_VALUES;
             histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
         }
     }
@@ -87,8 +106,10 @@ public class LazyHistogram {
     public void merge(Aggregate.Histogram toBeMergedHistogram) {
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
-            for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
-                add(rawValue);
+            // using indexed access to avoid boxing
+            int count = toBeMergedHistogram.getOrderedRawValueCount();
+            for (int i = 0; i < count; i++) {
+                add(toBeMergedHistogram.getOrderedRawValue(i));
             }
         } else {
             if (histogram == null) {
@@ -129,6 +150,20 @@ public class LazyHistogram {
         return histogram.getValueAtPercentile(percentile);
     }
 
+    // returns the backing arrays to the pool (if any), this histogram must not be used afterwards
+    public void release() {
+        if (pool != null) {
+            if (histogram == null) {
+                pool.releaseValues(values);
+            } else {
+                pool.releaseHistogram(histogram);
+            }
+        }
+        values = EMPTY_VALUES;
+        size = 0;
+        histogram = null;
+    }
+
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
@@ -150,21 +185,27 @@ public class LazyHistogram {
         }
         if (capacity > values.length) {
             // at least double in size
-            long[] temp = new long[Math.max(size * 2, capacity)];
+            int length = Math.max(size * 2, capacity);
+            long[] temp = pool == null ? new long[length] : pool.getValues(length);
             System.arraycopy(values, 0, temp, 0, size);
+            if (pool != null) {
+                pool.releaseValues(values);
+            }
             values = temp;
         }
     }
 
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
-        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
-        histogram.setAutoResize(true);
+        Histogram histogram = pool == null ? createHistogram() : pool.getHistogram();
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
         }
-        values = new long[0];
+        if (pool != null) {
+            pool.releaseValues(values);
+        }
+        values = EMPTY_VALUES;
+        this.histogram = histogram;
     }
 
     private void sortValues() {
@@ -172,15 +213,127 @@ public class LazyHistogram {
         sorted = true;
     }
 
+    private static Histogram createHistogram() {
+        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
+        Histogram histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        histogram.setAutoResize(true);
+        return histogram;
+    }
+
     public static class ScratchBuffer {
 
+        private final boolean direct;
+
         private @MonotonicNonNull ByteBuffer buffer;
 
+        public ScratchBuffer() {
+            this(false);
+        }
+
+        // a direct buffer is worth it when the scratch buffer is long lived (e.g. pooled), since
+        // histograms are then encoded outside of the java heap and copied only once (directly into
+        // the resulting ByteString)
+        public ScratchBuffer(boolean direct) {
+            this.direct = direct;
+        }
+
         ByteBuffer getBuffer(int capacity) {
             if (buffer == null || buffer.capacity() < capacity) {
-                buffer = ByteBuffer.allocate(capacity);
+                buffer = direct ? ByteBuffer.allocateDirect(capacity)
+                        : ByteBuffer.allocate(capacity);
             }
             return buffer;
         }
     }
+
+    // recycles histogram backing arrays (and scratch buffers) so that short lived histograms (and
+    // histograms that are cleared) do not churn large arrays through the young generation
+    //
+    // this is thread safe, but histograms that share a pool are still not thread safe themselves
+    public static class HistogramPool {
+
+        private static final int MAX_POOLED_VALUES_PER_LENGTH = 64;
+        private static final int MAX_POOLED_HISTOGRAMS = 16;
+        private static final int MAX_POOLED_SCRATCH_BUFFERS = 4;
+
+        // index i holds values arrays of length MIN_VALUES << i
+        private final List<List<long[]>> pooledValues = Lists.newArrayList();
+        private final List<Histogram> pooledHistograms = Lists.newArrayList();
+        private final List<ScratchBuffer> pooledScratchBuffers = Lists.newArrayList();
+
+        private final boolean directScratchBuffers;
+
+        public HistogramPool(boolean directScratchBuffers) {
+            this.directScratchBuffers = directScratchBuffers;
+            for (int length = MIN_VALUES; length <= MAX_VALUES; length <<= 1) {
+                pooledValues.add(Lists.<long[]>newArrayList());
+            }
+        }
+
+        public synchronized ScratchBuffer getScratchBuffer() {
+            if (pooledScratchBuffers.isEmpty()) {
+                return new ScratchBuffer(directScratchBuffers);
+            }
+            return pooledScratchBuffers.remove(pooledScratchBuffers.size() - 1);
+        }
+
+        public synchronized void releaseScratchBuffer(ScratchBuffer scratchBuffer) {
+            if (pooledScratchBuffers.size() < MAX_POOLED_SCRATCH_BUFFERS) {
+                pooledScratchBuffers.add(scratchBuffer);
+            }
+        }
+
+        @VisibleForTesting
+        synchronized int getPooledHistogramCount() {
+            return pooledHistograms.size();
+        }
+
+        @VisibleForTesting
+        public synchronized int getPooledValuesCount() {
+            int count = 0;
+            for (List<long[]> pooled : pooledValues) {
+                count += pooled.size();
+            }
+            return count;
+        }
+
+        private synchronized long[] getValues(int length) {
+            List<long[]> pooled = getPooledValues(length);
+            if (pooled == null || pooled.isEmpty()) {
+                return new long[length];
+            }
+            return pooled.remove(pooled.size() - 1);
+        }
+
+        private synchronized void releaseValues(long[] values) {
+            List<long[]> pooled = getPooledValues(values.length);
+            if (pooled != null && pooled.size() < MAX_POOLED_VALUES_PER_LENGTH) {
+                // values beyond size do not need to be cleared since they are never read
+                pooled.add(values);
+            }
+        }
+
+        private synchronized Histogram getHistogram() {
+            if (pooledHistograms.isEmpty()) {
+                return createHistogram();
+            }
+            return pooledHistograms.remove(pooledHistograms.size() - 1);
+        }
+
+        private synchronized void releaseHistogram(Histogram histogram) {
+            if (pooledHistograms.size() < MAX_POOLED_HISTOGRAMS) {
+                // reset retains the (possibly auto resized) counts array
+                histogram.reset();
+                pooledHistograms.add(histogram);
+            }
+        }
+
+        private @Nullable List<long[]> getPooledValues(int length) {
+            if (length < MIN_VALUES || length > MAX_VALUES || Integer.bitCount(length) != 1) {
+                return null;
+            }
+            return pooledValues.get(Integer.numberOfTrailingZeros(length)
+                    - Integer.numberOfTrailingZeros(MIN_VALUES));
+        }
+    }
 }
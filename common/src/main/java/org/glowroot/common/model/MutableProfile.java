@@ -17,11 +17,11 @@ package org.glowroot.common.model;
 
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -30,10 +30,11 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,83 +48,137 @@ public class MutableProfile {
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    // TODO use primitive maps, e.g. from GS collections
-    private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
 
-    private final List<String> packageNames = Lists.newArrayList();
-    private final List<String> classNames = Lists.newArrayList();
-    private final List<String> methodNames = Lists.newArrayList();
-    private final List<String> fileNames = Lists.newArrayList();
+    // frames are stored as 6 consecutive ints (package name index, class name index, method name
+    // index, file name index, line number, leaf thread state ordinal)
+    private static final int FRAME_SIZE = 6;
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // below this number of child nodes, a linear scan over frame ids is faster than hashing
+    private static final int CHILD_NODE_SLOTS_THRESHOLD = 8;
+
+    private final NameTable packageNames = new NameTable();
+    private final NameTable classNames = new NameTable();
+    private final NameTable methodNames = new NameTable();
+    private final NameTable fileNames = new NameTable();
+
+    // full class names are only split into package name and class name the first time they are
+    // seen, so that merging stack traces does not allocate substrings on every sample
+    private final NameTable fullClassNames = new NameTable();
+    // stored as 2 consecutive ints per full class name (package name index, class name index)
+    private int[] fullClassNameSplits = new int[32];
+
+    // frames are interned so that matching child nodes only needs to compare frame ids
+    private int[] frames = new int[FRAME_SIZE * 16];
+    private int frameCount;
+    // open addressing (linear probing) hash table, each slot is frame id + 1 (0 means empty slot)
+    private int[] frameSlots = new int[32];
+
+    // frame ids from an external frame table (see merge(int[], ...)) are mapped to the frame ids
+    // above the first time they are seen, open addressing hash table with two slots per entry:
+    // external frame id + 1 (0 means empty slot) followed by frame id
+    private @Nullable FrameTable externalFrameTable;
+    private int[] externalFrameIdSlots = new int[0];
+    private int externalFrameIdCount;
+
+    // root nodes are the child nodes of this synthetic node (which has no frame)
+    private final ProfileNode syntheticRootNode = new ProfileNode(-1);
+    private final List<ProfileNode> rootNodes = syntheticRootNode.childNodes;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
-    // this method is not used that often (only for traces with > 20 stack trace samples) so ok
-    // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
-        merge(profile.toProto());
+        int[] packageNameIndexMapping = makeIndexMapping(profile.packageNames.names, packageNames);
+        int[] classNameIndexMapping = makeIndexMapping(profile.classNames.names, classNames);
+        int[] methodNameIndexMapping = makeIndexMapping(profile.methodNames.names, methodNames);
+        int[] fileNameIndexMapping = makeIndexMapping(profile.fileNames.names, fileNames);
+        int[] frameIdMapping = new int[profile.frameCount];
+        for (int i = 0; i < profile.frameCount; i++) {
+            int offset = i * FRAME_SIZE;
+            frameIdMapping[i] = getFrameId(packageNameIndexMapping[profile.frames[offset]],
+                    classNameIndexMapping[profile.frames[offset + 1]],
+                    methodNameIndexMapping[profile.frames[offset + 2]],
+                    fileNameIndexMapping[profile.frames[offset + 3]], profile.frames[offset + 4],
+                    profile.frames[offset + 5]);
+        }
+        // using explicit stacks to avoid StackOverflowError caused by a recursive algorithm
+        Deque<ProfileNode> toBeMergedStack = new ArrayDeque<ProfileNode>();
+        Deque<ProfileNode> destinationStack = new ArrayDeque<ProfileNode>();
+        toBeMergedStack.push(profile.syntheticRootNode);
+        destinationStack.push(syntheticRootNode);
+        while (!toBeMergedStack.isEmpty()) {
+            ProfileNode toBeMergedNode = toBeMergedStack.pop();
+            ProfileNode destinationNode = destinationStack.pop();
+            for (ProfileNode toBeMergedChildNode : toBeMergedNode.childNodes) {
+                ProfileNode destinationChildNode = destinationNode
+                        .getOrCreateChildNode(frameIdMapping[toBeMergedChildNode.frameId]);
+                destinationChildNode.sampleCount += toBeMergedChildNode.sampleCount;
+                if (!toBeMergedChildNode.childNodes.isEmpty()) {
+                    toBeMergedStack.push(toBeMergedChildNode);
+                    destinationStack.push(destinationChildNode);
+                }
+            }
+        }
     }
 
     public void merge(Profile profile) {
         Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        merger.merge(profile.getNodeList());
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
-        boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
-            int methodNameIndex =
-                    getNameIndex(MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
-                            "<null method name>"), methodNameIndexes, methodNames);
-            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
-                    fileNameIndexes, fileNames);
-            int lineNumber = stackTraceElement.getLineNumber();
+        merge(stackTraceElements.toArray(new StackTraceElement[stackTraceElements.size()]),
+                threadState);
+    }
+
+    public void merge(StackTraceElement[] stackTraceElements,
+            Thread. /*@Nullable*/ State threadState) {
+        merge(stackTraceElements, threadState, 1);
+    }
+
+    // weight is the number of samples that this stack trace represents (e.g. when only a subset of
+    // threads is sampled, each captured stack trace stands in for the ones that were not sampled)
+    public void merge(StackTraceElement[] stackTraceElements,
+            Thread. /*@Nullable*/ State threadState, long weight) {
+        ProfileNode node = syntheticRootNode;
+        for (int i = stackTraceElements.length - 1; i >= 0; i--) {
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
-            if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
+                    i == 0 ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
+            int frameId = getFrameId(stackTraceElements[i], leafThreadState.ordinal());
+            node = node.getOrCreateChildNode(frameId);
+            node.sampleCount += weight;
+        }
+    }
+
+    // frameIds[offset] is the leaf frame (same order as Thread.getStackTrace()), and the frame ids
+    // are ids from the given frame table, which are only resolved to names the first time they are
+    // merged into this profile, so merging a stack trace that only has previously seen frames does
+    // not look up any names
+    //
+    // a profile is expected to only ever be merged with frame ids from a single frame table
+    public void merge(int[] frameIds, int offset, int length,
+            Thread. /*@Nullable*/ State threadState, long weight, FrameTable frameTable) {
+        if (frameTable != externalFrameTable) {
+            externalFrameTable = frameTable;
+            externalFrameIdSlots = new int[0];
+            externalFrameIdCount = 0;
+        }
+        ProfileNode node = syntheticRootNode;
+        for (int i = offset + length - 1; i >= offset; i--) {
+            int frameId = getFrameId(frameIds[i], frameTable);
+            if (i == offset) {
+                Profile.LeafThreadState leafThreadState = getThreadState(threadState);
+                if (leafThreadState != Profile.LeafThreadState.NONE) {
+                    int frameOffset = frameId * FRAME_SIZE;
+                    frameId = getFrameId(frames[frameOffset], frames[frameOffset + 1],
+                            frames[frameOffset + 2], frames[frameOffset + 3],
+                            frames[frameOffset + 4], leafThreadState.ordinal());
                 }
             }
-            if (node == null) {
-                lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
-            }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            node = node.getOrCreateChildNode(frameId);
+            node.sampleCount += weight;
         }
     }
 
@@ -139,6 +194,7 @@ public class MutableProfile {
                     i.remove();
                 }
             }
+            syntheticRootNode.childNodeSlots = null;
         }
         for (String exclude : excludes) {
             for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
@@ -148,6 +204,7 @@ public class MutableProfile {
                     i.remove();
                 }
             }
+            syntheticRootNode.childNodeSlots = null;
         }
     }
 
@@ -162,6 +219,7 @@ public class MutableProfile {
                 ProfileNode childNode = i.next();
                 if (childNode.sampleCount < minSamples) {
                     i.remove();
+                    node.childNodeSlots = null;
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
@@ -199,14 +257,35 @@ public class MutableProfile {
             new ProfileNodeCollector(rootNode, nodes).traverse();
         }
         return Profile.newBuilder()
-                .addAllPackageName(packageNames)
-                .addAllClassName(classNames)
-                .addAllMethodName(methodNames)
-                .addAllFileName(fileNames)
+                .addAllPackageName(packageNames.names)
+                .addAllClassName(classNames.names)
+                .addAllMethodName(methodNames.names)
+                .addAllFileName(fileNames.names)
                 .addAllNode(nodes)
                 .build();
     }
 
+    // writes the same bytes as toProto() (as a length-delimited field), but without building the
+    // Profile.ProfileNode messages
+    public void writeTo(CodedOutputStream output, int fieldNumber) throws IOException {
+        int size = getNamesSize(1, packageNames) + getNamesSize(2, classNames)
+                + getNamesSize(3, methodNames) + getNamesSize(4, fileNames);
+        for (ProfileNode rootNode : rootNodes) {
+            ProfileNodeWriter sizer = new ProfileNodeWriter(rootNode, null);
+            sizer.traverse();
+            size += sizer.size;
+        }
+        output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(size);
+        writeNames(output, 1, packageNames);
+        writeNames(output, 2, classNames);
+        writeNames(output, 3, methodNames);
+        writeNames(output, 4, fileNames);
+        for (ProfileNode rootNode : rootNodes) {
+            new ProfileNodeWriter(rootNode, output).traverse();
+        }
+    }
+
     public String toJson() throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
@@ -250,15 +329,158 @@ public class MutableProfile {
         return sb.toString();
     }
 
-    private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
-            List<String> names) {
-        Integer index = nameIndexes.get(name);
-        if (index == null) {
-            index = names.size();
-            names.add(name);
-            nameIndexes.put(name, index);
+    // returns the (non-leaf) frame id
+    private int getFrameId(int externalFrameId, FrameTable frameTable) {
+        if (externalFrameIdSlots.length != 0) {
+            int mask = externalFrameIdSlots.length / 2 - 1;
+            int slot = smear(externalFrameId) & mask;
+            while (true) {
+                int key = externalFrameIdSlots[slot * 2];
+                if (key == 0) {
+                    break;
+                }
+                if (key == externalFrameId + 1) {
+                    return externalFrameIdSlots[slot * 2 + 1];
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        int frameId = getFrameId(frameTable.getFrame(externalFrameId),
+                Profile.LeafThreadState.NONE.ordinal());
+        if (externalFrameIdCount * 2 >= externalFrameIdSlots.length / 2) {
+            rehashExternalFrameIds();
         }
-        return index;
+        putExternalFrameId(externalFrameIdSlots, externalFrameId, frameId);
+        externalFrameIdCount++;
+        return frameId;
+    }
+
+    private void rehashExternalFrameIds() {
+        int[] newSlots = new int[Math.max(32, externalFrameIdSlots.length * 2)];
+        for (int i = 0; i < externalFrameIdSlots.length; i += 2) {
+            int key = externalFrameIdSlots[i];
+            if (key != 0) {
+                putExternalFrameId(newSlots, key - 1, externalFrameIdSlots[i + 1]);
+            }
+        }
+        externalFrameIdSlots = newSlots;
+    }
+
+    private static void putExternalFrameId(int[] slots, int externalFrameId, int frameId) {
+        int mask = slots.length / 2 - 1;
+        int slot = smear(externalFrameId) & mask;
+        while (slots[slot * 2] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot * 2] = externalFrameId + 1;
+        slots[slot * 2 + 1] = frameId;
+    }
+
+    private int getFrameId(StackTraceElement stackTraceElement, int leafThreadStateOrdinal) {
+        int fullClassNameIndex = getFullClassNameIndex(stackTraceElement.getClassName());
+        int packageNameIndex = fullClassNameSplits[fullClassNameIndex * 2];
+        int classNameIndex = fullClassNameSplits[fullClassNameIndex * 2 + 1];
+        int methodNameIndex = methodNames.getIndex(MoreObjects
+                .firstNonNull(stackTraceElement.getMethodName(), "<null method name>"));
+        int fileNameIndex =
+                fileNames.getIndex(Strings.nullToEmpty(stackTraceElement.getFileName()));
+        return getFrameId(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                stackTraceElement.getLineNumber(), leafThreadStateOrdinal);
+    }
+
+    private int getFullClassNameIndex(String fullClassName) {
+        int fullClassNameCount = fullClassNames.names.size();
+        int fullClassNameIndex = fullClassNames.getIndex(fullClassName);
+        if (fullClassNameIndex == fullClassNameCount) {
+            int index = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            if (fullClassNameSplits.length < (fullClassNameIndex + 1) * 2) {
+                fullClassNameSplits =
+                        Arrays.copyOf(fullClassNameSplits, fullClassNameSplits.length * 2);
+            }
+            fullClassNameSplits[fullClassNameIndex * 2] = packageNames.getIndex(packageName);
+            fullClassNameSplits[fullClassNameIndex * 2 + 1] = classNames.getIndex(className);
+        }
+        return fullClassNameIndex;
+    }
+
+    private int getFrameId(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, int leafThreadStateOrdinal) {
+        int hash = hashFrame(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber, leafThreadStateOrdinal);
+        int mask = frameSlots.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int entry = frameSlots[slot];
+            if (entry == 0) {
+                break;
+            }
+            int offset = (entry - 1) * FRAME_SIZE;
+            // checking line number first since most likely to be different
+            if (frames[offset + 4] == lineNumber
+                    && frames[offset + 3] == fileNameIndex
+                    && frames[offset + 5] == leafThreadStateOrdinal
+                    && frames[offset + 2] == methodNameIndex
+                    && frames[offset + 1] == classNameIndex
+                    && frames[offset] == packageNameIndex) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int frameId = frameCount++;
+        int offset = frameId * FRAME_SIZE;
+        if (offset + FRAME_SIZE > frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        frames[offset] = packageNameIndex;
+        frames[offset + 1] = classNameIndex;
+        frames[offset + 2] = methodNameIndex;
+        frames[offset + 3] = fileNameIndex;
+        frames[offset + 4] = lineNumber;
+        frames[offset + 5] = leafThreadStateOrdinal;
+        frameSlots[slot] = frameId + 1;
+        if (frameCount * 2 > frameSlots.length) {
+            rehashFrames();
+        }
+        return frameId;
+    }
+
+    private void rehashFrames() {
+        frameSlots = new int[frameSlots.length * 2];
+        int mask = frameSlots.length - 1;
+        for (int frameId = 0; frameId < frameCount; frameId++) {
+            int offset = frameId * FRAME_SIZE;
+            int slot = hashFrame(frames[offset], frames[offset + 1], frames[offset + 2],
+                    frames[offset + 3], frames[offset + 4], frames[offset + 5]) & mask;
+            while (frameSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            frameSlots[slot] = frameId + 1;
+        }
+    }
+
+    private static int hashFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, int leafThreadStateOrdinal) {
+        int hash = packageNameIndex;
+        hash = 31 * hash + classNameIndex;
+        hash = 31 * hash + methodNameIndex;
+        hash = 31 * hash + fileNameIndex;
+        hash = 31 * hash + lineNumber;
+        hash = 31 * hash + leafThreadStateOrdinal;
+        return smear(hash);
+    }
+
+    // same as com.google.common.collect.Hashing.smear(), which is not public
+    private static int smear(int hashCode) {
+        return 0x1b873593 * Integer.rotateLeft(hashCode * 0xcc9e2d51, 15);
     }
 
     private static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
@@ -284,48 +506,87 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
+    private static int getNamesSize(int fieldNumber, NameTable nameTable) {
+        int size = 0;
+        for (String name : nameTable.names) {
+            size += CodedOutputStream.computeStringSize(fieldNumber, name);
+        }
+        return size;
     }
 
-    private static int[] makeIndexMapping(List<String> toBeMergedNames,
-            Map<String, Integer> existingIndexes, List<String> existingNames) {
+    private static void writeNames(CodedOutputStream output, int fieldNumber, NameTable nameTable)
+            throws IOException {
+        for (String name : nameTable.names) {
+            output.writeString(fieldNumber, name);
+        }
+    }
+
+    private static int[] makeIndexMapping(List<String> toBeMergedNames, NameTable existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
         for (int i = 0; i < toBeMergedNames.size(); i++) {
-            String toBeMergedName = toBeMergedNames.get(i);
-            Integer existingIndex = existingIndexes.get(toBeMergedName);
-            if (existingIndex == null) {
-                int newIndex = existingNames.size();
-                existingNames.add(toBeMergedName);
-                existingIndexes.put(toBeMergedName, newIndex);
-                indexMapping[i] = newIndex;
-            } else {
-                indexMapping[i] = existingIndex;
-            }
+            indexMapping[i] = existingNames.getIndex(toBeMergedNames.get(i));
         }
         return indexMapping;
     }
 
+    // open addressing (linear probing) hash table from name to index, to avoid boxing
+    private static class NameTable {
+
+        private final List<String> names = Lists.newArrayList();
+        // each slot is name index + 1 (0 means empty slot)
+        private int[] slots = new int[16];
+
+        private int getIndex(String name) {
+            int mask = slots.length - 1;
+            int slot = smear(name.hashCode()) & mask;
+            while (true) {
+                int entry = slots[slot];
+                if (entry == 0) {
+                    break;
+                }
+                if (names.get(entry - 1).equals(name)) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int index = names.size();
+            names.add(name);
+            slots[slot] = index + 1;
+            if (names.size() * 2 > slots.length) {
+                rehash();
+            }
+            return index;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int i = 0; i < names.size(); i++) {
+                int slot = smear(names.get(i).hashCode()) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+        }
+    }
+
+    public interface FrameTable {
+        StackTraceElement getFrame(int frameId);
+    }
+
     private class ProfileNode {
 
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
+        private final int frameId;
 
         private long sampleCount;
 
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+        private final List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+
+        // open addressing (linear probing) hash table from frame id to child node, each slot is
+        // index into childNodes + 1 (0 means empty slot), this is only built once there are enough
+        // child nodes, and is discarded whenever child nodes are removed
+        private int /*@Nullable*/ [] childNodeSlots;
 
         // these fields are only used for filtering
         private @Nullable String text;
@@ -333,28 +594,101 @@ public class MutableProfile {
         private boolean matched;
         private long ellipsedSampleCount;
 
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
+        private ProfileNode(int frameId) {
+            this.frameId = frameId;
+        }
+
+        private int getPackageNameIndex() {
+            return frames[frameId * FRAME_SIZE];
+        }
+
+        private int getClassNameIndex() {
+            return frames[frameId * FRAME_SIZE + 1];
+        }
+
+        private int getMethodNameIndex() {
+            return frames[frameId * FRAME_SIZE + 2];
+        }
+
+        private int getFileNameIndex() {
+            return frames[frameId * FRAME_SIZE + 3];
+        }
+
+        private int getLineNumber() {
+            return frames[frameId * FRAME_SIZE + 4];
+        }
+
+        private Profile.LeafThreadState getLeafThreadState() {
+            return LEAF_THREAD_STATES[frames[frameId * FRAME_SIZE + 5]];
+        }
+
+        private ProfileNode getOrCreateChildNode(int frameId) {
+            int size = childNodes.size();
+            if (size < CHILD_NODE_SLOTS_THRESHOLD) {
+                for (int i = 0; i < size; i++) {
+                    ProfileNode childNode = childNodes.get(i);
+                    if (childNode.frameId == frameId) {
+                        return childNode;
+                    }
+                }
+                ProfileNode childNode = new ProfileNode(frameId);
+                childNodes.add(childNode);
+                return childNode;
+            }
+            int[] childNodeSlots = this.childNodeSlots;
+            if (childNodeSlots == null) {
+                childNodeSlots = buildChildNodeSlots();
+            }
+            int mask = childNodeSlots.length - 1;
+            int slot = smear(frameId) & mask;
+            while (true) {
+                int entry = childNodeSlots[slot];
+                if (entry == 0) {
+                    break;
+                }
+                ProfileNode childNode = childNodes.get(entry - 1);
+                if (childNode.frameId == frameId) {
+                    return childNode;
+                }
+                slot = (slot + 1) & mask;
+            }
+            ProfileNode childNode = new ProfileNode(frameId);
+            childNodes.add(childNode);
+            childNodeSlots[slot] = childNodes.size();
+            if (childNodes.size() * 2 > childNodeSlots.length) {
+                buildChildNodeSlots();
+            }
+            return childNode;
+        }
+
+        private int[] buildChildNodeSlots() {
+            // at least 2x the number of child nodes, and then some room to grow
+            int[] childNodeSlots = new int[Integer.highestOneBit(childNodes.size() * 4)];
+            int mask = childNodeSlots.length - 1;
+            for (int i = 0; i < childNodes.size(); i++) {
+                int slot = smear(childNodes.get(i).frameId) & mask;
+                while (childNodeSlots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                childNodeSlots[slot] = i + 1;
+            }
+            this.childNodeSlots = childNodeSlots;
+            return childNodeSlots;
         }
 
         private String getText() {
             if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
+                String packageName = packageNames.names.get(getPackageNameIndex());
+                String className = classNames.names.get(getClassNameIndex());
                 String fullClassName;
                 if (packageName.isEmpty()) {
                     fullClassName = className;
                 } else {
                     fullClassName = packageName + '.' + className;
                 }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
+                text = new StackTraceElement(fullClassName,
+                        methodNames.names.get(getMethodNameIndex()),
+                        fileNames.names.get(getFileNameIndex()), getLineNumber()).toString();
             }
             return text;
         }
@@ -374,22 +708,21 @@ public class MutableProfile {
         private final int[] methodNameIndexMapping;
         private final int[] fileNameIndexMapping;
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        private final Deque<ProfileNode> destinationStack = Queues.newArrayDeque();
 
         private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
+            packageNameIndexMapping =
+                    makeIndexMapping(toBeMergedProfile.getPackageNameList(), packageNames);
+            classNameIndexMapping =
+                    makeIndexMapping(toBeMergedProfile.getClassNameList(), classNames);
+            methodNameIndexMapping =
+                    makeIndexMapping(toBeMergedProfile.getMethodNameList(), methodNames);
+            fileNameIndexMapping =
+                    makeIndexMapping(toBeMergedProfile.getFileNameList(), fileNames);
+        }
+
+        private void merge(List<Profile.ProfileNode> flatNodes) {
+            destinationStack.push(syntheticRootNode);
             PeekingIterator<Profile.ProfileNode> i =
                     Iterators.peekingIterator(flatNodes.iterator());
             while (i.hasNext()) {
@@ -401,41 +734,22 @@ public class MutableProfile {
                 }
                 ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
                 if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+                    destinationStack.push(destinationNode);
                 }
             }
         }
 
         private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
-            }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
-        }
-
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
+                ProfileNode destinationParentNode) {
+            int frameId = getFrameId(packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()],
+                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()],
+                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()],
+                    fileNameIndexMapping[toBeMergedNode.getFileNameIndex()],
+                    toBeMergedNode.getLineNumber(),
+                    toBeMergedNode.getLeafThreadState().ordinal());
+            ProfileNode destinationNode = destinationParentNode.getOrCreateChildNode(frameId);
             destinationNode.sampleCount += toBeMergedNode.getSampleCount();
+            return destinationNode;
         }
     }
 
@@ -453,18 +767,99 @@ public class MutableProfile {
         public List<ProfileNode> visit(ProfileNode node, int depth) {
             nodes.add(Profile.ProfileNode.newBuilder()
                     .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
+                    .setPackageNameIndex(node.getPackageNameIndex())
+                    .setClassNameIndex(node.getClassNameIndex())
+                    .setMethodNameIndex(node.getMethodNameIndex())
+                    .setFileNameIndex(node.getFileNameIndex())
+                    .setLineNumber(node.getLineNumber())
+                    .setLeafThreadState(node.getLeafThreadState())
                     .setSampleCount(node.sampleCount)
                     .build());
             return node.childNodes;
         }
     }
 
+    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
+    private static class ProfileNodeWriter extends Traverser<ProfileNode, IOException> {
+
+        // null when only computing the serialized size
+        private final @Nullable CodedOutputStream output;
+
+        private int size;
+
+        private ProfileNodeWriter(ProfileNode rootNode, @Nullable CodedOutputStream output) {
+            super(rootNode);
+            this.output = output;
+        }
+
+        @Override
+        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+            int packageNameIndex = node.getPackageNameIndex();
+            int classNameIndex = node.getClassNameIndex();
+            int methodNameIndex = node.getMethodNameIndex();
+            int fileNameIndex = node.getFileNameIndex();
+            int lineNumber = node.getLineNumber();
+            int leafThreadState = node.getLeafThreadState().getNumber();
+            int nodeSize = 0;
+            if (depth != 0) {
+                nodeSize += CodedOutputStream.computeInt32Size(1, depth);
+            }
+            if (packageNameIndex != 0) {
+                nodeSize += CodedOutputStream.computeInt32Size(2, packageNameIndex);
+            }
+            if (classNameIndex != 0) {
+                nodeSize += CodedOutputStream.computeInt32Size(3, classNameIndex);
+            }
+            if (methodNameIndex != 0) {
+                nodeSize += CodedOutputStream.computeInt32Size(4, methodNameIndex);
+            }
+            if (fileNameIndex != 0) {
+                nodeSize += CodedOutputStream.computeInt32Size(5, fileNameIndex);
+            }
+            if (lineNumber != 0) {
+                nodeSize += CodedOutputStream.computeSInt32Size(6, lineNumber);
+            }
+            if (leafThreadState != 0) {
+                nodeSize += CodedOutputStream.computeEnumSize(7, leafThreadState);
+            }
+            if (node.sampleCount != 0) {
+                nodeSize += CodedOutputStream.computeInt64Size(8, node.sampleCount);
+            }
+            if (output == null) {
+                size += CodedOutputStream.computeTagSize(5)
+                        + CodedOutputStream.computeUInt32SizeNoTag(nodeSize) + nodeSize;
+                return node.childNodes;
+            }
+            output.writeTag(5, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(nodeSize);
+            if (depth != 0) {
+                output.writeInt32(1, depth);
+            }
+            if (packageNameIndex != 0) {
+                output.writeInt32(2, packageNameIndex);
+            }
+            if (classNameIndex != 0) {
+                output.writeInt32(3, classNameIndex);
+            }
+            if (methodNameIndex != 0) {
+                output.writeInt32(4, methodNameIndex);
+            }
+            if (fileNameIndex != 0) {
+                output.writeInt32(5, fileNameIndex);
+            }
+            if (lineNumber != 0) {
+                output.writeSInt32(6, lineNumber);
+            }
+            if (leafThreadState != 0) {
+                output.writeEnum(7, leafThreadState);
+            }
+            if (node.sampleCount != 0) {
+                output.writeInt64(8, node.sampleCount);
+            }
+            return node.childNodes;
+        }
+    }
+
     private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
 
         private final String filterTextUpper;
@@ -516,6 +911,7 @@ public class MutableProfile {
                     i.remove();
                 }
             }
+            node.childNodeSlots = null;
             node.sampleCount = filteredSampleCount;
         }
 
@@ -524,7 +920,7 @@ public class MutableProfile {
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            Profile.LeafThreadState leafThreadState = node.getLeafThreadState();
             if (leafThreadState != null) {
                 String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
                 if (leafThreadStateUpper.contains(filterTextUpper)) {
@@ -587,7 +983,7 @@ public class MutableProfile {
         public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
             jg.writeStartObject();
             jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            Profile.LeafThreadState leafThreadState = node.getLeafThreadState();
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
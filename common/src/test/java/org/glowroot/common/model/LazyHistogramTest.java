@@ -17,6 +17,7 @@ package org.glowroot.common.model;
 
 import org.junit.Test;
 
+import org.glowroot.common.model.LazyHistogram.HistogramPool;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
@@ -78,6 +79,18 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestPooled() throws Exception {
+        HistogramPool pool = new HistogramPool(true);
+        // test smaller numbers in more detail since that is where laziness occurs
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestPooled(pool, i);
+        }
+        shouldTestPooled(pool, 10000000);
+        shouldTestPooled(pool, 100000000);
+        assertThat(pool.getPooledHistogramCount()).isEqualTo(1);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -93,6 +106,28 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, num, 99.99);
     }
 
+    private void shouldTestPooled(HistogramPool pool, int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(pool);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        ScratchBuffer scratchBuffer = pool.getScratchBuffer();
+        Aggregate.Histogram histogram = lazyHistogram.toProto(scratchBuffer);
+        pool.releaseScratchBuffer(scratchBuffer);
+        lazyHistogram.release();
+        lazyHistogram = new LazyHistogram(pool);
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+        assertPercentile(lazyHistogram, num, 99.99);
+        lazyHistogram.release();
+    }
+
     private void shouldTestEncodeDecode(int num) throws Exception {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
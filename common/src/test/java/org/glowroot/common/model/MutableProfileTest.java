@@ -164,6 +164,56 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingManyChildNodes() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 100; i++) {
+            List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+            stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i));
+            stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 1));
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        }
+        MutableProfile viaProto = new MutableProfile();
+        MutableProfile direct = new MutableProfile();
+        // when
+        viaProto.merge(profile.toProto());
+        viaProto.merge(profile.toProto());
+        direct.merge(profile);
+        direct.merge(profile);
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(200);
+        assertThat(profile.toProto().getNodeCount()).isEqualTo(101);
+        assertThat(viaProto.getSampleCount()).isEqualTo(400);
+        assertThat(viaProto.toProto().getNodeCount()).isEqualTo(101);
+        assertThat(direct.toJson()).isEqualTo(viaProto.toJson());
+    }
+
+    @Test
+    public void testMergingAfterTruncate() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 20; i++) {
+            List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+            stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i));
+            stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 1));
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            if (i % 2 == 0) {
+                profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+        }
+        profile.truncateBranches(2);
+        // when
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 18));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 1));
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(31);
+        assertThat(profile.toProto().getNodeCount()).isEqualTo(11);
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {